@@ -0,0 +1,68 @@
+package norn.jmh;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import lib6005.parser.UnableToParseException;
+import norn.Environment;
+import norn.MailingList.EmailList;
+import norn.MailingList.MailingList;
+import norn.MailingList.MailingParser;
+
+/**
+ * Time to assign a chain of depth lists, each defined in terms of the one before, and time to
+ * redefine the first list of such a chain and evaluate the last, which depends on all of them.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@State(Scope.Benchmark)
+public class EnvironmentBenchmark {
+
+    @Param({ "10", "100", "1000" })
+    public int depth;
+
+    private MailingList[] links; // links[i] is the definition of list i
+    private MailingList[] roots; // alternative definitions of list 0
+    private Environment chain;
+    private int reassignments = 0;
+
+    @Setup
+    public void setUp() throws UnableToParseException {
+        links = new MailingList[depth];
+        links[0] = MailingParser.parse("user0@example.com");
+        for (int i = 1; i < depth; i++) {
+            links[i] = MailingParser.parse("list" + (i - 1) + ", user" + i + "@example.com");
+        }
+        roots = new MailingList[] { links[0], MailingParser.parse("root@example.com") };
+        chain = assignChain();
+    }
+
+    @Benchmark
+    public Environment assignChain() throws UnableToParseException {
+        final Environment environment = new Environment();
+        for (int i = 0; i < depth; i++) {
+            environment.assign("list" + i, links[i]);
+        }
+        return environment;
+    }
+
+    @Benchmark
+    public EmailList reassignRootAndEvaluate() throws UnableToParseException {
+        chain.assign("list0", roots[reassignments++ % roots.length]);
+        return chain.evaluate("list" + (depth - 1));
+    }
+}
@@ -0,0 +1,49 @@
+package norn.jmh;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import norn.MailingList.EmailList;
+
+/**
+ * Generated inputs shared by the benchmarks.
+ */
+class Inputs {
+
+    private Inputs() {
+        // not instantiable
+    }
+
+    /**
+     * @param from the number of the first address
+     * @param to the number after the last address
+     * @return the list of addresses userN@example.com for from <= N < to
+     */
+    static EmailList emails(int from, int to) {
+        final Set<String> emails = new HashSet<>();
+        for (int i = from; i < to; i++) {
+            emails.add("user" + i + "@example.com");
+        }
+        return new EmailList(emails);
+    }
+
+    /**
+     * @param operands the number of addresses and list names in the command; requires operands >= 1
+     * @return a definition of d with operands operands joined by every operator, in groups of
+     *      eight inside parentheses
+     */
+    static String command(int operands) {
+        final String[] operators = { ", ", " * ", " ! " };
+        final StringBuilder command = new StringBuilder("d = ");
+        for (int i = 0; i < operands; i++) {
+            if (i % 8 == 0) {
+                command.append(i > 0 ? "), (" : "(");
+            }
+            else {
+                command.append(operators[i % operators.length]);
+            }
+            command.append(i % 5 == 4 ? "list" + i : "user" + i + "@example.com");
+        }
+        return command.append(')').toString();
+    }
+}
@@ -0,0 +1,50 @@
+package norn.jmh;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import norn.MailingList.MailingList;
+import norn.MailingList.MailingParser;
+
+/**
+ * Time to parse a definition of increasing size, with each of MailingParser's parsers.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@State(Scope.Benchmark)
+public class ParserBenchmark {
+
+    @Param({ "10", "100", "1000", "10000" })
+    public int operands;
+
+    @Param({ "descent", "parserlib" })
+    public String parser;
+
+    private String command;
+
+    @Setup
+    public void setUp() {
+        command = Inputs.command(operands);
+    }
+
+    @Benchmark
+    public MailingList parse() {
+        return parser.equals("descent")
+                ? MailingParser.parseWithDescentParser(command)
+                : MailingParser.parseWithParserLib(command);
+    }
+}
@@ -0,0 +1,74 @@
+package norn.jmh;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import lib6005.parser.UnableToParseException;
+import norn.Environment;
+
+/**
+ * Time for a !save and !load round trip of an environment of lists definitions, each with ten
+ * addresses and a reference to an earlier list, in the text format and as a binary snapshot.
+ * Must be run from the project directory, since !save and !load use files in test/.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@State(Scope.Benchmark)
+public class PersistenceBenchmark {
+
+    private static final String FILE_NAME = "jmh-round-trip";
+
+    @Param({ "100", "1000" })
+    public int lists;
+
+    @Param({ ".txt", Environment.SNAPSHOT_EXTENSION })
+    public String extension;
+
+    private Environment environment;
+
+    @Setup
+    public void setUp() throws UnableToParseException {
+        environment = new Environment();
+        for (int i = 0; i < lists; i++) {
+            final StringBuilder definition = new StringBuilder("list" + i + " = ");
+            for (int address = 0; address < 10; address++) {
+                definition.append("user").append(10 * i + address).append("@example.com, ");
+            }
+            definition.append(i > 0 ? "list" + i / 2 : "root@example.com");
+            environment.execute(definition.toString());
+        }
+    }
+
+    @Benchmark
+    public int saveAndLoad() throws UnableToParseException {
+        final String saved = environment.execute("!save" + FILE_NAME + extension);
+        final String loaded = environment.execute("!load" + FILE_NAME + extension);
+        if (!saved.isEmpty() || !loaded.isEmpty()) {
+            throw new IllegalStateException("round trip failed: " + saved + loaded);
+        }
+        return environment.size();
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        Files.deleteIfExists(Paths.get("test", FILE_NAME + extension));
+    }
+}
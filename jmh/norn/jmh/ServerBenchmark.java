@@ -0,0 +1,109 @@
+package norn.jmh;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.net.ConnectException;
+import java.net.HttpURLConnection;
+import java.net.Socket;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import lib6005.parser.UnableToParseException;
+import norn.NornServer;
+
+/**
+ * Time for one query round trip to a NornServer on loopback, on an open console connection and
+ * as an http request. The server's request logging to System.err is discarded while measuring.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@State(Scope.Benchmark)
+public class ServerBenchmark {
+
+    private static final String LOCALHOST = "127.0.0.1";
+    private static final int HTTP_PORT = 6321;
+    private static final int CONSOLE_PORT = 6322;
+    private static final String QUERY = "(staff,students)*(a@example.com,b@example.com,c@example.com)";
+
+    private PrintStream err;
+    private NornServer server;
+    private Thread serverThread;
+    private Socket socket;
+    private BufferedReader in;
+    private PrintWriter out;
+
+    @Setup
+    public void setUp() throws IOException, UnableToParseException, InterruptedException {
+        err = System.err;
+        System.setErr(new PrintStream(new OutputStream() {
+            @Override public void write(int b) { }
+            @Override public void write(byte[] b, int off, int len) { }
+        }));
+        server = new NornServer(HTTP_PORT, CONSOLE_PORT, new ArrayList<>());
+        serverThread = new Thread(server::serve);
+        serverThread.start();
+        for (int attempt = 0; socket == null; attempt++) {
+            try {
+                socket = new Socket(LOCALHOST, CONSOLE_PORT);
+            } catch (ConnectException e) {
+                if (attempt == 100) {
+                    throw e;
+                }
+                Thread.sleep(50); // the server is still starting
+            }
+        }
+        in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+        out = new PrintWriter(socket.getOutputStream(), true);
+        in.readLine(); // welcome
+        out.println("staff = a@example.com, d@example.com; students = b@example.com, e@example.com");
+        in.readLine();
+    }
+
+    @Benchmark
+    public String consoleRoundTrip() throws IOException {
+        out.println(QUERY);
+        return in.readLine();
+    }
+
+    @Benchmark
+    public int httpRoundTrip() throws IOException {
+        final HttpURLConnection connection = (HttpURLConnection) new URL("http://localhost:" + HTTP_PORT + "/eval/" + QUERY).openConnection();
+        int length = 0;
+        try (InputStream body = connection.getInputStream()) {
+            final byte[] buffer = new byte[1024];
+            for (int n = body.read(buffer); n >= 0; n = body.read(buffer)) {
+                length += n;
+            }
+        }
+        return length;
+    }
+
+    @TearDown
+    public void tearDown() throws IOException, InterruptedException {
+        socket.close();
+        server.stop();
+        serverThread.join();
+        System.setErr(err);
+    }
+}
@@ -0,0 +1,73 @@
+package norn.jmh;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import lib6005.parser.UnableToParseException;
+import norn.Environment;
+import norn.MailingList.Difference;
+import norn.MailingList.EmailList;
+import norn.MailingList.Intersection;
+import norn.MailingList.MailingList;
+import norn.MailingList.Union;
+
+/**
+ * Time to evaluate the union, intersection and difference of two lists of size addresses each,
+ * sharing overlapPercent percent of their addresses.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@State(Scope.Benchmark)
+public class SetAlgebraBenchmark {
+
+    @Param({ "100", "10000", "100000" })
+    public int size;
+
+    @Param({ "0", "50", "100" })
+    public int overlapPercent;
+
+    private Environment environment;
+    private MailingList union;
+    private MailingList intersection;
+    private MailingList difference;
+
+    @Setup
+    public void setUp() {
+        final int overlap = size * overlapPercent / 100;
+        final EmailList left = Inputs.emails(0, size);
+        final EmailList right = Inputs.emails(size - overlap, 2 * size - overlap);
+        environment = new Environment();
+        union = new Union(left, right);
+        intersection = new Intersection(left, right);
+        difference = new Difference(left, right);
+    }
+
+    @Benchmark
+    public EmailList union() throws UnableToParseException {
+        return union.evaluate(environment);
+    }
+
+    @Benchmark
+    public EmailList intersection() throws UnableToParseException {
+        return intersection.evaluate(environment);
+    }
+
+    @Benchmark
+    public EmailList difference() throws UnableToParseException {
+        return difference.evaluate(environment);
+    }
+}
@@ -0,0 +1,40 @@
+#!/bin/sh
+# Builds the JMH benchmarks in jmh/norn/jmh against the sources in src/, runs them, and writes
+# the results as JSON to jmh/results/COMMIT.json, where COMMIT is the abbreviated hash of HEAD
+# (with "-dirty" if the working tree has changes), so results can be compared across commits.
+#
+# Usage: jmh/run.sh [JMH OPTIONS]
+#   e.g. jmh/run.sh                                  runs every benchmark
+#        jmh/run.sh ParserBenchmark -p operands=1000 runs one benchmark with one parameter value
+#        jmh/run.sh -h                               lists JMH's options
+#
+# JMH is not included in this repository. Put its jars in jmh/lib/, or set JMH_LIB to the
+# directory holding them: jmh-core, jmh-generator-annprocess, jopt-simple and commons-math3,
+# e.g. from https://repo1.maven.org/maven2/org/openjdk/jmh/
+set -e
+# the parser's grammar and the files of !save and !load are found relative to the project directory
+cd "$(dirname "$0")/.."
+
+JMH_LIB=${JMH_LIB:-jmh/lib}
+if ! ls "$JMH_LIB"/jmh-core-*.jar >/dev/null 2>&1; then
+    echo "JMH jars not found in $JMH_LIB; see the comment at the top of $0" >&2
+    exit 1
+fi
+CLASSPATH="lib/parserlib.jar:lib/httpserver.jar"
+for jar in "$JMH_LIB"/*.jar; do
+    CLASSPATH="$CLASSPATH:$jar"
+done
+
+OUT=jmh/build
+rm -rf "$OUT"
+mkdir -p "$OUT" jmh/results
+# the annotation processor in jmh-generator-annprocess generates the benchmark harness
+javac -nowarn -source 8 -target 8 -d "$OUT" -cp "$CLASSPATH" -processorpath "$CLASSPATH" \
+    $(find src jmh/norn -name '*.java')
+
+COMMIT=$(git rev-parse --short HEAD 2>/dev/null || echo unknown)
+if [ -n "$(git status --porcelain --untracked-files=no 2>/dev/null)" ]; then
+    COMMIT="$COMMIT-dirty"
+fi
+java -cp "$OUT:$CLASSPATH" org.openjdk.jmh.Main -rf json -rff "jmh/results/$COMMIT.json" "$@"
+echo "results: jmh/results/$COMMIT.json"
@@ -0,0 +1,29 @@
+package norn;
+
+import java.io.IOException;
+
+/**
+ * A server for the Norn console protocol.
+ *
+ * <br> Each client connection is a stream of lines. The server first sends a welcome line,
+ * then for each line the client sends, executes it as a command in the server's environment
+ * and sends back the result as one line, in order. If a command cannot be parsed, the server
+ * sends "Must enter valid command" and closes the connection. Lines end with the platform line
+ * separator when sent, and may end with "\n", "\r" or "\r\n" when received.
+ */
+public interface ConsoleTransport {
+
+    /**
+     * Run the server, listening for and handling client connections.
+     * Never returns, unless an exception is thrown or the server is closed.
+     *
+     * @throws IOException if an error occurs waiting for a connection
+     *                     (IOExceptions from individual clients do *not* terminate start())
+     */
+    public void start() throws IOException;
+
+    /**
+     * Stops listening for connections
+     */
+    public void close();
+}
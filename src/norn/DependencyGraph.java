@@ -0,0 +1,180 @@
+package norn;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/** mutable ADT for the graph of dependencies between list names in an Environment. */
+public class DependencyGraph {
+    /* Abstraction Function:
+     *     AF(dependencies, dependents) = a directed graph with an edge name -> d for every
+     *     d in dependencies.get(name), i.e. the definition of name refers to list d
+     * Representation Invariant:
+     *     d is in dependencies.get(name) iff name is in dependents.get(d);
+     *     no set in either map is empty
+     * Safety from Rep Exposure:
+     *     fields are private and final; observers return unmodifiable views or new collections
+     * Thread safety argument:
+     *     not threadsafe; an Environment only uses its DependencyGraph while holding its write lock
+     */
+
+    private final Map<String, Set<String>> dependencies = new HashMap<>(); // forward edges
+    private final Map<String, Set<String>> dependents = new HashMap<>(); // reverse edges
+
+    /**
+     * Creates a new, empty DependencyGraph
+     */
+    public DependencyGraph() { }
+
+    /**
+     * Replaces the outgoing edges of name
+     * @param name the name of the list
+     * @param names the names of the lists the definition of name refers to
+     */
+    public void setDependencies(String name, Set<String> names) {
+        remove(name);
+        if (names.isEmpty()) {
+            return;
+        }
+        dependencies.put(name, new HashSet<>(names));
+        for (final String dependency : names) {
+            dependents.computeIfAbsent(dependency, d -> new HashSet<>()).add(name);
+        }
+    }
+
+    /**
+     * Removes the outgoing edges of name
+     * @param name the name of the list
+     */
+    public void remove(String name) {
+        final Set<String> old = dependencies.remove(name);
+        if (old == null) {
+            return;
+        }
+        for (final String dependency : old) {
+            final Set<String> reverse = dependents.get(dependency);
+            reverse.remove(name);
+            if (reverse.isEmpty()) {
+                dependents.remove(dependency);
+            }
+        }
+    }
+
+    /**
+     * Removes every edge from this graph
+     */
+    public void clear() {
+        dependencies.clear();
+        dependents.clear();
+    }
+
+    /**
+     * @param name the name of the list
+     * @return the names of the lists the definition of name refers to directly
+     */
+    public Set<String> getDependencies(String name) {
+        return Collections.unmodifiableSet(dependencies.getOrDefault(name, Collections.emptySet()));
+    }
+
+    /**
+     * @param name the name of the list
+     * @return the names of the lists whose definitions refer to name directly
+     */
+    public Set<String> getDependents(String name) {
+        return Collections.unmodifiableSet(dependents.getOrDefault(name, Collections.emptySet()));
+    }
+
+    /**
+     * @param name the name of the list
+     * @return the names of all lists whose definitions refer to name directly or through
+     * other lists, not including name itself unless it is part of a cycle
+     */
+    public Set<String> getTransitiveDependents(String name) {
+        final Set<String> visited = new HashSet<>();
+        final Deque<String> toVisit = new ArrayDeque<>();
+        toVisit.push(name);
+        while (!toVisit.isEmpty()) {
+            for (final String dependent : getDependents(toVisit.pop())) {
+                if (visited.add(dependent)) {
+                    toVisit.push(dependent);
+                }
+            }
+        }
+        return visited;
+    }
+
+    /**
+     * Finds a list that would make a cycle if name were defined to refer to names. Only the
+     * lists that transitively depend on name are searched.
+     * @param name the name of the list being defined
+     * @param names the names of the lists the new definition of name refers to
+     * @return a member of names that is name or depends on name directly or through other
+     * lists, or null if there is none
+     */
+    public String findCycle(String name, Set<String> names) {
+        if (names.contains(name)) {
+            return name;
+        }
+        if (names.isEmpty()) {
+            return null;
+        }
+        final Set<String> visited = new HashSet<>();
+        final Deque<String> toVisit = new ArrayDeque<>();
+        toVisit.push(name);
+        while (!toVisit.isEmpty()) {
+            for (final String dependent : getDependents(toVisit.pop())) {
+                if (names.contains(dependent)) {
+                    return dependent;
+                }
+                if (visited.add(dependent)) {
+                    toVisit.push(dependent);
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Orders names so that every list comes after the lists it depends on
+     * @param names the names to order; requires the graph restricted to names is acyclic
+     * @return names, ordered so that if a depends on b then b comes before a
+     */
+    public List<String> topologicalOrder(Set<String> names) {
+        final Map<String, Integer> remaining = new HashMap<>();
+        final Deque<String> ready = new ArrayDeque<>();
+        for (final String name : names) {
+            int count = 0;
+            for (final String dependency : getDependencies(name)) {
+                if (names.contains(dependency)) {
+                    count++;
+                }
+            }
+            remaining.put(name, count);
+            if (count == 0) {
+                ready.add(name);
+            }
+        }
+        final List<String> order = new ArrayList<>(names.size());
+        while (!ready.isEmpty()) {
+            final String name = ready.remove();
+            order.add(name);
+            for (final String dependent : getDependents(name)) {
+                final Integer count = remaining.get(dependent);
+                if (count != null) {
+                    remaining.put(dependent, count - 1);
+                    if (count == 1) {
+                        ready.add(dependent);
+                    }
+                }
+            }
+        }
+        assert order.size() == names.size() : "dependency graph has a cycle";
+        return order;
+    }
+}
@@ -1,41 +1,158 @@
 package norn;
 
-import java.io.BufferedReader;
 import java.io.BufferedWriter;
-import java.io.FileReader;
-import java.io.FileWriter;
 import java.io.IOException;
-import java.util.HashMap;
+import java.io.InterruptedIOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 
 import lib6005.parser.UnableToParseException;
+import norn.MailingList.BinarySnapshot;
+import norn.MailingList.Definition;
+import norn.MailingList.EmailList;
+import norn.MailingList.EvaluationContext;
 import norn.MailingList.MailingList;
 import norn.MailingList.MailingParser;
+import norn.MailingList.ParallelEvaluator;
+import norn.MailingList.QueryOptimizer;
 
 /** threadsafe ADT for storing an environment of String -> MailingList mappings. */
 public class Environment {
     /* Abstraction Function:
-     *     AF(environment) = an environment in which each (listname, list) pair in environment
+     *     AF(state) = an environment in which each (listname, list) pair in state.definitions
      *     is a defined listname -> list assignment
+     *     and each (listname, emails) pair in state.evaluated is the memoized evaluation of listname
      * Representation Invariant:
-     *     true
+     *     every key of state.evaluated is a key of state.definitions, and
+     *     state.evaluated.get(name) equals state.definitions.get(name).evaluate(this);
+     *     dependencies has an edge name -> d iff state.definitions.get(name).dependsOn(d),
+     *     and is acyclic;
+     *     state.version increases whenever state.definitions changes;
+     *     if readOnly, state.definitions never changes, otherwise parent is null;
+     *     pending is null unless a thread holding writeLock is changing the environment;
+     *     if log is not null, replaying it gives state.definitions once the changes in
+     *     progress are published
      * Safety from Rep Exposure:
-     *     fields are private and final and never released to the observer
+     *     fields are private and final and never released to the observer; State and
+     *     PersistentMap are immutable
      * Thread safety argument:
-     *     all mutators and observers are syncrhonized around this instance - only one thread may
-     *     access or modify the single private, mutable variable, environment, at a time
+     *     state is published through an AtomicReference to an immutable State, so observers
+     *     and queries read a consistent version of the environment without locking.
+     *     Changes to definitions (assign, clear, save, load, and commands containing
+     *     definitions) hold writeLock, so only one is in progress at a time; they build
+     *     up pending, which only the thread holding writeLock reads, and publish it as
+     *     state when the outermost change completes, so other threads never see part of
+     *     a command. dependencies and pending are only accessed while holding writeLock.
+     *     Other threads only change state by a compare-and-set that caches an evaluation,
+     *     and only if state.version did not change while it was computed. The counters
+     *     are atomic, parallelEvaluator, metrics, log and checkpointer are volatile, and Metrics and
+     *     WriteAheadLog are threadsafe; changes are appended to log while holding writeLock,
+     *     so in the order they are made, and committed after releasing it, so that commits
+     *     of concurrent commands share a sync
      */
     
     public static final String FILE_NOT_FOUND = "File doesn't exist, or couldn't be opened or read";
     
     public static final String FILE_CANNOT_BE_PARSED = "File couldn't be parsed";
     
-    private final Map<String, MailingList> environment = new HashMap<>(); /* Essentially the same as the ListDictionary ADT, but ADT is not necessarily required */
+    public static final String SNAPSHOT_EXTENSION = ".snapshot"; /* !save writes a BinarySnapshot to files named *.snapshot */
+    
+    public static final String FILE_FOLDER = "test/"; /* where !save, !load and !checkpoint files are */
+    
+    public static final String NO_WRITE_AHEAD_LOG = "No write-ahead log to checkpoint";
+    
+    private static final int EXPLAIN_COMMAND_LENGTH = "!explain".length();
+    
+    private static final int CHECKPOINT_COMMAND_LENGTH = "!checkpoint".length();
+    
+    private static final int LOAD_CHUNK_CHARS = 1 << 16; /* characters of a text file parsed as one task */
+    
+    private static final int PARSES_IN_FLIGHT_PER_PROCESSOR = 2; /* chunks read ahead of the one being applied */
+    
+    static final String TEMPORARY_SUFFIX = ".tmp"; /* files are written under this suffix, then renamed */
+    
+    // a version of the environment: its definitions and the cached evaluations valid for them
+    private static final class State {
+        private final PersistentMap<String, MailingList> definitions;
+        private final PersistentMap<String, EmailList> evaluated;
+        private final long version;
+
+        State(PersistentMap<String, MailingList> definitions, PersistentMap<String, EmailList> evaluated, long version) {
+            this.definitions = definitions;
+            this.evaluated = evaluated;
+            this.version = version;
+        }
+    }
+    
+    private final AtomicReference<State> state;
+    
+    private final Object writeLock = new Object();
+    
+    private final DependencyGraph dependencies = new DependencyGraph();
+    
+    private State pending = null; /* the unpublished changes of the command in progress */
+    
+    private int nestedChanges = 0; /* changes started while pending was already in progress */
+    
+    private final boolean readOnly;
+    
+    private final Environment parent; /* the environment a snapshot was taken of, which shares its evaluations */
+    
+    private volatile ParallelEvaluator parallelEvaluator = null;
+    
+    private volatile Metrics metrics = null;
+    
+    private volatile WriteAheadLog log = null; /* where changes are logged, if anywhere */
+    
+    private volatile Executor checkpointer = null; /* writes checkpoints; null to write them on the calling thread */
+    
+    private final AtomicLong checkpoints = new AtomicLong();
+    
+    private final AtomicLong checkpointFailures = new AtomicLong();
+    
+    private final AtomicLong cacheHits;
+    
+    private final AtomicLong cacheMisses;
 
     /**
      * Creates a new Environment object
      */
-    public Environment() { }
+    public Environment() {
+        this.state = new AtomicReference<>(new State(PersistentMap.<String, MailingList>empty(), PersistentMap.<String, EmailList>empty(), 0));
+        this.readOnly = false;
+        this.parent = null;
+        this.cacheHits = new AtomicLong();
+        this.cacheMisses = new AtomicLong();
+    }
+    
+    // a read-only view of version of parent
+    private Environment(Environment parent, State version) {
+        this.state = new AtomicReference<>(version);
+        this.readOnly = true;
+        this.parent = parent;
+        this.cacheHits = parent.cacheHits;
+        this.cacheMisses = parent.cacheMisses;
+    }
 
 
     //
@@ -46,8 +163,24 @@ public class Environment {
     /**
      * Clears the saved environment of assigned list expressions
      */
-    public synchronized void clear() {
-        environment.clear();
+    public void clear() {
+        checkWritable();
+        try {
+            synchronized (writeLock) {
+                beginChange();
+                try {
+                    if (log != null) {
+                        log.appendClear();
+                    }
+                    dependencies.clear();
+                    pending = new State(PersistentMap.<String, MailingList>empty(), PersistentMap.<String, EmailList>empty(), pending.version + 1);
+                } finally {
+                    endChange();
+                }
+            }
+        } finally {
+            commitLog();
+        }
     }
 
     /**
@@ -55,8 +188,8 @@ public class Environment {
      * @param name the name of the list
      * @return true iff the environment contains a MailingList named name
      */
-    public synchronized boolean contains(String name) {
-        return environment.containsKey(name);
+    public boolean contains(String name) {
+        return read().definitions.containsKey(name);
     }
 
     /**
@@ -64,8 +197,8 @@ public class Environment {
      * @param name the name of the list, requires this contains name
      * @return the MailingList named name
      */
-    public synchronized MailingList get(String name) {
-        return environment.get(name);
+    public MailingList get(String name) {
+        return read().definitions.get(name);
     }
 
     /**
@@ -75,16 +208,272 @@ public class Environment {
      * cyclical dependency as described in the norn2 specification
      * @throws UnableToParseException if a cyclical definition is detected
      */
-    public synchronized void assign(String name, MailingList value) throws UnableToParseException {
-        MailingList simplifiedValue = value.evaluateName(name, this);
-        for (final String key : environment.keySet()) { //check for cyclical dependencies before adding to environment
-            if (environment.get(key).dependsOn(name) && simplifiedValue.dependsOn(key)) { 
-                throw new UnableToParseException("Cyclical definitions not supported; \"" + key + 
-                    "\" depends on \"" + name + "\" and vice versa");
+    public void assign(String name, MailingList value) throws UnableToParseException {
+        checkWritable();
+        try {
+            synchronized (writeLock) {
+                beginChange();
+                try {
+                    MailingList simplifiedValue = MailingList.shared(value.evaluateName(name, this)); // held once however many lists define it
+                    final Set<String> names = new HashSet<>();
+                    simplifiedValue.collectListNames(names);
+                    final String cycle = dependencies.findCycle(name, names); //check for cyclical dependencies before adding to environment
+                    if (cycle != null) {
+                        throw new UnableToParseException("Cyclical definitions not supported; \"" + cycle + 
+                            "\" depends on \"" + name + "\" and vice versa");
+                    }
+
+                    if (log != null) {
+                        log.appendAssign(name, simplifiedValue);
+                    }
+                    dependencies.setDependencies(name, names);
+                    PersistentMap<String, EmailList> evaluated = pending.evaluated.remove(name);
+                    for (final String dependent : dependencies.getTransitiveDependents(name)) {
+                        evaluated = evaluated.remove(dependent);
+                    }
+                    pending = new State(pending.definitions.put(name, simplifiedValue), evaluated, pending.version + 1);
+                } finally {
+                    endChange();
+                }
+            }
+        } finally {
+            commitLog();
+        }
+    }
+
+    /**
+     * Returns the names of the lists in this environment in dependency order
+     * @return every list name in this environment, ordered so that each list comes after
+     * the lists its definition refers to
+     */
+    public List<String> topologicalOrder() {
+        return topologicalOrder(read().definitions);
+    }
+
+    // the names of definitions, ordered so that each list comes after the lists it refers to
+    private static List<String> topologicalOrder(PersistentMap<String, MailingList> definitions) {
+        final DependencyGraph graph = new DependencyGraph();
+        definitions.forEach((name, definition) -> {
+            final Set<String> names = new HashSet<>();
+            definition.collectListNames(names);
+            graph.setDependencies(name, names);
+        });
+        return graph.topologicalOrder(definitions.keySet());
+    }
+
+    /**
+     * Evaluates the MailingList named name, reusing the previous evaluation if neither the
+     * list nor any list it depends on has been assigned since
+     * @param name the name of the list
+     * @return the evaluation of the MailingList named name, or an empty EmailList if this
+     * does not contain name
+     * @throws UnableToParseException if a cyclical assignment is detected in the evaluation
+     */
+    public EmailList evaluate(String name) throws UnableToParseException {
+        return evaluate(name, new EvaluationContext());
+    }
+
+    /**
+     * Evaluates the MailingList named name as evaluate(name) does, as part of an evaluation
+     * request that reuses the values of lists and subexpressions already evaluated in context
+     * @param name the name of the list
+     * @param context the evaluation request this is part of
+     * @return the evaluation of the MailingList named name, or an empty EmailList if this
+     * does not contain name
+     * @throws UnableToParseException if a cyclical assignment is detected in the evaluation
+     */
+    public EmailList evaluate(String name, EvaluationContext context) throws UnableToParseException {
+        final State start = read();
+        final EmailList cached = start.evaluated.get(name);
+        if (cached != null) {
+            cacheHits.incrementAndGet();
+            return cached;
+        }
+        final MailingList definition = start.definitions.get(name);
+        if (definition == null) {
+            return new EmailList(new HashSet<>());
+        }
+        cacheMisses.incrementAndGet();
+        final EmailList result = definition.evaluate(this, context);
+        cache(name, result, start.version);
+        return result;
+    }
+
+    /**
+     * Returns a consistent, read-only view of this environment, which may be evaluated
+     * against from any number of threads while this environment keeps changing.
+     * Takes constant time; evaluations cached by the snapshot are shared with this
+     * environment until it changes.
+     * @return an Environment with the same lists and cached evaluations as this; its
+     * mutators throw UnsupportedOperationException
+     */
+    public Environment snapshot() {
+        return new Environment(this, read());
+    }
+
+    /**
+     * Sets how pure queries (commands without definitions) are evaluated by execute
+     * @param evaluator the evaluator to use for queries, or null to evaluate them
+     * sequentially; either way they are evaluated against a snapshot of this environment
+     */
+    public void setParallelEvaluator(ParallelEvaluator evaluator) {
+        this.parallelEvaluator = evaluator;
+    }
+
+    /**
+     * Sets where execute records the time spent in each stage of commands given a transport
+     * @param metrics the metrics to record to, or null to record nothing
+     */
+    public void setMetrics(Metrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * Sets where changes to this environment's definitions are logged; used by WriteAheadLog.open
+     * @param log the log, or null to log nothing
+     */
+    void setWriteAheadLog(WriteAheadLog log) {
+        this.log = log;
+    }
+
+    /**
+     * Sets where !checkpoint commands write their checkpoints
+     * @param checkpointer runs each checkpoint as a task, so that the command returns once its
+     *      snapshot is taken; null to write checkpoints before the command returns
+     */
+    public void setCheckpointer(Executor checkpointer) {
+        this.checkpointer = checkpointer;
+    }
+
+    /**
+     * @return the number of checkpoints written
+     */
+    public long getCheckpointCount() {
+        return checkpoints.get();
+    }
+
+    /**
+     * @return the number of checkpoints that failed to be written
+     */
+    public long getCheckpointFailures() {
+        return checkpointFailures.get();
+    }
+
+    /**
+     * @return the number of lists defined in this environment
+     */
+    public int size() {
+        return read().definitions.size();
+    }
+
+    /**
+     * Returns the cached evaluation of the MailingList named name, without evaluating it
+     * @param name the name of the list
+     * @return the evaluation of the MailingList named name if it is cached, otherwise null
+     */
+    public EmailList getCached(String name) {
+        return read().evaluated.get(name);
+    }
+
+    /**
+     * @return the number of calls to evaluate(name) answered from the cache
+     */
+    public long getCacheHits() {
+        return cacheHits.get();
+    }
+
+    /**
+     * @return the number of calls to evaluate(name) on a defined list that had to evaluate
+     * its MailingList expression
+     */
+    public long getCacheMisses() {
+        return cacheMisses.get();
+    }
+
+    /**
+     * Caches the evaluation of name, in this environment and the one it is a snapshot of,
+     * unless its definitions changed since version
+     * @param name the name of the list
+     * @param result the evaluation of name
+     * @param version the version of the definitions name was evaluated against
+     */
+    private void cache(String name, EmailList result, long version) {
+        if (Thread.holdsLock(writeLock) && pending != null) {
+            if (pending.version == version && !pending.evaluated.containsKey(name)) {
+                pending = new State(pending.definitions, pending.evaluated.put(name, result), version);
             }
         }
+        else {
+            State current;
+            do {
+                current = state.get();
+                if (current.version != version || current.evaluated.containsKey(name)) {
+                    break;
+                }
+            } while (!state.compareAndSet(current, new State(current.definitions, current.evaluated.put(name, result), version)));
+        }
+        if (parent != null) {
+            parent.cache(name, result, version);
+        }
+    }
 
-        environment.put(name, simplifiedValue);
+    /**
+     * @return the version of this environment seen by the calling thread: the unpublished
+     * changes in progress if it holds writeLock, otherwise the published state
+     */
+    private State read() {
+        if (Thread.holdsLock(writeLock) && pending != null) {
+            return pending;
+        }
+        return state.get();
+    }
+
+    // starts a change, or a nested part of one; requires holding writeLock
+    private void beginChange() {
+        if (pending == null) {
+            pending = state.get();
+        }
+        else {
+            nestedChanges++;
+        }
+    }
+
+    // ends the change started by the matching beginChange(), publishing it if it is outermost
+    private void endChange() {
+        if (nestedChanges > 0) {
+            nestedChanges--;
+            return;
+        }
+        if (pending.version != state.get().version) {
+            state.set(pending); // definitions changed; cached evaluations of the old ones are dropped
+        }
+        pending = null;
+    }
+
+    // a snapshot of this environment taken as its log starts a new segment, so that it holds
+    // exactly the changes logged in earlier segments
+    Environment snapshotAndRotateLog() throws IOException {
+        checkWritable();
+        synchronized (writeLock) {
+            log.rotate();
+            return snapshot();
+        }
+    }
+
+    // makes the changes logged so far durable, unless called inside a change, whose outermost
+    // caller does so once it has released writeLock, in a finally: a change that fails part way
+    // still publishes what it did, so that must be made durable too
+    private void commitLog() {
+        final WriteAheadLog log = this.log;
+        if (log != null && !Thread.holdsLock(writeLock)) {
+            log.commit();
+        }
+    }
+
+    private void checkWritable() {
+        if (readOnly) {
+            throw new UnsupportedOperationException("environment snapshots are read-only");
+        }
     }
 
 
@@ -99,74 +488,253 @@ public class Environment {
      * @throws UnableToParseException if the command cannot be parsed
      * @throws IOException if fails to load file
      */
-    public synchronized String execute(String command) throws UnableToParseException {
+    public String execute(String command) throws UnableToParseException {
+        return execute(command, null);
+    }
+
+    /**
+     * Executes the provided command in the scope of this environment, recording the time spent
+     * parsing, evaluating, serializing and waiting for the write lock to the metrics set by
+     * setMetrics, if any
+     * @param command the command to evaluate
+     * @param transport where the command came from, or null to record nothing
+     * @return the string representation of the set of recipients in the evaluated command
+     * @throws UnableToParseException if the command cannot be parsed
+     * @throws java.io.UncheckedIOException if the command changed definitions but the write-ahead
+     *      log failed, in which case the changes may not be durable
+     */
+    public String execute(String command, Metrics.Transport transport) throws UnableToParseException {
+        final Response response = respond(command, transport);
+        if (!response.hasRecipients()) {
+            return response.getMessage();
+        }
+        final long start = System.nanoTime();
+        final String text = ResponseSerializer.toString(response.getRecipients());
+        recordSerialize(response, transport, System.nanoTime() - start);
+        return text;
+    }
+
+    /**
+     * Executes the provided command in the scope of this environment as execute does, but
+     * returns the recipients the command evaluated to rather than their text, for the caller
+     * to write with a ResponseSerializer and then record with recordSerialize
+     * @param command the command to evaluate
+     * @param transport where the command came from, or null to record nothing
+     * @return the response to the command
+     * @throws UnableToParseException if the command cannot be parsed
+     * @throws java.io.UncheckedIOException if the command changed definitions but the write-ahead
+     *      log failed, in which case the changes may not be durable
+     */
+    public Response respond(String command, Metrics.Transport transport) throws UnableToParseException {
+        final Metrics metrics = transport == null ? null : this.metrics;
         int startCommand = 5;
         if (command.startsWith("!save")){
             String fileName = command.substring(startCommand);
-            return save(fileName);   //got to check what response should be for empty file                
+            return Response.message(save(fileName, metrics, transport));   //got to check what response should be for empty file                
         }
         else if (command.startsWith("!load")) {
             String fileName = command.substring(startCommand);
-            String response = load(fileName);
-            return response;
+            String response = load(fileName, metrics, transport);
+            return Response.message(response);
             
+        }else if (command.startsWith("!checkpoint")) {
+            return Response.message(checkpoint(command.substring(CHECKPOINT_COMMAND_LENGTH)));
+        }else if (command.startsWith("!explain")) {
+            return Response.message(QueryOptimizer.explain(MailingParser.parse(command.substring(EXPLAIN_COMMAND_LENGTH)), this));
         }else {
-            String parsed = MailingParser.parse(command).evaluate(this).toString().replace("(", "").replace(")", "").replace(";;", ";");
-            return parsed;
+            final long start = System.nanoTime();
+            final MailingList parsedCommand = MailingParser.parse(command);
+            final long parsed = System.nanoTime();
+            final MailingList expression = QueryOptimizer.optimize(parsedCommand, this);
+            final EmailList result;
+            final Metrics.Command type;
+            long lockWait = 0;
+            long commitWait = 0;
+            if (QueryOptimizer.isCommandFree(expression)) { // a query; lock-free
+                type = Metrics.Command.QUERY;
+                final Environment snapshot = snapshot();
+                final ParallelEvaluator evaluator = parallelEvaluator;
+                result = evaluator != null ? evaluator.evaluate(expression, snapshot) : expression.evaluate(snapshot);
+            }
+            else {
+                type = Metrics.Command.DEFINITION;
+                checkWritable();
+                final long waiting = System.nanoTime();
+                long committing = 0;
+                try {
+                    synchronized (writeLock) { // definitions are performed one command at a time
+                        lockWait = System.nanoTime() - waiting;
+                        beginChange();
+                        try {
+                            result = expression.evaluate(this);
+                        } finally {
+                            endChange();
+                        }
+                    }
+                } finally {
+                    committing = System.nanoTime();
+                    commitLog();
+                }
+                commitWait = System.nanoTime() - committing;
+            }
+            final long evaluated = System.nanoTime();
+            if (metrics != null) {
+                metrics.record(Metrics.Stage.PARSE, transport, type, parsed - start);
+                metrics.record(Metrics.Stage.EVALUATE, transport, type, evaluated - parsed - lockWait - commitWait);
+                if (type == Metrics.Command.DEFINITION) {
+                    metrics.record(Metrics.Stage.LOCK_WAIT, transport, type, lockWait);
+                    if (log != null) {
+                        metrics.record(Metrics.Stage.LOG_COMMIT, transport, type, commitWait);
+                    }
+                }
+            }
+            return Response.recipients(result, type);
         }
     }
 
     /**
-     * Saves the environment into the specified fileName, and clears the environment
+     * Records the time spent writing a response to the metrics set by setMetrics, if any
+     * @param response the response returned by respond
+     * @param transport where the command came from, or null to record nothing
+     * @param nanos how long writing the response took, in nanoseconds
+     */
+    public void recordSerialize(Response response, Metrics.Transport transport, long nanos) {
+        final Metrics metrics = transport == null ? null : this.metrics;
+        if (metrics != null && response.hasRecipients()) {
+            metrics.record(Metrics.Stage.SERIALIZE, transport, response.getType(), nanos);
+        }
+    }
+
+    /**
+     * Saves the environment into the specified fileName, and clears the environment.
+     * The file is a BinarySnapshot if fileName ends with SNAPSHOT_EXTENSION, and text otherwise
      * @param fileName the name of the file to write the saved contents of environment
+     * @param metrics where to record the time spent waiting for the write lock, or null
+     * @param transport where the command came from
      * @return the empty string if successful, otherwise a printable error message
      * @throws IOException if the file couldn't be created or written to
      */
-    private synchronized String save(String fileName) {
-        String response = "";
-        BufferedWriter writer = null;
-        String testFolder = "test/";
+    private String save(String fileName, Metrics metrics, Metrics.Transport transport) {
+        checkWritable();
+        final String response;
+        final long waiting = System.nanoTime();
         try {
-            writer = new BufferedWriter(new FileWriter(testFolder + fileName));   
-            for (String name: environment.keySet()){
-                writer.write(name + "=" + environment.get(name) + ";");
+            synchronized (writeLock) {
+                if (metrics != null) {
+                    metrics.record(Metrics.Stage.LOCK_WAIT, transport, Metrics.Command.SAVE, System.nanoTime() - waiting);
+                }
+                beginChange();
+                try {
+                    response = saveLocked(fileName);
+                } finally {
+                    endChange();
+                }
             }
-        } catch (IOException e) {
-            response = "File could not be created or written to";
-            return response;
         } finally {
-            if ( writer != null){
-              try{
-                  writer.close();
-              }catch(IOException e){}
-              environment.clear();
-              response = "";
-          }
+            commitLog();
         }
         return response;
     }
-            
 
+    // save(fileName), while holding writeLock
+    private String saveLocked(String fileName) {
+        String testFolder = FILE_FOLDER;
+        try {
+            writeFile(Paths.get(testFolder + fileName), fileName.endsWith(SNAPSHOT_EXTENSION));
+        } catch (IOException e) {
+            String response = "File could not be created or written to";
+            return response;
+        }
+        clear();
+        return "";
+    }
+
+    // the work of a checkpoint
+    private interface CheckpointWrite {
+        void run() throws IOException;
+    }
+
+    /**
+     * Writes a checkpoint without clearing the environment or stopping other commands: a
+     * snapshot of the environment written atomically to fileName, a BinarySnapshot if
+     * fileName ends with SNAPSHOT_EXTENSION and text otherwise, or a checkpoint of the
+     * write-ahead log if fileName is empty. Written by the checkpointer, if set.
+     * @param fileName the name of the file in the test folder, or the empty string
+     * @return the empty string if the checkpoint was written or handed to the checkpointer,
+     *      otherwise a printable error message
+     */
+    private String checkpoint(String fileName) {
+        checkWritable();
+        final CheckpointWrite write;
+        if (fileName.isEmpty()) {
+            final WriteAheadLog log = this.log;
+            if (log == null) {
+                return NO_WRITE_AHEAD_LOG;
+            }
+            write = log::checkpoint;
+        }
+        else {
+            final Environment snapshot = snapshot(); // the environment as of this command
+            final Path file = Paths.get(FILE_FOLDER + fileName);
+            write = () -> snapshot.writeFileAtomically(file, fileName.endsWith(SNAPSHOT_EXTENSION));
+        }
+        final Executor checkpointer = this.checkpointer;
+        if (checkpointer == null) {
+            return writeCheckpoint(write) ? "" : "File could not be created or written to";
+        }
+        checkpointer.execute(() -> writeCheckpoint(write));
+        return "";
+    }
+
+    // runs write, counting it; returns false if it failed
+    private boolean writeCheckpoint(CheckpointWrite write) {
+        try {
+            write.run();
+            checkpoints.incrementAndGet();
+            return true;
+        } catch (IOException e) {
+            checkpointFailures.incrementAndGet();
+            System.err.println("checkpoint failed: " + e.getMessage());
+            return false;
+        }
+    }
 
     /**
      * Loads from the specified file the environment
      * @param file the file from which to load the environment
+     * @param metrics where to record the time spent waiting for the write lock, or null
+     * @param transport where the command came from
      * @return the empty string if successful, otherwise a printable error message
      * @throws IOException if the file doesn't exist, or couldn't be opened or read
      * @throws UnableToParseException 
      */
-    private synchronized String load(String fileName){
-        String testFolder = "test/";
-        try (BufferedReader br = new BufferedReader(new FileReader(testFolder + fileName))){
-            StringBuilder sb = new StringBuilder();
-            String line = br.readLine();
-            while (line != null) {
-                sb.append(line + ";");
-                sb.append(System.lineSeparator());
-                line = br.readLine();
-            }
-            String response = sb.toString();
-            execute(response);
+    private String load(String fileName, Metrics metrics, Metrics.Transport transport){
+        checkWritable();
+        final String response;
+        final long waiting = System.nanoTime();
+        try {
+            synchronized (writeLock) {
+                if (metrics != null) {
+                    metrics.record(Metrics.Stage.LOCK_WAIT, transport, Metrics.Command.LOAD, System.nanoTime() - waiting);
+                }
+                beginChange();
+                try {
+                    response = loadLocked(fileName);
+                } finally {
+                    endChange();
+                }
+            }
+        } finally {
+            commitLog();
+        }
+        return response;
+    }
+
+    // load(fileName), while holding writeLock
+    private String loadLocked(String fileName){
+        String testFolder = FILE_FOLDER;
+        try {
+            readFile(Paths.get(testFolder + fileName));
             String empty = "";
             return empty;
         } catch (IOException e) {
@@ -177,5 +745,222 @@ public class Environment {
             return response;
         }
     }
-}
 
+    /**
+     * Writes the lists of this environment to a file, each after the lists it depends on
+     * @param file the file to write
+     * @param binary true to write a BinarySnapshot, false to write the text format,
+     *      "name=expression;" for each list
+     * @throws IOException if the file couldn't be created or written to
+     */
+    public void writeFile(Path file, boolean binary) throws IOException {
+        final PersistentMap<String, MailingList> definitions = read().definitions;
+        final List<String> order = topologicalOrder(definitions);
+        if (binary) {
+            final Map<String, MailingList> ordered = new LinkedHashMap<>();
+            for (String name : order) {
+                ordered.put(name, definitions.get(name));
+            }
+            BinarySnapshot.write(ordered, file);
+            return;
+        }
+        try (BufferedWriter writer = Files.newBufferedWriter(file)) {
+            for (String name : order) {
+                writer.write(name + "=" + definitions.get(name) + ";");
+            }
+        }
+    }
+
+    /**
+     * Writes the lists of this environment to a file as writeFile does, but atomically: the
+     * lists are written to a temporary file, synced to disk, and renamed to file, so file is
+     * never left partly written
+     * @param file the file to write
+     * @param binary true to write a BinarySnapshot, false to write the text format
+     * @throws IOException if the file couldn't be created or written to
+     */
+    public void writeFileAtomically(Path file, boolean binary) throws IOException {
+        final Path temporary = file.resolveSibling(file.getFileName() + TEMPORARY_SUFFIX);
+        try {
+            writeFile(temporary, binary);
+            try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.WRITE)) {
+                channel.force(true);
+            }
+            Files.move(temporary, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            Files.deleteIfExists(temporary);
+            throw e;
+        }
+        syncDirectory(file.toAbsolutePath().getParent());
+    }
+
+    // makes the creation, deletion and renaming of files in directory durable, where supported
+    static void syncDirectory(Path directory) {
+        try (FileChannel channel = FileChannel.open(directory, StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (IOException e) {
+            // not every platform can open or sync a directory
+        }
+    }
+
+    /**
+     * Loads the lists in a file written by writeFile, in either format, into this environment
+     * @param file the file to read
+     * @throws IOException if the file doesn't exist, or couldn't be opened or read
+     * @throws UnableToParseException if the file couldn't be parsed, or defines lists cyclically
+     */
+    public void readFile(Path file) throws IOException, UnableToParseException {
+        readFiles(Collections.singletonList(file), null);
+    }
+
+    /**
+     * Loads the lists in files written by writeFile, in either format, into this environment,
+     * as one change: text files are read a statement at a time and parsed in chunks by parsers,
+     * several chunks and files at once, and once every file has been read and parsed the
+     * statements are applied in the order of files and of the statements in each file, so each
+     * list is defined after the lists it depends on and later definitions of a name replace
+     * earlier ones. If a file can't be read or parsed, nothing is applied.
+     * @param files the files to read
+     * @param parsers runs the tasks reading binary files and parsing chunks of text files, or
+     *      null to run them on the calling thread
+     * @throws IOException if a file doesn't exist, or couldn't be opened or read
+     * @throws UnableToParseException if a file couldn't be parsed, or defines lists cyclically
+     */
+    public void readFiles(List<Path> files, Executor parsers) throws IOException, UnableToParseException {
+        checkWritable();
+        final int window = parsers == null ? 1 : PARSES_IN_FLIGHT_PER_PROCESSOR * Runtime.getRuntime().availableProcessors();
+        final Deque<FutureTask<List<MailingList>>> parsing = new ArrayDeque<>();
+        final List<List<MailingList>> parsed = new ArrayList<>(); // applied only once all of it is
+        StatementReader reader = null;
+        try {
+            final Iterator<Path> unread = files.iterator();
+            while (true) {
+                while (parsing.size() < window) { // read ahead while earlier chunks are parsed
+                    final Callable<List<MailingList>> parse;
+                    if (reader != null) {
+                        final List<String> chunk = reader.nextChunk(LOAD_CHUNK_CHARS);
+                        if (chunk == null) {
+                            reader.close();
+                            reader = null;
+                            continue;
+                        }
+                        parse = () -> parseStatements(chunk);
+                    }
+                    else if (unread.hasNext()) {
+                        final Path file = unread.next();
+                        if (!BinarySnapshot.isSnapshot(file)) {
+                            reader = new StatementReader(Files.newBufferedReader(file));
+                            continue;
+                        }
+                        parse = () -> readDefinitions(file);
+                    }
+                    else {
+                        break;
+                    }
+                    final FutureTask<List<MailingList>> task = new FutureTask<>(parse);
+                    parsing.add(task);
+                    if (parsers == null) {
+                        task.run();
+                    }
+                    else {
+                        parsers.execute(task);
+                    }
+                }
+                if (parsing.isEmpty()) {
+                    break;
+                }
+                parsed.add(result(parsing.remove()));
+            }
+        } finally {
+            for (FutureTask<List<MailingList>> task : parsing) {
+                task.cancel(false);
+            }
+            if (reader != null) {
+                reader.close();
+            }
+        }
+        try {
+            synchronized (writeLock) {
+                beginChange();
+                try {
+                    for (List<MailingList> statements : parsed) {
+                        for (MailingList statement : statements) {
+                            applyStatement(statement);
+                        }
+                    }
+                } finally {
+                    endChange();
+                }
+            }
+        } finally {
+            commitLog();
+        }
+    }
+
+    // parses the statements of a chunk of a text file
+    private static List<MailingList> parseStatements(List<String> chunk) throws UnableToParseException {
+        final List<MailingList> statements = new ArrayList<>(chunk.size());
+        for (String statement : chunk) {
+            try {
+                statements.add(MailingParser.parse(statement));
+            } catch (IllegalArgumentException e) {
+                throw new UnableToParseException("couldn't parse \"" + statement + "\": " + e.getMessage());
+            }
+        }
+        return statements;
+    }
+
+    // the stored expressions of a BinarySnapshot, as definitions
+    private static List<MailingList> readDefinitions(Path file) throws IOException, UnableToParseException {
+        final List<MailingList> definitions = new ArrayList<>();
+        for (Map.Entry<String, MailingList> definition : BinarySnapshot.read(file).entrySet()) {
+            definitions.add(new Definition(definition.getKey(), definition.getValue()));
+        }
+        return definitions;
+    }
+
+    // waits for task, throwing what it threw
+    private static List<MailingList> result(FutureTask<List<MailingList>> task) throws IOException, UnableToParseException {
+        try {
+            return task.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while loading");
+        } catch (ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof UnableToParseException) {
+                throw (UnableToParseException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IllegalStateException(cause);
+        }
+    }
+
+    /**
+     * Applies a statement of a loaded file, as executing it would but without evaluating the
+     * lists of its definitions unless they contain definitions themselves; requires holding
+     * writeLock
+     * @param statement the statement
+     * @throws UnableToParseException if the statement defines a list cyclically
+     */
+    private void applyStatement(MailingList statement) throws UnableToParseException {
+        if (statement instanceof Definition) {
+            final Definition definition = (Definition) statement;
+            assign(definition.getName(), definition.getList().simplify());
+            if (!QueryOptimizer.isCommandFree(definition.getList())) {
+                definition.getList().evaluate(this);
+            }
+        }
+        else if (!QueryOptimizer.isCommandFree(statement)) {
+            statement.evaluate(this);
+        }
+    }
+}
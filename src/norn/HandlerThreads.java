@@ -0,0 +1,98 @@
+package norn;
+
+import java.lang.reflect.InvocationTargetException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadPoolExecutor;
+
+/**
+ * Executors for the threads that run NornServer's blocking request handlers: one console
+ * connection, or one http exchange, per task.
+ *
+ * <br> Virtual threads are found by reflection, so that the server still builds and runs
+ * on JVMs without them.
+ */
+public class HandlerThreads {
+
+    private HandlerThreads() {
+        // not instantiable
+    }
+
+    /**
+     * @return an executor that runs each task on a new platform thread
+     */
+    public static Executor platform() {
+        return task -> new Thread(task).start();
+    }
+
+    /**
+     * @return an executor that runs each task on a new virtual thread
+     * @throws UnsupportedOperationException if this JVM does not support virtual threads
+     *      (they require Java 21, or Java 19 or 20 with --enable-preview)
+     */
+    public static ExecutorService virtual() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (NoSuchMethodException | IllegalAccessException e) {
+            throw new UnsupportedOperationException("virtual threads are not supported by this JVM");
+        } catch (InvocationTargetException e) {
+            throw new UnsupportedOperationException("virtual threads are not enabled in this JVM: " + e.getCause());
+        }
+    }
+
+    /**
+     * @return true iff virtual() can be used in this JVM
+     */
+    public static boolean isVirtualSupported() {
+        try {
+            virtual().shutdown();
+            return true;
+        } catch (UnsupportedOperationException e) {
+            return false;
+        }
+    }
+
+    /**
+     * @param threads the number of threads; requires threads >= 1
+     * @return an executor that runs tasks on a fixed pool of platform threads, queueing
+     *      the tasks that arrive while they are all busy
+     */
+    public static ExecutorService pool(int threads) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("threads must be positive: " + threads);
+        }
+        return Executors.newFixedThreadPool(threads);
+    }
+
+    /**
+     * @param handlers an executor, or null
+     * @return true iff handlers runs tasks on a bounded number of threads, as pool() does,
+     *      so that tasks holding a thread for long can keep others from running
+     */
+    public static boolean isBounded(Executor handlers) {
+        return handlers instanceof ThreadPoolExecutor
+                && ((ThreadPoolExecutor) handlers).getMaximumPoolSize() < Integer.MAX_VALUE;
+    }
+
+    /**
+     * Parses a thread mode given on the command line
+     * @param mode "platform", "virtual", or a positive number of pooled threads
+     * @return platform(), virtual(), or pool(mode)
+     * @throws IllegalArgumentException if mode is none of these
+     * @throws UnsupportedOperationException if mode is "virtual" and virtual() is not supported
+     */
+    public static Executor parse(String mode) {
+        if (mode.equals("platform")) {
+            return platform();
+        }
+        if (mode.equals("virtual")) {
+            return virtual();
+        }
+        try {
+            return pool(Integer.parseInt(mode));
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("unknown thread mode: \"" + mode + "\"");
+        }
+    }
+}
@@ -0,0 +1,148 @@
+package norn;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+
+/**
+ * An HttpHandler that admits a bounded number of requests at once, and hands each one it admits
+ * to another handler run by a worker executor. It runs on the http server's dispatcher thread, so
+ * when the server is saturated a request is refused at once with 503 Service Unavailable and a
+ * Retry-After header, instead of waiting in an unbounded queue.
+ */
+public class HttpAdmission implements HttpHandler {
+
+    /**
+     * AF
+     *  AF(handler, workers, capacity, slots, ...) represents admission control in front of handler,
+     *  where at most capacity requests are admitted and not yet finished, of which active are
+     *  being handled and the rest are waiting for a worker
+     *
+     * RI
+     *  capacity >= 1, retryAfterSeconds >= 0, active >= 0; except while a handler is finishing,
+     *  active <= capacity - slots.availablePermits()
+     *
+     * Rep Exposure
+     *  all instance variables private, final, and not returned
+     *
+     * Thread Safety
+     *  handler and workers are threadsafe; slots and the counters are threadsafe datatypes, and
+     *  each admitted request holds one slot from admission until its handler returns
+     */
+
+    static final String UNAVAILABLE_RESPONSE = "Server busy, please retry";
+
+    private final HttpHandler handler;
+    private final Executor workers;
+    private final int capacity;
+    private final int retryAfterSeconds;
+    private final Semaphore slots;
+    private final AtomicInteger active = new AtomicInteger();
+    private final AtomicLong admitted = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+
+    /**
+     * Creates admission control in front of a handler
+     * @param handler handles each admitted request
+     * @param workers runs handler on each admitted request
+     * @param capacity the most requests admitted and not yet handled at once, both those being
+     *      handled and those waiting for a worker; requires capacity >= 1
+     * @param retryAfterSeconds the delay clients are told to wait before retrying a refused
+     *      request; requires retryAfterSeconds >= 0
+     */
+    public HttpAdmission(HttpHandler handler, Executor workers, int capacity, int retryAfterSeconds) {
+        if (capacity < 1 || retryAfterSeconds < 0) {
+            throw new IllegalArgumentException("invalid capacity " + capacity + " or retry delay " + retryAfterSeconds);
+        }
+        this.handler = handler;
+        this.workers = workers;
+        this.capacity = capacity;
+        this.retryAfterSeconds = retryAfterSeconds;
+        this.slots = new Semaphore(capacity);
+    }
+
+    @Override
+    public void handle(HttpExchange exchange) throws IOException {
+        if (!slots.tryAcquire()) {
+            refuse(exchange);
+            return;
+        }
+        admitted.incrementAndGet();
+        try {
+            workers.execute(() -> run(exchange));
+        } catch (RejectedExecutionException e) {
+            admitted.decrementAndGet(); // the workers are shutting down
+            slots.release();
+            refuse(exchange);
+        }
+    }
+
+    // worker thread: handles an admitted request, then frees its slot
+    private void run(HttpExchange exchange) {
+        active.incrementAndGet();
+        try {
+            handler.handle(exchange);
+        } catch (IOException | RuntimeException | StackOverflowError e) { // so the client isn't left waiting
+            System.err.println("Http request failed: " + e);
+            exchange.close();
+        } finally {
+            slots.release();
+            active.decrementAndGet();
+        }
+    }
+
+    private void refuse(HttpExchange exchange) throws IOException {
+        rejected.incrementAndGet();
+        exchange.getRequestBody().close();
+        final byte[] body = UNAVAILABLE_RESPONSE.getBytes();
+        exchange.getResponseHeaders().set("Content-Type", "text/html");
+        exchange.getResponseHeaders().set("Retry-After", Integer.toString(retryAfterSeconds));
+        exchange.sendResponseHeaders(503, body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+        exchange.close();
+    }
+
+    /**
+     * @return the most requests admitted and not yet handled at once
+     */
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * @return the number of requests being handled now
+     */
+    public int getActiveCount() {
+        return active.get();
+    }
+
+    /**
+     * @return the number of admitted requests waiting for a worker now
+     */
+    public int getQueueDepth() {
+        return Math.max(0, capacity - slots.availablePermits() - active.get());
+    }
+
+    /**
+     * @return the number of requests admitted since this was created
+     */
+    public long getAdmittedCount() {
+        return admitted.get();
+    }
+
+    /**
+     * @return the number of requests refused with 503 since this was created
+     */
+    public long getRejectedCount() {
+        return rejected.get();
+    }
+}
@@ -0,0 +1,115 @@
+package norn;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * threadsafe ADT for a histogram of durations, with fixed buckets whose bounds grow
+ * geometrically as in HdrHistogram: SUB_BUCKETS buckets per power of two from about 1
+ * microsecond to about 69 seconds, and one more for longer durations. Recording a duration
+ * neither allocates nor locks.
+ *
+ * <br> With 8 buckets per power of two, a bucket's upper bound is at most 12.5% above any
+ * duration counted in it (above 1 microsecond and below the last bound), so a quantile
+ * read from the buckets is within 12.5% of the true one: a p99 of 1.0 ms is reported as
+ * 1.05 ms and one of 1.2 ms as 1.31 ms.
+ */
+public final class LatencyHistogram {
+    /* Abstraction Function:
+     *     AF(counts, sum) = the multiset of durations recorded, where counts[i] durations d had
+     *     UPPER_BOUNDS[i-1] < d <= UPPER_BOUNDS[i] (d > the last bound for the last count),
+     *     and sum is the total of all of them in nanoseconds
+     * Representation Invariant:
+     *     counts.length() == UPPER_BOUNDS.length + 1, UPPER_BOUNDS is strictly increasing
+     * Safety from Rep Exposure:
+     *     fields are private and final and never returned
+     * Thread safety argument:
+     *     counts and sum are atomic; a reader may see a duration in counts before it is
+     *     added to sum, but never a count decrease
+     */
+
+    private static final int MIN_EXPONENT = 10; // 2^10 ns, about 1 microsecond
+    private static final int MAX_EXPONENT = 36; // 2^36 ns, about 69 seconds
+    private static final int SUB_BUCKET_BITS = 3; // relative error 2^-3
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+    // inclusive upper bound of each bucket but the last, in nanoseconds
+    private static final long[] UPPER_BOUNDS = new long[1 + (MAX_EXPONENT - MIN_EXPONENT) * SUB_BUCKETS];
+    static {
+        UPPER_BOUNDS[0] = 1L << MIN_EXPONENT;
+        for (int exponent = MIN_EXPONENT; exponent < MAX_EXPONENT; exponent++) {
+            final long step = 1L << (exponent - SUB_BUCKET_BITS);
+            for (int sub = 0; sub < SUB_BUCKETS; sub++) {
+                UPPER_BOUNDS[1 + (exponent - MIN_EXPONENT) * SUB_BUCKETS + sub] = (1L << exponent) + (sub + 1) * step;
+            }
+        }
+    }
+
+    private final AtomicLongArray counts = new AtomicLongArray(UPPER_BOUNDS.length + 1);
+    private final AtomicLong sum = new AtomicLong();
+
+    /**
+     * Records one duration
+     * @param nanos the duration in nanoseconds; negative durations are recorded as 0
+     */
+    public void record(long nanos) {
+        final long duration = Math.max(0, nanos);
+        counts.incrementAndGet(bucket(duration));
+        sum.addAndGet(duration);
+    }
+
+    /**
+     * @param nanos a duration in nanoseconds, >= 0
+     * @return the index of the bucket nanos is counted in
+     */
+    static int bucket(long nanos) {
+        if (nanos <= UPPER_BOUNDS[0]) {
+            return 0;
+        }
+        final long below = nanos - 1; // bounds are inclusive
+        final int exponent = 63 - Long.numberOfLeadingZeros(below);
+        if (exponent >= MAX_EXPONENT) {
+            return UPPER_BOUNDS.length;
+        }
+        final int sub = (int) (below >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return 1 + (exponent - MIN_EXPONENT) * SUB_BUCKETS + sub;
+    }
+
+    /**
+     * @param bucket a bucket index, 0 <= bucket < the number of buckets
+     * @return the inclusive upper bound of bucket in nanoseconds, or Long.MAX_VALUE for the last
+     */
+    static long upperBound(int bucket) {
+        return bucket < UPPER_BOUNDS.length ? UPPER_BOUNDS[bucket] : Long.MAX_VALUE;
+    }
+
+    /**
+     * @return the number of durations recorded
+     */
+    public long getCount() {
+        long count = 0;
+        for (int i = 0; i < counts.length(); i++) {
+            count += counts.get(i);
+        }
+        return count;
+    }
+
+    /**
+     * Appends this histogram in the Prometheus text format: a cumulative _bucket sample for each
+     * bucket with its upper bound in seconds as le, then _sum in seconds and _count
+     * @param out where to append
+     * @param name the metric name
+     * @param labels the labels of every sample, as name="value" pairs separated by commas
+     */
+    public void write(StringBuilder out, String name, String labels) {
+        long cumulative = 0;
+        for (int i = 0; i < counts.length(); i++) {
+            cumulative += counts.get(i);
+            out.append(name).append("_bucket{").append(labels).append(",le=\"")
+                .append(i < UPPER_BOUNDS.length ? Double.toString(UPPER_BOUNDS[i] / 1e9) : "+Inf")
+                .append("\"} ").append(cumulative).append('\n');
+        }
+        out.append(name).append("_sum{").append(labels).append("} ").append(sum.get() / 1e9).append('\n');
+        out.append(name).append("_count{").append(labels).append("} ").append(cumulative).append('\n');
+    }
+}
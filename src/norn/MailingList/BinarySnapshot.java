@@ -0,0 +1,360 @@
+package norn.MailingList;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PrimitiveIterator;
+
+import lib6005.parser.UnableToParseException;
+
+/**
+ * Binary file format for a set of list definitions, read through a memory-mapped buffer so
+ * that loading does not parse any text.
+ *
+ * <br> Layout (all integers big-endian, strings as an int byte length then UTF-8 bytes):
+ * <pre>
+ *      MAGIC, VERSION
+ *      email count, emails             -- the email dictionary; an email's id is its index
+ *      name count, names               -- the name table; a name's id is its index
+ *      definition count, (name id, expression)*
+ * </pre>
+ * An expression is a tag byte followed by:
+ * <pre>
+ *      EMAILS                          count, email ids
+ *      NAME                            name id
+ *      UNION, INTERSECTION,
+ *      DIFFERENCE, SEQUENCE            count, expressions
+ *      DEFINITION                      name id, expression
+ * </pre>
+ * Expressions are read with an explicit stack, so a file's nesting depth is not limited by the
+ * thread's stack, and every email is checked before it is added to the EmailDictionary.
+ */
+public class BinarySnapshot {
+
+    private static final int MAGIC = 0x4E4F524E; // "NORN"
+    private static final int VERSION = 1;
+
+    private static final byte EMAILS = 1;
+    private static final byte NAME = 2;
+    private static final byte UNION = 3;
+    private static final byte INTERSECTION = 4;
+    private static final byte DIFFERENCE = 5;
+    private static final byte SEQUENCE = 6;
+    private static final byte DEFINITION = 7;
+
+    /**
+     * Determines whether a file is in this format
+     * @param file the file to check
+     * @return true iff file starts with the header of a binary snapshot
+     * @throws IOException if the file doesn't exist, or couldn't be opened or read
+     */
+    public static boolean isSnapshot(Path file) throws IOException {
+        try (InputStream in = Files.newInputStream(file)) {
+            final byte[] header = new byte[Integer.BYTES];
+            int read = 0;
+            while (read < header.length) {
+                final int n = in.read(header, read, header.length - read);
+                if (n < 0) {
+                    return false;
+                }
+                read += n;
+            }
+            return ByteBuffer.wrap(header).getInt() == MAGIC;
+        }
+    }
+
+    /**
+     * Writes definitions to a file, replacing its contents
+     * @param definitions the lists to write, by name, in the order they should be read back
+     * @param file the file to write
+     * @throws IOException if the file couldn't be created or written to
+     */
+    public static void write(Map<String, MailingList> definitions, Path file) throws IOException {
+        final Tables tables = new Tables();
+        for (Map.Entry<String, MailingList> definition : definitions.entrySet()) {
+            tables.nameId(definition.getKey());
+            tables.collect(definition.getValue());
+        }
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(file)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            writeStrings(tables.emails, out);
+            writeStrings(tables.names, out);
+            out.writeInt(definitions.size());
+            for (Map.Entry<String, MailingList> definition : definitions.entrySet()) {
+                out.writeInt(tables.nameId(definition.getKey()));
+                writeExpression(definition.getValue(), tables, out);
+            }
+        }
+    }
+
+    /**
+     * Reads the definitions in a file
+     * @param file a file written by write()
+     * @return the lists in file, by name, in the order they were written
+     * @throws IOException if the file doesn't exist, or couldn't be opened or read
+     * @throws UnableToParseException if the file is not a binary snapshot, or is corrupt
+     */
+    public static Map<String, MailingList> read(Path file) throws IOException, UnableToParseException {
+        final ByteBuffer buffer;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        try {
+            if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+                throw new UnableToParseException("not a binary snapshot: " + file);
+            }
+            final int[] emailIds = new int[readCount(buffer, Integer.BYTES)];
+            for (int i = 0; i < emailIds.length; i++) {
+                final String email = readString(buffer);
+                if (!EmailAddresses.isValid(email) || EmailAddresses.canonical(email) != email) {
+                    throw new UnableToParseException("corrupt binary snapshot: " + file + ": invalid email " + email);
+                }
+                emailIds[i] = EmailDictionary.intern(email);
+            }
+            final String[] names = new String[readCount(buffer, Integer.BYTES)];
+            for (int i = 0; i < names.length; i++) {
+                names[i] = readString(buffer);
+            }
+            final int count = readCount(buffer, Integer.BYTES + 1);
+            final Map<String, MailingList> definitions = new LinkedHashMap<>();
+            for (int i = 0; i < count; i++) {
+                final String name = names[buffer.getInt()];
+                definitions.put(name, readExpression(buffer, emailIds, names));
+            }
+            return definitions;
+        } catch (BufferUnderflowException | IndexOutOfBoundsException | IllegalArgumentException e) {
+            throw new UnableToParseException("corrupt binary snapshot: " + file);
+        }
+    }
+
+    //
+    // WRITING
+    //
+
+    // the email dictionary and name table of a file being written
+    private static class Tables {
+        private final List<String> emails = new ArrayList<>();
+        private final Map<Integer, Integer> emailIds = new HashMap<>(); // EmailDictionary id -> file id
+        private final List<String> names = new ArrayList<>();
+        private final Map<String, Integer> nameIds = new HashMap<>();
+
+        int emailId(int id) {
+            final Integer known = emailIds.get(id);
+            if (known != null) {
+                return known;
+            }
+            emailIds.put(id, emails.size());
+            emails.add(EmailDictionary.get(id));
+            return emails.size() - 1;
+        }
+
+        int nameId(String name) {
+            final Integer known = nameIds.get(name);
+            if (known != null) {
+                return known;
+            }
+            nameIds.put(name, names.size());
+            names.add(name);
+            return names.size() - 1;
+        }
+
+        // adds the emails and names in expression to the tables
+        void collect(MailingList expression) {
+            if (expression instanceof EmailList) {
+                final PrimitiveIterator.OfInt ids = ((EmailList) expression).getIds().iterator();
+                while (ids.hasNext()) {
+                    emailId(ids.nextInt());
+                }
+            }
+            else if (expression instanceof NamedList) {
+                nameId(((NamedList) expression).getName());
+            }
+            else if (expression instanceof Definition) {
+                nameId(((Definition) expression).getName());
+                collect(((Definition) expression).getList());
+            }
+            else {
+                for (MailingList operand : operands(expression)) {
+                    collect(operand);
+                }
+            }
+        }
+    }
+
+    private static void writeStrings(List<String> strings, DataOutputStream out) throws IOException {
+        out.writeInt(strings.size());
+        for (String string : strings) {
+            final byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+    }
+
+    private static void writeExpression(MailingList expression, Tables tables, DataOutputStream out) throws IOException {
+        if (expression instanceof EmailList) {
+            final EmailBitmap ids = ((EmailList) expression).getIds();
+            out.writeByte(EMAILS);
+            out.writeInt(ids.cardinality());
+            final PrimitiveIterator.OfInt iterator = ids.iterator();
+            while (iterator.hasNext()) {
+                out.writeInt(tables.emailId(iterator.nextInt()));
+            }
+        }
+        else if (expression instanceof NamedList) {
+            out.writeByte(NAME);
+            out.writeInt(tables.nameId(((NamedList) expression).getName()));
+        }
+        else if (expression instanceof Definition) {
+            out.writeByte(DEFINITION);
+            out.writeInt(tables.nameId(((Definition) expression).getName()));
+            writeExpression(((Definition) expression).getList(), tables, out);
+        }
+        else {
+            out.writeByte(expression instanceof Union ? UNION
+                    : expression instanceof Intersection ? INTERSECTION
+                    : expression instanceof Difference ? DIFFERENCE : SEQUENCE);
+            final List<MailingList> operands = operands(expression);
+            out.writeInt(operands.size());
+            for (MailingList operand : operands) {
+                writeExpression(operand, tables, out);
+            }
+        }
+    }
+
+    // requires expression is a Union, Intersection, Difference or Sequence; its lists
+    private static List<MailingList> operands(MailingList expression) {
+        if (expression instanceof Union) {
+            return ((Union) expression).getLists();
+        }
+        if (expression instanceof Intersection) {
+            return ((Intersection) expression).getLists();
+        }
+        if (expression instanceof Difference) {
+            return ((Difference) expression).getLists();
+        }
+        return ((Sequence) expression).getLists();
+    }
+
+    //
+    // READING
+    //
+
+    /**
+     * Reads the number of items that follow
+     * @param buffer the buffer to read from
+     * @param minimumSize the smallest number of bytes an item takes
+     * @return the count read from buffer
+     * @throws UnableToParseException if the count is negative, or its items cannot fit in
+     *      the rest of buffer
+     */
+    private static int readCount(ByteBuffer buffer, int minimumSize) throws UnableToParseException {
+        final int count = buffer.getInt();
+        if (count < 0 || (long) count * minimumSize > buffer.remaining()) {
+            throw new UnableToParseException("invalid count " + count);
+        }
+        return count;
+    }
+
+    private static String readString(ByteBuffer buffer) throws UnableToParseException {
+        final byte[] bytes = new byte[readCount(buffer, 1)];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    // an operation whose operands are being read
+    private static class Operation {
+        private final byte tag;
+        private final String name; // of a DEFINITION, otherwise null
+        private final int count;
+        private final List<MailingList> operands;
+
+        Operation(byte tag, String name, int count) {
+            this.tag = tag;
+            this.name = name;
+            this.count = count;
+            this.operands = new ArrayList<>(count);
+        }
+
+        boolean isComplete() {
+            return operands.size() == count;
+        }
+
+        // requires isComplete()
+        MailingList build() {
+            switch (tag) {
+            case DEFINITION:
+                return new Definition(name, operands.get(0));
+            case UNION:
+                return new Union(operands);
+            case INTERSECTION:
+                return new Intersection(operands);
+            case DIFFERENCE:
+                return new Difference(operands);
+            default:
+                return new Sequence(operands);
+            }
+        }
+    }
+
+    private static MailingList readExpression(ByteBuffer buffer, int[] emailIds, String[] names) throws UnableToParseException {
+        final Deque<Operation> open = new ArrayDeque<>(); // innermost first
+        while (true) {
+            final byte tag = buffer.get();
+            MailingList expression = null;
+            switch (tag) {
+            case EMAILS:
+            {
+                final int[] ids = new int[readCount(buffer, Integer.BYTES)];
+                for (int i = 0; i < ids.length; i++) {
+                    ids[i] = emailIds[buffer.getInt()];
+                }
+                expression = new EmailList(EmailBitmap.of(ids, ids.length));
+                break;
+            }
+            case NAME:
+                expression = new NamedList(names[buffer.getInt()]);
+                break;
+            case DEFINITION:
+                open.push(new Operation(tag, names[buffer.getInt()], 1));
+                break;
+            case UNION:
+            case INTERSECTION:
+            case DIFFERENCE:
+            case SEQUENCE:
+                open.push(new Operation(tag, null, readCount(buffer, 1)));
+                break;
+            default:
+                throw new UnableToParseException("unknown expression tag " + tag);
+            }
+            if (expression != null) {
+                if (open.isEmpty()) {
+                    return expression;
+                }
+                open.peek().operands.add(expression);
+            }
+            while (open.peek().isComplete()) {
+                expression = open.pop().build();
+                if (open.isEmpty()) {
+                    return expression;
+                }
+                open.peek().operands.add(expression);
+            }
+        }
+    }
+}
@@ -1,6 +1,7 @@
 package norn.MailingList;
 
 import java.util.Objects;
+import java.util.Set;
 
 import lib6005.parser.UnableToParseException;
 import norn.Environment;
@@ -50,14 +51,12 @@ public class Definition implements MailingList {
     /**
      * Both assigns the definition in environment and evaluates the MailingList
      * @param environment a mapping of EmailList names to EmailLists
+     * @param context the evaluation request this is part of
      * @return an EmailList representation of this ListExpression
      */
     @Override
-    
-    public EmailList evaluate(Environment environment) throws UnableToParseException {
-        environment.assign(name, list.simplify());
-        
-        return list.evaluate(environment);
+    public EmailList evaluate(Environment environment, EvaluationContext context) throws UnableToParseException {
+        return Evaluator.evaluate(this, environment, context);
     }
 
     @Override
@@ -76,6 +75,11 @@ public class Definition implements MailingList {
         return list.dependsOn(listname);
     }
 
+    @Override
+    public void collectListNames(Set<String> names) {
+        list.collectListNames(names);
+    }
+
     //
     // OBJECT OVERRIDES
     //
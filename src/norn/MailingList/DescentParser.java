@@ -0,0 +1,282 @@
+package norn.MailingList;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+
+/**
+ * Single-pass parser for the grammar in MailingList.g.
+ *
+ * Builds the MailingList AST directly from the input characters, without an
+ * intermediate parse tree. The ASTs it produces are structurally equal to the
+ * ones produced by MailingParser from the parserlib ParseTree.
+ *
+ * The parser follows the rules of the grammar from sequence down to list, but keeps
+ * the rules still open at each level of parentheses on an explicit stack of Levels
+ * instead of recursing into '(' sequence ')', so deeply nested input cannot overflow
+ * the thread's stack.
+ */
+class DescentParser {
+
+    // AF: AF(input, pos, levels) = a parser positioned at character pos of input, inside
+    //      levels.size() - 1 open parentheses, with the operands parsed so far at each
+    //      level in levels (innermost first)
+    // RI: 0 <= pos <= input.length(), levels is nonempty
+    // Safety from rep exposure: all fields private, never returned; a DescentParser
+    //      is confined to the single call of parse() that creates it
+
+    private final String input;
+    private int pos = 0;
+    private final Deque<Level> levels = new ArrayDeque<>();
+
+    // the operands of the sequence, definition, union, difference and intersection
+    //      currently being parsed at one level of parentheses
+    private static class Level {
+        private final List<MailingList> sequence = new ArrayList<>();
+        private String name = null;
+        private final List<MailingList> union = new ArrayList<>();
+        private boolean isEmailsOnly = true;
+        private final List<MailingList> difference = new ArrayList<>();
+        private final List<MailingList> intersection = new ArrayList<>();
+    }
+
+    private DescentParser(String input) {
+        this.input = input;
+    }
+
+    /**
+     * Parse a string into an expression.
+     * @param input string to parse
+     * @return expression AST for the input
+     * @throws IllegalArgumentException if the string doesn't match the MailingList grammar
+     */
+    static MailingList parse(final String input) throws IllegalArgumentException {
+        final DescentParser parser = new DescentParser(input);
+        final MailingList expression = parser.parseSequence(); // root ::= sequence;
+        parser.skipWhitespace();
+        if (parser.pos != input.length()) {
+            throw parser.error();
+        }
+        return expression;
+    }
+
+    // sequence ::= definition (';' definition)*;
+    private MailingList parseSequence() {
+        levels.push(new Level());
+        parseDefinitionName();
+        while (true) {
+            // list ::= email | list_name | '(' sequence ')';
+            if (consume('(')) {
+                levels.push(new Level());
+                parseDefinitionName();
+                continue;
+            }
+            MailingList list = parseList();
+            boolean bareEmail = list instanceof EmailList;
+            while (true) {
+                final Level level = levels.peek();
+                // intersection ::= list ('*' list)*;
+                if (consume('*')) {
+                    level.intersection.add(list);
+                    break;
+                }
+                MailingList expression = list;
+                if (!level.intersection.isEmpty()) {
+                    expression = new Intersection(drain(level.intersection, expression));
+                    bareEmail = false;
+                }
+                // difference ::= intersection ('!' intersection)*;
+                if (consume('!')) {
+                    level.difference.add(expression);
+                    break;
+                }
+                if (!level.difference.isEmpty()) {
+                    expression = new Difference(drain(level.difference, expression));
+                    bareEmail = false;
+                }
+                // union ::= difference (',' difference)*;
+                level.isEmailsOnly = level.isEmailsOnly && bareEmail;
+                if (consume(',')) {
+                    level.union.add(expression);
+                    break;
+                }
+                expression = finishUnion(level, expression);
+                // definition ::= (list_name '=')? union;
+                if (level.name != null) {
+                    expression = new Definition(level.name, expression);
+                    level.name = null;
+                }
+                // sequence ::= definition (';' definition)*;
+                if (consume(';')) { // execute instructions in series
+                    level.sequence.add(expression);
+                    parseDefinitionName();
+                    break;
+                }
+                if (!level.sequence.isEmpty()) {
+                    expression = new Sequence(drain(level.sequence, expression));
+                }
+                levels.pop();
+                if (levels.isEmpty()) {
+                    return expression;
+                }
+                if (!consume(')')) {
+                    throw error();
+                }
+                list = expression;
+                bareEmail = false;
+            }
+        }
+    }
+
+    // definition ::= (list_name '=')? union; consumes list_name '=' if present
+    private void parseDefinitionName() {
+        skipWhitespace();
+        final int start = pos;
+        final int end = scan(start, false);
+        if (end > start && isListName(start, end)) {
+            pos = end;
+            if (consume('=')) { // assigning a list
+                levels.peek().name = input.substring(start, end);
+                return;
+            }
+            pos = start; // not actually assigning; continue parse
+        }
+    }
+
+    /**
+     * Completes a union: makes an EmailList if all of its operands were single emails
+     * @param level the level being parsed; its union operands are cleared
+     * @param last the last operand of the union
+     * @return the union of level's union operands and last
+     */
+    private static MailingList finishUnion(Level level, MailingList last) {
+        final boolean isEmailsOnly = level.isEmailsOnly;
+        level.isEmailsOnly = true;
+        if (level.union.isEmpty()) {
+            return last;
+        }
+        if (!isEmailsOnly) {
+            return new Union(drain(level.union, last));
+        }
+        //only emails, make EmailList instead of Union
+        final List<EmailList> emails = new ArrayList<>(level.union.size() + 1);
+        for (MailingList child : level.union) {
+            emails.add((EmailList) child);
+        }
+        emails.add((EmailList) last);
+        level.union.clear();
+        return EmailList.union(emails);
+    }
+
+    /**
+     * Collects the operands of an operation of the grammar
+     * @param operands the operands parsed before the last one; cleared
+     * @param last the last operand
+     * @return the operands followed by last
+     */
+    private static List<MailingList> drain(List<MailingList> operands, MailingList last) {
+        final List<MailingList> all = new ArrayList<>(operands.size() + 1);
+        all.addAll(operands);
+        all.add(last);
+        operands.clear();
+        return all;
+    }
+
+    // list ::= email | list_name; '(' sequence ')' is handled by parseSequence
+    private MailingList parseList() {
+        skipWhitespace();
+        final int start = pos;
+        final int end = scan(start, false);
+
+        if (end < input.length() && input.charAt(end) == '@') {
+            // email ::= [A-Za-z0-9\._\-\+]+ '@' [A-Za-z0-9\-_\.]+;
+            final int domainEnd = scan(end + 1, true);
+            if (end == start || domainEnd == end + 1) {
+                throw error();
+            }
+            pos = domainEnd;
+            return EmailList.of(input.substring(start, domainEnd));
+        }
+        if (end > start) {
+            // list_name ::= [A-Za-z0-9]+;
+            if (!isListName(start, end)) {
+                throw error();
+            }
+            pos = end;
+            return new NamedList(input.substring(start, end));
+        }
+        // email ::= ()?; the empty email
+        return new EmailList(EmailBitmap.EMPTY);
+    }
+
+    //
+    // LEXING HELPERS
+    //
+
+    // whitespace ::= [ \t\r\n]+;
+    private void skipWhitespace() {
+        while (pos < input.length()) {
+            final char c = input.charAt(pos);
+            if (c != ' ' && c != '\t' && c != '\r' && c != '\n') {
+                return;
+            }
+            pos++;
+        }
+    }
+
+    /**
+     * Skips whitespace, then consumes c if it is the next character
+     * @param c the expected character
+     * @return true iff c was consumed
+     */
+    private boolean consume(char c) {
+        if (peek(c)) {
+            pos++;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Skips whitespace, then checks whether c is the next character
+     * @param c the expected character
+     * @return true iff c is the next non-whitespace character
+     */
+    private boolean peek(char c) {
+        skipWhitespace();
+        return pos < input.length() && input.charAt(pos) == c;
+    }
+
+    /**
+     * Finds the end of the run of email characters starting at start
+     * @param start index to start scanning from
+     * @param domain true to scan domain characters [A-Za-z0-9\-_\.], false to scan
+     *      username characters [A-Za-z0-9\._\-\+]
+     * @return the index of the first character after the run
+     */
+    private int scan(int start, boolean domain) {
+        int end = start;
+        while (end < input.length()) {
+            final char c = input.charAt(end);
+            if (!EmailAddresses.is(c, domain ? EmailAddresses.DOMAIN : EmailAddresses.USERNAME)) {
+                break;
+            }
+            end++;
+        }
+        return end;
+    }
+
+    private boolean isListName(int start, int end) {
+        for (int i = start; i < end; i++) {
+            if (!EmailAddresses.is(input.charAt(i), EmailAddresses.NAME)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private IllegalArgumentException error() {
+        return new IllegalArgumentException("invalid input at character " + pos + ": " + input);
+    }
+}
@@ -1,6 +1,9 @@
 package norn.MailingList;
 
-import java.util.HashSet;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
 import java.util.Objects;
 import java.util.Set;
 
@@ -8,17 +11,18 @@ import lib6005.parser.UnableToParseException;
 import norn.Environment;
 
 /**
- * ADT for the difference of two mailing lists
+ * ADT for the difference of two or more mailing lists
  */
 public class Difference implements MailingList {
     
-    // AF: AF(list1, list2) = the difference of list1 and list2 (where
-    //      recipients in the mailing list are in list1 but not list2)
-    // RI: true
-    // Safety from rep exposure: list1 and list2 are private, final, immutable
+    // AF: AF(lists) = the difference of lists[0] and each of the other lists (where
+    //      recipients in the mailing list are in lists[0] but in none of the others)
+    // RI: lists.size() >= 2, and lists[0] is not a Difference
+    // Safety from rep exposure: lists is private, final, and an unmodifiable list of
+    //      immutable MailingLists
     
-    private final MailingList list1;
-    private final MailingList list2;
+    private final List<MailingList> lists;
+    private final int hashCode; // computed once, from the cached hash codes of the lists
     
     /**
      * Creates a MailingList object representing the difference between the two provided lists
@@ -26,74 +30,118 @@ public class Difference implements MailingList {
      * @param list2 a valid MailingList
      */
     public Difference(MailingList list1, MailingList list2) {
-        this.list1 = list1;
-        this.list2 = list2;
+        this(Arrays.asList(list1, list2));
     }
-
-    //
-    // INSTANCE METHODS
-    //
     
     /**
-     * Gets the mailing list in which the recipients are included
-     *      in the difference
-     * @return a mailing list object representing recipients
+     * Creates a MailingList object representing the recipients of the first list that
+     * are in none of the other lists. If the first list is itself a Difference, its lists
+     * are used instead, so (a!b)!c is a!b!c.
+     * @param lists at least two valid MailingLists
      */
-    public MailingList getList1() {
-        return list1;
+    public Difference(List<MailingList> lists) {
+        final List<MailingList> operands = new ArrayList<>(lists.size());
+        for (int i = 0; i < lists.size(); i++) {
+            if (i == 0 && lists.get(0) instanceof Difference) { // (a!b)!c is a!b!c
+                operands.addAll(((Difference) lists.get(0)).lists);
+            }
+            else {
+                operands.add(lists.get(i));
+            }
+        }
+        if (operands.size() < 2) {
+            throw new IllegalArgumentException("a difference needs at least two lists");
+        }
+        this.lists = Collections.unmodifiableList(operands);
+        this.hashCode = Objects.hash(this.lists, "DIFFERENCE");
+        //produces a unique hash code for a difference of lists
     }
     
+    //
+    // INSTANCE METHODS
+    //
+    
     /**
-     * Gets the mailing list in which the recipients are excluded
-     *      in the difference
-     * @return a mailing list object representing recipients
+     * Gets the mailing lists of the difference: recipients of the first are
+     *      included, recipients of the others excluded
+     * @return at least two valid mailing lists, the first not a Difference
      */
-    public MailingList getList2() {
-        return list2;
+    public List<MailingList> getLists() {
+        return lists;
     }
     
     @Override
-    public EmailList evaluate(Environment environment) throws UnableToParseException {
-        Set<String> evaluatedSet = new HashSet<String>();
-        evaluatedSet.addAll(list1.evaluate(environment).getEmails());
-        evaluatedSet.removeAll(list2.evaluate(environment).getEmails());
-        return new EmailList(evaluatedSet);
+    public EmailList evaluate(Environment environment, EvaluationContext context) throws UnableToParseException {
+        return Evaluator.evaluate(this, environment, context);
     }
 
     @Override
     public MailingList evaluateName(String listname, Environment environment) {
-        return new Difference(this.list1.evaluateName(listname, environment), this.list2.evaluateName(listname, environment));
+        final List<MailingList> evaluated = new ArrayList<>(lists.size());
+        boolean changed = false;
+        for (MailingList list : lists) {
+            final MailingList operand = list.evaluateName(listname, environment);
+            changed |= operand != list;
+            evaluated.add(operand);
+        }
+        return changed ? MailingList.difference(evaluated) : this;
     }
 
     @Override
     public MailingList simplify() {
-        return new Difference(list1.simplify(), list2.simplify());
+        final List<MailingList> simplified = new ArrayList<>(lists.size());
+        boolean changed = false;
+        for (MailingList list : lists) {
+            final MailingList operand = list.simplify();
+            changed |= operand != list;
+            simplified.add(operand);
+        }
+        return changed ? MailingList.difference(simplified) : this;
     }
 
     @Override
     public boolean dependsOn(String listname) {
-        return list1.dependsOn(listname) || list2.dependsOn(listname);
+        for (MailingList list : lists) {
+            if (list.dependsOn(listname)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public void collectListNames(Set<String> names) {
+        for (MailingList list : lists) {
+            list.collectListNames(names);
+        }
     }
 
     //
     // OBJECT OVERRIDES
     //
-
+    
     @Override
     public String toString() {
-        return "(" + this.list1.toString() + "!" + this.list2.toString() + ")";
+        final StringBuilder builder = new StringBuilder("(");
+        for (int i = 0; i < lists.size(); i++) {
+            if (i > 0) {
+                builder.append("!");
+            }
+            builder.append(lists.get(i).toString());
+        }
+        return builder.append(")").toString();
     }
     
     @Override
     public boolean equals(Object thatObject) {
+        if (thatObject == this) { return true; } // shared subexpressions compare in constant time
         if (!(thatObject instanceof Difference)) { return false; }
         Difference that = (Difference) thatObject;
-        return that.getList1().equals(this.getList1()) && that.getList2().equals(this.getList2());
+        return that.getLists().equals(this.getLists());
     }
     
     @Override
     public int hashCode() {
-        return Objects.hash(this.list1, this.list2, "DIFFERENCE");
-        //produces a unique hash code for a difference of lsit1 and list2
+        return hashCode; // constant time, so shared subexpressions can be remembered by EvaluationContext
     }
 }
@@ -0,0 +1,127 @@
+package norn.MailingList;
+
+/**
+ * Recognizes email addresses and the characters of the Norn grammar by a table of
+ * character classes instead of regular expressions, and puts addresses in canonical
+ * (lowercase) form without copying those that already are:
+ * <pre>
+ *      email ::= [A-Za-z0-9\._\-\+]+ '@' [A-Za-z0-9\-_\.]+;
+ *      list_name ::= [A-Za-z0-9]+;
+ * </pre>
+ */
+final class EmailAddresses {
+
+    /** Class of the characters of a list name, [A-Za-z0-9] */
+    static final int NAME = 1;
+    /** Class of the characters of a username, [A-Za-z0-9\._\-\+] */
+    static final int USERNAME = 2;
+    /** Class of the characters of a domain, [A-Za-z0-9\-_\.] */
+    static final int DOMAIN = 4;
+
+    private static final byte[] CLASSES = new byte[128]; // ASCII character -> its classes
+    static {
+        for (char c = '0'; c <= '9'; c++) {
+            CLASSES[c] = NAME | USERNAME | DOMAIN;
+        }
+        for (char c = 'a'; c <= 'z'; c++) {
+            CLASSES[c] = NAME | USERNAME | DOMAIN;
+            CLASSES[Character.toUpperCase(c)] = NAME | USERNAME | DOMAIN;
+        }
+        CLASSES['.'] = CLASSES['_'] = CLASSES['-'] = USERNAME | DOMAIN;
+        CLASSES['+'] = USERNAME;
+    }
+
+    // states of the recognizer of email
+    private static final int START = 0, USERNAME_CHARS = 1, AT = 2, DOMAIN_CHARS = 3;
+
+    private EmailAddresses() {
+        throw new AssertionError("not instantiable");
+    }
+
+    /**
+     * @param c a character
+     * @param charClass NAME, USERNAME or DOMAIN, or a combination of them with |
+     * @return true iff c is in one of the classes charClass
+     */
+    static boolean is(char c, int charClass) {
+        return c < CLASSES.length && (CLASSES[c] & charClass) != 0;
+    }
+
+    /**
+     * @param address any string
+     * @return true iff address matches email, in any case
+     */
+    static boolean isValid(String address) {
+        int state = START;
+        for (int i = 0; i < address.length(); i++) {
+            final char c = address.charAt(i);
+            switch (state) {
+            case START:
+            case USERNAME_CHARS:
+                if (c == '@' && state == USERNAME_CHARS) {
+                    state = AT;
+                }
+                else if (is(c, USERNAME)) {
+                    state = USERNAME_CHARS;
+                }
+                else {
+                    return false;
+                }
+                break;
+            default: // AT, DOMAIN_CHARS
+                if (!is(c, DOMAIN)) {
+                    return false;
+                }
+                state = DOMAIN_CHARS;
+            }
+        }
+        return state == DOMAIN_CHARS;
+    }
+
+    /**
+     * @param string any string
+     * @return true iff string is empty or only whitespace, as matched by \s*
+     */
+    static boolean isBlank(String string) {
+        for (int i = 0; i < string.length(); i++) {
+            final char c = string.charAt(i);
+            if (c != ' ' && c != '\t' && c != '\n' && c != '\u000B' && c != '\f' && c != '\r') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @param address an email address
+     * @return address in lowercase; address itself if it already is
+     */
+    static String canonical(String address) {
+        for (int i = 0; i < address.length(); i++) {
+            final char c = address.charAt(i);
+            if (c >= CLASSES.length) {
+                return address.toLowerCase(); // not a valid address; lowercase as String does
+            }
+            if (c >= 'A' && c <= 'Z') {
+                return lowercase(address, i);
+            }
+        }
+        return address;
+    }
+
+    // address with its ASCII letters from index first on in lowercase, or as String.toLowerCase
+    // does if address has other characters
+    private static String lowercase(String address, int first) {
+        final char[] chars = address.toCharArray();
+        for (int i = first; i < chars.length; i++) {
+            final char c = chars[i];
+            if (c >= CLASSES.length) {
+                return address.toLowerCase();
+            }
+            if (c >= 'A' && c <= 'Z') {
+                chars[i] = (char) (c + ('a' - 'A'));
+            }
+        }
+        return new String(chars);
+    }
+}
@@ -0,0 +1,695 @@
+package norn.MailingList;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.PrimitiveIterator;
+import java.util.TreeMap;
+
+/**
+ * An immutable compressed set of non-negative int ids (see EmailDictionary).
+ *
+ * The ids are split by their high 16 bits into Roaring-style containers: a sorted array
+ * of the low 16 bits when the container holds at most ARRAY_MAX ids, and a 65536-bit
+ * bitmap otherwise. Union, intersection and difference work container by container,
+ * using word-level OR, AND and ANDNOT on bitmaps and merges on arrays.
+ */
+public final class EmailBitmap {
+
+    // AF: AF(keys, containers) = the set of ids (keys[i] << 16) | low for every low in
+    //      containers[i]
+    // RI: keys is strictly increasing; keys.length == containers.length;
+    //      no container is empty; a container is an ArrayContainer iff it holds at most
+    //      ARRAY_MAX ids (so equal sets have equal representations);
+    //      cardinality is the sum of the containers' cardinalities
+    // Safety from rep exposure: all fields private and final; containers are never
+    //      mutated after construction and never returned
+
+    private static final int ARRAY_MAX = 4096;
+    private static final int WORDS = 1024;
+    /* sorted arrays at least this many times longer than the other are searched by
+       galloping instead of merged one element at a time */
+    private static final int GALLOP_RATIO = 32;
+
+    /** The empty set of ids. */
+    public static final EmailBitmap EMPTY = new EmailBitmap(new char[0], new Container[0]);
+
+    private final char[] keys;
+    private final Container[] containers;
+    private final int cardinality;
+    private int hashCode = 0; // cached; 0 until computed
+
+    private EmailBitmap(char[] keys, Container[] containers) {
+        this.keys = keys;
+        this.containers = containers;
+        int total = 0;
+        for (Container container : containers) {
+            total += container.cardinality();
+        }
+        this.cardinality = total;
+    }
+
+    /**
+     * Creates a set of ids
+     * @param ids an array of non-negative ids, in any order and possibly with duplicates;
+     *      not modified
+     * @param length the number of ids at the start of ids to include
+     * @return the set of the first length ids of ids
+     */
+    public static EmailBitmap of(int[] ids, int length) {
+        if (length == 0) {
+            return EMPTY;
+        }
+        final int[] sorted = Arrays.copyOf(ids, length);
+        Arrays.sort(sorted);
+        char[] keys = new char[8];
+        Container[] containers = new Container[8];
+        int count = 0;
+        int start = 0;
+        while (start < length) {
+            final int high = sorted[start] >>> 16;
+            int end = start;
+            char[] lows = new char[Math.min(length - start, 1 << 16)];
+            int n = 0;
+            while (end < length && sorted[end] >>> 16 == high) {
+                final char low = (char) sorted[end];
+                if (n == 0 || lows[n - 1] != low) {
+                    lows[n++] = low;
+                }
+                end++;
+            }
+            if (count == keys.length) {
+                keys = Arrays.copyOf(keys, count * 2);
+                containers = Arrays.copyOf(containers, count * 2);
+            }
+            keys[count] = (char) high;
+            containers[count] = ArrayContainer.normalize(lows, n);
+            count++;
+            start = end;
+        }
+        return new EmailBitmap(Arrays.copyOf(keys, count), Arrays.copyOf(containers, count));
+    }
+
+    /**
+     * Computes the union of many sets at once, visiting each container once
+     * @param bitmaps the sets to combine
+     * @return the set of ids in any of bitmaps
+     */
+    public static EmailBitmap or(List<EmailBitmap> bitmaps) {
+        if (bitmaps.isEmpty()) {
+            return EMPTY;
+        }
+        if (bitmaps.size() == 1) {
+            return bitmaps.get(0);
+        }
+        final TreeMap<Character, Container[]> byKey = new TreeMap<>();
+        final TreeMap<Character, Integer> counts = new TreeMap<>();
+        for (EmailBitmap bitmap : bitmaps) {
+            for (int i = 0; i < bitmap.keys.length; i++) {
+                final Character key = bitmap.keys[i];
+                Container[] group = byKey.get(key);
+                final int n = counts.getOrDefault(key, 0);
+                if (group == null) {
+                    group = new Container[bitmaps.size()];
+                    byKey.put(key, group);
+                }
+                group[n] = bitmap.containers[i];
+                counts.put(key, n + 1);
+            }
+        }
+        final char[] keys = new char[byKey.size()];
+        final Container[] containers = new Container[byKey.size()];
+        int i = 0;
+        for (Character key : byKey.keySet()) {
+            keys[i] = key;
+            containers[i] = Container.or(byKey.get(key), counts.get(key));
+            i++;
+        }
+        return new EmailBitmap(keys, containers);
+    }
+
+    //
+    // INSTANCE METHODS
+    //
+
+    /**
+     * @return the number of ids in this set
+     */
+    public int cardinality() {
+        return cardinality;
+    }
+
+    /**
+     * @return true iff this set has no ids
+     */
+    public boolean isEmpty() {
+        return cardinality == 0;
+    }
+
+    /**
+     * @param id an id
+     * @return true iff id is in this set
+     */
+    public boolean contains(int id) {
+        if (id < 0) {
+            return false;
+        }
+        final int i = Arrays.binarySearch(keys, (char) (id >>> 16));
+        return i >= 0 && containers[i].contains((char) id);
+    }
+
+    /**
+     * @param that a set of ids
+     * @return the set of ids in this or that
+     */
+    public EmailBitmap or(EmailBitmap that) {
+        if (this.isEmpty()) { return that; }
+        if (that.isEmpty()) { return this; }
+        final char[] keys = new char[this.keys.length + that.keys.length];
+        final Container[] containers = new Container[keys.length];
+        int i = 0, j = 0, n = 0;
+        while (i < this.keys.length || j < that.keys.length) {
+            if (j == that.keys.length || (i < this.keys.length && this.keys[i] < that.keys[j])) {
+                keys[n] = this.keys[i];
+                containers[n++] = this.containers[i++];
+            } else if (i == this.keys.length || that.keys[j] < this.keys[i]) {
+                keys[n] = that.keys[j];
+                containers[n++] = that.containers[j++];
+            } else {
+                keys[n] = this.keys[i];
+                containers[n++] = this.containers[i++].or(that.containers[j++]);
+            }
+        }
+        return new EmailBitmap(Arrays.copyOf(keys, n), Arrays.copyOf(containers, n));
+    }
+
+    /**
+     * @param that a set of ids
+     * @return the set of ids in both this and that
+     */
+    public EmailBitmap and(EmailBitmap that) {
+        if (this.isEmpty() || that.isEmpty()) { return EMPTY; }
+        final EmailBitmap small = this.keys.length <= that.keys.length ? this : that;
+        final EmailBitmap large = small == this ? that : this;
+        final boolean gallop = large.keys.length >= GALLOP_RATIO * small.keys.length;
+        final char[] keys = new char[small.keys.length];
+        final Container[] containers = new Container[small.keys.length];
+        int j = 0, n = 0;
+        for (int i = 0; i < small.keys.length && j < large.keys.length; i++) {
+            j = advance(large.keys, j, small.keys[i], gallop);
+            if (j < large.keys.length && large.keys[j] == small.keys[i]) {
+                final Container container = small.containers[i].and(large.containers[j]);
+                if (container != null) {
+                    keys[n] = small.keys[i];
+                    containers[n++] = container;
+                }
+                j++;
+            }
+        }
+        return n == 0 ? EMPTY : new EmailBitmap(Arrays.copyOf(keys, n), Arrays.copyOf(containers, n));
+    }
+
+    /**
+     * @param that a set of ids
+     * @return the set of ids in this but not in that
+     */
+    public EmailBitmap andNot(EmailBitmap that) {
+        if (this.isEmpty() || that.isEmpty()) { return this; }
+        final boolean gallop = that.keys.length >= GALLOP_RATIO * this.keys.length;
+        final char[] keys = new char[this.keys.length];
+        final Container[] containers = new Container[this.keys.length];
+        int j = 0, n = 0;
+        for (int i = 0; i < this.keys.length; i++) {
+            j = advance(that.keys, j, this.keys[i], gallop);
+            final Container container = j < that.keys.length && that.keys[j] == this.keys[i]
+                    ? this.containers[i].andNot(that.containers[j])
+                    : this.containers[i];
+            if (container != null) {
+                keys[n] = this.keys[i];
+                containers[n++] = container;
+            }
+        }
+        return n == 0 ? EMPTY : new EmailBitmap(Arrays.copyOf(keys, n), Arrays.copyOf(containers, n));
+    }
+
+    /**
+     * @return an iterator over the ids in this set, in increasing order
+     */
+    public PrimitiveIterator.OfInt iterator() {
+        return new PrimitiveIterator.OfInt() {
+            private int container = 0;
+            private int position = containers.length > 0 ? containers[0].nextPosition(0) : -1;
+
+            @Override
+            public boolean hasNext() {
+                return position >= 0;
+            }
+
+            @Override
+            public int nextInt() {
+                if (position < 0) {
+                    throw new NoSuchElementException();
+                }
+                final int id = (keys[container] << 16) | containers[container].valueAt(position);
+                position = containers[container].nextPosition(position + 1);
+                while (position < 0 && ++container < containers.length) {
+                    position = containers[container].nextPosition(0);
+                }
+                return id;
+            }
+        };
+    }
+
+    /**
+     * @return the ids in this set, in increasing order
+     */
+    public int[] toArray() {
+        final int[] ids = new int[cardinality];
+        int n = 0;
+        for (PrimitiveIterator.OfInt it = iterator(); it.hasNext(); ) {
+            ids[n++] = it.nextInt();
+        }
+        return ids;
+    }
+
+    /**
+     * Finds where target is, or belongs, in a sorted array
+     * @param array a sorted array
+     * @param from the index to search from; requires array[from - 1] < target if from > 0
+     * @param target the value to search for
+     * @param gallop true to search in steps that double, then by bisection, taking time
+     *      logarithmic in the distance covered; false to step one element at a time
+     * @return the least index i >= from such that i == array.length or array[i] >= target
+     */
+    private static int advance(char[] array, int from, char target, boolean gallop) {
+        if (!gallop) {
+            while (from < array.length && array[from] < target) {
+                from++;
+            }
+            return from;
+        }
+        int low = from; // array[low - 1] < target, if low > from
+        int high = from;
+        for (int step = 1; high < array.length && array[high] < target; step <<= 1) {
+            low = high + 1;
+            high = from + step;
+        }
+        high = Math.min(high, array.length); // high == array.length or array[high] >= target
+        while (low < high) {
+            final int middle = (low + high) >>> 1;
+            if (array[middle] < target) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    //
+    // OBJECT OVERRIDES
+    //
+
+    @Override
+    public boolean equals(Object thatObject) {
+        if (this == thatObject) { return true; }
+        if (!(thatObject instanceof EmailBitmap)) { return false; }
+        final EmailBitmap that = (EmailBitmap) thatObject;
+        if (this.cardinality != that.cardinality || !Arrays.equals(this.keys, that.keys)) {
+            return false;
+        }
+        for (int i = 0; i < keys.length; i++) {
+            if (!this.containers[i].equals(that.containers[i])) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public int hashCode() {
+        int hash = hashCode;
+        if (hash == 0) {
+            hash = Arrays.hashCode(keys);
+            for (Container container : containers) {
+                hash = 31 * hash + container.hashCode();
+            }
+            hashCode = hash;
+        }
+        return hash;
+    }
+
+    @Override
+    public String toString() {
+        return Arrays.toString(toArray());
+    }
+
+    //
+    // CONTAINERS
+    //
+
+    /** The low 16 bits of the ids sharing one high 16 bits; immutable. */
+    private static abstract class Container {
+
+        abstract int cardinality();
+
+        abstract boolean contains(char low);
+
+        // positions are container-specific cursors used for iteration
+        abstract int nextPosition(int position);
+
+        abstract int valueAt(int position);
+
+        abstract Container or(Container that);
+
+        /** @return the intersection, or null if it is empty */
+        abstract Container and(Container that);
+
+        /** @return the difference, or null if it is empty */
+        abstract Container andNot(Container that);
+
+        /**
+         * @param group containers to combine; only the first count are used
+         * @param count the number of containers, at least 1
+         * @return the union of the first count containers of group
+         */
+        static Container or(Container[] group, int count) {
+            if (count == 1) {
+                return group[0];
+            }
+            int total = 0;
+            boolean anyBitmap = false;
+            for (int i = 0; i < count; i++) {
+                total += group[i].cardinality();
+                anyBitmap = anyBitmap || group[i] instanceof BitmapContainer;
+            }
+            if (!anyBitmap && total <= ARRAY_MAX) {
+                final char[] lows = new char[total];
+                int n = 0;
+                for (int i = 0; i < count; i++) {
+                    final char[] content = ((ArrayContainer) group[i]).content;
+                    System.arraycopy(content, 0, lows, n, content.length);
+                    n += content.length;
+                }
+                Arrays.sort(lows);
+                int distinct = 0;
+                for (int i = 0; i < n; i++) {
+                    if (distinct == 0 || lows[distinct - 1] != lows[i]) {
+                        lows[distinct++] = lows[i];
+                    }
+                }
+                return new ArrayContainer(Arrays.copyOf(lows, distinct));
+            }
+            final long[] words = new long[WORDS];
+            for (int i = 0; i < count; i++) {
+                group[i].orInto(words);
+            }
+            return BitmapContainer.normalize(words);
+        }
+
+        /** Sets the bits of this container's lows in words. */
+        abstract void orInto(long[] words);
+    }
+
+    private static final class ArrayContainer extends Container {
+        private final char[] content; // sorted, distinct, 1 <= length <= ARRAY_MAX
+
+        ArrayContainer(char[] content) {
+            this.content = content;
+        }
+
+        // the container for lows[0..n), which is sorted and distinct; null if n == 0
+        static Container normalize(char[] lows, int n) {
+            if (n == 0) {
+                return null;
+            }
+            if (n <= ARRAY_MAX) {
+                return new ArrayContainer(lows.length == n ? lows : Arrays.copyOf(lows, n));
+            }
+            final long[] words = new long[WORDS];
+            for (int i = 0; i < n; i++) {
+                words[lows[i] >>> 6] |= 1L << lows[i];
+            }
+            return new BitmapContainer(words, n);
+        }
+
+        @Override int cardinality() { return content.length; }
+
+        @Override boolean contains(char low) { return Arrays.binarySearch(content, low) >= 0; }
+
+        @Override int nextPosition(int position) { return position < content.length ? position : -1; }
+
+        @Override int valueAt(int position) { return content[position]; }
+
+        @Override void orInto(long[] words) {
+            for (char low : content) {
+                words[low >>> 6] |= 1L << low;
+            }
+        }
+
+        @Override
+        Container or(Container that) {
+            if (that instanceof BitmapContainer) {
+                return that.or(this);
+            }
+            final char[] other = ((ArrayContainer) that).content;
+            if (other.length >= GALLOP_RATIO * content.length) {
+                return insertInto(other, content);
+            }
+            if (content.length >= GALLOP_RATIO * other.length) {
+                return insertInto(content, other);
+            }
+            final char[] merged = new char[content.length + other.length];
+            int i = 0, j = 0, n = 0;
+            while (i < content.length && j < other.length) {
+                if (content[i] < other[j]) {
+                    merged[n++] = content[i++];
+                } else if (other[j] < content[i]) {
+                    merged[n++] = other[j++];
+                } else {
+                    merged[n++] = content[i++];
+                    j++;
+                }
+            }
+            while (i < content.length) { merged[n++] = content[i++]; }
+            while (j < other.length) { merged[n++] = other[j++]; }
+            return normalize(merged, n);
+        }
+
+        @Override
+        Container and(Container that) {
+            final char[] result = new char[content.length];
+            int n = 0;
+            if (that instanceof BitmapContainer) {
+                for (char low : content) {
+                    if (that.contains(low)) {
+                        result[n++] = low;
+                    }
+                }
+                return normalize(result, n);
+            }
+            final char[] other = ((ArrayContainer) that).content;
+            final char[] small = content.length <= other.length ? content : other;
+            final char[] large = small == content ? other : content;
+            if (large.length >= GALLOP_RATIO * small.length) {
+                int j = 0;
+                for (int i = 0; i < small.length && j < large.length; i++) {
+                    j = advance(large, j, small[i], true);
+                    if (j < large.length && large[j] == small[i]) {
+                        result[n++] = small[i];
+                        j++;
+                    }
+                }
+                return normalize(result, n);
+            }
+            int i = 0, j = 0;
+            while (i < content.length && j < other.length) {
+                if (content[i] < other[j]) {
+                    i++;
+                } else if (other[j] < content[i]) {
+                    j++;
+                } else {
+                    result[n++] = content[i++];
+                    j++;
+                }
+            }
+            return normalize(result, n);
+        }
+
+        @Override
+        Container andNot(Container that) {
+            final char[] result = new char[content.length];
+            int n = 0;
+            if (that instanceof BitmapContainer) {
+                for (char low : content) {
+                    if (!that.contains(low)) {
+                        result[n++] = low;
+                    }
+                }
+                return normalize(result, n);
+            }
+            final char[] other = ((ArrayContainer) that).content;
+            if (content.length >= GALLOP_RATIO * other.length) {
+                // copy the runs of content between the few lows removed
+                int i = 0;
+                for (int j = 0; j < other.length && i < content.length; j++) {
+                    final int k = advance(content, i, other[j], true);
+                    System.arraycopy(content, i, result, n, k - i);
+                    n += k - i;
+                    i = k < content.length && content[k] == other[j] ? k + 1 : k;
+                }
+                System.arraycopy(content, i, result, n, content.length - i);
+                n += content.length - i;
+                return n == content.length ? this : normalize(result, n);
+            }
+            final boolean gallop = other.length >= GALLOP_RATIO * content.length;
+            int j = 0;
+            for (char low : content) {
+                j = advance(other, j, low, gallop);
+                if (j == other.length || other[j] != low) {
+                    result[n++] = low;
+                }
+            }
+            return n == content.length ? this : normalize(result, n);
+        }
+
+        // the union of large and small, which is much shorter: small inserted into the runs
+        // of large between them, each run copied at once
+        private static Container insertInto(char[] large, char[] small) {
+            final char[] merged = new char[large.length + small.length];
+            int i = 0, n = 0;
+            for (char low : small) {
+                final int k = advance(large, i, low, true);
+                System.arraycopy(large, i, merged, n, k - i);
+                n += k - i;
+                i = k;
+                if (i == large.length || large[i] != low) {
+                    merged[n++] = low;
+                }
+            }
+            System.arraycopy(large, i, merged, n, large.length - i);
+            n += large.length - i;
+            return normalize(merged, n);
+        }
+
+        @Override
+        public boolean equals(Object thatObject) {
+            return thatObject instanceof ArrayContainer
+                    && Arrays.equals(content, ((ArrayContainer) thatObject).content);
+        }
+
+        @Override
+        public int hashCode() {
+            return Arrays.hashCode(content);
+        }
+    }
+
+    private static final class BitmapContainer extends Container {
+        private final long[] words; // WORDS long, more than ARRAY_MAX bits set
+        private final int cardinality;
+
+        BitmapContainer(long[] words, int cardinality) {
+            this.words = words;
+            this.cardinality = cardinality;
+        }
+
+        // the container for the bits set in words; null if none are
+        static Container normalize(long[] words) {
+            int n = 0;
+            for (long word : words) {
+                n += Long.bitCount(word);
+            }
+            if (n == 0) {
+                return null;
+            }
+            if (n > ARRAY_MAX) {
+                return new BitmapContainer(words, n);
+            }
+            final char[] lows = new char[n];
+            int k = 0;
+            for (int w = 0; w < WORDS; w++) {
+                long word = words[w];
+                while (word != 0) {
+                    lows[k++] = (char) ((w << 6) + Long.numberOfTrailingZeros(word));
+                    word &= word - 1;
+                }
+            }
+            return new ArrayContainer(lows);
+        }
+
+        @Override int cardinality() { return cardinality; }
+
+        @Override boolean contains(char low) { return (words[low >>> 6] & (1L << low)) != 0; }
+
+        @Override
+        int nextPosition(int position) {
+            if (position >= WORDS * 64) {
+                return -1;
+            }
+            int w = position >>> 6;
+            long word = words[w] & (-1L << position);
+            while (word == 0) {
+                if (++w == WORDS) {
+                    return -1;
+                }
+                word = words[w];
+            }
+            return (w << 6) + Long.numberOfTrailingZeros(word);
+        }
+
+        @Override int valueAt(int position) { return position; }
+
+        @Override void orInto(long[] target) {
+            for (int w = 0; w < WORDS; w++) {
+                target[w] |= words[w];
+            }
+        }
+
+        @Override
+        Container or(Container that) {
+            final long[] result = words.clone();
+            that.orInto(result);
+            return normalize(result);
+        }
+
+        @Override
+        Container and(Container that) {
+            if (that instanceof ArrayContainer) {
+                return that.and(this);
+            }
+            final long[] other = ((BitmapContainer) that).words;
+            final long[] result = new long[WORDS];
+            for (int w = 0; w < WORDS; w++) {
+                result[w] = words[w] & other[w];
+            }
+            return normalize(result);
+        }
+
+        @Override
+        Container andNot(Container that) {
+            final long[] result = words.clone();
+            if (that instanceof ArrayContainer) {
+                for (char low : ((ArrayContainer) that).content) {
+                    result[low >>> 6] &= ~(1L << low);
+                }
+            } else {
+                final long[] other = ((BitmapContainer) that).words;
+                for (int w = 0; w < WORDS; w++) {
+                    result[w] &= ~other[w];
+                }
+            }
+            return normalize(result);
+        }
+
+        @Override
+        public boolean equals(Object thatObject) {
+            return thatObject instanceof BitmapContainer
+                    && Arrays.equals(words, ((BitmapContainer) thatObject).words);
+        }
+
+        @Override
+        public int hashCode() {
+            return Arrays.hashCode(words);
+        }
+    }
+}
@@ -0,0 +1,303 @@
+package norn.MailingList;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Threadsafe global dictionary assigning dense int ids to canonical email addresses.
+ *
+ * Ids are handed out in order 0, 1, 2, ... and an address keeps its id for the life of
+ * the process, so sets of addresses can be stored and combined as sets of ids (see
+ * EmailBitmap).
+ *
+ * Addresses are stored compactly, since most of them share a handful of domains: the
+ * username of each address is kept as ASCII bytes, one after the other in a single array,
+ * with the id of its domain, and each domain is kept once. Strings are only made when an
+ * address is asked for by get; copy writes its bytes without making one.
+ */
+public final class EmailDictionary {
+
+    // AF: AF(store, size) = the mapping id -> address(id) for 0 <= id < size, where
+    //      address(id) = the ASCII characters store.usernames[start(id)..store.ends[id]) + "@"
+    //          + the ASCII characters store.domains[store.domainOf[id]],
+    //      and start(id) = 0 if id == 0, store.ends[id - 1] otherwise
+    // RI: address(0..size) are distinct, lowercase and valid; ends is nondecreasing; every
+    //      domainOf[id] < domainCount, and store.domains[0..domainCount) are distinct;
+    //      table is an open-addressing hash table of the ids 0..size-1, hashed by
+    //      address(id).hashCode(), and domainTable one of the domain ids 0..domainCount-1,
+    //      hashed by the hashCode of their domain as a String, both with -1 marking empty
+    //      slots, with lengths powers of two and at least twice size and domainCount
+    // Safety from rep exposure: all fields private and static; only new Strings and ints are
+    //      returned, and copy copies bytes out of store
+    // Thread safety argument: intern and find are synchronized on the class, and so is every
+    //      access to table, domainTable, size and domainCount. get, length and copy read store
+    //      without locking: store is volatile and only replaced by a store holding copies of
+    //      everything written to the one before, and the bytes of an address are written to
+    //      the arrays of store before its id is returned by intern, so any thread that was
+    //      handed id (through safe publication) sees them in store
+
+    private static final int INITIAL_ADDRESSES = 1024;
+    private static final int INITIAL_DOMAINS = 16;
+
+    // the arrays holding the addresses; replaced by a larger copy when one of them is full
+    private static final class Store {
+        private final byte[] usernames;
+        private final int[] ends;       // ends[id] = end of the username of id in usernames
+        private final int[] domainOf;   // domainOf[id] = domain id of the address of id
+        private final byte[][] domains; // domains[domain id] = the domain, ASCII
+
+        private Store(byte[] usernames, int[] ends, int[] domainOf, byte[][] domains) {
+            this.usernames = usernames;
+            this.ends = ends;
+            this.domainOf = domainOf;
+            this.domains = domains;
+        }
+    }
+
+    private static volatile Store store = new Store(new byte[INITIAL_ADDRESSES * 8],
+            new int[INITIAL_ADDRESSES], new int[INITIAL_ADDRESSES], new byte[INITIAL_DOMAINS][]);
+    private static int[] table = newTable(INITIAL_ADDRESSES * 2);
+    private static int size = 0;
+    private static int[] domainTable = newTable(INITIAL_DOMAINS * 2);
+    private static int domainCount = 0;
+
+    private EmailDictionary() { }
+
+    /**
+     * Returns the id of an email address, assigning a new one if it has none yet
+     * @param email a canonical (lowercase, valid) email address
+     * @return the id of email
+     * @throws IllegalArgumentException if email is not a valid lowercase address, in which
+     *      case the dictionary is unchanged
+     */
+    public static synchronized int intern(String email) {
+        // checked always, not just asserted: the usernames of all addresses share one array,
+        // so storing an invalid one would corrupt the addresses stored next to it
+        if (!EmailAddresses.isValid(email) || EmailAddresses.canonical(email) != email) {
+            throw new IllegalArgumentException("not a valid lowercase email address: " + email);
+        }
+        final int slot = slot(email);
+        if (table[slot] >= 0) {
+            return table[slot];
+        }
+        final int at = email.indexOf('@');
+        final int domain = internDomain(email, at + 1);
+        final int id = size;
+        final int start = id == 0 ? 0 : store.ends[id - 1];
+        Store current = reserve(id, start + at);
+        for (int i = 0; i < at; i++) {
+            current.usernames[start + i] = (byte) email.charAt(i);
+        }
+        current.ends[id] = start + at;
+        current.domainOf[id] = domain;
+        size++;
+        table[slot] = id;
+        if (size * 2 > table.length) {
+            rehash();
+        }
+        return id;
+    }
+
+    /**
+     * Returns the id of an email address without assigning one
+     * @param email an email address
+     * @return the id of email, or -1 if email has never been interned
+     */
+    public static synchronized int find(String email) {
+        return table[slot(email)];
+    }
+
+    /**
+     * Returns the email address with the given id
+     * @param id an id returned by intern
+     * @return the email address whose id is id
+     */
+    public static String get(int id) {
+        final Store current = store;
+        final byte[] bytes = new byte[length(current, id)];
+        copy(current, id, bytes, 0);
+        return new String(bytes, StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * Returns the length of the email address with the given id
+     * @param id an id returned by intern
+     * @return get(id).length(), without making the String
+     */
+    public static int length(int id) {
+        return length(store, id);
+    }
+
+    /**
+     * Copies the email address with the given id, as ASCII bytes
+     * @param id an id returned by intern
+     * @param destination the array to copy to; requires room for length(id) bytes from offset
+     * @param offset where in destination to copy to
+     * @return the number of bytes copied, length(id)
+     */
+    public static int copy(int id, byte[] destination, int offset) {
+        return copy(store, id, destination, offset);
+    }
+
+    /**
+     * @return the number of email addresses that have been interned
+     */
+    public static synchronized int size() {
+        return size;
+    }
+
+    private static int length(Store current, int id) {
+        final int start = id == 0 ? 0 : current.ends[id - 1];
+        return current.ends[id] - start + 1 + current.domains[current.domainOf[id]].length;
+    }
+
+    private static int copy(Store current, int id, byte[] destination, int offset) {
+        final int start = id == 0 ? 0 : current.ends[id - 1];
+        final int usernameLength = current.ends[id] - start;
+        final byte[] domain = current.domains[current.domainOf[id]];
+        System.arraycopy(current.usernames, start, destination, offset, usernameLength);
+        destination[offset + usernameLength] = '@';
+        System.arraycopy(domain, 0, destination, offset + usernameLength + 1, domain.length);
+        return usernameLength + 1 + domain.length;
+    }
+
+    // returns the slot holding email, or the empty slot where it belongs
+    private static int slot(String email) {
+        final int mask = table.length - 1;
+        int slot = mix(email.hashCode()) & mask;
+        while (table[slot] >= 0 && !matches(table[slot], email)) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    // true iff the address of id is email
+    private static boolean matches(int id, String email) {
+        final Store current = store;
+        final int start = id == 0 ? 0 : current.ends[id - 1];
+        final int at = current.ends[id] - start;
+        final byte[] domain = current.domains[current.domainOf[id]];
+        if (email.length() != at + 1 + domain.length || email.charAt(at) != '@') {
+            return false;
+        }
+        for (int i = 0; i < at; i++) {
+            if (email.charAt(i) != current.usernames[start + i]) {
+                return false;
+            }
+        }
+        return matches(domain, email, at + 1);
+    }
+
+    // true iff domain is email from index from on
+    private static boolean matches(byte[] domain, String email, int from) {
+        if (email.length() - from != domain.length) {
+            return false;
+        }
+        for (int i = 0; i < domain.length; i++) {
+            if (email.charAt(from + i) != domain[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // the id of the domain of email, which starts at index from, assigning one if it has none yet
+    private static int internDomain(String email, int from) {
+        int hash = 0;
+        for (int i = from; i < email.length(); i++) {
+            hash = 31 * hash + email.charAt(i);
+        }
+        final int mask = domainTable.length - 1;
+        int slot = mix(hash) & mask;
+        while (domainTable[slot] >= 0) {
+            if (matches(store.domains[domainTable[slot]], email, from)) {
+                return domainTable[slot];
+            }
+            slot = (slot + 1) & mask;
+        }
+        final int domain = domainCount;
+        byte[][] domains = store.domains;
+        if (domain == domains.length) {
+            domains = Arrays.copyOf(domains, domain * 2);
+        }
+        domains[domain] = email.substring(from).getBytes(StandardCharsets.US_ASCII);
+        if (domains != store.domains) {
+            final Store current = store;
+            store = new Store(current.usernames, current.ends, current.domainOf, domains);
+        }
+        domainCount++;
+        domainTable[slot] = domain;
+        if (domainCount * 2 > domainTable.length) {
+            final int[] newTable = newTable(domainTable.length * 2);
+            for (int id = 0; id < domainCount; id++) {
+                int newSlot = mix(hashCode(store.domains[id], 0)) & (newTable.length - 1);
+                while (newTable[newSlot] >= 0) {
+                    newSlot = (newSlot + 1) & (newTable.length - 1);
+                }
+                newTable[newSlot] = id;
+            }
+            domainTable = newTable;
+        }
+        return domain;
+    }
+
+    // the store, grown if needed so that id and usernames up to usernamesEnd fit
+    private static Store reserve(int id, int usernamesEnd) {
+        final Store current = store;
+        if (id < current.ends.length && usernamesEnd <= current.usernames.length) {
+            return current;
+        }
+        final int addresses = id < current.ends.length ? current.ends.length : current.ends.length * 2;
+        final byte[] usernames = usernamesEnd <= current.usernames.length ? current.usernames
+                : Arrays.copyOf(current.usernames, Math.max(usernamesEnd, current.usernames.length * 2));
+        store = new Store(usernames, Arrays.copyOf(current.ends, addresses),
+                Arrays.copyOf(current.domainOf, addresses), current.domains);
+        return store;
+    }
+
+    private static void rehash() {
+        final Store current = store;
+        final int[] newTable = newTable(table.length * 2);
+        final int mask = newTable.length - 1;
+        for (int id = 0; id < size; id++) {
+            final int start = id == 0 ? 0 : current.ends[id - 1];
+            int hash = hashCode(current.usernames, start, current.ends[id]);
+            hash = hashCode(current.domains[current.domainOf[id]], 31 * hash + '@');
+            int slot = mix(hash) & mask;
+            while (newTable[slot] >= 0) {
+                slot = (slot + 1) & mask;
+            }
+            newTable[slot] = id;
+        }
+        table = newTable;
+    }
+
+    // String.hashCode of the ASCII characters bytes[from..to)
+    private static int hashCode(byte[] bytes, int from, int to) {
+        int hash = 0;
+        for (int i = from; i < to; i++) {
+            hash = 31 * hash + bytes[i];
+        }
+        return hash;
+    }
+
+    // String.hashCode of the ASCII characters of bytes, as if preceded by ones hashing to hash
+    private static int hashCode(byte[] bytes, int hash) {
+        for (byte b : bytes) {
+            hash = 31 * hash + b;
+        }
+        return hash;
+    }
+
+    private static int[] newTable(int capacity) {
+        final int[] newTable = new int[capacity];
+        Arrays.fill(newTable, -1);
+        return newTable;
+    }
+
+    // spreads String hash codes, which cluster for addresses sharing a domain
+    private static int mix(int hash) {
+        final int h = hash * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+}
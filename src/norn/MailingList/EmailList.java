@@ -1,8 +1,11 @@
 package norn.MailingList;
 
-import java.util.Collections;
-import java.util.HashSet;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Objects;
+import java.util.PrimitiveIterator;
 import java.util.Set;
 
 import norn.Environment;
@@ -12,33 +15,80 @@ import norn.Environment;
  */
 public class EmailList implements MailingList {
     
-    // AF: AF(emails) = set of valid emails(recipients) in the mailing list
-    // RI: Every email is a valid username and domain name
-    // Safety from rep exposure: private final field; mutable, but never
-    //      returns the mutable object itself (returns unmodifiable
-    //      wrapper but Strings are immutable, so the set cannot be
-    //      mutated)
+    // AF: AF(ids) = set of valid emails(recipients) EmailDictionary.get(id) for each id in ids
+    // RI: Every email is a valid username and domain name, in lowercase (checked by the
+    //      public constructor and by EmailDictionary.intern, so ids of set operation results,
+    //      adopted by the package-private constructor, need no check)
+    // Safety from rep exposure: private final field; immutable, and getEmails returns
+    //      an unmodifiable view of the addresses (Strings are immutable, so the set
+    //      cannot be mutated)
     
-    private final Set<String> emails = new HashSet<>();
+    private final EmailBitmap ids;
+    private int hashCode = 0; // cached; 0 until computed
     
     /**
      * Creates a new EmailList object with the specified set of recipients
-     * @param mailingList a string that represents a valid mailing list name
+     * @param recipients valid email addresses, in any case; blank strings are ignored
+     * @throws IllegalArgumentException if a recipient is neither blank nor a valid email
+     *      address, in which case no recipient is added to EmailDictionary
      */
     public EmailList(Set<String> recipients) {
+        final String[] addresses = new String[recipients.size()];
+        int n = 0;
         for (String recipient : recipients) {
-            if (!recipient.matches("\\s*")) {
-                emails.add(recipient.toLowerCase());
+            if (!EmailAddresses.isBlank(recipient)) {
+                final String address = EmailAddresses.canonical(recipient);
+                if (!EmailAddresses.isValid(address)) {
+                    throw new IllegalArgumentException("not a valid email address: " + recipient);
+                }
+                addresses[n++] = address;
             }
         }
+        final int[] interned = new int[n];
+        for (int i = 0; i < n; i++) {
+            interned[i] = EmailDictionary.intern(addresses[i]);
+        }
+        ids = EmailBitmap.of(interned, n);
         checkRep();
     }
     
-    // assert rep invariant
-    private void checkRep() {
-        for (String email : emails) {
-            assert email.matches("[A-Za-z0-9\\._\\-\\+]+@[A-Za-z0-9\\-_\\.]+");//"[a-zA-Z0-9\\.\\-\\_]+@[a-zA-Z0-9\\.\\-\\_]+");
+    /**
+     * Creates a new EmailList object with the recipients whose ids are in ids, adopting ids
+     * as they are without checking them: the addresses they stand for were checked when
+     * EmailDictionary interned them
+     * @param ids ids of canonical email addresses, as assigned by EmailDictionary
+     */
+    EmailList(EmailBitmap ids) {
+        this.ids = ids;
+        checkRep();
+    }
+    
+    /**
+     * Creates an EmailList with one recipient
+     * @param address a valid email address, in any case
+     * @return an EmailList whose only recipient is address, in lowercase
+     * @throws IllegalArgumentException if address is not a valid email address
+     */
+    static EmailList of(String address) {
+        return new EmailList(EmailBitmap.of(new int[] { EmailDictionary.intern(EmailAddresses.canonical(address)) }, 1));
+    }
+    
+    /**
+     * Creates an EmailList with the recipients of every list in lists
+     * @param lists the lists to combine
+     * @return an EmailList whose recipients are in at least one of lists
+     */
+    static EmailList union(List<EmailList> lists) {
+        final List<EmailBitmap> bitmaps = new ArrayList<>(lists.size());
+        for (EmailList list : lists) {
+            bitmaps.add(list.ids);
         }
+        return new EmailList(EmailBitmap.or(bitmaps));
+    }
+    
+    // assert rep invariant; the addresses themselves are checked by EmailDictionary.intern
+    private void checkRep() {
+        assert ids != null;
     }
 
     //
@@ -46,7 +96,7 @@ public class EmailList implements MailingList {
     //
     
     @Override
-    public EmailList evaluate(Environment environment) {
+    public EmailList evaluate(Environment environment, EvaluationContext context) {
         checkRep();
         return this;
     }
@@ -57,7 +107,56 @@ public class EmailList implements MailingList {
      */
     public Set<String> getEmails() {
         checkRep();
-        return Collections.unmodifiableSet(emails);
+        return getEmailView();
+    }
+    
+    /**
+     * Gets the ids of the emails in this EmailList
+     * @return the set of ids, assigned by EmailDictionary, of the emails in this EmailList
+     */
+    EmailBitmap getIds() {
+        return ids;
+    }
+    
+    /**
+     * Gets the ids of the emails in this EmailList, so the addresses can be copied out of
+     * EmailDictionary without making Strings of them
+     * @return an iterator over the ids, assigned by EmailDictionary, of the emails in this
+     *      EmailList, in increasing order
+     */
+    public PrimitiveIterator.OfInt idIterator() {
+        return ids.iterator();
+    }
+    
+    /**
+     * @return the number of emails in this EmailList
+     */
+    public int size() {
+        return ids.cardinality();
+    }
+    
+    // an unmodifiable Set<String> view of ids
+    private Set<String> getEmailView() {
+        return new AbstractSet<String>() {
+            @Override
+            public Iterator<String> iterator() {
+                final PrimitiveIterator.OfInt it = ids.iterator();
+                return new Iterator<String>() {
+                    @Override public boolean hasNext() { return it.hasNext(); }
+                    @Override public String next() { return EmailDictionary.get(it.nextInt()); }
+                };
+            }
+
+            @Override
+            public int size() {
+                return ids.cardinality();
+            }
+
+            @Override
+            public boolean contains(Object o) {
+                return o instanceof String && ids.contains(EmailDictionary.find((String) o));
+            }
+        };
     }
 
     @Override
@@ -75,25 +174,42 @@ public class EmailList implements MailingList {
         return false;
     }
 
+    @Override
+    public void collectListNames(Set<String> names) {
+        // an EmailList depends on no lists
+    }
+
     //
     // OBJECT OVERRIDES
     //
     
     @Override
     public String toString() {
-        return emails.toString().replace("[", "(").replace("]", ")");
+        final StringBuilder builder = new StringBuilder("(");
+        for (PrimitiveIterator.OfInt it = ids.iterator(); it.hasNext(); ) {
+            builder.append(EmailDictionary.get(it.nextInt()));
+            if (it.hasNext()) {
+                builder.append(", ");
+            }
+        }
+        return builder.append(")").toString();
     }
     
     @Override
     public boolean equals(Object thatObject) {
+        if (thatObject == this) { return true; } // shared lists compare in constant time
         if (!(thatObject instanceof EmailList)) { return false; }
         EmailList that = (EmailList)thatObject;
-        return that.getEmails().containsAll(this.getEmails()) &&
-            this.getEmails().containsAll(that.getEmails());
+        return that.ids.equals(this.ids);
     }
     
     @Override
     public int hashCode() {
-        return Objects.hash(this.emails, "EMAILLIST");
+        int hash = hashCode;
+        if (hash == 0) {
+            hash = Objects.hash(this.ids, "EMAILLIST");
+            hashCode = hash;
+        }
+        return hash;
     }
 }
@@ -0,0 +1,106 @@
+package norn.MailingList;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The state of one evaluation request, threaded through MailingList.evaluate: the values of
+ * the named lists and of the Union, Intersection and Difference subexpressions evaluated so
+ * far, so that a list referred to several times, or a subexpression that appears several
+ * times (found by equals and hashCode), is evaluated once per request however the
+ * expression and the definitions it refers to share it.
+ *
+ * Only subexpressions whose evaluation performed no definitions are remembered, and
+ * everything remembered is forgotten when a definition changes the environment, so a
+ * command with definitions performs each of them and sees their effects.
+ */
+public class EvaluationContext {
+
+    // AF: AF(values, definitions) = an evaluation in which each (expression, value) pair of
+    //      values is an expression already evaluated to value, and in which definitions
+    //      definitions have been performed
+    // RI: definitions >= 0; every key of values is a NamedList, Union, Intersection or
+    //      Difference containing no Definition
+    // Safety from rep exposure: fields are private and never returned; keys and values
+    //      are immutable
+    // Thread safety argument: a context made by the public constructor is confined to the
+    //      thread evaluating the request; one made by concurrent() has a concurrent map of
+    //      values, so the tasks of a ParallelEvaluator may share it, and is only used to
+    //      evaluate queries, so definitionPerformed is never called on it
+
+    private final boolean concurrent;
+    private Map<MailingList, EmailList> values = null; // made when the first value is remembered
+    private long definitions = 0;
+
+    /**
+     * Makes the context of a new evaluation request, in which nothing has been evaluated,
+     * for use by one thread
+     */
+    public EvaluationContext() {
+        this(false);
+    }
+
+    private EvaluationContext(boolean concurrent) {
+        this.concurrent = concurrent;
+        if (concurrent) {
+            values = new ConcurrentHashMap<>();
+        }
+    }
+
+    /**
+     * @return the context of a new evaluation request of a query, which the threads
+     *      evaluating it may share
+     */
+    static EvaluationContext concurrent() {
+        return new EvaluationContext(true);
+    }
+
+    /**
+     * @param expression a NamedList, Union, Intersection or Difference
+     * @return the value expression was evaluated to in this request since the last
+     *      definition, or null if it hasn't been
+     */
+    EmailList get(MailingList expression) {
+        return values == null ? null : values.get(expression);
+    }
+
+    /**
+     * Remembers the value of an expression, unless definitions were performed while it
+     * was evaluated
+     * @param expression a NamedList, Union, Intersection or Difference
+     * @param value what expression evaluated to
+     * @param since the definitionCount() when the evaluation of expression began
+     */
+    void put(MailingList expression, EmailList value, long since) {
+        if (definitions == since) {
+            if (values == null) {
+                values = new HashMap<>();
+            }
+            values.put(expression, value);
+        }
+    }
+
+    /**
+     * @return the number of definitions performed in this request so far
+     */
+    long definitionCount() {
+        return definitions;
+    }
+
+    /**
+     * Forgets every value remembered, after a definition changed the environment
+     */
+    void definitionPerformed() {
+        assert !concurrent;
+        definitions++;
+        values = null;
+    }
+
+    /**
+     * @return the number of values remembered
+     */
+    public int size() {
+        return values == null ? 0 : values.size();
+    }
+}
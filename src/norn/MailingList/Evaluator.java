@@ -0,0 +1,238 @@
+package norn.MailingList;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+
+import lib6005.parser.UnableToParseException;
+import norn.Environment;
+
+/**
+ * Evaluates MailingList expressions with an explicit stack instead of recursion, so the
+ * depth of an expression is not limited by the thread's stack.
+ *
+ * Operands are evaluated left to right, and the definitions inside an expression are
+ * performed in the same order as by a recursive evaluation. Named lists are evaluated by
+ * the environment. A Union, Intersection or Difference already evaluated in the same
+ * EvaluationContext is not evaluated again, so an expression that shares subexpressions
+ * takes time linear in the number of distinct ones.
+ */
+class Evaluator {
+
+    // an expression whose operands are being evaluated
+    private abstract static class Frame {
+        private final List<MailingList> operands;
+        private int next = 0;
+        private MailingList expression = null; // remembered in the context once evaluated, if not null
+        private long since; // the context's definition count when the evaluation of expression began
+
+        Frame(List<MailingList> operands) {
+            this.operands = operands;
+        }
+
+        // requires !isDone(); the operand to evaluate next
+        MailingList nextOperand() {
+            return operands.get(next++);
+        }
+
+        // true iff the operands after the next one to evaluate are all EmailLists or NamedLists
+        boolean restAreLeaves() {
+            for (int i = next; i < operands.size(); i++) {
+                final MailingList operand = operands.get(i);
+                if (!(operand instanceof EmailList || operand instanceof NamedList)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        boolean hasNext() {
+            return next < operands.size();
+        }
+
+        // takes the evaluation of the last operand returned by nextOperand()
+        abstract void accept(EmailList value);
+
+        // true iff the expression's value is known and no more operands need evaluating
+        abstract boolean isDone();
+
+        // requires isDone()
+        abstract EmailList result();
+    }
+
+    private static class UnionFrame extends Frame {
+        private final List<EmailList> values;
+
+        UnionFrame(Union union) {
+            super(union.getLists());
+            this.values = new ArrayList<>(union.getLists().size());
+        }
+
+        @Override
+        void accept(EmailList value) {
+            values.add(value);
+        }
+
+        @Override
+        boolean isDone() {
+            return !hasNext();
+        }
+
+        @Override
+        EmailList result() {
+            return EmailList.union(values); // copies each operand once
+        }
+    }
+
+    private static class IntersectionFrame extends Frame {
+        private EmailBitmap ids = null;
+
+        IntersectionFrame(Intersection intersection) {
+            super(intersection.getLists());
+        }
+
+        @Override
+        void accept(EmailList value) {
+            ids = ids == null ? value.getIds() : ids.and(value.getIds());
+        }
+
+        @Override
+        boolean isDone() {
+            // once empty, the remaining operands need not be evaluated unless they may define lists
+            return !hasNext() || (ids != null && ids.isEmpty() && restAreLeaves());
+        }
+
+        @Override
+        EmailList result() {
+            return new EmailList(ids);
+        }
+    }
+
+    private static class DifferenceFrame extends Frame {
+        private EmailBitmap ids = null;
+
+        DifferenceFrame(Difference difference) {
+            super(difference.getLists());
+        }
+
+        @Override
+        void accept(EmailList value) {
+            ids = ids == null ? value.getIds() : ids.andNot(value.getIds());
+        }
+
+        @Override
+        boolean isDone() {
+            return !hasNext() || (ids != null && ids.isEmpty() && restAreLeaves());
+        }
+
+        @Override
+        EmailList result() {
+            return new EmailList(ids);
+        }
+    }
+
+    // evaluates to its last operand; also used for the single operand of a Definition
+    private static class SequenceFrame extends Frame {
+        private EmailList last = null;
+
+        SequenceFrame(List<MailingList> operands) {
+            super(operands);
+        }
+
+        @Override
+        void accept(EmailList value) {
+            last = value;
+        }
+
+        @Override
+        boolean isDone() {
+            return !hasNext();
+        }
+
+        @Override
+        EmailList result() {
+            return last;
+        }
+    }
+
+    /**
+     * Evaluates an expression
+     * @param expression the expression to evaluate
+     * @param environment a mapping of EmailList names to EmailLists, modified by the
+     *      definitions in expression
+     * @param context the evaluation request expression is part of
+     * @return an EmailList equal to the recursive evaluation of expression
+     * @throws UnableToParseException if a cyclical assignment is detected in a definition evaluation
+     */
+    static EmailList evaluate(MailingList expression, Environment environment, EvaluationContext context) throws UnableToParseException {
+        final Deque<Frame> stack = new ArrayDeque<>();
+        EmailList value = begin(expression, stack, environment, context);
+        while (!stack.isEmpty()) {
+            final Frame frame = stack.peek();
+            if (value != null) {
+                frame.accept(value);
+            }
+            if (frame.isDone()) {
+                stack.pop();
+                value = frame.result();
+                if (frame.expression != null && !stack.isEmpty()) { // expression can't recur inside itself
+                    context.put(frame.expression, value, frame.since);
+                }
+            }
+            else {
+                value = begin(frame.nextOperand(), stack, environment, context);
+            }
+        }
+        return value;
+    }
+
+    /**
+     * Starts evaluating an expression
+     * @param expression the expression to evaluate
+     * @param stack the frames being evaluated; a frame for expression is pushed if it has operands
+     *      and hasn't already been evaluated in context
+     * @param environment a mapping of EmailList names to EmailLists
+     * @param context the evaluation request expression is part of
+     * @return the evaluation of expression if it has no operands or was already evaluated in
+     *      context, or null if a frame was pushed
+     * @throws UnableToParseException if a cyclical assignment is detected in a definition evaluation
+     */
+    private static EmailList begin(MailingList expression, Deque<Frame> stack, Environment environment,
+            EvaluationContext context) throws UnableToParseException {
+        final Frame frame;
+        if (expression instanceof Union) {
+            frame = new UnionFrame((Union) expression);
+        }
+        else if (expression instanceof Intersection) {
+            frame = new IntersectionFrame((Intersection) expression);
+        }
+        else if (expression instanceof Difference) {
+            frame = new DifferenceFrame((Difference) expression);
+        }
+        else if (expression instanceof Sequence) {
+            stack.push(new SequenceFrame(((Sequence) expression).getLists()));
+            return null;
+        }
+        else if (expression instanceof Definition) {
+            final Definition definition = (Definition) expression;
+            environment.assign(definition.getName(), definition.getList().simplify());
+            context.definitionPerformed();
+            final List<MailingList> operand = new ArrayList<>(1);
+            operand.add(definition.getList());
+            stack.push(new SequenceFrame(operand));
+            return null;
+        }
+        else {
+            return expression.evaluate(environment, context); // EmailList, NamedList
+        }
+        final EmailList remembered = context.get(expression);
+        if (remembered != null) {
+            return remembered;
+        }
+        frame.expression = expression;
+        frame.since = context.definitionCount();
+        stack.push(frame);
+        return null;
+    }
+}
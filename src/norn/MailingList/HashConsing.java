@@ -0,0 +1,231 @@
+package norn.MailingList;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The table behind the static constructors of MailingList, and behind the definitions
+ * stored by Environment.assign, that makes structurally equal expressions share one node:
+ * each node is looked up by equals and hashCode, and the node already in use is returned
+ * instead if there is one. Since the operands of a shared node are shared nodes themselves,
+ * comparing two candidates only compares their operands by identity, and each distinct
+ * subexpression is held once however many definitions refer to it.
+ *
+ * Nodes are held weakly, so a node no longer referred to by any definition or expression
+ * is collected as usual. Expressions parsed for a single query are not shared; they are
+ * dropped as soon as they are evaluated.
+ */
+class HashConsing {
+
+    // AF: AF(tables) = the set of live nodes referred to by the entries of tables
+    // RI: every entry e of tables[i] is in bucket (e.hash >>> STRIPE_BITS) & (buckets.length - 1)
+    //      of tables[i], and e.hash == spread(n.hashCode()) with i == e.hash & (STRIPES - 1)
+    //      for its node n, if live; no two live nodes are equal
+    // Safety from rep exposure: tables is private and never returned; nodes are immutable
+    // Thread safety argument: each table is only accessed while holding its own lock; the
+    //      nodes shared are immutable, and safely published by the lock to every thread
+    //      that finds them
+
+    private static final int STRIPE_BITS = 6;
+    private static final int STRIPES = 1 << STRIPE_BITS; /* tables locked separately, so loads rarely wait for each other */
+
+    private static final Table[] tables = new Table[STRIPES];
+    static {
+        for (int i = 0; i < STRIPES; i++) {
+            tables[i] = new Table();
+        }
+    }
+
+    private HashConsing() {
+        throw new AssertionError("not instantiable");
+    }
+
+    /**
+     * @param node an expression whose operands, if any, are shared nodes
+     * @return the shared node equal to node: node itself if no equal node is in use
+     */
+    @SuppressWarnings("unchecked")
+    static <T extends MailingList> T share(T node) {
+        final int hash = spread(node.hashCode());
+        final Table table = tables[hash & (STRIPES - 1)];
+        synchronized (table) {
+            final MailingList shared = table.find(node, hash);
+            if (shared != null) {
+                return (T) shared; // equal nodes are of the same class
+            }
+            table.add(node, hash);
+            return node;
+        }
+    }
+
+    /**
+     * @param list an expression
+     * @return the shared node equal to list if it is an EmailList, NamedList, Union,
+     *      Intersection or Difference, made from the shared nodes equal to its operands;
+     *      otherwise list itself
+     */
+    static MailingList shareExpression(MailingList list) {
+        final List<MailingList> operands;
+        if (list instanceof EmailList || list instanceof NamedList) {
+            return share(list);
+        }
+        else if (list instanceof Union) {
+            operands = ((Union) list).getLists();
+        }
+        else if (list instanceof Intersection) {
+            operands = ((Intersection) list).getLists();
+        }
+        else if (list instanceof Difference) {
+            operands = ((Difference) list).getLists();
+        }
+        else {
+            return list; // commands are not shared
+        }
+        final MailingList shared = find(list);
+        if (shared != null) {
+            return shared; // equal to list, so its operands are equal to list's
+        }
+        final List<MailingList> sharedOperands = shareAll(operands);
+        if (identical(sharedOperands, operands)) {
+            return share(list);
+        }
+        return share(list instanceof Union ? new Union(sharedOperands)
+                : list instanceof Intersection ? new Intersection(sharedOperands)
+                : new Difference(sharedOperands));
+    }
+
+    /**
+     * @param lists expressions
+     * @return lists with each expression replaced by shareExpression of it
+     */
+    static List<MailingList> shareAll(List<MailingList> lists) {
+        final List<MailingList> shared = new ArrayList<>(lists.size());
+        for (MailingList list : lists) {
+            shared.add(shareExpression(list));
+        }
+        return shared;
+    }
+
+    // the shared node equal to node, or null if there is none
+    private static MailingList find(MailingList node) {
+        final int hash = spread(node.hashCode());
+        final Table table = tables[hash & (STRIPES - 1)];
+        synchronized (table) {
+            return table.find(node, hash);
+        }
+    }
+
+    // true iff lists1 and lists2 hold the same objects in the same order
+    private static boolean identical(List<MailingList> lists1, List<MailingList> lists2) {
+        for (int i = 0; i < lists1.size(); i++) {
+            if (lists1.get(i) != lists2.get(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return the number of shared nodes, including some no longer in use that haven't
+     *      been collected yet
+     */
+    static int size() {
+        int size = 0;
+        for (Table table : tables) {
+            synchronized (table) {
+                table.expunge();
+                size += table.size;
+            }
+        }
+        return size;
+    }
+
+    private static int spread(int hash) {
+        return hash ^ (hash >>> 16);
+    }
+
+    // a node held weakly, in a chain of nodes of the same bucket
+    private static final class Entry extends WeakReference<MailingList> {
+        private final int hash;
+        private Entry next;
+
+        private Entry(MailingList node, int hash, Entry next, ReferenceQueue<MailingList> queue) {
+            super(node, queue);
+            this.hash = hash;
+            this.next = next;
+        }
+    }
+
+    // one stripe of the shared nodes: a chained hash table of weakly held nodes, from which
+    // the entries of collected nodes are removed as the collector reports them. Each entry is
+    // the weak reference itself, so a shared node costs one small object.
+    private static final class Table {
+        private static final int INITIAL_BUCKETS = 16;
+
+        private final ReferenceQueue<MailingList> collected = new ReferenceQueue<>();
+        private Entry[] buckets = new Entry[INITIAL_BUCKETS];
+        private int size = 0;
+
+        private MailingList find(MailingList node, int hash) {
+            expunge();
+            for (Entry entry = buckets[index(hash, buckets.length)]; entry != null; entry = entry.next) {
+                if (entry.hash == hash) {
+                    final MailingList shared = entry.get();
+                    if (shared != null && shared.equals(node)) {
+                        return shared;
+                    }
+                }
+            }
+            return null;
+        }
+
+        private void add(MailingList node, int hash) {
+            if (size >= buckets.length * 3 / 4) {
+                resize();
+            }
+            final int index = index(hash, buckets.length);
+            buckets[index] = new Entry(node, hash, buckets[index], collected);
+            size++;
+        }
+
+        private void expunge() {
+            for (Object reference; (reference = collected.poll()) != null; ) {
+                final Entry dead = (Entry) reference;
+                final int index = index(dead.hash, buckets.length);
+                Entry previous = null;
+                for (Entry entry = buckets[index]; entry != null; previous = entry, entry = entry.next) {
+                    if (entry == dead) {
+                        if (previous == null) {
+                            buckets[index] = entry.next;
+                        }
+                        else {
+                            previous.next = entry.next;
+                        }
+                        size--;
+                        break;
+                    }
+                }
+            }
+        }
+
+        private void resize() {
+            final Entry[] resized = new Entry[buckets.length * 2];
+            for (Entry head : buckets) {
+                for (Entry entry = head; entry != null; ) {
+                    final Entry next = entry.next;
+                    final int index = index(entry.hash, resized.length);
+                    entry.next = resized[index];
+                    resized[index] = entry;
+                    entry = next;
+                }
+            }
+            buckets = resized;
+        }
+
+        private static int index(int hash, int length) {
+            return (hash >>> STRIPE_BITS) & (length - 1); // the low bits chose the stripe
+        }
+    }
+}
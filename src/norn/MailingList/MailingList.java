@@ -1,5 +1,7 @@
 package norn.MailingList;
 
+import java.util.Arrays;
+import java.util.List;
 import java.util.Set;
 
 import lib6005.parser.UnableToParseException;
@@ -11,12 +13,16 @@ import norn.Environment;
 public interface MailingList {
     // Datatype definition:
     //   MailingList = EmailList(recipients:Set<String>) + NamedList(name:String)
-    //      + Union(list1:MailingList, list2:MailingList)
-    //      + Difference(list1:MailingList, list2:MailingList)
-    //      + Intersection(list1:MailingList, list2:MailingList)
+    //      + Union(lists:List<MailingList>)
+    //      + Difference(lists:List<MailingList>)
+    //      + Intersection(lists:List<MailingList>)
     //
     //      + Defintion(name:String, list:MailingList)
-    //      + Sequence(list1:MailingList, list2:MailingList)
+    //      + Sequence(lists:List<MailingList>)
+    //
+    // NOTE: Union, Difference, Intersection and Sequence hold two or more lists, and keep
+    //    chains of the same operation flat: a,b,c is one Union of three lists however it
+    //    is parenthesized, and (a!b)!c is one Difference a!b!c
     //
     // NOTE: Definition and Sequence ADTS are "command" types; their evaluate method will
     //    perform any necessary assignments in the provided environment as well as return 
@@ -29,18 +35,19 @@ public interface MailingList {
      *      address. A valid email address contains a username and
      *      domain name. Usernames and domain names are nonempty
      *      case-insensitive strings of letters, digits, underscores,
-     * @return a mailing list
+     * @return a mailing list, shared with every equal list made by these constructors
+     * @throws IllegalArgumentException if a recipient is neither blank nor a valid email address
      */
     public static MailingList emailList(Set<String> recipients) {
-        return new EmailList(recipients);
+        return HashConsing.share(new EmailList(recipients));
     }
     /**
      * Creates a mailing list with a set of recipients
      * @param name the name of the mailing list
-     * @return a mailing list
+     * @return a mailing list, shared with every equal list made by these constructors
      */
     public static MailingList emailList(String name) {
-        return new NamedList(name);
+        return HashConsing.share(new NamedList(name));
     }
     
     /**
@@ -48,10 +55,21 @@ public interface MailingList {
      * @param list1 a valid MailingList
      * @param list2 a valid MailingList
      * @return a mailing list representing the set union of list1 and list2
-     *      (recipients in either list1 or list2)
+     *      (recipients in either list1 or list2), shared with every equal list made by
+     *      these constructors
      */
     public static MailingList union(MailingList list1, MailingList list2) {
-        return new Union(list1, list2);
+        return union(Arrays.asList(list1, list2));
+    }
+    
+    /**
+     * Creates a mailing list with a set of recipients
+     * @param lists at least two valid MailingLists
+     * @return a mailing list representing the set union of lists (recipients in at least
+     *      one of lists), shared with every equal list made by these constructors
+     */
+    public static MailingList union(List<MailingList> lists) {
+        return HashConsing.share(new Union(HashConsing.shareAll(lists)));
     }
     
     /**
@@ -59,10 +77,22 @@ public interface MailingList {
      * @param list1 a valid MailingList
      * @param list2 a valid MailingList
      * @return a mailing list representing the set difference of list1 and list2
-     *      (recipients in list1 but not list2)
+     *      (recipients in list1 but not list2), shared with every equal list made by
+     *      these constructors
      */
     public static MailingList difference(MailingList list1, MailingList list2) {
-        return new Difference(list1, list2);
+        return difference(Arrays.asList(list1, list2));
+    }
+    
+    /**
+     * Creates a mailing list with a set of recipients
+     * @param lists at least two valid MailingLists
+     * @return a mailing list representing the set difference of lists (recipients in the
+     *      first of lists but none of the others), shared with every equal list made by
+     *      these constructors
+     */
+    public static MailingList difference(List<MailingList> lists) {
+        return HashConsing.share(new Difference(HashConsing.shareAll(lists)));
     }
     
     /**
@@ -70,10 +100,39 @@ public interface MailingList {
      * @param list1 a valid MailingList
      * @param list2 a valid MailingList
      * @return a mailing list representing the set intersection of list1 and list2
-     *      (recipients in both list1 and list2)
+     *      (recipients in both list1 and list2), shared with every equal list made by
+     *      these constructors
      */
     public static MailingList intersection(MailingList list1, MailingList list2) {
-        return new Intersection(list1, list2);
+        return intersection(Arrays.asList(list1, list2));
+    }
+    
+    /**
+     * Creates a mailing list with a set of recipients
+     * @param lists at least two valid MailingLists
+     * @return a mailing list representing the set intersection of lists (recipients in
+     *      every one of lists), shared with every equal list made by these constructors
+     */
+    public static MailingList intersection(List<MailingList> lists) {
+        return HashConsing.share(new Intersection(HashConsing.shareAll(lists)));
+    }
+    
+    /**
+     * Returns the list shared by every list equal to list made by these constructors
+     * @param list a valid MailingList
+     * @return the shared list equal to list, whose subexpressions are shared lists too,
+     *      or list itself if it is a command (a Definition or Sequence)
+     */
+    public static MailingList shared(MailingList list) {
+        return HashConsing.shareExpression(list);
+    }
+    
+    /**
+     * @return the number of distinct lists shared by these constructors that are still in
+     *      use, plus some no longer in use that haven't been collected yet
+     */
+    public static int sharedCount() {
+        return HashConsing.size();
     }
     
     /**
@@ -104,7 +163,19 @@ public interface MailingList {
      * @return an EmailList representation of this ListExpression
      * @throws UnableToParseException if a cyclical assignment is detected in a definition evaluation
      */
-    public EmailList evaluate(Environment environment) throws UnableToParseException;
+    public default EmailList evaluate(Environment environment) throws UnableToParseException {
+        return evaluate(environment, new EvaluationContext());
+    }
+
+    /**
+     * Evaluates this MailingList as evaluate(environment) does, as part of an evaluation
+     * request that reuses the values of lists and subexpressions already evaluated in context
+     * @param environment a mapping of EmailList names to EmailLists
+     * @param context the evaluation request this is part of
+     * @return an EmailList representation of this ListExpression
+     * @throws UnableToParseException if a cyclical assignment is detected in a definition evaluation
+     */
+    public EmailList evaluate(Environment environment, EvaluationContext context) throws UnableToParseException;
 
     /**
      * Simplifies a MailingList by substituting all NamedLists with name listname with its 
@@ -129,6 +200,13 @@ public interface MailingList {
      * @return true iff this MailingList depends on listname
      */
     public boolean dependsOn(String listname);
+
+    /**
+     * Adds the names of all lists this MailingList depends on to names
+     * @param names a mutable set of list names; modified to also contain every listname
+     * such that this.dependsOn(listname)
+     */
+    public void collectListNames(Set<String> names);
     
     /**
      * @return a parsable representation of this expression, such that
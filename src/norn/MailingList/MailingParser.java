@@ -2,6 +2,7 @@ package norn.MailingList;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashSet;
 import java.util.List;
@@ -21,7 +22,19 @@ public class MailingParser {
         ROOT, SEQUENCE, DEFINITION, UNION, DIFFERENCE, INTERSECTION, LIST, EMAIL, LIST_NAME, WHITESPACE
     }
     
-    private static Parser<MailingGrammar> parser = makeParser(GRAMMARFILE);
+    /**
+     * Name of the system property that selects the parser implementation. Setting it to
+     * "parserlib" parses with the grammar in MailingList.g instead of the hand-written
+     * DescentParser.
+     */
+    public static final String PARSER_PROPERTY = "norn.parser";
+    
+    private static final boolean USE_PARSERLIB = "parserlib".equals(System.getProperty(PARSER_PROPERTY));
+    
+    // compiled on first use, so the hand-written parser never reads the grammar file
+    private static class ParserLib {
+        private static final Parser<MailingGrammar> parser = makeParser(GRAMMARFILE);
+    }
     
     /**
      * Compile the grammar into a parser.
@@ -41,16 +54,39 @@ public class MailingParser {
     }
     
     /**
-     * Parse a string into an expression.
+     * Parse a string into an expression, using the parser selected by PARSER_PROPERTY.
      * @param string string to parse
-     * @return IntegerExpression parsed from the string
-     * @throws UnableToParseException if the string doesn't match the IntegerExpression grammar
+     * @return MailingList parsed from the string
+     * @throws IllegalArgumentException if the string doesn't match the MailingList grammar
      */
       public static MailingList parse(final String input) throws IllegalArgumentException {
+          if (USE_PARSERLIB) {
+              return parseWithParserLib(input);
+          }
+          return parseWithDescentParser(input);
+      }
+      
+    /**
+     * Parse a string into an expression with the hand-written single-pass DescentParser.
+     * @param string string to parse
+     * @return MailingList parsed from the string, structurally equal to parseWithParserLib(string)
+     * @throws IllegalArgumentException if the string doesn't match the MailingList grammar
+     */
+      public static MailingList parseWithDescentParser(final String input) throws IllegalArgumentException {
+          return DescentParser.parse(input);
+      }
+      
+    /**
+     * Parse a string into an expression with the parserlib grammar in MailingList.g.
+     * @param string string to parse
+     * @return MailingList parsed from the string, structurally equal to parse(string)
+     * @throws IllegalArgumentException if the string doesn't match the MailingList grammar
+     */
+      public static MailingList parseWithParserLib(final String input) throws IllegalArgumentException {
           // parse the example into a parse tree
           ParseTree<MailingGrammar> parseTree;
           try {
-              parseTree = parser.parse(input);
+              parseTree = ParserLib.parser.parse(input);
           } catch (UnableToParseException e) {
               throw new IllegalArgumentException("invalid input", e);
           }
@@ -80,11 +116,10 @@ public class MailingParser {
         case SEQUENCE: // sequence ::= definition (';' definition)*;
         { 
             final List<ParseTree<MailingGrammar>> children = parseTree.children();
-            MailingList expression = makeAbstractSyntaxTree(children.get(0));
-            for (int i = 1; i < children.size(); ++i) { // execute instructions in series
-                expression = new Sequence(expression, makeAbstractSyntaxTree(children.get(i)));
+            if (children.size() == 1) {
+                return makeAbstractSyntaxTree(children.get(0));
             }
-            return expression;
+            return new Sequence(makeAbstractSyntaxTrees(children)); // execute instructions in series
         }
         case DEFINITION: // definition ::= (list_name '=')? union;
         {
@@ -124,30 +159,27 @@ public class MailingParser {
                 return new EmailList(emails);
             }
             else {
-                MailingList expression = makeAbstractSyntaxTree(children.get(0));
-                for (int i = 1; i < children.size(); ++i) {
-                    expression = new Union(expression, makeAbstractSyntaxTree(children.get(i)));
+                if (children.size() == 1) {
+                    return makeAbstractSyntaxTree(children.get(0));
                 }
-                return expression;
+                return new Union(makeAbstractSyntaxTrees(children));
             }
         }
         case DIFFERENCE: // difference ::= intersection ('!' intersection)*;
         {
             final List<ParseTree<MailingGrammar>> children = parseTree.children();
-            MailingList expression = makeAbstractSyntaxTree(children.get(0));
-            for (int i = 1; i < children.size(); ++i) {
-                expression = new Difference(expression, makeAbstractSyntaxTree(children.get(i)));
+            if (children.size() == 1) {
+                return makeAbstractSyntaxTree(children.get(0));
             }
-            return expression;
+            return new Difference(makeAbstractSyntaxTrees(children));
         }
         case INTERSECTION: // intersection ::= list ('*' list)*;
         {
             final List<ParseTree<MailingGrammar>> children = parseTree.children();
-            MailingList expression = makeAbstractSyntaxTree(children.get(0));
-            for (int i = 1; i < children.size(); ++i) {
-                expression = new Intersection(expression, makeAbstractSyntaxTree(children.get(i)));
+            if (children.size() == 1) {
+                return makeAbstractSyntaxTree(children.get(0));
             }
-            return expression;
+            return new Intersection(makeAbstractSyntaxTrees(children));
         }
         case LIST: // list ::= email | list_name | '(' sequence ')';
         {
@@ -178,6 +210,20 @@ public class MailingParser {
         }
     }
 
+    /**
+     * Convert the children of a parse tree into abstract syntax trees.
+     * 
+     * @param children parse trees constructed according to the grammar in norn.g
+     * @return abstract syntax trees corresponding to children, in order
+     */
+    private static List<MailingList> makeAbstractSyntaxTrees(final List<ParseTree<MailingGrammar>> children) {
+        final List<MailingList> expressions = new ArrayList<>(children.size());
+        for (ParseTree<MailingGrammar> child : children) {
+            expressions.add(makeAbstractSyntaxTree(child));
+        }
+        return expressions;
+    }
+
     /**
      * Gets the emails at a leaf of a parseTree
      * @param parseTree the tree to search; requires isEmailOnly(parseTree)
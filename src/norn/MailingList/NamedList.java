@@ -1,6 +1,7 @@
 package norn.MailingList;
 
 import java.util.HashSet;
+import java.util.Set;
 
 import lib6005.parser.UnableToParseException;
 import norn.Environment;
@@ -28,14 +29,24 @@ public class NamedList implements MailingList {
     // INSTANCE METHODS
     //
     
+    /**
+     * Returns the name of this list
+     * @return the name under which this list is defined in an Environment
+     */
+    public String getName() {
+        return name;
+    }
+    
     @Override
-    public EmailList evaluate(Environment environment) throws UnableToParseException {
-        if (environment.contains(name)) {
-            return environment.get(name).evaluate(environment); // retrieve the saved MailingList expression for this name completely evaluate it
-        }
-        else {
-            return new EmailList(new HashSet<>());
+    public EmailList evaluate(Environment environment, EvaluationContext context) throws UnableToParseException {
+        final EmailList remembered = context.get(this);
+        if (remembered != null) {
+            return remembered;
         }
+        final long since = context.definitionCount();
+        final EmailList value = environment.evaluate(name, context); // retrieve the saved MailingList expression for this name completely evaluated
+        context.put(this, value, since);
+        return value;
     }
 
     @Override
@@ -63,6 +74,11 @@ public class NamedList implements MailingList {
         return name.equals(listname);
     }
 
+    @Override
+    public void collectListNames(Set<String> names) {
+        names.add(name);
+    }
+
     //
     // OBJECT OVERRIDES
     //
@@ -74,6 +90,7 @@ public class NamedList implements MailingList {
     
     @Override
     public boolean equals(Object thatObject) {
+        if (thatObject == this) { return true; } // shared lists compare in constant time
         if ( !(thatObject instanceof NamedList)) { return false; }
         NamedList object2 = (NamedList)thatObject;
         
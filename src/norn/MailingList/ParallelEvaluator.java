@@ -0,0 +1,152 @@
+package norn.MailingList;
+
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+import lib6005.parser.UnableToParseException;
+import norn.Environment;
+
+/**
+ * Threadsafe evaluator that evaluates independent subexpressions of a query as parallel
+ * fork-join tasks.
+ *
+ * Chains of ',' and '*' are split in half recursively, and the subtrahends of a chain of
+ * '!' are evaluated alongside its left side, whenever a chain has at least threshold
+ * operands; smaller chains are evaluated sequentially by MailingList.evaluate.
+ */
+public class ParallelEvaluator {
+
+    // AF: AF(pool, threshold) = an evaluator running its tasks in pool, forking chains
+    //      of at least threshold operands
+    // RI: threshold >= 2
+    // Safety from rep exposure: fields private and final, never returned
+    // Thread safety argument: fields are final and pool is threadsafe; each call to
+    //      evaluate only shares its (immutable) expression, its EvaluationContext, which is
+    //      threadsafe for evaluations without definitions, and the environment, which
+    //      must be safe to evaluate against from many threads, e.g. an Environment.snapshot()
+
+    private final ForkJoinPool pool;
+    private final int threshold;
+
+    /**
+     * Creates a new ParallelEvaluator
+     * @param pool the pool to run evaluation tasks in
+     * @param threshold the smallest number of operands of a ',', '*' or '!' chain that is
+     *      evaluated in parallel; requires threshold >= 2
+     */
+    public ParallelEvaluator(ForkJoinPool pool, int threshold) {
+        if (threshold < 2) {
+            throw new IllegalArgumentException("threshold must be at least 2");
+        }
+        this.pool = pool;
+        this.threshold = threshold;
+    }
+
+    /**
+     * Evaluates a pure query in parallel
+     * @param expression the expression to evaluate; requires QueryOptimizer.isCommandFree(expression)
+     * @param environment the environment to evaluate against; requires that it is not
+     *      modified during evaluation, e.g. an Environment.snapshot()
+     * @return an EmailList equal to expression.evaluate(environment)
+     * @throws UnableToParseException if a cyclical assignment is detected in the evaluation
+     */
+    public EmailList evaluate(MailingList expression, Environment environment) throws UnableToParseException {
+        assert QueryOptimizer.isCommandFree(expression);
+        try {
+            return pool.invoke(new EvaluationTask(expression, environment, EvaluationContext.concurrent()));
+        } catch (EvaluationException e) {
+            throw e.getCause();
+        }
+    }
+
+    // carries the checked exception of a task out of the pool
+    private static class EvaluationException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        EvaluationException(UnableToParseException cause) {
+            super(cause);
+        }
+
+        @Override
+        public synchronized UnableToParseException getCause() {
+            return (UnableToParseException) super.getCause();
+        }
+    }
+
+    // evaluates one subexpression
+    private class EvaluationTask extends RecursiveTask<EmailList> {
+        private static final long serialVersionUID = 1L;
+
+        private final MailingList expression;
+        private final Environment environment;
+        private final EvaluationContext context;
+
+        EvaluationTask(MailingList expression, Environment environment, EvaluationContext context) {
+            this.expression = expression;
+            this.environment = environment;
+            this.context = context;
+        }
+
+        @Override
+        protected EmailList compute() {
+            try {
+                if (expression instanceof Union || expression instanceof Intersection) {
+                    final List<MailingList> operands = expression instanceof Union
+                            ? ((Union) expression).getLists() : ((Intersection) expression).getLists();
+                    if (operands.size() >= threshold) {
+                        return new ChainTask(operands, 0, operands.size(), expression instanceof Union, environment, context).compute();
+                    }
+                }
+                else if (expression instanceof Difference) {
+                    final List<MailingList> lists = ((Difference) expression).getLists();
+                    if (lists.size() >= threshold) {
+                        final List<MailingList> subtrahends = lists.subList(1, lists.size());
+                        final EvaluationTask left = new EvaluationTask(lists.get(0), environment, context);
+                        left.fork();
+                        final EmailList right = new ChainTask(subtrahends, 0, subtrahends.size(), true, environment, context).compute();
+                        return new EmailList(left.join().getIds().andNot(right.getIds()));
+                    }
+                }
+                return expression.evaluate(environment, context);
+            } catch (UnableToParseException e) {
+                throw new EvaluationException(e);
+            }
+        }
+    }
+
+    // combines operands[from, to) of a ',' or '*' chain by splitting it in half
+    private class ChainTask extends RecursiveTask<EmailList> {
+        private static final long serialVersionUID = 1L;
+
+        private final List<MailingList> operands;
+        private final int from;
+        private final int to;
+        private final boolean isUnion;
+        private final Environment environment;
+        private final EvaluationContext context;
+
+        ChainTask(List<MailingList> operands, int from, int to, boolean isUnion, Environment environment,
+                EvaluationContext context) {
+            this.operands = operands;
+            this.from = from;
+            this.to = to;
+            this.isUnion = isUnion;
+            this.environment = environment;
+            this.context = context;
+        }
+
+        @Override
+        protected EmailList compute() {
+            if (to - from == 1) {
+                return new EvaluationTask(operands.get(from), environment, context).compute();
+            }
+            final int middle = (from + to) >>> 1;
+            final ChainTask left = new ChainTask(operands, from, middle, isUnion, environment, context);
+            left.fork();
+            final EmailBitmap right = new ChainTask(operands, middle, to, isUnion, environment, context).compute().getIds();
+            final EmailBitmap leftIds = left.join().getIds();
+            return new EmailList(isUnion ? leftIds.or(right) : leftIds.and(right));
+        }
+    }
+}
@@ -0,0 +1,451 @@
+package norn.MailingList;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import norn.Environment;
+
+/**
+ * Algebraic rewrite pass over MailingList expressions, applied before evaluation.
+ *
+ * The rewrites never change the set an expression evaluates to, nor the order in which
+ * the definitions inside it are performed:
+ *      - associative chains of ',' and '*' are kept flat, whatever their grouping
+ *      - literal EmailLists in a chain are folded into one
+ *      - empty operands are dropped from unions and from the right of differences, and
+ *        an empty operand of an intersection, or an empty left side of a difference,
+ *        makes the whole (definition-free) expression empty
+ *      - duplicate definition-free operands are removed, unless an operand with
+ *        definitions comes between them, and x ! x becomes empty
+ *      - intersection operands are ordered by estimated cardinality, smallest first, so
+ *        evaluation can stop before materializing large lists
+ *
+ * The rewrites and estimates recurse once per level of nesting, so expressions nested more
+ * than MAX_DEPTH deep are left as written, to be evaluated by Evaluator, which does not.
+ */
+public class QueryOptimizer {
+
+    // AF: AF(environment, estimates, costs) = an optimization of expressions against
+    //      environment, where estimates and costs map list names to their estimated
+    //      cardinality and evaluation cost
+    // RI: true
+    // Safety from rep exposure: fields private and final, never returned; a QueryOptimizer
+    //      is confined to the single call of optimize() or explain() that creates it
+
+    /** Expressions nested deeper than this are not optimized */
+    public static final int MAX_DEPTH = 500;
+
+    private final Environment environment;
+    private final Map<String, Long> estimates = new HashMap<>();
+    private final Map<String, Long> costs = new HashMap<>();
+
+    private QueryOptimizer(Environment environment) {
+        this.environment = environment;
+    }
+
+    /**
+     * Rewrites an expression into one that is cheaper to evaluate
+     * @param expression the expression to optimize
+     * @param environment the environment the expression will be evaluated in, used only
+     *      for cardinality estimates
+     * @return an expression that evaluates to the same recipients as expression, and
+     *      performs the same definitions in the same order; expression itself if it is
+     *      nested more than MAX_DEPTH deep
+     */
+    public static MailingList optimize(MailingList expression, Environment environment) {
+        if (isDeeperThan(expression, MAX_DEPTH)) {
+            return expression;
+        }
+        return new QueryOptimizer(environment).rewrite(expression).list;
+    }
+
+    /**
+     * Describes how an expression will be evaluated
+     * @param expression the expression to explain
+     * @param environment the environment the expression will be evaluated in
+     * @return a single-line description of the optimized plan, with the estimated number
+     *      of recipients of every subexpression in braces, followed by the estimated cost
+     *      (number of recipients read by set operations) of the optimized and original
+     *      expressions; or, if expression is nested more than MAX_DEPTH deep, that it will
+     *      be evaluated as written
+     */
+    public static String explain(MailingList expression, Environment environment) {
+        if (isDeeperThan(expression, MAX_DEPTH)) {
+            return "not optimized: nested more than " + MAX_DEPTH + " deep";
+        }
+        final QueryOptimizer optimizer = new QueryOptimizer(environment);
+        final MailingList plan = optimizer.rewrite(expression).list;
+        final StringBuilder builder = new StringBuilder();
+        optimizer.describe(plan, builder);
+        return builder.append(" cost=").append(optimizer.cost(plan))
+                .append(" unoptimized_cost=").append(optimizer.cost(expression)).toString();
+    }
+
+    /**
+     * Determines whether an expression is a pure query
+     * @param expression the expression to check
+     * @return true iff expression contains no Definitions or Sequences, so evaluating it
+     *      does not change the environment
+     */
+    public static boolean isCommandFree(MailingList expression) {
+        final Deque<MailingList> unchecked = new ArrayDeque<>(); // iterative, as expressions may be deep
+        unchecked.push(expression);
+        while (!unchecked.isEmpty()) {
+            final MailingList list = unchecked.pop();
+            if (list instanceof Union || list instanceof Intersection || list instanceof Difference) {
+                for (MailingList operand : operands(list)) {
+                    unchecked.push(operand);
+                }
+            }
+            else if (!(list instanceof EmailList || list instanceof NamedList)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // true iff expression has operations nested more than depth deep; iterative
+    private static boolean isDeeperThan(MailingList expression, int depth) {
+        final Deque<MailingList> lists = new ArrayDeque<>();
+        final Deque<Integer> depths = new ArrayDeque<>(); // depths.get(i) is the depth of lists.get(i)
+        lists.push(expression);
+        depths.push(0);
+        while (!lists.isEmpty()) {
+            final MailingList list = lists.pop();
+            final int level = depths.pop();
+            if (level > depth) {
+                return true;
+            }
+            if (list instanceof Definition) {
+                lists.push(((Definition) list).getList());
+                depths.push(level + 1);
+            }
+            else if (!(list instanceof EmailList || list instanceof NamedList)) {
+                for (MailingList operand : operands(list)) {
+                    lists.push(operand);
+                    depths.push(level + 1);
+                }
+            }
+        }
+        return false;
+    }
+
+    // requires expression is a Union, Intersection, Difference or Sequence; its lists
+    private static List<MailingList> operands(MailingList expression) {
+        if (expression instanceof Union) {
+            return ((Union) expression).getLists();
+        }
+        if (expression instanceof Intersection) {
+            return ((Intersection) expression).getLists();
+        }
+        if (expression instanceof Difference) {
+            return ((Difference) expression).getLists();
+        }
+        return ((Sequence) expression).getLists();
+    }
+
+    //
+    // REWRITING
+    //
+
+    // a rewritten expression, and whether it is free of Definitions and Sequences
+    private static class Rewritten {
+        private final MailingList list;
+        private final boolean pure;
+
+        Rewritten(MailingList list, boolean pure) {
+            this.list = list;
+            this.pure = pure;
+        }
+    }
+
+    private Rewritten rewrite(MailingList expression) {
+        if (expression instanceof Union || expression instanceof Intersection) {
+            final List<Rewritten> operands = new ArrayList<>();
+            for (MailingList operand : operands(expression)) {
+                operands.add(rewrite(operand));
+            }
+            return expression instanceof Union ? rewriteUnion(operands) : rewriteIntersection(operands);
+        }
+        if (expression instanceof Difference) {
+            return rewriteDifference((Difference) expression);
+        }
+        if (expression instanceof Definition) {
+            final Definition definition = (Definition) expression;
+            return new Rewritten(new Definition(definition.getName(), rewrite(definition.getList()).list), false);
+        }
+        if (expression instanceof Sequence) {
+            final List<MailingList> lists = new ArrayList<>();
+            for (MailingList list : ((Sequence) expression).getLists()) {
+                lists.add(rewrite(list).list);
+            }
+            return new Rewritten(new Sequence(lists), false);
+        }
+        return new Rewritten(expression, true); // EmailList, NamedList
+    }
+
+    private Rewritten rewriteUnion(List<Rewritten> operands) {
+        final List<EmailList> literals = new ArrayList<>();
+        final Set<MailingList> seen = new HashSet<>();
+        final List<MailingList> kept = new ArrayList<>();
+        boolean pure = true;
+        for (Rewritten operand : operands) {
+            if (operand.list instanceof EmailList) {
+                literals.add((EmailList) operand.list);
+            }
+            else if (!operand.pure) {
+                kept.add(operand.list);
+                seen.clear(); // it may redefine the lists read by those seen so far
+            }
+            else if (seen.add(operand.list)) {
+                kept.add(operand.list);
+            }
+            pure = pure && operand.pure;
+        }
+        final EmailList literal = EmailList.union(literals);
+        if (!literal.getIds().isEmpty() || kept.isEmpty()) {
+            kept.add(literal);
+        }
+        return new Rewritten(chain(kept, true), pure);
+    }
+
+    private Rewritten rewriteIntersection(List<Rewritten> operands) {
+        EmailList literal = null;
+        final Set<MailingList> seen = new HashSet<>();
+        final List<MailingList> kept = new ArrayList<>();
+        boolean pure = true;
+        for (Rewritten operand : operands) {
+            if (operand.list instanceof EmailList) {
+                final EmailList emails = (EmailList) operand.list;
+                literal = literal == null ? emails : new EmailList(literal.getIds().and(emails.getIds()));
+            }
+            else if (!operand.pure) {
+                kept.add(operand.list);
+                seen.clear(); // it may redefine the lists read by those seen so far
+            }
+            else if (seen.add(operand.list)) {
+                kept.add(operand.list);
+            }
+            pure = pure && operand.pure;
+        }
+        if (literal != null) {
+            if (literal.getIds().isEmpty() && pure) {
+                return new Rewritten(literal, true); // x * () = ()
+            }
+            kept.add(literal);
+        }
+        if (pure) {
+            kept.sort(Comparator.comparingLong(this::estimate)); // smallest first
+        }
+        return new Rewritten(chain(kept, false), pure);
+    }
+
+    private Rewritten rewriteDifference(Difference difference) {
+        final List<MailingList> lists = difference.getLists();
+        final Rewritten left = rewrite(lists.get(0));
+        boolean pure = left.pure;
+        final List<Rewritten> subtrahends = new ArrayList<>();
+        for (int i = 1; i < lists.size(); i++) {
+            final Rewritten right = rewrite(lists.get(i));
+            subtrahends.add(right);
+            pure = pure && right.pure;
+        }
+        if (pure && isEmpty(left.list)) {
+            return new Rewritten(left.list, true); // () ! y = ()
+        }
+
+        final List<MailingList> kept = new ArrayList<>();
+        kept.add(left.list);
+        final Set<MailingList> seen = new HashSet<>();
+        for (Rewritten right : subtrahends) {
+            if (right.pure && isEmpty(right.list)) {
+                continue; // x ! () = x
+            }
+            if (pure && right.list.equals(left.list)) {
+                return new Rewritten(new EmailList(EmailBitmap.EMPTY), true); // x ! x = ()
+            }
+            if (right.pure && !seen.add(right.list)) {
+                continue; // x ! y ! y = x ! y
+            }
+            if (!right.pure) {
+                seen.clear(); // it may redefine the lists read by those seen so far
+            }
+            kept.add(right.list);
+        }
+        return new Rewritten(kept.size() == 1 ? left.list : new Difference(kept), pure);
+    }
+
+    private static boolean isEmpty(MailingList list) {
+        return list instanceof EmailList && ((EmailList) list).getIds().isEmpty();
+    }
+
+    // one operation of operands; requires operands nonempty
+    private static MailingList chain(List<MailingList> operands, boolean isUnion) {
+        if (operands.size() == 1) {
+            return operands.get(0);
+        }
+        return isUnion ? new Union(operands) : new Intersection(operands);
+    }
+
+    //
+    // ESTIMATES
+    //
+
+    /**
+     * @param list an expression
+     * @return an estimate of the number of recipients list evaluates to
+     */
+    private long estimate(MailingList list) {
+        return estimate(list, 0);
+    }
+
+    // estimate(list), where list is nested depth deep in definitions and operations; lists
+    // nested deeper than MAX_DEPTH, as in long chains of named lists, are estimated as empty
+    private long estimate(MailingList list, int depth) {
+        if (list instanceof EmailList) {
+            return ((EmailList) list).size();
+        }
+        if (depth > MAX_DEPTH) {
+            return 0;
+        }
+        if (list instanceof NamedList) {
+            final String name = ((NamedList) list).getName();
+            final Long known = estimates.get(name);
+            if (known != null) {
+                return known;
+            }
+            final EmailList cached = environment.getCached(name);
+            long estimate = 0;
+            if (cached != null) {
+                estimate = cached.size();
+            } else if (environment.contains(name)) {
+                estimates.put(name, 0L); // guards against cyclical definitions
+                estimate = estimate(environment.get(name), depth + 1);
+            }
+            estimates.put(name, estimate);
+            return estimate;
+        }
+        if (list instanceof Union) {
+            long estimate = 0;
+            for (MailingList operand : operands(list)) {
+                estimate += estimate(operand, depth + 1);
+            }
+            return estimate;
+        }
+        if (list instanceof Intersection) {
+            long estimate = Long.MAX_VALUE;
+            for (MailingList operand : operands(list)) {
+                estimate = Math.min(estimate, estimate(operand, depth + 1));
+            }
+            return estimate;
+        }
+        if (list instanceof Difference) {
+            return estimate(operands(list).get(0), depth + 1);
+        }
+        if (list instanceof Definition) {
+            return estimate(((Definition) list).getList(), depth + 1);
+        }
+        final List<MailingList> lists = operands(list);
+        return estimate(lists.get(lists.size() - 1), depth + 1);
+    }
+
+    /**
+     * @param list an expression
+     * @return an estimate of the number of recipients read by the set operations in list,
+     *      not counting named lists that are already evaluated in the environment
+     */
+    private long cost(MailingList list) {
+        return cost(list, 0);
+    }
+
+    // cost(list), where list is nested depth deep in definitions and operations; lists
+    // nested deeper than MAX_DEPTH are counted as free
+    private long cost(MailingList list, int depth) {
+        if (list instanceof EmailList || depth > MAX_DEPTH) {
+            return 0;
+        }
+        if (list instanceof NamedList) {
+            final String name = ((NamedList) list).getName();
+            final Long known = costs.get(name);
+            if (known != null) {
+                return known;
+            }
+            long cost = 0;
+            if (environment.getCached(name) == null && environment.contains(name)) {
+                costs.put(name, 0L); // guards against cyclical definitions
+                cost = cost(environment.get(name), depth + 1);
+            }
+            costs.put(name, cost);
+            return cost;
+        }
+        if (list instanceof Intersection || list instanceof Difference) {
+            final List<MailingList> operands = operands(list);
+            long left = estimate(operands.get(0));
+            long cost = cost(operands.get(0), depth + 1);
+            for (int i = 1; i < operands.size(); i++) {
+                final MailingList right = operands.get(i);
+                if (left == 0 && (right instanceof EmailList || right instanceof NamedList)) {
+                    continue; // evaluation stops before reading right
+                }
+                cost += cost(right, depth + 1) + left + estimate(right);
+                if (list instanceof Intersection) {
+                    left = Math.min(left, estimate(right));
+                }
+            }
+            return cost;
+        }
+        if (list instanceof Definition) {
+            return cost(((Definition) list).getList(), depth + 1);
+        }
+        long cost = 0;
+        for (MailingList operand : operands(list)) {
+            cost += cost(operand, depth + 1);
+            if (list instanceof Union) {
+                cost += estimate(operand); // each operand is read once by a k-way union
+            }
+        }
+        return cost;
+    }
+
+    // appends list, annotated with estimated cardinalities, to builder
+    private void describe(MailingList list, StringBuilder builder) {
+        if (list instanceof Union || list instanceof Intersection || list instanceof Difference) {
+            final List<MailingList> operands = operands(list);
+            final String operator = list instanceof Union ? " , " : list instanceof Intersection ? " * " : " ! ";
+            builder.append("(");
+            for (int i = 0; i < operands.size(); i++) {
+                if (i > 0) {
+                    builder.append(operator);
+                }
+                describe(operands.get(i), builder);
+            }
+            builder.append(")");
+        }
+        else if (list instanceof Definition) {
+            builder.append("(").append(((Definition) list).getName()).append(" = ");
+            describe(((Definition) list).getList(), builder);
+            builder.append(")");
+        }
+        else if (list instanceof Sequence) {
+            final List<MailingList> operands = operands(list);
+            for (int i = 0; i < operands.size(); i++) {
+                if (i > 0) {
+                    builder.append(" ; ");
+                }
+                describe(operands.get(i), builder);
+            }
+            return;
+        }
+        else {
+            builder.append(list.toString());
+        }
+        builder.append("{").append(estimate(list)).append("}");
+    }
+}
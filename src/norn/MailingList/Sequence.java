@@ -1,6 +1,11 @@
 package norn.MailingList;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
 import java.util.Objects;
+import java.util.Set;
 
 import lib6005.parser.UnableToParseException;
 import norn.Environment;
@@ -10,13 +15,14 @@ import norn.Environment;
  */
 public class Sequence implements MailingList {
     
-    // AF: AF(list1, list2) = the sequence of MailingLists whose recipients are produced by list2 after
-    //      substituting the expressions of all named list definitions found in list1 
-    // RI: true
-    // Safety from rep exposure: list1 and list2 are private, final, immutable;
+    // AF: AF(lists) = the sequence of MailingLists whose recipients are produced by the last
+    //      of lists after substituting the expressions of all named list definitions found
+    //      in the lists before it
+    // RI: lists.size() >= 2, and no element of lists is a Sequence
+    // Safety from rep exposure: lists is private, final, and an unmodifiable list of
+    //      immutable MailingLists
     
-    private final MailingList list1;
-    private final MailingList list2;
+    private final List<MailingList> lists;
     
     /**
      * Creates a new MailingList command representing the sequence of the provided lists
@@ -24,55 +30,82 @@ public class Sequence implements MailingList {
      * @param list2 a valid MailingList
      */
     public Sequence(MailingList list1, MailingList list2) {
-        this.list1 = list1;
-        this.list2 = list2;
+        this(Arrays.asList(list1, list2));
     }
     
-    //
-    // INSTANCE METHODS
-    //
-    
     /**
-     * Returns one of the mailing lists that forms the intersection
-     * @return a valid mailing list with recipients
+     * Creates a new MailingList command representing the sequence of the provided lists.
+     * Lists that are themselves Sequences contribute their own lists instead.
+     * @param lists at least two valid MailingLists
      */
-    public MailingList getList1() {
-        return list1;
+    public Sequence(List<MailingList> lists) {
+        final List<MailingList> operands = new ArrayList<>(lists.size());
+        for (MailingList list : lists) {
+            if (list instanceof Sequence) { // (;) is associative; keep operands flat
+                operands.addAll(((Sequence) list).lists);
+            }
+            else {
+                operands.add(list);
+            }
+        }
+        if (operands.size() < 2) {
+            throw new IllegalArgumentException("a sequence needs at least two lists");
+        }
+        this.lists = Collections.unmodifiableList(operands);
     }
     
+    //
+    // INSTANCE METHODS
+    //
+    
     /**
-     * Returns the other the mailing list that forms the intersection
-     * @return a valid mailing list with recipients
+     * Returns the mailing lists of the sequence, in the order they are evaluated
+     * @return at least two valid mailing lists, none of them a Sequence
      */
-    public MailingList getList2() {
-        return list2;
+    public List<MailingList> getLists() {
+        return lists;
     }
     
     /**
-     * Both evaluates list1 and list2 sequentially and returns the evaluation of list2
+     * Evaluates the lists in order and returns the evaluation of the last one
      * @param environment a mapping of EmailList names to EmailLists
      * @return an EmailList representation of this ListExpression
      */
     @Override
-    
-    public EmailList evaluate(Environment environment) throws UnableToParseException {
-        list1.evaluate(environment);
-        return list2.evaluate(environment);
+    public EmailList evaluate(Environment environment, EvaluationContext context) throws UnableToParseException {
+        return Evaluator.evaluate(this, environment, context);
     }
 
     @Override
     public MailingList evaluateName(String listname, Environment environment) {
         // probably shouldn't ever be called on a sequence...
-        return new Union(this.list1.evaluateName(listname, environment), this.list2.evaluateName(listname, environment));
+        final List<MailingList> evaluated = new ArrayList<>(lists.size());
+        for (MailingList list : lists) {
+            evaluated.add(list.evaluateName(listname, environment));
+        }
+        return new Union(evaluated);
     }
+
     @Override
     public MailingList simplify() {
-        return list2.simplify();
+        return lists.get(lists.size() - 1).simplify();
     }
 
     @Override
     public boolean dependsOn(String listname) {
-        return list1.dependsOn(listname) || list2.dependsOn(listname);
+        for (MailingList list : lists) {
+            if (list.dependsOn(listname)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public void collectListNames(Set<String> names) {
+        for (MailingList list : lists) {
+            list.collectListNames(names);
+        }
     }
 
     //
@@ -81,19 +114,26 @@ public class Sequence implements MailingList {
     
     @Override
     public String toString() {
-        return this.list1.toString() + ";" + this.list2.toString();
+        final StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < lists.size(); i++) {
+            if (i > 0) {
+                builder.append(";");
+            }
+            builder.append(lists.get(i).toString());
+        }
+        return builder.toString();
     }
     
     @Override
     public boolean equals(Object thatObject) {
         if (!(thatObject instanceof Sequence)) { return false; }
         Sequence that = (Sequence) thatObject;
-        return that.getList1().equals(this.getList1()) && that.getList2().equals(this.getList2());
+        return that.getLists().equals(this.getLists());
     }
     
     @Override
     public int hashCode() {
-        return Objects.hash(this.list1, this.list2, "SEQUENCE");
-        //produces a unique hash code for a union of lsit1 and list2
+        return Objects.hash(this.lists, "SEQUENCE");
+        //produces a unique hash code for a sequence of lists
     }
 }
@@ -1,6 +1,9 @@
 package norn.MailingList;
 
-import java.util.HashSet;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
 import java.util.Objects;
 import java.util.Set;
 
@@ -8,17 +11,18 @@ import lib6005.parser.UnableToParseException;
 import norn.Environment;
 
 /**
- * ADT representing the union of two mailing lists
+ * ADT representing the union of two or more mailing lists
  */
 public class Union implements MailingList {
     
-    // AF: AF(list1, list2) = the union of list1 and list2 (where
-    //      recipients in the mailing list are in list1 or list2)
-    // RI: true
-    // Safety from rep exposure: list1 and list2 are private, final, immutable
+    // AF: AF(lists) = the union of the lists in lists (where recipients in the
+    //      mailing list are in at least one of lists)
+    // RI: lists.size() >= 2, and no element of lists is a Union
+    // Safety from rep exposure: lists is private, final, and an unmodifiable list of
+    //      immutable MailingLists
     
-    private final MailingList list1;
-    private final MailingList list2;
+    private final List<MailingList> lists;
+    private final int hashCode; // computed once, from the cached hash codes of the lists
     
     /**
      * Creates a new MailingList representing the union of the provided lists.
@@ -26,52 +30,88 @@ public class Union implements MailingList {
      * @param list2 a valid MailingList
      */
     public Union(MailingList list1, MailingList list2) {
-        this.list1 = list1;
-        this.list2 = list2;
+        this(Arrays.asList(list1, list2));
     }
     
-    //
-    // INSTANCE METHODS
-    //
-    
     /**
-     * Returns one of the mailing lists that forms the intersection
-     * @return a valid mailing list with recipients
+     * Creates a new MailingList representing the union of the provided lists. Lists
+     * that are themselves Unions contribute their own lists instead.
+     * @param lists at least two valid MailingLists
      */
-    public MailingList getList1() {
-        return list1;
+    public Union(List<MailingList> lists) {
+        final List<MailingList> operands = new ArrayList<>(lists.size());
+        for (MailingList list : lists) {
+            if (list instanceof Union) { // (,) is associative; keep operands flat
+                operands.addAll(((Union) list).lists);
+            }
+            else {
+                operands.add(list);
+            }
+        }
+        if (operands.size() < 2) {
+            throw new IllegalArgumentException("a union needs at least two lists");
+        }
+        this.lists = Collections.unmodifiableList(operands);
+        this.hashCode = Objects.hash(this.lists, "UNION");
+        //produces a unique hash code for a union of lists
     }
     
+    //
+    // INSTANCE METHODS
+    //
+    
     /**
-     * Returns the other the mailing list that forms the intersection
-     * @return a valid mailing list with recipients
+     * Returns the mailing lists that form the union, in order
+     * @return at least two valid mailing lists, none of them a Union
      */
-    public MailingList getList2() {
-        return list2;
+    public List<MailingList> getLists() {
+        return lists;
     }
     
     @Override
-    
-    public EmailList evaluate(Environment environment) throws UnableToParseException {
-        Set<String> evaluatedSet = new HashSet<String>();
-        evaluatedSet.addAll(list1.evaluate(environment).getEmails());
-        evaluatedSet.addAll(list2.evaluate(environment).getEmails());
-        return new EmailList(evaluatedSet);
+    public EmailList evaluate(Environment environment, EvaluationContext context) throws UnableToParseException {
+        return Evaluator.evaluate(this, environment, context);
     }
 
     @Override
     public MailingList evaluateName(String listname, Environment environment) {
-        return new Union(this.list1.evaluateName(listname, environment), this.list2.evaluateName(listname, environment));
+        final List<MailingList> evaluated = new ArrayList<>(lists.size());
+        boolean changed = false;
+        for (MailingList list : lists) {
+            final MailingList operand = list.evaluateName(listname, environment);
+            changed |= operand != list;
+            evaluated.add(operand);
+        }
+        return changed ? MailingList.union(evaluated) : this;
     }
 
     @Override
     public MailingList simplify() {
-        return new Union(list1.simplify(), list2.simplify());
+        final List<MailingList> simplified = new ArrayList<>(lists.size());
+        boolean changed = false;
+        for (MailingList list : lists) {
+            final MailingList operand = list.simplify();
+            changed |= operand != list;
+            simplified.add(operand);
+        }
+        return changed ? MailingList.union(simplified) : this;
     }
 
     @Override
     public boolean dependsOn(String listname) {
-        return list1.dependsOn(listname) || list2.dependsOn(listname);
+        for (MailingList list : lists) {
+            if (list.dependsOn(listname)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public void collectListNames(Set<String> names) {
+        for (MailingList list : lists) {
+            list.collectListNames(names);
+        }
     }
 
     //
@@ -80,19 +120,26 @@ public class Union implements MailingList {
     
     @Override
     public String toString() {
-        return "(" + this.list1.toString() + "," + this.list2.toString() + ")";
+        final StringBuilder builder = new StringBuilder("(");
+        for (int i = 0; i < lists.size(); i++) {
+            if (i > 0) {
+                builder.append(",");
+            }
+            builder.append(lists.get(i).toString());
+        }
+        return builder.append(")").toString();
     }
     
     @Override
     public boolean equals(Object thatObject) {
+        if (thatObject == this) { return true; } // shared subexpressions compare in constant time
         if (!(thatObject instanceof Union)) { return false; }
         Union that = (Union) thatObject;
-        return that.getList1().equals(this.getList1()) && that.getList2().equals(this.getList2());
+        return that.getLists().equals(this.getLists());
     }
     
     @Override
     public int hashCode() {
-        return Objects.hash(this.list1, this.list2, "UNION");
-        //produces a unique hash code for a union of lsit1 and list2
+        return hashCode; // constant time, so shared subexpressions can be remembered by EvaluationContext
     }
 }
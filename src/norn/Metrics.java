@@ -0,0 +1,214 @@
+package norn;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.LongSupplier;
+
+/**
+ * threadsafe ADT for the server's metrics: a latency histogram for each stage of handling a
+ * command, by transport and command type, the number of open console connections, and gauges
+ * and counters read from other objects when the metrics are written. Recording a latency or a
+ * connection neither allocates nor locks.
+ */
+public class Metrics {
+    /* Abstraction Function:
+     *     AF(latencies, consoleConnections, sampled) = metrics where latencies[s][t][c] are the
+     *     durations of stage s of commands of type c from transport t, consoleConnections is
+     *     the number of console connections open, and each of sampled is a metric whose value
+     *     is read when written
+     * Representation Invariant:
+     *     latencies has an entry for every stage, transport and command type
+     * Safety from Rep Exposure:
+     *     fields are private and final and never returned
+     * Thread safety argument:
+     *     latencies is never modified after construction and its histograms are threadsafe;
+     *     consoleConnections is atomic; sampled is a concurrent list of immutable Sampled
+     */
+
+    /** Where a command came from */
+    public enum Transport {
+        CONSOLE, HTTP;
+
+        private final String label = name().toLowerCase();
+    }
+
+    /** The kinds of command */
+    public enum Command {
+        /** a command that only reads lists, including !explain */
+        QUERY,
+        /** a command that defines lists */
+        DEFINITION,
+        SAVE,
+        LOAD,
+        CHECKPOINT;
+
+        private final String label = name().toLowerCase();
+
+        /**
+         * @param command a command, which need not be valid
+         * @return the kind of command it is
+         */
+        public static Command of(String command) {
+            if (command.startsWith("!save")) {
+                return SAVE;
+            }
+            if (command.startsWith("!load")) {
+                return LOAD;
+            }
+            if (command.startsWith("!checkpoint")) {
+                return CHECKPOINT;
+            }
+            if (command.startsWith("!")) {
+                return QUERY; // !explain, which only describes the expression after it, even a definition
+            }
+            // only definitions contain '=', in the grammar of MailingList.g
+            return command.indexOf('=') >= 0 ? DEFINITION : QUERY;
+        }
+    }
+
+    /** The stages of handling a command that are timed */
+    public enum Stage {
+        PARSE("norn_parse_duration_seconds", "Time to parse a command"),
+        EVALUATE("norn_evaluate_duration_seconds", "Time to optimize and evaluate a parsed command, not waiting for the environment lock"),
+        SERIALIZE("norn_serialize_duration_seconds", "Time to turn the result of a command into its response"),
+        LOCK_WAIT("norn_lock_wait_duration_seconds", "Time spent waiting for the environment's write lock"),
+        LOG_COMMIT("norn_log_commit_duration_seconds", "Time spent waiting for a command's changes to be committed to the write-ahead log"),
+        TOTAL("norn_request_duration_seconds", "Time from receiving a command to handing off its response");
+
+        private final String metricName;
+        private final String help;
+
+        private Stage(String metricName, String help) {
+            this.metricName = metricName;
+            this.help = help;
+        }
+    }
+
+    // a metric whose value is read from elsewhere when written
+    private static class Sampled {
+        private final String name;
+        private final String help;
+        private final String type;
+        private final LongSupplier value;
+
+        Sampled(String name, String help, String type, LongSupplier value) {
+            this.name = name;
+            this.help = help;
+            this.type = type;
+            this.value = value;
+        }
+    }
+
+    private final LatencyHistogram[][][] latencies =
+            new LatencyHistogram[Stage.values().length][Transport.values().length][Command.values().length];
+    private final AtomicInteger consoleConnections = new AtomicInteger();
+    private final List<Sampled> sampled = new CopyOnWriteArrayList<>();
+
+    /**
+     * Creates metrics with nothing recorded
+     */
+    public Metrics() {
+        for (LatencyHistogram[][] byTransport : latencies) {
+            for (int transport = 0; transport < byTransport.length; transport++) {
+                for (int command = 0; command < byTransport[transport].length; command++) {
+                    byTransport[transport][command] = new LatencyHistogram();
+                }
+            }
+        }
+    }
+
+    /**
+     * Records the duration of one stage of handling a command
+     * @param stage the stage
+     * @param transport where the command came from
+     * @param command the kind of command
+     * @param nanos the duration in nanoseconds
+     */
+    public void record(Stage stage, Transport transport, Command command, long nanos) {
+        latencies[stage.ordinal()][transport.ordinal()][command.ordinal()].record(nanos);
+    }
+
+    /**
+     * @param stage a stage
+     * @param transport a transport
+     * @param command a kind of command
+     * @return the number of durations recorded for stage of command from transport
+     */
+    public long getCount(Stage stage, Transport transport, Command command) {
+        return latencies[stage.ordinal()][transport.ordinal()][command.ordinal()].getCount();
+    }
+
+    /**
+     * Records that a console connection was opened
+     */
+    public void consoleConnectionOpened() {
+        consoleConnections.incrementAndGet();
+    }
+
+    /**
+     * Records that a console connection was closed
+     */
+    public void consoleConnectionClosed() {
+        consoleConnections.decrementAndGet();
+    }
+
+    /**
+     * @return the number of console connections open
+     */
+    public int getConsoleConnections() {
+        return consoleConnections.get();
+    }
+
+    /**
+     * Adds a metric whose value can go up and down
+     * @param name the metric name, which must be unique in these metrics
+     * @param help a description of the metric
+     * @param value reads the metric's value; must be threadsafe
+     */
+    public void addGauge(String name, String help, LongSupplier value) {
+        sampled.add(new Sampled(name, help, "gauge", value));
+    }
+
+    /**
+     * Adds a metric whose value only goes up
+     * @param name the metric name, which must be unique in these metrics and end with _total
+     * @param help a description of the metric
+     * @param value reads the metric's value; must be threadsafe
+     */
+    public void addCounter(String name, String help, LongSupplier value) {
+        sampled.add(new Sampled(name, help, "counter", value));
+    }
+
+    /**
+     * @return these metrics in the Prometheus text exposition format, version 0.0.4. Only the
+     *      histograms in which a duration has been recorded are included.
+     */
+    public String toPrometheusText() {
+        final StringBuilder out = new StringBuilder();
+        for (Stage stage : Stage.values()) {
+            out.append("# HELP ").append(stage.metricName).append(' ').append(stage.help).append('\n');
+            out.append("# TYPE ").append(stage.metricName).append(" histogram\n");
+            for (Transport transport : Transport.values()) {
+                for (Command command : Command.values()) {
+                    final LatencyHistogram histogram = latencies[stage.ordinal()][transport.ordinal()][command.ordinal()];
+                    if (histogram.getCount() > 0) {
+                        histogram.write(out, stage.metricName,
+                                "transport=\"" + transport.label + "\",command=\"" + command.label + "\"");
+                    }
+                }
+            }
+        }
+        appendSample(out, "norn_console_connections", "Console connections open", "gauge", consoleConnections.get());
+        for (Sampled metric : sampled) {
+            appendSample(out, metric.name, metric.help, metric.type, metric.value.getAsLong());
+        }
+        return out.toString();
+    }
+
+    private static void appendSample(StringBuilder out, String name, String help, String type, long value) {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+        out.append(name).append(' ').append(value).append('\n');
+    }
+}
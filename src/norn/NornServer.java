@@ -5,18 +5,28 @@ import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.OutputStream;
-import java.io.PrintWriter;
 import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.LinkedList;
+import java.util.List;
 import java.util.Queue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 import com.sun.net.httpserver.*;
 
 import lib6005.parser.UnableToParseException;
+import norn.MailingList.ParallelEvaluator;
 
 
 /**
@@ -27,61 +37,237 @@ public class NornServer{
     
     public static final int HTTP_PORT = 5021;
     public static final int CONSOLE_PORT = 4444;
-    private static final String REJECT_RESPONSE = "Must enter valid command";
+    public static final int CONSOLE_THREADS = Math.max(2, Runtime.getRuntime().availableProcessors());
+    public static final int HTTP_THREADS = Math.max(2, Runtime.getRuntime().availableProcessors());
+    public static final int HTTP_QUEUE = 64;
+    public static final int RETRY_AFTER_SECONDS = 1;
+    private static final int CHECKPOINT_SHUTDOWN_SECONDS = 60;
+    static final String WELCOME_MESSAGE = "Welcome to the Norn e-mail address management system.";
+    static final String REJECT_RESPONSE = "Must enter valid command";
     private static final String URL_COMMAND_EXTENSION = "/eval";
+    private static final String URL_METRICS_EXTENSION = "/metrics";
+    private static final String MAILTO_PREFIX = "<a href=\"mailto:";
+    private static final String MAILTO_SUFFIX = "\">email these recipients</a><br>";
+    private static final String HTTP_NODELAY_PROPERTY = "sun.net.httpserver.nodelay";
+    
+    static {
+        // without TCP_NODELAY, the JDK http server holds back the end of a response, such as the
+        // last chunk of a chunked one, until the client acknowledges the rest: about 40 ms each
+        if (System.getProperty(HTTP_NODELAY_PROPERTY) == null) {
+            System.setProperty(HTTP_NODELAY_PROPERTY, "true");
+        }
+    }
     
     private final HttpServer httpServer;
-    private final ConsoleServer consoleServer;
+    private final HttpAdmission httpAdmission;
+    private final ExecutorService httpWorkers; // null if http requests run on the given handlers
+    private final ConsoleTransport consoleServer;
 
     private final Environment env;
+    private final ScheduledExecutorService checkpointer; // writes checkpoints in the background
+    private final Metrics metrics = new Metrics();
+    private volatile WriteAheadLog log = null;
+    private volatile boolean stopped = false;
     
     /**
      * AF
-     *  AF(httpServer, consoleServer, env) represents a single server for email address management
-     *  in the env name space of emails. Requests are handles via httpServer and consoleServer.
+     *  AF(httpServer, consoleServer, env, metrics) represents a single server for email address management
+     *  in the env name space of emails. Requests are handles via httpServer and consoleServer, and
+     *  timed in metrics.
      * 
      * RI
-     *  env, httpServer, consoleServer not null. 
+     *  env, httpServer, httpAdmission, consoleServer, metrics not null. 
      * 
      * Rep Exposure
      *  all instance variables private, final, and not returned
      * 
      * Thread Safety
-     *  httpServer, consoleServer, and env all thread safe data types with safely sequence command calls
+     *  httpServer, consoleServer, env, and metrics all thread safe data types with safely sequence command calls
      */
 
     
     /**
      * Make a NornServer and starts it listening for http
-     * requests on httpPort at the "http://server_url/eval" extension and console requests on consolePort
+     * requests on httpPort at the "http://server_url/eval" extension and console requests on consolePort.
+     * Console connections are served by a SelectorConsoleServer with CONSOLE_THREADS workers.
      * @param httpPort the port number on which to listen for http requests, between 0 and 65535
      * @param consolePort the port number on which to listen for console requests, between 0 and 65535
      * @throws IOException if can't connect
      * @throws UnableToParseException 
      */   
      public NornServer(int httpPort, int consolePort, final ArrayList<String> starterFiles)  throws IOException, FileNotFoundException, UnableToParseException {
+         this(httpPort, consolePort, starterFiles, CONSOLE_THREADS);
+     }
+
+    /**
+     * Make a NornServer and starts it listening for http
+     * requests on httpPort at the "http://server_url/eval" extension and console requests on consolePort
+     * @param httpPort the port number on which to listen for http requests, between 0 and 65535
+     * @param consolePort the port number on which to listen for console requests, between 0 and 65535
+     * @param consoleThreads the number of threads executing console commands for all connections,
+     *      or 0 to give each console connection its own thread
+     * @throws IOException if can't connect
+     * @throws UnableToParseException 
+     */   
+     public NornServer(int httpPort, int consolePort, final ArrayList<String> starterFiles, int consoleThreads)  throws IOException, FileNotFoundException, UnableToParseException {
+         this(httpPort, consolePort, starterFiles, consoleThreads, null);
+     }
+
+    /**
+     * Make a NornServer and starts it listening for http
+     * requests on httpPort at the "http://server_url/eval" extension and console requests on consolePort
+     * @param httpPort the port number on which to listen for http requests, between 0 and 65535
+     * @param consolePort the port number on which to listen for console requests, between 0 and 65535
+     * @param consoleThreads the number of threads executing console commands for all connections,
+     *      or 0 to give each console connection its own handler task
+     * @param handlers runs each http exchange, and each console connection if consoleThreads is 0,
+     *      as a task (see HandlerThreads); null to handle http exchanges on a pool of HTTP_THREADS
+     *      threads and console connections on new platform threads. If handlers is bounded and
+     *      runs console connections, http exchanges are handled on a pool of HTTP_THREADS threads
+     *      instead, since each console connection holds its thread until it closes
+     * @throws IOException if can't connect
+     * @throws UnableToParseException 
+     */   
+     public NornServer(int httpPort, int consolePort, final ArrayList<String> starterFiles, int consoleThreads, Executor handlers)  throws IOException, FileNotFoundException, UnableToParseException {
+         this(httpPort, consolePort, starterFiles, consoleThreads, handlers, HTTP_THREADS, HTTP_QUEUE);
+     }
+
+    /**
+     * Make a NornServer and starts it listening for http
+     * requests on httpPort at the "http://server_url/eval" extension and console requests on consolePort.
+     * At most httpThreads + httpQueue http requests are admitted at once; the rest are refused
+     * with 503 Service Unavailable.
+     * @param httpPort the port number on which to listen for http requests, between 0 and 65535
+     * @param consolePort the port number on which to listen for console requests, between 0 and 65535
+     * @param consoleThreads the number of threads executing console commands for all connections,
+     *      or 0 to give each console connection its own handler task
+     * @param handlers runs each http exchange, and each console connection if consoleThreads is 0,
+     *      as a task (see HandlerThreads); null to handle http exchanges on a pool of httpThreads
+     *      threads and console connections on new platform threads. If handlers is bounded and
+     *      runs console connections, http exchanges are handled on a pool of httpThreads threads
+     *      instead, since each console connection holds its thread until it closes
+     * @param httpThreads the number of threads handling http requests if they have a pool of their
+     *      own, as described for handlers; requires httpThreads >= 1
+     * @param httpQueue the number of admitted http requests that may wait for a thread; requires
+     *      httpQueue >= 0
+     * @throws IOException if can't connect
+     * @throws UnableToParseException 
+     */   
+     public NornServer(int httpPort, int consolePort, final ArrayList<String> starterFiles, int consoleThreads, Executor handlers,
+             int httpThreads, int httpQueue)  throws IOException, FileNotFoundException, UnableToParseException {
+        if (httpThreads < 1 || httpQueue < 0) {
+            throw new IllegalArgumentException("invalid http threads " + httpThreads + " or queue " + httpQueue);
+        }
         env = new Environment();
+        env.setMetrics(metrics);
+        checkpointer = Executors.newSingleThreadScheduledExecutor(task -> {
+            final Thread thread = new Thread(task, "norn-checkpoint");
+            thread.setDaemon(true);
+            return thread;
+        });
+        env.setCheckpointer(checkpointer);
         
+        final List<Path> loadFiles = new ArrayList<>();
         for(String loadFile : starterFiles){
-            String response = env.execute("!load"+ loadFile);
-            if(response.equals(Environment.FILE_CANNOT_BE_PARSED)){
-                throw new UnableToParseException("Given file cannot be parsed");
-            }else if(response.equals(Environment.FILE_NOT_FOUND)){
-                throw new FileNotFoundException();
-            }
+            loadFiles.add(Paths.get(Environment.FILE_FOLDER + loadFile));
+        }
+        try {
+            env.readFiles(loadFiles, ForkJoinPool.commonPool()); // parsed in parallel, applied in order
+        } catch (IOException e) {
+            throw new FileNotFoundException(e.getMessage());
         }
         
         httpServer = HttpServer.create(new InetSocketAddress(httpPort), 0);
-        httpServer.createContext(URL_COMMAND_EXTENSION, new HttpHandling());
-        httpServer.setExecutor(null); // creates a default executor
+        // console connections hold their thread while open, so on a bounded pool they could
+        // take every thread and leave admitted http requests waiting forever
+        final boolean ownPool = handlers == null || (consoleThreads == 0 && HandlerThreads.isBounded(handlers));
+        httpWorkers = ownPool ? Executors.newFixedThreadPool(httpThreads) : null;
+        httpAdmission = new HttpAdmission(new HttpHandling(), ownPool ? httpWorkers : handlers,
+                httpThreads + httpQueue, RETRY_AFTER_SECONDS);
+        httpServer.createContext(URL_COMMAND_EXTENSION, httpAdmission);
+        httpServer.createContext(URL_METRICS_EXTENSION, new MetricsHandling()); // not admission controlled, so it answers under load
+        httpServer.setExecutor(null); // admission runs on the dispatcher thread
+        
+        consoleServer = consoleThreads == 0
+                ? new ConsoleServer(consolePort, handlers == null ? HandlerThreads.platform() : handlers)
+                : new SelectorConsoleServer(consolePort, env, consoleThreads, metrics);
         
-        consoleServer = new ConsoleServer(consolePort);
+        metrics.addGauge("norn_environment_lists", "Lists defined in the environment", env::size);
+        metrics.addCounter("norn_cache_hits_total", "Evaluations of named lists answered from the cache", env::getCacheHits);
+        metrics.addCounter("norn_cache_misses_total", "Evaluations of named lists that were not cached", env::getCacheMisses);
+        metrics.addCounter("norn_checkpoints_total", "Checkpoints written by !checkpoint", env::getCheckpointCount);
+        metrics.addCounter("norn_checkpoint_failures_total", "Checkpoints that failed to be written", env::getCheckpointFailures);
+        metrics.addGauge("norn_http_requests_active", "Http requests being handled", httpAdmission::getActiveCount);
+        metrics.addGauge("norn_http_requests_queued", "Admitted http requests waiting for a thread", httpAdmission::getQueueDepth);
+        metrics.addCounter("norn_http_requests_admitted_total", "Http requests admitted", httpAdmission::getAdmittedCount);
+        metrics.addCounter("norn_http_requests_rejected_total", "Http requests refused with 503", httpAdmission::getRejectedCount);
         
         System.err.println("Server starting up...");
     }
     
     /**
-     * starts up the http and the console servers to handle requests from consoles and http requests
+     * Evaluates queries with many operands as parallel fork-join tasks in the common pool
+     * @param threshold the smallest number of operands of a chain of one operator that is
+     *      evaluated in parallel; requires threshold >= 2
+     */
+    public void enableParallelEvaluation(int threshold) {
+        env.setParallelEvaluator(new ParallelEvaluator(ForkJoinPool.commonPool(), threshold));
+    }
+    
+    /**
+     * Recovers the environment from a write-ahead log, on top of any lists loaded from starter
+     * files, and logs every change to it from then on; a change is acknowledged once it is as
+     * durable as sync promises. Must be called before serve().
+     * @param directory the log directory, created if it doesn't exist
+     * @param sync when logged changes reach the disk
+     * @param periodMillis the time between syncs if sync is PERIODIC
+     * @throws IOException if the log couldn't be read or written
+     * @throws UnableToParseException if a logged change can't be parsed
+     */
+    public void enableWriteAheadLog(Path directory, WriteAheadLog.Sync sync, long periodMillis)
+            throws IOException, UnableToParseException {
+        final WriteAheadLog log = WriteAheadLog.open(directory, env, sync, periodMillis);
+        metrics.addCounter("norn_log_records_total", "Changes appended to the write-ahead log", log::getRecordCount);
+        metrics.addCounter("norn_log_syncs_total", "Syncs of the write-ahead log to disk", log::getSyncCount);
+        this.log = log;
+    }
+    
+    /**
+     * Checkpoints the write-ahead log periodically in the background, as "!checkpoint" does.
+     * Requires enableWriteAheadLog() to have been called.
+     * @param periodMillis the time between the end of one checkpoint and the start of the next;
+     *      requires periodMillis > 0
+     */
+    public void enablePeriodicCheckpoints(long periodMillis) {
+        if (log == null) {
+            throw new IllegalStateException("periodic checkpoints need a write-ahead log");
+        }
+        checkpointer.scheduleWithFixedDelay(() -> {
+            try {
+                env.execute("!checkpoint");
+            } catch (UnableToParseException e) {
+                throw new AssertionError("!checkpoint is always a valid command", e);
+            }
+        }, periodMillis, periodMillis, TimeUnit.MILLISECONDS);
+    }
+    
+    /**
+     * @return the metrics of this server, also served at "http://server_url/metrics"
+     */
+    public Metrics getMetrics() {
+        return metrics;
+    }
+    
+    /**
+     * @return the admission control of http requests, with its queue depth and rejection counts
+     */
+    public HttpAdmission getHttpAdmission() {
+        return httpAdmission;
+    }
+    
+    /**
+     * starts up the http and the console servers to handle requests from consoles and http requests.
+     * Never returns, unless the connections fail or the server is stopped.
      */
     public void serve(){
         System.err.println("Server ready for requests");
@@ -89,42 +275,84 @@ public class NornServer{
             httpServer.start();
             consoleServer.start();
         }catch(IOException e){
-            System.err.println("Connections failed");
-            e.printStackTrace();
-            consoleServer.close();
-            httpServer.stop(0);
+            if (!stopped) {
+                System.err.println("Connections failed");
+                e.printStackTrace();
+            }
+            stop();
+        }
+    }
+    
+    /**
+     * stops listening for requests; serve() returns. Connections already open are not closed,
+     * but changes fail once the write-ahead log, if any, is closed.
+     */
+    public void stop(){
+        stopped = true;
+        consoleServer.close();
+        httpServer.stop(0);
+        if (httpWorkers != null) {
+            httpWorkers.shutdown();
+        }
+        checkpointer.shutdown(); // checkpoints in progress finish, and no more start
+        try {
+            checkpointer.awaitTermination(CHECKPOINT_SHUTDOWN_SECONDS, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (log != null) {
+            try {
+                log.close();
+            } catch (IOException e) {
+                System.err.println("write-ahead log failed: " + e.getMessage());
+            }
         }
     }
 
 
     /**
-     * A ConsoleServer is a threadsafe datatype that handles all socket connections with other consoles.
+     * A ConsoleServer is a threadsafe datatype that handles all socket connections with other consoles,
+     * each as its own blocking task.
      *
      */
-    public class ConsoleServer{
+    public class ConsoleServer implements ConsoleTransport{
         private final ServerSocket serverSocket;
+        private final Executor handlers;
         
         /**
          * AF
-         *  AF(serverSocket) represents a communication buffer through socket serverSocket
+         *  AF(serverSocket, handlers) represents a communication buffer through socket serverSocket,
+         *  with each connection handled by a task run by handlers
          *  
          * RI
-         *  serversocekt != null
+         *  serversocekt, handlers != null
          *  
          * Rep Exposure
          *  instance variable private, final, not returned in any methods
          *  
          * Thread safety
-         *  serverSocket threadsafe datatype with safe sequencing of commands
+         *  serverSocket threadsafe datatype with safe sequencing of commands; handlers only used
+         *  by the thread running start()
          */
         
         /**
-         * creats a new console server a designated port
+         * creats a new console server a designated port, handling each connection on a new thread
          * @param port
          * @throws IOException
          */
         public ConsoleServer(int port) throws IOException{
+            this(port, HandlerThreads.platform());
+        }
+        
+        /**
+         * creats a new console server a designated port
+         * @param port
+         * @param handlers runs the handler of each connection as a task
+         * @throws IOException
+         */
+        public ConsoleServer(int port, Executor handlers) throws IOException{
             serverSocket = new ServerSocket(port);
+            this.handlers = handlers;
         }
         
         /**
@@ -134,13 +362,14 @@ public class NornServer{
          * @throws IOException if an error occurs waiting for a connection
          *                     (IOExceptions from individual clients do *not* terminate serve())
          */
+        @Override
         public void start() throws IOException {
             while (true) {
                 // block until a client connects
                 Socket socket = serverSocket.accept();
 
                 // handle the client
-                Thread connectionHandler = new Thread(new Runnable() {
+                handlers.execute(new Runnable() {
                     public void run() {
                         try {
                             try {
@@ -153,7 +382,6 @@ public class NornServer{
                         }
                     }
                 });
-                connectionHandler.start();
             }
         }
         
@@ -165,24 +393,39 @@ public class NornServer{
          */
         private void handleConnection(Socket socket) throws IOException {
             
-            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-            PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
+            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+            OutputStream out = socket.getOutputStream();
+            ResponseSerializer serializer = new ResponseSerializer();
 
+            metrics.consoleConnectionOpened();
             try {
-                out.println("Welcome to the Norn e-mail address management system.");
+                println(serializer, WELCOME_MESSAGE, out);
                 for (String line = in.readLine(); line != null; line = in.readLine()) {
-                    String output = env.execute(line);
-                    out.println(output);
+                    final long start = System.nanoTime();
+                    final Response response = env.respond(line, Metrics.Transport.CONSOLE);
+                    final long serializing = System.nanoTime();
+                    serializer.write(response, out);
+                    println(serializer, "", out);
+                    env.recordSerialize(response, Metrics.Transport.CONSOLE, System.nanoTime() - serializing);
+                    metrics.record(Metrics.Stage.TOTAL, Metrics.Transport.CONSOLE, Metrics.Command.of(line), System.nanoTime() - start);
                 }
             } catch(UnableToParseException | IllegalArgumentException e){
-                String output = REJECT_RESPONSE;
-                out.println(output);
+                println(serializer, REJECT_RESPONSE, out);
             } finally {
+                metrics.consoleConnectionClosed();
                 out.close();
                 in.close();
             }
         }
         
+        // writes text and a line separator, and sends what serializer has buffered
+        private void println(ResponseSerializer serializer, String text, OutputStream out) throws IOException {
+            serializer.write(text, out);
+            serializer.write(System.lineSeparator(), out);
+            serializer.flush(out);
+        }
+        
+        @Override
         public void close(){
             try {
                 serverSocket.close();
@@ -200,31 +443,78 @@ public class NornServer{
      */
     public class HttpHandling implements HttpHandler{
         
+        private final ThreadLocal<ResponseSerializer> serializers = ThreadLocal.withInitial(ResponseSerializer::new);
+        
         /**
          * Pass the http request into the environment and return the response
          * 
          * @param t the current HttpExchange containing the http message
          */
         public void handle(HttpExchange t) throws IOException {
+            final long start = System.nanoTime();
             System.err.println("Http request recieved");          
             t.getRequestBody().close();
-            String response;
+            Response response;
+            Metrics.Command type = null;
             try {
                 final String command = t.getRequestURI().toString().replaceAll(URL_COMMAND_EXTENSION + "/", "");
                 System.err.println("Command recieved: " + command) ;
-                final String output = env.execute(command);  
-                response = "<a href=\"mailto:" + output + "\">email these recipients</a><br>" + output;
+                response = env.respond(command, Metrics.Transport.HTTP);  
+                type = Metrics.Command.of(command);
             } catch (UnableToParseException e) {
-                response = REJECT_RESPONSE;
+                response = null;
             }  
             
-            t.getResponseHeaders().set("Content-Type", "text/html");
-            t.sendResponseHeaders(200, response.length()); 
+            t.getResponseHeaders().set("Content-Type", "text/html; charset=utf-8");
             final OutputStream os = t.getResponseBody();
-            os.write(response.getBytes());
+            if (response == null) {
+                final byte[] reject = REJECT_RESPONSE.getBytes(StandardCharsets.UTF_8);
+                t.sendResponseHeaders(200, reject.length);
+                os.write(reject);
+            }
+            else {
+                t.sendResponseHeaders(200, 0); // chunked, since the length isn't known until the recipients are written
+                final ResponseSerializer serializer = serializers.get();
+                final long serializing = System.nanoTime();
+                serializer.write(MAILTO_PREFIX, os);
+                serializer.write(response, os);
+                serializer.write(MAILTO_SUFFIX, os);
+                serializer.write(response, os);
+                serializer.flush(os);
+                env.recordSerialize(response, Metrics.Transport.HTTP, System.nanoTime() - serializing);
+            }
+            os.close();
+            t.close();
+            if (type != null) {
+                metrics.record(Metrics.Stage.TOTAL, Metrics.Transport.HTTP, type, System.nanoTime() - start);
+            }
+            System.err.println("Http response: " + (response == null ? REJECT_RESPONSE
+                    : response.hasRecipients() ? response.getRecipients().size() + " recipients" : response.getMessage()));  
+        }
+    }
+    
+    
+    /**
+     * MetricsHandling is a handler for the HttpServer which returns the server's metrics in the
+     *  Prometheus text format.
+     *
+     */
+    public class MetricsHandling implements HttpHandler{
+        
+        /**
+         * Return the metrics
+         * 
+         * @param t the current HttpExchange containing the http message
+         */
+        public void handle(HttpExchange t) throws IOException {
+            t.getRequestBody().close();
+            final byte[] response = metrics.toPrometheusText().getBytes(StandardCharsets.UTF_8);
+            t.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+            t.sendResponseHeaders(200, response.length);
+            final OutputStream os = t.getResponseBody();
+            os.write(response);
             os.close();
             t.close();
-            System.err.println("Http response: " + response);  
         }
     }
     
@@ -235,14 +525,42 @@ public class NornServer{
      * <br> Usage:
      * <pre>
      *      norn.NornServer [--file (FILE )*][--consoleport PORT_NUMBER][--httpport PORT_NUMBER]
+     *                      [--parallel THRESHOLD][--consolethreads THREADS][--threads MODE]
+     *                      [--httpthreads THREADS][--httpqueue LENGTH]
+     *                      [--wal DIRECTORY [--fsync commit|none|MILLISECONDS][--checkpoint SECONDS]]
      * </pre>
      * 
      * <p>  FILE is an optional argument specifying a file pathname where an environment of assigned
      *      lists has been stored. If this argument is given, the stored environment should be loaded 
-     *      as the starting environment.
+     *      as the starting environment. A FILE may be in the text format or a binary snapshot
+     *      (see norn.SnapshotConverter).
      *      PORT_NUMBER is an optional arguments to specify the desired http port number or console 
      *      port number to be used by the server. If no arguments given, the http server will listen on
      *      port 5021 and console server will start a socket on port 4444.
+     *      THRESHOLD is an optional argument enabling parallel evaluation of queries: chains of
+     *      at least THRESHOLD operands joined by the same operator are evaluated as fork-join tasks.
+     *      THREADS is an optional number of threads executing console commands, shared by all
+     *      console connections, which are multiplexed on one selector thread; by default the
+     *      number of cores, and at least 2. 0 gives each console connection its own thread instead.
+     *      MODE is an optional choice of threads for the blocking handlers: "platform" for a new
+     *      thread per handler, "virtual" for a new virtual thread per handler (requires Java 21), or
+     *      a number of threads in a bounded pool. Each http exchange runs as a handler and, unless
+     *      --consolethreads is given, each console connection does too. By default, and when a
+     *      bounded pool would be shared with console connections, http exchanges are handled by a
+     *      pool of their own of --httpthreads THREADS threads, by default the number of cores
+     *      and at least 2.
+     *      LENGTH is an optional number of http requests that may wait for a free handler, by
+     *      default 64. Requests beyond that are refused with 503 Service Unavailable and a
+     *      Retry-After header.
+     *      DIRECTORY is an optional write-ahead log directory: the environment is recovered from
+     *      it on startup, after any FILEs are loaded, and every change is logged to it. --fsync
+     *      sets when a logged change is synced to disk before it is acknowledged: "commit" (the
+     *      default) syncs each command's changes, sharing syncs between concurrent commands,
+     *      "none" never syncs, and MILLISECONDS syncs that often without waiting. --checkpoint
+     *      checkpoints the log every SECONDS in the background, so that recovery replays at most
+     *      that much of it; "!checkpoint" does so on demand, and "!checkpointFILE" writes the
+     *      environment to FILE without clearing it, unlike !save.
+     * <p>  The server's metrics are served in the Prometheus text format at "http://server_url/metrics".
      * <br> E.g. "--file mailinglists.txt" starts the server initialized with the environment stored in
      *      mailinglists.txt.
      * @param args arguments as described
@@ -253,6 +571,15 @@ public class NornServer{
         int httpPort = HTTP_PORT;
         int consolePort = CONSOLE_PORT;
         ArrayList<String> files = new ArrayList<>();
+        int parallelThreshold = 0;
+        Integer consoleThreads = null;
+        Executor handlers = null;
+        int httpThreads = HTTP_THREADS;
+        int httpQueue = HTTP_QUEUE;
+        Path walDirectory = null;
+        WriteAheadLog.Sync sync = WriteAheadLog.Sync.COMMIT;
+        long syncPeriod = 0;
+        long checkpointPeriod = 0;
 
         Queue<String> arguments = new LinkedList<>(Arrays.asList(args));
         try {
@@ -262,8 +589,32 @@ public class NornServer{
                     httpPort = Integer.parseInt(arguments.remove());
                 } else if (flag.equals("--consoleport")) {
                     consolePort = Integer.parseInt(arguments.remove());
+                } else if (flag.equals("--parallel")) {
+                    parallelThreshold = Integer.parseInt(arguments.remove());
+                } else if (flag.equals("--consolethreads")) {
+                    consoleThreads = Integer.parseInt(arguments.remove());
+                } else if (flag.equals("--threads")) {
+                    handlers = HandlerThreads.parse(arguments.remove());
+                } else if (flag.equals("--httpthreads")) {
+                    httpThreads = Integer.parseInt(arguments.remove());
+                } else if (flag.equals("--httpqueue")) {
+                    httpQueue = Integer.parseInt(arguments.remove());
+                } else if (flag.equals("--wal")) {
+                    walDirectory = Paths.get(arguments.remove());
+                } else if (flag.equals("--fsync")) {
+                    final String policy = arguments.remove();
+                    if (policy.equals("commit")) {
+                        sync = WriteAheadLog.Sync.COMMIT;
+                    } else if (policy.equals("none")) {
+                        sync = WriteAheadLog.Sync.NONE;
+                    } else {
+                        sync = WriteAheadLog.Sync.PERIODIC;
+                        syncPeriod = Long.parseLong(policy);
+                    }
+                } else if (flag.equals("--checkpoint")) {
+                    checkpointPeriod = Long.parseLong(arguments.remove());
                 } else if (flag.equals("--file")) {
-                    while(!arguments.element().substring(0,2).equals("--")){
+                    while (!arguments.isEmpty() && !arguments.element().startsWith("--")) {
                         files.add(arguments.remove());
                     }
                 } else {
@@ -271,12 +622,25 @@ public class NornServer{
                 }
             }
             
-            NornServer addressServer = new NornServer(httpPort, consolePort, files);
+            NornServer addressServer = new NornServer(httpPort, consolePort, files,
+                    consoleThreads != null ? consoleThreads : handlers != null ? 0 : CONSOLE_THREADS, handlers,
+                    httpThreads, httpQueue);
+            if (parallelThreshold > 0) {
+                addressServer.enableParallelEvaluation(parallelThreshold);
+            }
+            if (walDirectory != null) {
+                addressServer.enableWriteAheadLog(walDirectory, sync, syncPeriod);
+            }
+            if (checkpointPeriod > 0) {
+                addressServer.enablePeriodicCheckpoints(TimeUnit.SECONDS.toMillis(checkpointPeriod));
+            }
             addressServer.serve();
 //        } catch (IllegalArgumentException iae) {
 //            System.err.println(iae.getMessage());
 //            System.err.println("usage: GameServer [--port PORT] [--size SIZE_X,SIZE_Y | --file FILE]");
 //            return;
+        } catch (UnsupportedOperationException | IllegalStateException e){
+            System.err.println(e.getMessage());
         } catch (FileNotFoundException e){
             System.err.println("file not found");
         } catch (UnableToParseException e) {
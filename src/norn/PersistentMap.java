@@ -0,0 +1,316 @@
+package norn;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.function.BiConsumer;
+
+/**
+ * immutable ADT for a map from keys to values, as a hash array mapped trie. put and
+ * remove return a new map that shares all but O(log n) of its nodes with this one.
+ * @param <K> type of keys, which must be immutable and non-null
+ * @param <V> type of values, which must be non-null
+ */
+public final class PersistentMap<K, V> {
+    /* Abstraction Function:
+     *     AF(root, size) = the map from each key in the trie under root to its value
+     * Representation Invariant:
+     *     size is the number of keys under root; no key occurs twice;
+     *     a key with hash h is found at depth d under the slot for bits [5d, 5d+5) of h,
+     *     or in a Collision node of keys all with hash h
+     * Safety from Rep Exposure:
+     *     fields are private and final, nodes are never mutated after construction
+     *     and never returned
+     * Thread safety argument:
+     *     immutable
+     */
+
+    private static final int BITS = 5;
+    private static final int MASK = (1 << BITS) - 1;
+
+    private static final PersistentMap<Object, Object> EMPTY = new PersistentMap<>(Branch.EMPTY, 0);
+
+    private final Node root;
+    private final int size;
+
+    private PersistentMap(Node root, int size) {
+        this.root = root;
+        this.size = size;
+    }
+
+    /**
+     * @param <K> type of keys
+     * @param <V> type of values
+     * @return the empty map
+     */
+    @SuppressWarnings("unchecked")
+    public static <K, V> PersistentMap<K, V> empty() {
+        return (PersistentMap<K, V>) EMPTY;
+    }
+
+    /**
+     * @return the number of keys in this map
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @param key the key to look up
+     * @return the value of key in this map, or null if this map does not contain key
+     */
+    @SuppressWarnings("unchecked")
+    public V get(Object key) {
+        return (V) root.get(key, key.hashCode(), 0);
+    }
+
+    /**
+     * @param key the key to look up
+     * @return true iff this map contains key
+     */
+    public boolean containsKey(Object key) {
+        return get(key) != null;
+    }
+
+    /**
+     * @param key the key to add or replace
+     * @param value its new value
+     * @return a map with the same keys and values as this, except that key maps to value
+     */
+    public PersistentMap<K, V> put(K key, V value) {
+        final boolean[] added = { false };
+        final Node newRoot = root.put(key, value, key.hashCode(), 0, added);
+        return newRoot == root ? this : new PersistentMap<>(newRoot, added[0] ? size + 1 : size);
+    }
+
+    /**
+     * @param key the key to remove
+     * @return a map with the same keys and values as this, except for key
+     */
+    public PersistentMap<K, V> remove(Object key) {
+        final Node newRoot = root.remove(key, key.hashCode(), 0);
+        if (newRoot == root) {
+            return this;
+        }
+        return new PersistentMap<>(newRoot == null ? Branch.EMPTY : newRoot, size - 1);
+    }
+
+    /**
+     * @param action called once with each key and value of this map, in no particular order
+     */
+    @SuppressWarnings("unchecked")
+    public void forEach(BiConsumer<? super K, ? super V> action) {
+        root.forEach((BiConsumer<Object, Object>) action);
+    }
+
+    /**
+     * @return a new, mutable set of the keys of this map
+     */
+    public Set<K> keySet() {
+        final Set<K> keys = new HashSet<>();
+        forEach((key, value) -> keys.add(key));
+        return keys;
+    }
+
+    //
+    // TRIE NODES
+    //
+
+    private abstract static class Node {
+        // the value of key, with hash code hash, or null
+        abstract Object get(Object key, int hash, int shift);
+
+        // this with key mapped to value; this itself if key already maps to value.
+        // sets added[0] iff key was not present
+        abstract Node put(Object key, Object value, int hash, int shift, boolean[] added);
+
+        // this without key; this itself if key was not present, null if nothing is left
+        abstract Node remove(Object key, int hash, int shift);
+
+        abstract void forEach(BiConsumer<Object, Object> action);
+    }
+
+    // up to 32 slots, one per value of the next BITS bits of the hash; slot i of array is
+    // array[2i], array[2i+1] = key, value, or null, child node
+    private static final class Branch extends Node {
+        private static final Branch EMPTY = new Branch(0, new Object[0]);
+
+        private final int bitmap;
+        private final Object[] array;
+
+        Branch(int bitmap, Object[] array) {
+            this.bitmap = bitmap;
+            this.array = array;
+        }
+
+        @Override
+        Object get(Object key, int hash, int shift) {
+            final int bit = 1 << ((hash >>> shift) & MASK);
+            if ((bitmap & bit) == 0) {
+                return null;
+            }
+            final int index = 2 * Integer.bitCount(bitmap & (bit - 1));
+            final Object slotKey = array[index];
+            if (slotKey == null) {
+                return ((Node) array[index + 1]).get(key, hash, shift + BITS);
+            }
+            return slotKey.equals(key) ? array[index + 1] : null;
+        }
+
+        @Override
+        Node put(Object key, Object value, int hash, int shift, boolean[] added) {
+            final int bit = 1 << ((hash >>> shift) & MASK);
+            final int index = 2 * Integer.bitCount(bitmap & (bit - 1));
+            if ((bitmap & bit) == 0) {
+                added[0] = true;
+                final Object[] newArray = new Object[array.length + 2];
+                System.arraycopy(array, 0, newArray, 0, index);
+                newArray[index] = key;
+                newArray[index + 1] = value;
+                System.arraycopy(array, index, newArray, index + 2, array.length - index);
+                return new Branch(bitmap | bit, newArray);
+            }
+            final Object slotKey = array[index];
+            final Object slotValue = array[index + 1];
+            if (slotKey == null) {
+                final Node child = ((Node) slotValue).put(key, value, hash, shift + BITS, added);
+                return child == slotValue ? this : with(index, null, child);
+            }
+            if (slotKey.equals(key)) {
+                return slotValue == value ? this : with(index, key, value);
+            }
+            added[0] = true;
+            return with(index, null, pair(slotKey, slotValue, key, value, hash, shift + BITS));
+        }
+
+        @Override
+        Node remove(Object key, int hash, int shift) {
+            final int bit = 1 << ((hash >>> shift) & MASK);
+            if ((bitmap & bit) == 0) {
+                return this;
+            }
+            final int index = 2 * Integer.bitCount(bitmap & (bit - 1));
+            final Object slotKey = array[index];
+            if (slotKey == null) {
+                final Node child = ((Node) array[index + 1]).remove(key, hash, shift + BITS);
+                if (child == array[index + 1]) {
+                    return this;
+                }
+                if (child != null) {
+                    return with(index, null, child);
+                }
+            }
+            else if (!slotKey.equals(key)) {
+                return this;
+            }
+            if (bitmap == bit) {
+                return null;
+            }
+            final Object[] newArray = new Object[array.length - 2];
+            System.arraycopy(array, 0, newArray, 0, index);
+            System.arraycopy(array, index + 2, newArray, index, array.length - index - 2);
+            return new Branch(bitmap & ~bit, newArray);
+        }
+
+        @Override
+        void forEach(BiConsumer<Object, Object> action) {
+            for (int i = 0; i < array.length; i += 2) {
+                if (array[i] == null) {
+                    ((Node) array[i + 1]).forEach(action);
+                }
+                else {
+                    action.accept(array[i], array[i + 1]);
+                }
+            }
+        }
+
+        // a copy of this with slot index replaced
+        private Branch with(int index, Object key, Object value) {
+            final Object[] newArray = array.clone();
+            newArray[index] = key;
+            newArray[index + 1] = value;
+            return new Branch(bitmap, newArray);
+        }
+    }
+
+    // keys that all have the same hash code; keysAndValues holds key, value pairs
+    private static final class Collision extends Node {
+        private final int hash;
+        private final Object[] keysAndValues;
+
+        Collision(int hash, Object[] keysAndValues) {
+            this.hash = hash;
+            this.keysAndValues = keysAndValues;
+        }
+
+        @Override
+        Object get(Object key, int hash, int shift) {
+            final int index = indexOf(key);
+            return index < 0 ? null : keysAndValues[index + 1];
+        }
+
+        @Override
+        Node put(Object key, Object value, int hash, int shift, boolean[] added) {
+            if (hash != this.hash) {
+                // a different hash that shares the bits so far; branch above this node
+                final Node branch = new Branch(1 << ((this.hash >>> shift) & MASK), new Object[] { null, this });
+                return branch.put(key, value, hash, shift, added);
+            }
+            final int index = indexOf(key);
+            if (index >= 0) {
+                if (keysAndValues[index + 1] == value) {
+                    return this;
+                }
+                final Object[] newKeysAndValues = keysAndValues.clone();
+                newKeysAndValues[index + 1] = value;
+                return new Collision(hash, newKeysAndValues);
+            }
+            added[0] = true;
+            final Object[] newKeysAndValues = new Object[keysAndValues.length + 2];
+            System.arraycopy(keysAndValues, 0, newKeysAndValues, 0, keysAndValues.length);
+            newKeysAndValues[keysAndValues.length] = key;
+            newKeysAndValues[keysAndValues.length + 1] = value;
+            return new Collision(hash, newKeysAndValues);
+        }
+
+        @Override
+        Node remove(Object key, int hash, int shift) {
+            final int index = indexOf(key);
+            if (index < 0) {
+                return this;
+            }
+            if (keysAndValues.length == 2) {
+                return null;
+            }
+            final Object[] newKeysAndValues = new Object[keysAndValues.length - 2];
+            System.arraycopy(keysAndValues, 0, newKeysAndValues, 0, index);
+            System.arraycopy(keysAndValues, index + 2, newKeysAndValues, index, keysAndValues.length - index - 2);
+            return new Collision(hash, newKeysAndValues);
+        }
+
+        @Override
+        void forEach(BiConsumer<Object, Object> action) {
+            for (int i = 0; i < keysAndValues.length; i += 2) {
+                action.accept(keysAndValues[i], keysAndValues[i + 1]);
+            }
+        }
+
+        private int indexOf(Object key) {
+            for (int i = 0; i < keysAndValues.length; i += 2) {
+                if (keysAndValues[i].equals(key)) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+    }
+
+    // a node holding two different keys, key2 with hash code hash2, below depth shift
+    private static Node pair(Object key1, Object value1, Object key2, Object value2, int hash2, int shift) {
+        final int hash1 = key1.hashCode();
+        if (hash1 == hash2) {
+            return new Collision(hash1, new Object[] { key1, value1, key2, value2 });
+        }
+        final boolean[] added = { false };
+        return Branch.EMPTY.put(key1, value1, hash1, shift, added).put(key2, value2, hash2, shift, added);
+    }
+}
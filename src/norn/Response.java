@@ -0,0 +1,94 @@
+package norn;
+
+import norn.MailingList.EmailList;
+
+/**
+ * Immutable response to a command executed in an Environment: either a printable message, or
+ * the recipients the command's expression evaluated to, which ResponseSerializer writes
+ * without first building the text of the response.
+ */
+public final class Response {
+    /* Abstraction Function:
+     *     AF(message, recipients, type) = the text message if recipients is null, otherwise
+     *     the addresses of recipients separated by ResponseSerializer.SEPARATOR; the response
+     *     to a command of the given type, or to a file command if type is null
+     * Representation Invariant:
+     *     exactly one of message and recipients is null;
+     *     type is QUERY or DEFINITION if recipients is not null, otherwise null
+     * Safety from Rep Exposure:
+     *     fields are private, final and immutable
+     * Thread safety argument:
+     *     immutable
+     */
+
+    private final String message;
+    private final EmailList recipients;
+    private final Metrics.Command type;
+
+    private Response(String message, EmailList recipients, Metrics.Command type) {
+        this.message = message;
+        this.recipients = recipients;
+        this.type = type;
+        checkRep();
+    }
+
+    /**
+     * @param message a printable message
+     * @return the response that is message
+     */
+    static Response message(String message) {
+        return new Response(message, null, null);
+    }
+
+    /**
+     * @param recipients what a command's expression evaluated to
+     * @param type QUERY or DEFINITION, the kind of command
+     * @return the response listing the addresses of recipients
+     */
+    static Response recipients(EmailList recipients, Metrics.Command type) {
+        return new Response(null, recipients, type);
+    }
+
+    private void checkRep() {
+        assert (message == null) != (recipients == null);
+        assert recipients == null ? type == null : type == Metrics.Command.QUERY || type == Metrics.Command.DEFINITION;
+    }
+
+    /**
+     * @return true if this response lists recipients, false if it is a message
+     */
+    public boolean hasRecipients() {
+        return recipients != null;
+    }
+
+    /**
+     * @return the message of this response; requires !hasRecipients()
+     */
+    public String getMessage() {
+        assert message != null;
+        return message;
+    }
+
+    /**
+     * @return the recipients of this response; requires hasRecipients()
+     */
+    public EmailList getRecipients() {
+        assert recipients != null;
+        return recipients;
+    }
+
+    /**
+     * @return the kind of command whose expression was evaluated, or null for a message
+     */
+    Metrics.Command getType() {
+        return type;
+    }
+
+    /**
+     * @return the text of this response, as ResponseSerializer writes it
+     */
+    @Override
+    public String toString() {
+        return recipients == null ? message : ResponseSerializer.toString(recipients);
+    }
+}
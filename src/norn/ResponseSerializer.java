@@ -0,0 +1,185 @@
+package norn;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+import java.util.PrimitiveIterator;
+
+import norn.MailingList.EmailDictionary;
+import norn.MailingList.EmailList;
+
+/**
+ * Writes responses to an output stream as UTF-8 through a buffer that is reused from one
+ * response to the next, so the addresses of a large list go to the stream a buffer at a time
+ * without building the text of the whole response.
+ */
+public final class ResponseSerializer {
+    /* Abstraction Function:
+     *     AF(buffer, count) = a serializer whose written but not yet flushed bytes are
+     *     buffer[0..count)
+     * Representation Invariant:
+     *     0 <= count <= buffer.length, buffer.length >= 1
+     * Safety from Rep Exposure:
+     *     fields are private and never returned; written bytes are copied out of buffer
+     * Thread safety argument:
+     *     not threadsafe; each connection or handler thread uses its own serializer
+     */
+
+    /** separates the addresses in a response listing recipients */
+    public static final String SEPARATOR = ", ";
+
+    /** the default number of bytes buffered before writing to the stream */
+    public static final int DEFAULT_BUFFER_SIZE = 8192;
+
+    private final byte[] buffer;
+    private int count = 0;
+
+    /**
+     * Makes a serializer with a buffer of DEFAULT_BUFFER_SIZE bytes
+     */
+    public ResponseSerializer() {
+        this(DEFAULT_BUFFER_SIZE);
+    }
+
+    /**
+     * @param bufferSize the number of bytes buffered before writing to the stream; requires
+     *      bufferSize >= 1
+     */
+    public ResponseSerializer(int bufferSize) {
+        if (bufferSize < 1) {
+            throw new IllegalArgumentException("invalid buffer size " + bufferSize);
+        }
+        buffer = new byte[bufferSize];
+    }
+
+    /**
+     * Writes a response. Bytes may stay buffered until flush(out), so requires that every
+     * write until then is to the same stream.
+     * @param response the response
+     * @param out the stream to write to
+     * @throws IOException if out couldn't be written to
+     */
+    public void write(Response response, OutputStream out) throws IOException {
+        if (response.hasRecipients()) {
+            write(response.getRecipients(), out);
+        }
+        else {
+            write(response.getMessage(), out);
+        }
+    }
+
+    /**
+     * Writes the addresses of recipients, separated by SEPARATOR. Bytes may stay buffered
+     * until flush(out), so requires that every write until then is to the same stream.
+     * @param recipients the recipients
+     * @param out the stream to write to
+     * @throws IOException if out couldn't be written to
+     */
+    public void write(EmailList recipients, OutputStream out) throws IOException {
+        final PrimitiveIterator.OfInt ids = recipients.idIterator();
+        while (ids.hasNext()) {
+            writeAddress(ids.nextInt(), out);
+            if (ids.hasNext()) {
+                writeAscii(SEPARATOR, out);
+            }
+        }
+    }
+
+    /**
+     * Writes text as UTF-8. Bytes may stay buffered until flush(out), so requires that every
+     * write until then is to the same stream.
+     * @param text the text
+     * @param out the stream to write to
+     * @throws IOException if out couldn't be written to
+     */
+    public void write(String text, OutputStream out) throws IOException {
+        if (isAscii(text)) {
+            writeAscii(text, out);
+            return;
+        }
+        final byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        if (bytes.length > buffer.length - count) {
+            drain(out);
+        }
+        if (bytes.length > buffer.length) {
+            out.write(bytes);
+        }
+        else {
+            System.arraycopy(bytes, 0, buffer, count, bytes.length);
+            count += bytes.length;
+        }
+    }
+
+    /**
+     * Writes the buffered bytes to out, and flushes it
+     * @param out the stream written to since the last flush
+     * @throws IOException if out couldn't be written to
+     */
+    public void flush(OutputStream out) throws IOException {
+        drain(out);
+        out.flush();
+    }
+
+    // writes text, which is ASCII as every address is by the grammar of MailingList.g
+    private void writeAscii(String text, OutputStream out) throws IOException {
+        for (int i = 0; i < text.length(); i++) {
+            if (count == buffer.length) {
+                drain(out);
+            }
+            final char c = text.charAt(i);
+            assert c < 0x80 : "not ASCII: " + text;
+            buffer[count++] = (byte) c;
+        }
+    }
+
+    // writes the address with id id in EmailDictionary, copying its bytes straight to buffer
+    private void writeAddress(int id, OutputStream out) throws IOException {
+        final int length = EmailDictionary.length(id);
+        if (length > buffer.length - count) {
+            drain(out);
+        }
+        if (length > buffer.length) {
+            writeAscii(EmailDictionary.get(id), out);
+        }
+        else {
+            count += EmailDictionary.copy(id, buffer, count);
+        }
+    }
+
+    private static boolean isAscii(String text) {
+        for (int i = 0; i < text.length(); i++) {
+            if (text.charAt(i) >= 0x80) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // writes the buffered bytes to out
+    private void drain(OutputStream out) throws IOException {
+        if (count > 0) {
+            out.write(buffer, 0, count);
+            count = 0;
+        }
+    }
+
+    /**
+     * @param recipients the recipients
+     * @return the addresses of recipients separated by SEPARATOR, the text write(recipients, out) writes
+     */
+    public static String toString(EmailList recipients) {
+        final int size = recipients.size();
+        if (size == 0) {
+            return "";
+        }
+        final Iterator<String> addresses = recipients.getEmails().iterator();
+        final String first = addresses.next();
+        final StringBuilder builder = new StringBuilder(size * (first.length() + SEPARATOR.length()));
+        builder.append(first);
+        while (addresses.hasNext()) {
+            builder.append(SEPARATOR).append(addresses.next());
+        }
+        return builder.toString();
+    }
+}
@@ -0,0 +1,430 @@
+package norn;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import lib6005.parser.UnableToParseException;
+
+/**
+ * A console server that handles every connection from one selector thread using non-blocking
+ * sockets, and executes commands on a small fixed pool of worker threads, so an idle
+ * connection costs a few buffers instead of a thread.
+ *
+ * <br> Each connection's commands are executed one at a time, in the order they were received.
+ * A connection that has many commands or responses waiting is not read from until they drain.
+ */
+public class SelectorConsoleServer implements ConsoleTransport {
+
+    /**
+     * AF
+     *  AF(serverChannel, selector, workers, environment, metrics) represents a console server
+     *  accepting connections on serverChannel, whose commands are executed in environment by
+     *  workers and timed in metrics
+     *
+     * RI
+     *  every key of selector other than serverChannel's has its channel's Connection attached
+     *
+     * Rep Exposure
+     *  all instance variables private, final, and not returned
+     *
+     * Thread Safety
+     *  selector, its channels and readBuffer are only used by the thread running start(); a
+     *  Connection's queues are guarded by its lock, and workers hand connections back to the
+     *  selector thread through updates. environment and metrics are threadsafe datatypes.
+     */
+
+    // the console protocol is UTF-8, as ResponseSerializer writes it
+    private static final Charset CHARSET = StandardCharsets.UTF_8;
+    private static final int READ_BUFFER_SIZE = 8192;
+    // a connection is not read from while this many commands and responses are waiting
+    private static final int MAX_BACKLOG = 64;
+
+    private final Environment environment;
+    private final Metrics metrics;
+    private final ServerSocketChannel serverChannel;
+    private final Selector selector;
+    private final ExecutorService workers;
+    private final Queue<Connection> updates = new ConcurrentLinkedQueue<>();
+    private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+    private final ThreadLocal<ResponseSerializer> serializers = ThreadLocal.withInitial(ResponseSerializer::new);
+    private final AtomicBoolean started = new AtomicBoolean(false);
+    private volatile boolean closed = false;
+
+    /**
+     * Creates a console server listening on a port
+     * @param port the port number on which to listen, between 0 and 65535
+     * @param environment the environment in which to execute commands
+     * @param threads the number of worker threads executing commands; requires threads >= 1
+     * @throws IOException if the port cannot be listened on
+     */
+    public SelectorConsoleServer(int port, Environment environment, int threads) throws IOException {
+        this(port, environment, threads, new Metrics());
+    }
+
+    /**
+     * Creates a console server listening on a port
+     * @param port the port number on which to listen, between 0 and 65535
+     * @param environment the environment in which to execute commands
+     * @param threads the number of worker threads executing commands; requires threads >= 1
+     * @param metrics where to record open connections and the time taken by commands
+     * @throws IOException if the port cannot be listened on
+     */
+    public SelectorConsoleServer(int port, Environment environment, int threads, Metrics metrics) throws IOException {
+        if (threads < 1) {
+            throw new IllegalArgumentException("threads must be positive: " + threads);
+        }
+        this.environment = environment;
+        this.metrics = metrics;
+        this.selector = Selector.open();
+        this.serverChannel = ServerSocketChannel.open();
+        try {
+            serverChannel.bind(new InetSocketAddress(port));
+            serverChannel.configureBlocking(false);
+            serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+        } catch (IOException e) {
+            serverChannel.close();
+            selector.close();
+            throw e;
+        }
+        this.workers = Executors.newFixedThreadPool(threads, runnable -> {
+            final Thread worker = new Thread(runnable, "norn-console-worker");
+            worker.setDaemon(true);
+            return worker;
+        });
+    }
+
+    /**
+     * Run the server, listening for and handling client connections.
+     * Never returns, unless an exception is thrown or the server is closed.
+     *
+     * @throws IOException if an error occurs waiting for a connection
+     *                     (IOExceptions from individual clients do *not* terminate start())
+     * @throws IllegalStateException if the server was already started or closed
+     */
+    @Override
+    public void start() throws IOException {
+        if (!started.compareAndSet(false, true)) {
+            throw new IllegalStateException("console server already started or closed");
+        }
+        try {
+            while (!closed) {
+                selector.select();
+                for (Connection connection = updates.poll(); connection != null; connection = updates.poll()) {
+                    connection.update();
+                }
+                final Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    final SelectionKey key = keys.next();
+                    keys.remove();
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    if (key.isAcceptable()) {
+                        accept();
+                        continue;
+                    }
+                    final Connection connection = (Connection) key.attachment();
+                    try {
+                        if (key.isReadable()) {
+                            connection.read();
+                        }
+                        if (key.isValid() && key.isWritable()) {
+                            connection.write();
+                        }
+                    } catch (IOException ioe) {
+                        System.err.println("Socket client disconnected");
+                        connection.close();
+                    }
+                }
+            }
+        } finally {
+            shutDown();
+        }
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        try {
+            serverChannel.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        if (started.compareAndSet(false, true)) {
+            shutDown(); // never started, so no selector thread will
+        }
+        else {
+            selector.wakeup();
+        }
+    }
+
+    // closes the selector and every connection, and stops the workers
+    private void shutDown() {
+        workers.shutdownNow();
+        for (SelectionKey key : selector.keys()) {
+            if (key.attachment() instanceof Connection) {
+                ((Connection) key.attachment()).close();
+            }
+            else {
+                closeQuietly(key.channel());
+            }
+        }
+        closeQuietly(selector);
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        try {
+            closeable.close();
+        } catch (IOException e) {
+            // already failed; nothing more to release
+        }
+    }
+
+    private void accept() throws IOException {
+        final SocketChannel channel = serverChannel.accept();
+        if (channel == null) {
+            return;
+        }
+        channel.configureBlocking(false);
+        final Connection connection = new Connection(channel);
+        metrics.consoleConnectionOpened();
+        connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+        connection.send(NornServer.WELCOME_MESSAGE);
+        connection.update();
+    }
+
+    // collects the bytes of a response as buffers to queue for sending, since a connection's
+    // socket can't take them until the selector finds it writable
+    private static class Chunks extends OutputStream {
+        private final List<ByteBuffer> buffers = new ArrayList<>();
+
+        @Override
+        public void write(int b) {
+            buffers.add(ByteBuffer.wrap(new byte[] { (byte) b }));
+        }
+
+        @Override
+        public void write(byte[] bytes, int offset, int length) {
+            buffers.add(ByteBuffer.wrap(Arrays.copyOfRange(bytes, offset, offset + length)));
+        }
+    }
+
+    /**
+     * A client connection, with the command line being received and the commands and
+     * responses waiting to be executed and sent.
+     */
+    private class Connection {
+        private final SocketChannel channel;
+        private SelectionKey key;
+
+        // used only by the selector thread
+        private byte[] line = new byte[128];
+        private int lineLength = 0;
+        private boolean afterCarriageReturn = false;
+        private boolean inputClosed = false;
+
+        // guarded by this
+        private final Queue<String> commands = new ArrayDeque<>();
+        private long[] receivedTimes = new long[16]; // when each of commands was received, from firstReceived
+        private int firstReceived = 0;
+        private final Queue<ByteBuffer> responses = new ArrayDeque<>();
+        private boolean executing = false; // a worker has been given this connection's next command
+        private boolean rejected = false;  // no more commands will be executed
+
+        Connection(SocketChannel channel) {
+            this.channel = channel;
+        }
+
+        // selector thread: reads what has arrived, and queues each complete line as a command
+        void read() throws IOException {
+            readBuffer.clear();
+            if (channel.read(readBuffer) < 0) {
+                inputClosed = true;
+                if (lineLength > 0) {
+                    received(); // like readLine, an unterminated last line is still a line
+                }
+                update();
+                return;
+            }
+            readBuffer.flip();
+            while (readBuffer.hasRemaining()) {
+                final byte b = readBuffer.get();
+                if (b == '\n' && afterCarriageReturn) {
+                    afterCarriageReturn = false; // second half of "\r\n"
+                    continue;
+                }
+                afterCarriageReturn = b == '\r';
+                if (b == '\n' || b == '\r') {
+                    received();
+                }
+                else {
+                    if (lineLength == line.length) {
+                        line = Arrays.copyOf(line, 2 * line.length);
+                    }
+                    line[lineLength++] = b;
+                }
+            }
+            update();
+        }
+
+        // selector thread: queues the line received as a command
+        private void received() {
+            final String command = new String(line, 0, lineLength, CHARSET);
+            lineLength = 0;
+            synchronized (this) {
+                if (rejected) {
+                    return;
+                }
+                if (commands.size() == receivedTimes.length) {
+                    final long[] times = new long[2 * receivedTimes.length];
+                    for (int i = 0; i < commands.size(); i++) {
+                        times[i] = receivedTimes[(firstReceived + i) % receivedTimes.length];
+                    }
+                    receivedTimes = times;
+                    firstReceived = 0;
+                }
+                receivedTimes[(firstReceived + commands.size()) % receivedTimes.length] = System.nanoTime();
+                commands.add(command);
+                if (!executing) {
+                    executing = true;
+                    submit();
+                }
+            }
+        }
+
+        // requires the lock on this, and executing
+        private void submit() {
+            try {
+                workers.execute(this::executeNext);
+            } catch (RejectedExecutionException e) {
+                rejected = true; // shutting down
+                executing = false;
+                commands.clear();
+            }
+        }
+
+        // worker thread: executes the oldest command and queues its response
+        private void executeNext() {
+            final String command;
+            final long received;
+            synchronized (this) {
+                command = commands.poll();
+                if (command == null || rejected) {
+                    executing = false; // closed since this was submitted, which dropped the commands
+                    return;
+                }
+                received = receivedTimes[firstReceived];
+                firstReceived = (firstReceived + 1) % receivedTimes.length;
+            }
+            Response response;
+            boolean reject = false;
+            try {
+                response = environment.respond(command, Metrics.Transport.CONSOLE);
+            } catch (UnableToParseException | IllegalArgumentException e) {
+                response = Response.message(NornServer.REJECT_RESPONSE);
+                reject = true;
+            } catch (RuntimeException | StackOverflowError e) { // dropping the connection, not leaving it executing
+                e.printStackTrace();
+                response = null;
+                reject = true;
+            }
+            final Chunks chunks = new Chunks();
+            if (response != null) {
+                final long serializing = System.nanoTime();
+                final ResponseSerializer serializer = serializers.get();
+                try {
+                    serializer.write(response, chunks);
+                    serializer.write(System.lineSeparator(), chunks);
+                    serializer.flush(chunks);
+                } catch (IOException e) {
+                    throw new AssertionError("Chunks doesn't throw", e);
+                }
+                environment.recordSerialize(response, Metrics.Transport.CONSOLE, System.nanoTime() - serializing);
+            }
+            synchronized (this) {
+                responses.addAll(chunks.buffers);
+                if (reject) {
+                    rejected = true;
+                    commands.clear();
+                }
+                else {
+                    metrics.record(Metrics.Stage.TOTAL, Metrics.Transport.CONSOLE, Metrics.Command.of(command),
+                            System.nanoTime() - received);
+                }
+                executing = !commands.isEmpty();
+                if (executing) {
+                    submit();
+                }
+            }
+            updates.add(this);
+            selector.wakeup();
+        }
+
+        // queues a line to be sent
+        synchronized void send(String text) {
+            responses.add(ByteBuffer.wrap((text + System.lineSeparator()).getBytes(CHARSET)));
+        }
+
+        // selector thread: sends as much of the queued responses as the socket will take
+        void write() throws IOException {
+            synchronized (this) {
+                while (!responses.isEmpty()) {
+                    final ByteBuffer response = responses.peek();
+                    channel.write(response);
+                    if (response.hasRemaining()) {
+                        break;
+                    }
+                    responses.remove();
+                }
+            }
+            update();
+        }
+
+        // selector thread: closes this connection once it has nothing left to execute or send,
+        // otherwise sets which events to wait for on it
+        synchronized void update() {
+            if (!key.isValid()) {
+                return;
+            }
+            final boolean finished = rejected || (inputClosed && !executing);
+            if (finished && responses.isEmpty()) {
+                close();
+                return;
+            }
+            final boolean readable = !inputClosed && !rejected && commands.size() + responses.size() < MAX_BACKLOG;
+            key.interestOps((readable ? SelectionKey.OP_READ : 0) | (responses.isEmpty() ? 0 : SelectionKey.OP_WRITE));
+        }
+
+        // selector thread: drops the connection, and any commands not yet executed
+        synchronized void close() {
+            if (!channel.isOpen()) {
+                return;
+            }
+            metrics.consoleConnectionClosed();
+            rejected = true;
+            commands.clear();
+            key.cancel();
+            closeQuietly(channel);
+        }
+    }
+}
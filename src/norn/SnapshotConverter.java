@@ -0,0 +1,46 @@
+package norn;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+import lib6005.parser.UnableToParseException;
+import norn.MailingList.BinarySnapshot;
+
+/**
+ * Converts a saved environment between the text format and the BinarySnapshot format.
+ *
+ * <br> Usage:
+ * <pre>
+ *      norn.SnapshotConverter INPUT OUTPUT
+ * </pre>
+ * INPUT is read in whichever format it is in, and OUTPUT is written in the other one.
+ * Unlike !save and !load, the paths are not relative to the test folder.
+ */
+public class SnapshotConverter {
+
+    /**
+     * Converts INPUT to OUTPUT, as described above
+     * @param args INPUT and OUTPUT file paths
+     */
+    public static void main(String[] args) {
+        if (args.length != 2) {
+            System.err.println("usage: norn.SnapshotConverter INPUT OUTPUT");
+            return;
+        }
+        final Path input = Paths.get(args[0]);
+        final Path output = Paths.get(args[1]);
+        try {
+            final boolean toBinary = !BinarySnapshot.isSnapshot(input);
+            final Environment environment = new Environment();
+            environment.readFile(input);
+            environment.writeFile(output, toBinary);
+            System.out.println("wrote " + environment.topologicalOrder().size() + " lists to "
+                    + output + (toBinary ? " as a binary snapshot" : " as text"));
+        } catch (IOException e) {
+            System.err.println(Environment.FILE_NOT_FOUND + ": " + e.getMessage());
+        } catch (UnableToParseException e) {
+            System.err.println(Environment.FILE_CANNOT_BE_PARSED + ": " + e.getMessage());
+        }
+    }
+}
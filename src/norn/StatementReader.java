@@ -0,0 +1,119 @@
+package norn;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Splits the text format of environment files into statements without reading the whole file:
+ * a statement ends at a ';' outside parentheses, or at the end of a line. A line that ends
+ * inside parentheses continues the statement after a ';', so each statement parses exactly
+ * as it would in the file read as a whole with a ';' ending each line.
+ */
+class StatementReader implements Closeable {
+    /* Abstraction Function:
+     *     AF(in, depth, afterCarriageReturn) = the statements of the rest of in, of which the
+     *     last one read ended depth parentheses deep
+     * Representation Invariant:
+     *     depth >= 0
+     * Safety from Rep Exposure:
+     *     fields are private and never returned
+     * Thread safety argument:
+     *     not threadsafe; confined to the thread reading the file
+     */
+
+    private static final int BUFFER_CHARS = 8192;
+
+    private final Reader in;
+    private final char[] buffer = new char[BUFFER_CHARS];
+    private int position = 0;
+    private int limit = 0;
+    private int depth = 0;
+    private boolean afterCarriageReturn = false;
+
+    /**
+     * @param in the text to split, which is closed by close()
+     */
+    StatementReader(Reader in) {
+        this.in = in;
+    }
+
+    /**
+     * @return the next statement that isn't blank, without its ';', or null at the end of the text
+     * @throws IOException if the text couldn't be read
+     */
+    String next() throws IOException {
+        final StringBuilder statement = new StringBuilder();
+        while (true) {
+            if (position == limit) {
+                limit = in.read(buffer);
+                position = 0;
+                if (limit < 0) {
+                    limit = 0;
+                    return isBlank(statement) ? null : statement.toString();
+                }
+            }
+            final char c = buffer[position++];
+            final boolean lineFeedOfCrLf = afterCarriageReturn && c == '\n';
+            afterCarriageReturn = c == '\r';
+            if (lineFeedOfCrLf) {
+                continue;
+            }
+            if (c == '(') {
+                depth++;
+            }
+            else if (c == ')') {
+                depth = Math.max(0, depth - 1);
+            }
+            else if (c == ';' || c == '\n' || c == '\r') {
+                if (depth == 0) {
+                    if (!isBlank(statement)) {
+                        return statement.toString();
+                    }
+                    statement.setLength(0);
+                    continue;
+                }
+                statement.append(';');
+                continue;
+            }
+            statement.append(c);
+        }
+    }
+
+    /**
+     * @param maxChars the number of characters after which no further statement is added,
+     *      unless the chunk would be empty
+     * @return the next statements, of about maxChars characters in total, or null at the end
+     *      of the text
+     * @throws IOException if the text couldn't be read
+     */
+    List<String> nextChunk(int maxChars) throws IOException {
+        final List<String> chunk = new ArrayList<>();
+        int chars = 0;
+        while (chars < maxChars) {
+            final String statement = next();
+            if (statement == null) {
+                break;
+            }
+            chunk.add(statement);
+            chars += statement.length();
+        }
+        return chunk.isEmpty() ? null : chunk;
+    }
+
+    private static boolean isBlank(CharSequence text) {
+        for (int i = 0; i < text.length(); i++) {
+            if (!Character.isWhitespace(text.charAt(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+}
@@ -0,0 +1,546 @@
+package norn;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.CRC32;
+
+import lib6005.parser.UnableToParseException;
+import norn.MailingList.MailingList;
+import norn.MailingList.MailingParser;
+
+/**
+ * threadsafe ADT for an append-only log of the changes to an Environment's definitions, from
+ * which the environment is recovered after a crash.
+ *
+ * <br> The log is a directory of segments, "wal-N.log", and checkpoints, "checkpoint-N.snapshot":
+ * checkpoint N is a BinarySnapshot of the environment after every change logged in segments
+ * before N, so the environment is recovered by loading the newest checkpoint and replaying the
+ * segments from its number on. Each record of a segment is its length, the CRC-32 of its bytes,
+ * then a type byte and, for an assignment, "name=expression" in UTF-8; replay stops at the first
+ * incomplete or corrupt record at the end of the last segment, which a crash can leave.
+ *
+ * <br> Changes are appended to the log by the thread changing the environment, while it holds
+ * the environment's write lock, and made durable by commit() after it releases it: the first
+ * committing thread writes and syncs everything appended so far, and threads that commit while
+ * it syncs wait for it and then share the next sync (group commit).
+ *
+ * <br> checkpoint() starts a new segment N, at the same point as it takes a snapshot of the
+ * environment, then writes the snapshot as checkpoint N and deletes the files it replaces,
+ * while the environment keeps changing.
+ */
+public class WriteAheadLog implements Closeable {
+    /* Abstraction Function:
+     *     AF(directory, segment, buffer, appended, written, synced) = the log of changes in
+     *     directory's checkpoints and segments, up to segment number segment, followed by
+     *     buffer; of the appended bytes of records appended since the log was opened, the first
+     *     written have been written to segment files and the first synced are on disk
+     * Representation Invariant:
+     *     synced <= written <= appended, and appended - written == buffer.size() unless
+     *     flushing, when a thread is writing the bytes between them; failure != null once a
+     *     write failed or the log was closed, and no records are appended after
+     * Safety from Rep Exposure:
+     *     fields are private and never returned
+     * Thread safety argument:
+     *     all fields but the final ones and the atomic counters are guarded by this; a flushing
+     *     thread writes to channel without holding this, but flushing keeps other threads from
+     *     writing to it meanwhile. Segments are only started while holding the environment's
+     *     write lock, and checkpoints are written one at a time, holding checkpointLock
+     */
+
+    /** When committed changes reach the disk */
+    public enum Sync {
+        /** commit() returns once the change is on disk; concurrent commits share one sync */
+        COMMIT,
+        /** commit() returns once the change is written to the operating system, which syncs
+         *  the log to disk periodically, so a machine crash loses at most one period of changes */
+        PERIODIC,
+        /** the log is never synced, so only a crash of the server process leaves it complete */
+        NONE
+    }
+
+    private static final byte ASSIGN = 1;
+    private static final byte CLEAR = 2;
+    private static final int HEADER_BYTES = 2 * Integer.BYTES; // length, CRC
+    private static final Pattern SEGMENT = Pattern.compile("wal-(\\d+)\\.log");
+    private static final Pattern CHECKPOINT = Pattern.compile("checkpoint-(\\d+)\\.snapshot");
+
+    private final Path directory;
+    private final Environment environment;
+    private final Sync sync;
+    private final ScheduledExecutorService syncer; // null unless PERIODIC
+    private final AtomicLong records = new AtomicLong();
+    private final AtomicLong syncs = new AtomicLong();
+    private final Object checkpointLock = new Object();
+
+    private FileChannel channel;
+    private long segment;
+    private final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+    private long appended = 0;
+    private long written = 0;
+    private long synced = 0;
+    private boolean flushing = false;
+    private IOException failure = null;
+
+    private WriteAheadLog(Path directory, Environment environment, Sync sync, long periodMillis, long segment)
+            throws IOException {
+        this.directory = directory;
+        this.environment = environment;
+        this.sync = sync;
+        this.segment = segment;
+        this.channel = FileChannel.open(segmentFile(segment),
+                StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+        Environment.syncDirectory(directory);
+        if (sync == Sync.PERIODIC) {
+            syncer = Executors.newSingleThreadScheduledExecutor(task -> {
+                final Thread thread = new Thread(task, "norn-wal-sync");
+                thread.setDaemon(true);
+                return thread;
+            });
+            syncer.scheduleWithFixedDelay(this::syncQuietly, periodMillis, periodMillis, TimeUnit.MILLISECONDS);
+        }
+        else {
+            syncer = null;
+        }
+    }
+
+    /**
+     * Recovers environment from the log in directory, writes a checkpoint of the result, and
+     * logs environment's changes from then on. Lists already defined in environment stay
+     * defined unless the log redefines or clears them.
+     * @param directory the log directory, created if it doesn't exist
+     * @param environment the environment to recover and log; requires that it has no log
+     * @param sync when committed changes reach the disk
+     * @param periodMillis the time between syncs if sync is PERIODIC; requires periodMillis > 0
+     *      in that case
+     * @return the log, attached to environment
+     * @throws IOException if the log couldn't be read or written, or is corrupt before its end
+     * @throws UnableToParseException if a logged change is cyclical or can't be parsed
+     */
+    public static WriteAheadLog open(Path directory, Environment environment, Sync sync, long periodMillis)
+            throws IOException, UnableToParseException {
+        if (sync == Sync.PERIODIC && periodMillis <= 0) {
+            throw new IllegalArgumentException("sync period must be positive: " + periodMillis);
+        }
+        Files.createDirectories(directory);
+        final List<Long> checkpoints = numbered(directory, CHECKPOINT);
+        final List<Long> segments = numbered(directory, SEGMENT);
+        long first = 0;
+        if (!checkpoints.isEmpty()) {
+            first = checkpoints.get(checkpoints.size() - 1);
+            environment.readFile(checkpointFile(directory, first));
+        }
+        for (int i = 0; i < segments.size(); i++) {
+            if (segments.get(i) >= first) {
+                replay(segmentFile(directory, segments.get(i)), environment, i == segments.size() - 1);
+            }
+        }
+
+        long next = 0;
+        for (long number : checkpoints) {
+            next = Math.max(next, number + 1);
+        }
+        for (long number : segments) {
+            next = Math.max(next, number + 1);
+        }
+        writeCheckpoint(directory, environment, next);
+        final WriteAheadLog log = new WriteAheadLog(directory, environment, sync, periodMillis, next);
+        log.deleteBefore(next);
+        environment.setWriteAheadLog(log);
+        return log;
+    }
+
+    //
+    // RECOVERY
+    //
+
+    // the numbers of the files in directory whose names match pattern, in increasing order
+    private static List<Long> numbered(Path directory, Pattern pattern) throws IOException {
+        final List<Long> numbers = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+            for (Path file : files) {
+                final Matcher matcher = pattern.matcher(file.getFileName().toString());
+                if (matcher.matches()) {
+                    numbers.add(Long.parseLong(matcher.group(1)));
+                }
+            }
+        }
+        Collections.sort(numbers);
+        return numbers;
+    }
+
+    /**
+     * Applies the records of a segment to an environment
+     * @param file the segment
+     * @param environment the environment
+     * @param last true if file is the last segment, whose incomplete or corrupt tail is dropped
+     * @throws IOException if file couldn't be read, or is corrupt and not last
+     * @throws UnableToParseException if a record is cyclical or can't be parsed
+     */
+    private static void replay(Path file, Environment environment, boolean last) throws IOException, UnableToParseException {
+        long valid = 0;
+        try (DataInputStream in = new DataInputStream(Files.newInputStream(file))) {
+            while (true) {
+                final byte[] record;
+                try {
+                    final int length = in.readInt();
+                    final int checksum = in.readInt();
+                    if (length < 1 || length > Files.size(file)) {
+                        break;
+                    }
+                    record = new byte[length];
+                    in.readFully(record);
+                    if (checksum != checksum(record)) {
+                        break;
+                    }
+                } catch (EOFException e) {
+                    break;
+                }
+                apply(record, environment);
+                valid += HEADER_BYTES + record.length;
+            }
+        }
+        if (valid < Files.size(file)) {
+            if (!last) {
+                throw new IOException("corrupt write-ahead log segment " + file + " at byte " + valid);
+            }
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+                channel.truncate(valid);
+                channel.force(true);
+            }
+        }
+    }
+
+    private static void apply(byte[] record, Environment environment) throws UnableToParseException {
+        if (record[0] == CLEAR) {
+            environment.clear();
+            return;
+        }
+        final String assignment = new String(record, 1, record.length - 1, StandardCharsets.UTF_8);
+        final int equals = assignment.indexOf('=');
+        try {
+            environment.assign(assignment.substring(0, equals), MailingParser.parse(assignment.substring(equals + 1)));
+        } catch (IllegalArgumentException | IndexOutOfBoundsException e) {
+            throw new UnableToParseException("logged assignment can't be parsed: " + assignment);
+        }
+    }
+
+    private static int checksum(byte[] record) {
+        final CRC32 crc = new CRC32();
+        crc.update(record, 0, record.length);
+        return (int) crc.getValue();
+    }
+
+    //
+    // CHECKPOINTS
+    //
+
+    /**
+     * Writes a checkpoint of the environment, and deletes the segments and checkpoints it
+     * replaces. The environment keeps changing meanwhile, except while the current segment
+     * is synced to disk as the next one starts.
+     * @throws IOException if the log failed or is closed, or the checkpoint couldn't be written
+     */
+    public void checkpoint() throws IOException {
+        synchronized (checkpointLock) {
+            final Environment snapshot = environment.snapshotAndRotateLog();
+            final long number;
+            synchronized (this) {
+                number = segment;
+            }
+            writeCheckpoint(directory, snapshot, number);
+            deleteBefore(number);
+        }
+    }
+
+    /**
+     * Writes a checkpoint atomically
+     * @param directory the log directory
+     * @param environment the environment to write, which doesn't change meanwhile
+     * @param number the number of the checkpoint, the first segment it doesn't cover
+     * @throws IOException if the checkpoint couldn't be written
+     */
+    private static void writeCheckpoint(Path directory, Environment environment, long number) throws IOException {
+        environment.writeFileAtomically(checkpointFile(directory, number), true);
+    }
+
+    /**
+     * Syncs the current segment to disk and starts the next; called by the environment while
+     * holding its write lock, so that nothing is appended meanwhile
+     * @throws IOException if the log failed or is closed, or the segment couldn't be written
+     */
+    synchronized void rotate() throws IOException {
+        while (flushing) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("interrupted before starting a new segment");
+            }
+        }
+        if (failure != null) {
+            throw new IOException("write-ahead log unavailable", failure);
+        }
+        try {
+            final ByteBuffer remaining = ByteBuffer.wrap(buffer.toByteArray());
+            while (remaining.hasRemaining()) {
+                channel.write(remaining);
+            }
+            channel.force(false);
+            syncs.incrementAndGet();
+            buffer.reset();
+            written = appended;
+            synced = appended;
+            channel.close();
+            channel = FileChannel.open(segmentFile(segment + 1), StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+            segment++;
+        } catch (IOException e) {
+            failure = e;
+            throw e;
+        } finally {
+            notifyAll();
+        }
+        Environment.syncDirectory(directory);
+    }
+
+    // deletes the segments and checkpoints numbered below number, and any temporary files left by a crash
+    private void deleteBefore(long number) throws IOException {
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+            for (Path file : files) {
+                final String name = file.getFileName().toString();
+                final Matcher segment = SEGMENT.matcher(name);
+                final Matcher checkpoint = CHECKPOINT.matcher(name);
+                if ((segment.matches() && Long.parseLong(segment.group(1)) < number)
+                        || (checkpoint.matches() && Long.parseLong(checkpoint.group(1)) < number)
+                        || name.endsWith(Environment.TEMPORARY_SUFFIX)) {
+                    Files.deleteIfExists(file);
+                }
+            }
+        }
+    }
+
+    private static Path checkpointFile(Path directory, long number) {
+        return directory.resolve("checkpoint-" + number + ".snapshot");
+    }
+
+    private static Path segmentFile(Path directory, long number) {
+        return directory.resolve("wal-" + number + ".log");
+    }
+
+    private Path segmentFile(long number) {
+        return segmentFile(directory, number);
+    }
+
+    //
+    // APPENDING
+    //
+
+    /**
+     * Appends the assignment of a list; called by the environment while holding its write lock
+     * @param name the name of the list
+     * @param value its value, which doesn't refer to name
+     * @throws UncheckedIOException if the log failed or is closed, in which case nothing is appended
+     */
+    void appendAssign(String name, MailingList value) {
+        append(ASSIGN, name + "=" + value);
+    }
+
+    /**
+     * Appends the clearing of all lists; called by the environment while holding its write lock
+     * @throws UncheckedIOException if the log failed or is closed, in which case nothing is appended
+     */
+    void appendClear() {
+        append(CLEAR, "");
+    }
+
+    private synchronized void append(byte type, String text) {
+        if (failure != null) {
+            throw new UncheckedIOException("write-ahead log unavailable", failure);
+        }
+        final byte[] payload = text.getBytes(StandardCharsets.UTF_8);
+        final byte[] record = new byte[1 + payload.length];
+        record[0] = type;
+        System.arraycopy(payload, 0, record, 1, payload.length);
+        final DataOutputStream out = new DataOutputStream(buffer);
+        try {
+            out.writeInt(record.length);
+            out.writeInt(checksum(record));
+            out.write(record);
+        } catch (IOException e) {
+            throw new AssertionError("ByteArrayOutputStream doesn't throw", e);
+        }
+        appended += HEADER_BYTES + record.length;
+        records.incrementAndGet();
+    }
+
+    //
+    // COMMITTING
+    //
+
+    /**
+     * Waits until every change appended so far is as durable as this log's Sync promises
+     * @throws UncheckedIOException if the log failed or is closed
+     */
+    public void commit() {
+        final long target;
+        synchronized (this) {
+            target = appended;
+        }
+        try {
+            flush(target, sync == Sync.COMMIT);
+        } catch (IOException e) {
+            throw new UncheckedIOException("write-ahead log failed", e);
+        }
+    }
+
+    /**
+     * Writes the first target bytes of the segment to its file, and syncs them if force, unless
+     * that is already done. If another thread is writing, waits for it, then writes whatever
+     * has been appended since in one go.
+     */
+    private void flush(long target, boolean force) throws IOException {
+        boolean interrupted = false;
+        try {
+            while (true) {
+                final byte[] bytes;
+                final long end;
+                final FileChannel out;
+                synchronized (this) {
+                    while (flushing && !done(target, force)) {
+                        try {
+                            wait();
+                        } catch (InterruptedException e) {
+                            interrupted = true; // the change is logged; wait until it is durable
+                        }
+                    }
+                    if (done(target, force)) {
+                        return;
+                    }
+                    if (failure != null) {
+                        throw failure;
+                    }
+                    flushing = true;
+                    bytes = buffer.toByteArray();
+                    buffer.reset();
+                    end = appended;
+                    out = channel;
+                }
+                boolean flushed = false;
+                try {
+                    final ByteBuffer remaining = ByteBuffer.wrap(bytes);
+                    while (remaining.hasRemaining()) {
+                        out.write(remaining);
+                    }
+                    if (force) {
+                        out.force(false);
+                        syncs.incrementAndGet();
+                    }
+                    flushed = true;
+                } finally {
+                    synchronized (this) {
+                        flushing = false;
+                        if (flushed) {
+                            written = end;
+                            if (force) {
+                                synced = end;
+                            }
+                        }
+                        else if (failure == null) {
+                            failure = new IOException("write to " + segmentFile(segment) + " failed");
+                        }
+                        notifyAll();
+                    }
+                }
+            }
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    // requires holding this
+    private boolean done(long target, boolean force) {
+        return written >= target && (!force || synced >= target);
+    }
+
+    private void syncQuietly() {
+        final long target;
+        synchronized (this) {
+            target = appended;
+        }
+        try {
+            flush(target, true);
+        } catch (IOException e) {
+            // recorded in failure, and thrown to the next commit
+        }
+    }
+
+    /**
+     * @return the number of records appended to this log since it was opened
+     */
+    public long getRecordCount() {
+        return records.get();
+    }
+
+    /**
+     * @return the number of times this log has synced its segment to disk since it was opened
+     */
+    public long getSyncCount() {
+        return syncs.get();
+    }
+
+    /**
+     * Syncs every change appended so far to disk and closes the log. Changes to the
+     * environment fail from then on.
+     * @throws IOException if the log failed
+     */
+    @Override
+    public void close() throws IOException {
+        if (syncer != null) {
+            syncer.shutdownNow();
+        }
+        final long target;
+        synchronized (this) {
+            target = appended;
+        }
+        try {
+            flush(target, true);
+        } finally {
+            synchronized (this) {
+                while (flushing) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        break;
+                    }
+                }
+                if (failure == null) {
+                    failure = new IOException("write-ahead log closed");
+                }
+                channel.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,385 @@
+package norn.bench;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Queue;
+import java.util.Random;
+
+/**
+ * Generates synthetic Norn environments and command streams for scale testing, deterministically
+ * from a seed: the same seed and settings always generate the same output.
+ *
+ * <br> The lists of an environment are arranged in depth layers. Lists in the first layer are
+ * unions of addresses; each list in a later layer combines fanOut lists from earlier layers, at
+ * least one of them from the layer just before, so the longest dependency chain has depth lists.
+ * Each address is, with probability overlap, one already used by another list, and otherwise a
+ * new address at a domain drawn from a Zipf distribution over domains (uniform if skew is 0).
+ * Lists are combined by union, intersection and difference in the proportions of the operator mix.
+ *
+ * <br> The environment is written in the text format of !save, one definition per line, so it
+ * can be loaded with "!load FILE" or "NornServer --file FILE" (from the test/ folder, as for
+ * all !load files). A command stream is one command per line: queries combining fanOut random
+ * lists, and, in the proportion given, redefinitions of a first-layer list with new addresses.
+ */
+public class EnvironmentGenerator {
+
+    private final long seed;
+    private int lists = 1000;
+    private int addresses = 100;
+    private int domains = 50;
+    private double skew = 1.0;
+    private double overlap = 0.2;
+    private int depth = 4;
+    private int fanOut = 3;
+    private int[] operatorWeights = { 6, 2, 2 }; // union, intersection, difference
+    private double definitionRatio = 0.1;
+
+    private static final String[] OPERATORS = { ",", "*", "!" };
+
+    /**
+     * Creates a generator with default settings: 1000 lists of 100 addresses, 50 domains with
+     * skew 1, overlap 0.2, depth 4, fan-out 3, operator mix 6:2:2, and a tenth of commands
+     * redefining lists
+     * @param seed the seed of all random choices
+     */
+    public EnvironmentGenerator(long seed) {
+        this.seed = seed;
+    }
+
+    /**
+     * @param lists the number of named lists; requires lists >= depth
+     * @return this
+     */
+    public EnvironmentGenerator lists(int lists) {
+        this.lists = requireAtLeast(lists, 1, "lists");
+        return this;
+    }
+
+    /**
+     * @param addresses the number of addresses in each first-layer list; requires addresses >= 1
+     * @return this
+     */
+    public EnvironmentGenerator addresses(int addresses) {
+        this.addresses = requireAtLeast(addresses, 1, "addresses");
+        return this;
+    }
+
+    /**
+     * @param domains the number of domains; requires domains >= 1
+     * @param skew the exponent of the Zipf distribution of addresses over domains, 0 for uniform;
+     *      requires skew >= 0
+     * @return this
+     */
+    public EnvironmentGenerator domains(int domains, double skew) {
+        if (skew < 0) {
+            throw new IllegalArgumentException("skew must not be negative: " + skew);
+        }
+        this.domains = requireAtLeast(domains, 1, "domains");
+        this.skew = skew;
+        return this;
+    }
+
+    /**
+     * @param overlap the probability that an address is shared with another list; requires
+     *      0 <= overlap <= 1
+     * @return this
+     */
+    public EnvironmentGenerator overlap(double overlap) {
+        if (overlap < 0 || overlap > 1) {
+            throw new IllegalArgumentException("overlap must be between 0 and 1: " + overlap);
+        }
+        this.overlap = overlap;
+        return this;
+    }
+
+    /**
+     * @param depth the number of layers of the dependency graph; requires depth >= 1
+     * @return this
+     */
+    public EnvironmentGenerator depth(int depth) {
+        this.depth = requireAtLeast(depth, 1, "depth");
+        return this;
+    }
+
+    /**
+     * @param fanOut the number of lists combined by each list after the first layer, and by
+     *      each query; requires fanOut >= 1
+     * @return this
+     */
+    public EnvironmentGenerator fanOut(int fanOut) {
+        this.fanOut = requireAtLeast(fanOut, 1, "fanOut");
+        return this;
+    }
+
+    /**
+     * @param union the relative weight of union
+     * @param intersection the relative weight of intersection
+     * @param difference the relative weight of difference;
+     *      requires all weights >= 0 and at least one > 0
+     * @return this
+     */
+    public EnvironmentGenerator operatorMix(int union, int intersection, int difference) {
+        if (union < 0 || intersection < 0 || difference < 0 || union + intersection + difference == 0) {
+            throw new IllegalArgumentException("invalid operator mix " + union + ":" + intersection + ":" + difference);
+        }
+        this.operatorWeights = new int[] { union, intersection, difference };
+        return this;
+    }
+
+    /**
+     * @param definitionRatio the fraction of commands that redefine a list; requires
+     *      0 <= definitionRatio <= 1
+     * @return this
+     */
+    public EnvironmentGenerator definitionRatio(double definitionRatio) {
+        if (definitionRatio < 0 || definitionRatio > 1) {
+            throw new IllegalArgumentException("definition ratio must be between 0 and 1: " + definitionRatio);
+        }
+        this.definitionRatio = definitionRatio;
+        return this;
+    }
+
+    private static int requireAtLeast(int value, int minimum, String name) {
+        if (value < minimum) {
+            throw new IllegalArgumentException(name + " must be at least " + minimum + ": " + value);
+        }
+        return value;
+    }
+
+    //
+    // GENERATION
+    //
+
+    /**
+     * @return the definitions of the environment, each "name=expression;", in an order in which
+     *      every list is defined after the lists it depends on
+     */
+    public List<String> definitions() {
+        if (lists < depth) {
+            throw new IllegalArgumentException("need at least one list per layer: " + lists + " lists, depth " + depth);
+        }
+        final Random random = new Random(seed);
+        final Addresses pool = new Addresses(random);
+        final List<String> definitions = new ArrayList<>(lists);
+        for (int list = 0; list < lists; list++) {
+            final int layer = layerOf(list);
+            final String expression;
+            if (layer == 0) {
+                expression = pool.list(addresses);
+            }
+            else {
+                // one operand from the layer before, so the chain reaches this layer
+                final int before = firstOfLayer(layer - 1) + random.nextInt(firstOfLayer(layer) - firstOfLayer(layer - 1));
+                final List<String> operands = new ArrayList<>(fanOut);
+                operands.add(name(before));
+                while (operands.size() < fanOut) {
+                    operands.add(name(random.nextInt(firstOfLayer(layer))));
+                }
+                expression = combine(operands, random);
+            }
+            definitions.add(name(list) + "=" + expression + ";");
+        }
+        return definitions;
+    }
+
+    /**
+     * @param count the number of commands
+     * @return count commands on the environment of definitions(), one per element
+     */
+    public List<String> commands(int count) {
+        final Random random = new Random(seed ^ 0x5DEECE66DL); // independent of the environment's choices
+        final Addresses pool = new Addresses(random);
+        final List<String> commands = new ArrayList<>(count);
+        final int firstLayer = firstOfLayer(1);
+        for (int i = 0; i < count; i++) {
+            if (random.nextDouble() < definitionRatio) {
+                commands.add(name(random.nextInt(firstLayer)) + "=" + pool.list(addresses));
+            }
+            else {
+                final List<String> operands = new ArrayList<>(fanOut);
+                for (int operand = 0; operand < fanOut; operand++) {
+                    operands.add(name(random.nextInt(lists)));
+                }
+                commands.add(combine(operands, random));
+            }
+        }
+        return commands;
+    }
+
+    // the name of list number list
+    private static String name(int list) {
+        return "list" + list;
+    }
+
+    // the number of the first list in layer, or lists if layer == depth; layer 0 takes the remainder
+    private int firstOfLayer(int layer) {
+        if (layer == 0) {
+            return 0;
+        }
+        final int perLayer = lists / depth;
+        return lists - (depth - layer) * perLayer;
+    }
+
+    private int layerOf(int list) {
+        int layer = 0;
+        while (layer + 1 < depth && list >= firstOfLayer(layer + 1)) {
+            layer++;
+        }
+        return layer;
+    }
+
+    // operands joined by operators drawn from the mix, grouped from the left
+    private String combine(List<String> operands, Random random) {
+        final StringBuilder expression = new StringBuilder();
+        for (int i = 1; i < operands.size(); i++) {
+            expression.append('(');
+        }
+        expression.append(operands.get(0));
+        for (int i = 1; i < operands.size(); i++) {
+            expression.append(' ').append(operator(random)).append(' ').append(operands.get(i)).append(')');
+        }
+        return expression.toString();
+    }
+
+    private String operator(Random random) {
+        int choice = random.nextInt(operatorWeights[0] + operatorWeights[1] + operatorWeights[2]);
+        for (int i = 0; ; i++) {
+            if (choice < operatorWeights[i]) {
+                return OPERATORS[i];
+            }
+            choice -= operatorWeights[i];
+        }
+    }
+
+    // the addresses generated so far, and new ones
+    private class Addresses {
+        private final Random random;
+        private final double[] domainCumulative = new double[domains];
+        private final List<String> used = new ArrayList<>();
+        private int created = 0;
+
+        Addresses(Random random) {
+            this.random = random;
+            double total = 0;
+            for (int domain = 0; domain < domains; domain++) {
+                total += 1 / Math.pow(domain + 1, skew);
+                domainCumulative[domain] = total;
+            }
+            for (int domain = 0; domain < domains; domain++) {
+                domainCumulative[domain] /= total;
+            }
+        }
+
+        // a union of size addresses, which may repeat
+        String list(int size) {
+            final List<String> list = new ArrayList<>(size);
+            for (int i = 0; i < size; i++) {
+                if (!used.isEmpty() && random.nextDouble() < overlap) {
+                    list.add(used.get(random.nextInt(used.size())));
+                }
+                else {
+                    list.add(fresh());
+                }
+            }
+            used.addAll(list);
+            return String.join(",", list);
+        }
+
+        private String fresh() {
+            int domain = Arrays.binarySearch(domainCumulative, random.nextDouble());
+            domain = Math.min(domains - 1, domain >= 0 ? domain : -domain - 1);
+            return "user" + created++ + "@domain" + domain + ".example.com";
+        }
+    }
+
+    //
+    // OUTPUT
+    //
+
+    /**
+     * Writes definitions() to a file, one per line
+     * @param file the file to write
+     * @throws IOException if the file couldn't be created or written to
+     */
+    public void writeEnvironment(Path file) throws IOException {
+        Files.write(file, definitions());
+    }
+
+    /**
+     * Writes commands(count) to a file, one per line
+     * @param file the file to write
+     * @param count the number of commands
+     * @throws IOException if the file couldn't be created or written to
+     */
+    public void writeCommands(Path file, int count) throws IOException {
+        Files.write(file, commands(count));
+    }
+
+    /**
+     * Writes a generated environment, and optionally a command stream.
+     *
+     * <br> Usage:
+     * <pre>
+     *      norn.bench.EnvironmentGenerator ENVIRONMENT_FILE [--commands FILE COUNT] [--seed SEED]
+     *              [--lists N] [--addresses N] [--domains N SKEW] [--overlap RATIO]
+     *              [--depth N] [--fanout N] [--operators UNION:INTERSECTION:DIFFERENCE]
+     *              [--definitions RATIO]
+     * </pre>
+     * The options are described by the methods of the same names; the seed defaults to 0.
+     * E.g. "test/scale.txt --lists 10000 --depth 6" writes test/scale.txt, which the server
+     * loads with "--file scale.txt".
+     * @param args arguments as described
+     * @throws IOException if a file couldn't be written
+     */
+    public static void main(String[] args) throws IOException {
+        final Queue<String> arguments = new LinkedList<>(Arrays.asList(args));
+        final Path environmentFile = Paths.get(arguments.remove());
+        Path commandsFile = null;
+        int commandCount = 0;
+        long seed = 0;
+        final List<String[]> settings = new ArrayList<>();
+        while (!arguments.isEmpty()) {
+            final String flag = arguments.remove();
+            if (flag.equals("--commands")) {
+                commandsFile = Paths.get(arguments.remove());
+                commandCount = Integer.parseInt(arguments.remove());
+            } else if (flag.equals("--seed")) {
+                seed = Long.parseLong(arguments.remove());
+            } else if (flag.equals("--domains")) {
+                settings.add(new String[] { flag, arguments.remove(), arguments.remove() });
+            } else {
+                settings.add(new String[] { flag, arguments.remove() });
+            }
+        }
+        final EnvironmentGenerator generator = new EnvironmentGenerator(seed);
+        for (String[] setting : settings) {
+            switch (setting[0]) {
+            case "--lists": generator.lists(Integer.parseInt(setting[1])); break;
+            case "--addresses": generator.addresses(Integer.parseInt(setting[1])); break;
+            case "--domains": generator.domains(Integer.parseInt(setting[1]), Double.parseDouble(setting[2])); break;
+            case "--overlap": generator.overlap(Double.parseDouble(setting[1])); break;
+            case "--depth": generator.depth(Integer.parseInt(setting[1])); break;
+            case "--fanout": generator.fanOut(Integer.parseInt(setting[1])); break;
+            case "--definitions": generator.definitionRatio(Double.parseDouble(setting[1])); break;
+            case "--operators":
+            {
+                final String[] weights = setting[1].split(":");
+                generator.operatorMix(Integer.parseInt(weights[0]), Integer.parseInt(weights[1]), Integer.parseInt(weights[2]));
+                break;
+            }
+            default:
+                throw new IllegalArgumentException("unknown option: \"" + setting[0] + "\"");
+            }
+        }
+        generator.writeEnvironment(environmentFile);
+        if (commandsFile != null) {
+            generator.writeCommands(commandsFile, commandCount);
+        }
+    }
+}
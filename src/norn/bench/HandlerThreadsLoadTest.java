@@ -0,0 +1,218 @@
+package norn.bench;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.HttpURLConnection;
+import java.net.Socket;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import lib6005.parser.UnableToParseException;
+import norn.HandlerThreads;
+import norn.NornServer;
+
+/**
+ * Compares the threads that run NornServer's blocking handlers on the same workload: the
+ * default (selector console, pool of http threads), a platform thread per handler, a virtual
+ * thread per handler (skipped if this JVM has no virtual threads), and a bounded pool. The http
+ * queue is long enough that no request is refused.
+ *
+ * <br> Usage:
+ * <pre>
+ *      norn.bench.HandlerThreadsLoadTest [SESSIONS [QUERIES [THINK_MS [POOL_THREADS [PORT]]]]]
+ * </pre>
+ * SESSIONS clients connect at once, half on the console and half over http, and each sends
+ * QUERIES queries, pausing THINK_MS milliseconds after each, so that most sessions are idle most
+ * of the time. A console session's connection stays open for the whole session, and waiting for
+ * its welcome line counts as one request. Each mode's server listens on a new pair of ports from
+ * PORT. Defaults: 1000 sessions, 20 queries, 50 ms, a pool of 16 threads, port 6200.
+ *
+ * <br> The peak thread count covers the whole JVM, including the SESSIONS client threads, and
+ * does not count virtual threads.
+ */
+public class HandlerThreadsLoadTest {
+
+    private static final String LOCALHOST = "127.0.0.1";
+    private static final int LISTS = 10;
+    private static final int ADDRESSES = 50;
+    private static final int TIMEOUT_MILLIS = 60000;
+
+    /**
+     * Runs the load test in each mode and prints one line per mode.
+     * @param args optional SESSIONS, QUERIES, THINK_MS, POOL_THREADS and PORT, as described above
+     * @throws Exception if a server cannot be started
+     */
+    public static void main(String[] args) throws Exception {
+        final int sessions = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+        final int queries = args.length > 1 ? Integer.parseInt(args[1]) : 20;
+        final int think = args.length > 2 ? Integer.parseInt(args[2]) : 50;
+        final int poolThreads = args.length > 3 ? Integer.parseInt(args[3]) : 16;
+        int port = args.length > 4 ? Integer.parseInt(args[4]) : 6200;
+
+        System.out.printf("sessions=%d queries=%d think=%d ms%n", sessions, queries, think);
+        final String[] modes = { "default", "platform", "virtual", "pool of " + poolThreads };
+        for (String mode : modes) {
+            final Executor handlers;
+            final int consoleThreads;
+            if (mode.equals("default")) {
+                handlers = null;
+                consoleThreads = NornServer.CONSOLE_THREADS;
+            }
+            else if (mode.equals("platform")) {
+                handlers = HandlerThreads.platform();
+                consoleThreads = 0;
+            }
+            else if (mode.equals("virtual")) {
+                if (!HandlerThreads.isVirtualSupported()) {
+                    System.out.printf("%-12s skipped: virtual threads are not supported by this JVM%n", mode);
+                    continue;
+                }
+                handlers = HandlerThreads.virtual();
+                consoleThreads = 0;
+            }
+            else {
+                handlers = HandlerThreads.pool(poolThreads);
+                consoleThreads = 0;
+            }
+            run(mode, handlers, consoleThreads, port, port + 1, sessions, queries, think);
+            if (handlers instanceof ExecutorService) {
+                ((ExecutorService) handlers).shutdownNow();
+            }
+            port += 2;
+        }
+    }
+
+    private static void run(String mode, Executor handlers, int consoleThreads, int httpPort, int consolePort,
+            int sessions, int queries, int think) throws IOException, UnableToParseException, InterruptedException {
+        final NornServer server = new NornServer(httpPort, consolePort, new ArrayList<>(), consoleThreads, handlers,
+                NornServer.HTTP_THREADS, sessions);
+        final Thread serverThread = new Thread(server::serve);
+        serverThread.start();
+        Thread.sleep(200); // allow time for the server to start listening
+        for (int list = 0; list < LISTS; list++) {
+            final StringBuilder definition = new StringBuilder("dept" + list + "=");
+            for (int address = 0; address < ADDRESSES; address++) {
+                // departments overlap by half
+                definition.append(address > 0 ? "," : "").append("user").append(list * ADDRESSES / 2 + address)
+                        .append("@dept.example.com");
+            }
+            get(httpPort, definition.toString());
+        }
+
+        final ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+        threadBean.resetPeakThreadCount();
+        final long[][] latencies = new long[sessions][];
+        final AtomicInteger failures = new AtomicInteger();
+        final CountDownLatch go = new CountDownLatch(1);
+        final List<Thread> clients = new ArrayList<>();
+        for (int session = 0; session < sessions; session++) {
+            final int id = session;
+            final Thread client = new Thread(() -> {
+                try {
+                    go.await();
+                    latencies[id] = id % 2 == 0
+                            ? consoleSession(consolePort, id, queries, think)
+                            : httpSession(httpPort, id, queries, think);
+                } catch (IOException | InterruptedException e) {
+                    failures.incrementAndGet();
+                    latencies[id] = new long[0];
+                }
+            });
+            client.start();
+            clients.add(client);
+        }
+        final long start = System.nanoTime();
+        go.countDown();
+        for (Thread client : clients) {
+            client.join();
+        }
+        final double seconds = (System.nanoTime() - start) / 1e9;
+        server.stop();
+        serverThread.join();
+
+        long[] all = new long[0];
+        for (long[] session : latencies) {
+            final int length = all.length;
+            all = Arrays.copyOf(all, length + session.length);
+            System.arraycopy(session, 0, all, length, session.length);
+        }
+        Arrays.sort(all);
+        System.out.printf("%-12s requests=%d failures=%d elapsed=%.2f s throughput=%.0f req/s "
+                + "p50=%.2f ms p99=%.2f ms max=%.2f ms peakThreads=%d%n",
+                mode, all.length, failures.get(), seconds, all.length / seconds,
+                percentile(all, 0.50), percentile(all, 0.99), percentile(all, 1.0), threadBean.getPeakThreadCount());
+    }
+
+    // the latencies in nanoseconds of the welcome line and each query of one console session
+    private static long[] consoleSession(int port, int id, int queries, int think) throws IOException, InterruptedException {
+        final long[] latencies = new long[queries + 1];
+        long start = System.nanoTime();
+        try (Socket socket = new Socket(LOCALHOST, port)) {
+            socket.setSoTimeout(TIMEOUT_MILLIS);
+            final BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+            final PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
+            if (in.readLine() == null) {
+                throw new IOException("connection closed");
+            }
+            latencies[0] = System.nanoTime() - start;
+            for (int i = 0; i < queries; i++) {
+                Thread.sleep(think);
+                start = System.nanoTime();
+                out.println(query(id + i));
+                if (in.readLine() == null) {
+                    throw new IOException("connection closed");
+                }
+                latencies[i + 1] = System.nanoTime() - start;
+            }
+        }
+        return latencies;
+    }
+
+    // the latencies in nanoseconds of each query of one http session
+    private static long[] httpSession(int port, int id, int queries, int think) throws IOException, InterruptedException {
+        final long[] latencies = new long[queries];
+        for (int i = 0; i < queries; i++) {
+            Thread.sleep(think);
+            final long start = System.nanoTime();
+            get(port, query(id + i));
+            latencies[i] = System.nanoTime() - start;
+        }
+        return latencies;
+    }
+
+    private static String query(int n) {
+        return "dept" + n % LISTS + "*(dept" + (n + 1) % LISTS + ",dept" + (n + 2) % LISTS + ")";
+    }
+
+    private static void get(int port, String command) throws IOException {
+        final HttpURLConnection connection = (HttpURLConnection) new URL("http://localhost:" + port + "/eval/" + command).openConnection();
+        connection.setConnectTimeout(TIMEOUT_MILLIS);
+        connection.setReadTimeout(TIMEOUT_MILLIS);
+        try (InputStream in = connection.getInputStream()) {
+            final byte[] buffer = new byte[4096];
+            while (in.read(buffer) >= 0) {
+                // drain the response
+            }
+        }
+    }
+
+    // the value at fraction of the way through sorted, in milliseconds
+    private static double percentile(long[] sorted, double fraction) {
+        if (sorted.length == 0) {
+            return 0;
+        }
+        final int index = (int) Math.ceil(fraction * sorted.length) - 1;
+        return sorted[Math.max(0, index)] / 1e6;
+    }
+}
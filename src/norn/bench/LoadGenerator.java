@@ -0,0 +1,512 @@
+package norn.bench;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.net.HttpURLConnection;
+import java.net.Socket;
+import java.net.URL;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import norn.Metrics;
+import norn.NornServer;
+
+/**
+ * Drives a running NornServer on loopback over its console port and its /eval http endpoint,
+ * and reports throughput and latency percentiles.
+ *
+ * <br> Usage:
+ * <pre>
+ *      norn.bench.LoadGenerator [--httpport PORT] [--consoleport PORT] [--transport console|http|both]
+ *              [--mode closed|open] [--connections N] [--rate COMMANDS_PER_SECOND]
+ *              [--duration SECONDS] [--warmup SECONDS] [--writes RATIO]
+ *              [--lists N] [--seed SEED] [--commands FILE] [--nosetup]
+ * </pre>
+ * Commands go over --connections connections, split evenly between the transports if both
+ * (the default). In closed loop mode (the default) each connection sends a command, waits for
+ * its response, then sends its next; with a --rate, each connection's commands are due at
+ * evenly spaced times adding up to the rate, and a connection never sends early. In open loop
+ * mode, which needs a --rate, commands are due at that rate whether or not earlier responses
+ * have arrived, and wait on the client for a free connection.
+ *
+ * <br> The commands are generated by EnvironmentGenerator with the given --lists, --seed and
+ * --writes, the fraction that are definitions; before the run, the environment's definitions are
+ * sent unless --nosetup is given (for a server started with the generated file as --file).
+ * Alternatively, --commands replays the lines of FILE, and no setup is sent. Defaults: ports
+ * NornServer.HTTP_PORT and NornServer.CONSOLE_PORT, 16 connections, no rate limit, 30 s run
+ * after a 5 s warmup, writes 0.1, 1000 lists, seed 0.
+ *
+ * <br> Response time is measured from when a command was due, service time from when it was
+ * sent. A client waiting on a slow response doesn't send the commands that fell due meanwhile,
+ * so service time omits exactly the delays that the slow response caused them (coordinated
+ * omission); response time counts them, and is the figure to compare with a latency target.
+ * Without a --rate no command is due before it is sent, and the two are the same.
+ */
+public class LoadGenerator {
+
+    private static final String LOCALHOST = "127.0.0.1";
+    private static final int COMMANDS = 100000; // commands generated, cycled through by the clients
+    private static final int TIMEOUT_MILLIS = 60000;
+    private static final double[] PERCENTILES = { 0.50, 0.90, 0.99, 0.999, 1.0 };
+
+    private final int httpPort;
+    private final int consolePort;
+    private final boolean console;
+    private final boolean http;
+    private final boolean open;
+    private final int connections;
+    private final double rate;
+    private final List<String> commands;
+
+    // samples of every thread that recorded any
+    private final Queue<Samples> samples = new ConcurrentLinkedQueue<>();
+    private final ThreadLocal<Samples> threadSamples = ThreadLocal.withInitial(() -> {
+        final Samples mine = new Samples();
+        samples.add(mine);
+        return mine;
+    });
+    // connections open, and each open loop pool thread's connection
+    private final Set<Client> clients = ConcurrentHashMap.newKeySet();
+    private final ThreadLocal<Client> threadClient = new ThreadLocal<>();
+    private final AtomicLong errors = new AtomicLong();
+    private final AtomicLong refused = new AtomicLong();
+    private volatile long measureFrom;
+    private volatile long measureTo;
+
+    private LoadGenerator(int httpPort, int consolePort, String transport, String mode, int connections,
+            double rate, List<String> commands) {
+        this.httpPort = httpPort;
+        this.consolePort = consolePort;
+        this.console = !transport.equals("http");
+        this.http = !transport.equals("console");
+        if (!transport.matches("console|http|both")) {
+            throw new IllegalArgumentException("unknown transport: \"" + transport + "\"");
+        }
+        if (!mode.matches("closed|open")) {
+            throw new IllegalArgumentException("unknown mode: \"" + mode + "\"");
+        }
+        this.open = mode.equals("open");
+        if (open && rate <= 0) {
+            throw new IllegalArgumentException("open loop mode needs a --rate");
+        }
+        if (connections < (console && http ? 2 : 1)) {
+            throw new IllegalArgumentException("too few connections: " + connections);
+        }
+        this.connections = connections;
+        this.rate = rate;
+        this.commands = commands;
+    }
+
+    //
+    // CLIENTS
+    //
+
+    // a connection to the server that sends one command at a time
+    private interface Client extends Closeable {
+        /**
+         * Sends a command and waits for its response
+         * @param command a command
+         * @return false if the server refused the command for overload
+         * @throws IOException if the connection failed
+         */
+        boolean send(String command) throws IOException;
+    }
+
+    // a console connection; connecting waits for the welcome line
+    private static class ConsoleClient implements Client {
+        private final Socket socket;
+        private final BufferedReader in;
+        private final PrintWriter out;
+
+        ConsoleClient(int port) throws IOException {
+            socket = new Socket(LOCALHOST, port);
+            socket.setTcpNoDelay(true);
+            socket.setSoTimeout(TIMEOUT_MILLIS);
+            in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+            out = new PrintWriter(socket.getOutputStream(), true);
+            readLine();
+        }
+
+        @Override public boolean send(String command) throws IOException {
+            out.println(command);
+            readLine();
+            return true;
+        }
+
+        private void readLine() throws IOException {
+            if (in.readLine() == null) {
+                throw new IOException("connection closed");
+            }
+        }
+
+        @Override public void close() throws IOException {
+            socket.close();
+        }
+    }
+
+    // requests to /eval, over a connection kept alive by HttpURLConnection between requests
+    private static class HttpClient implements Client {
+        private final int port;
+        private final byte[] buffer = new byte[8192];
+
+        HttpClient(int port) {
+            this.port = port;
+        }
+
+        @Override public boolean send(String command) throws IOException {
+            // commands go into the url unescaped, and whitespace is insignificant in them
+            final URL url = new URL("http://" + LOCALHOST + ":" + port + "/eval/" + command.replaceAll("\\s", ""));
+            final HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+            connection.setConnectTimeout(TIMEOUT_MILLIS);
+            connection.setReadTimeout(TIMEOUT_MILLIS);
+            final int status = connection.getResponseCode();
+            try (InputStream in = status < 400 ? connection.getInputStream() : connection.getErrorStream()) {
+                while (in != null && in.read(buffer) >= 0) {
+                    // drain the response, so the connection can be reused
+                }
+            }
+            if (status == 503) {
+                return false;
+            }
+            if (status != 200) {
+                throw new IOException("http status " + status);
+            }
+            return true;
+        }
+
+        @Override public void close() {
+            // connections are pooled by HttpURLConnection
+        }
+    }
+
+    private Client connect(boolean console) throws IOException {
+        return console ? new ConsoleClient(consolePort) : new HttpClient(httpPort);
+    }
+
+    //
+    // SAMPLES
+    //
+
+    // the latencies recorded by one thread
+    private static class Samples {
+        private long[] response = new long[1024];
+        private long[] service = new long[1024];
+        private boolean[] write = new boolean[1024];
+        private int size = 0;
+
+        void add(long responseNanos, long serviceNanos, boolean isWrite) {
+            if (size == response.length) {
+                response = Arrays.copyOf(response, size * 2);
+                service = Arrays.copyOf(service, size * 2);
+                write = Arrays.copyOf(write, size * 2);
+            }
+            response[size] = responseNanos;
+            service[size] = serviceNanos;
+            write[size] = isWrite;
+            size++;
+        }
+    }
+
+    /**
+     * Sends one command that was due at a time, and records it if that time is in the measured
+     * window; reconnects after a failure
+     * @param client the connection to send on, or null if it must be reconnected
+     * @param console whether the connection is to the console
+     * @param command the command
+     * @param due when the command was due, by System.nanoTime()
+     * @return the connection to send the next command on, or null if it must be reconnected
+     */
+    private Client send(Client client, boolean console, String command, long due) {
+        final long sent = System.nanoTime();
+        try {
+            if (client == null) {
+                client = connect(console);
+                clients.add(client);
+            }
+            final boolean answered = client.send(command);
+            final long done = System.nanoTime();
+            if (due >= measureFrom && due < measureTo) {
+                if (answered) {
+                    threadSamples.get().add(done - due, done - sent,
+                            Metrics.Command.of(command) == Metrics.Command.DEFINITION);
+                }
+                else {
+                    refused.incrementAndGet();
+                }
+            }
+            return client;
+        } catch (IOException e) {
+            if (due >= measureFrom && due < measureTo) {
+                errors.incrementAndGet();
+            }
+            if (client != null) {
+                clients.remove(client);
+                closeQuietly(client);
+            }
+            return null;
+        }
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        try {
+            if (closeable != null) {
+                closeable.close();
+            }
+        } catch (IOException e) {
+            // already failed
+        }
+    }
+
+    // waits until System.nanoTime() reaches time
+    private static void sleepUntil(long time) {
+        for (long remaining = time - System.nanoTime(); remaining > 0; remaining = time - System.nanoTime()) {
+            LockSupport.parkNanos(remaining);
+        }
+    }
+
+    //
+    // RUNS
+    //
+
+    /**
+     * Runs the load and waits for it to finish
+     * @param warmupNanos time before measuring
+     * @param durationNanos time measured
+     * @return the number of commands due in the measured window that never completed
+     * @throws InterruptedException if interrupted
+     */
+    private long run(long warmupNanos, long durationNanos) throws InterruptedException {
+        final long start = System.nanoTime();
+        measureFrom = start + warmupNanos;
+        measureTo = measureFrom + durationNanos;
+        return open ? runOpen(start) : runClosed(start);
+    }
+
+    // one thread per connection, each sending its next command when its previous one is answered
+    private long runClosed(long start) throws InterruptedException {
+        final long interval = rate > 0 ? (long) (connections * 1e9 / rate) : 0;
+        final List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < connections; i++) {
+            final int id = i;
+            final boolean toConsole = console && (!http || id % 2 == 0);
+            final Thread thread = new Thread(() -> {
+                Client client = null;
+                // stagger the connections' schedules across one interval
+                long due = start + interval * id / connections;
+                for (int n = id; due < measureTo; n += connections) {
+                    if (interval > 0) {
+                        sleepUntil(due);
+                    }
+                    else {
+                        due = System.nanoTime();
+                    }
+                    client = send(client, toConsole, commands.get(n % commands.size()), due);
+                    due += interval;
+                }
+            }, "norn-load-" + id);
+            thread.start();
+            threads.add(thread);
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        closeAll();
+        return 0;
+    }
+
+    // a scheduler thread hands commands when due to a pool of threads, one per connection
+    private long runOpen(long start) throws InterruptedException {
+        final int consoleConnections = console ? (http ? connections / 2 : connections) : 0;
+        final ExecutorService consoleThreads = Executors.newFixedThreadPool(Math.max(1, consoleConnections));
+        final ExecutorService httpThreads = Executors.newFixedThreadPool(Math.max(1, connections - consoleConnections));
+        final AtomicLong completed = new AtomicLong();
+        final double interval = 1e9 / rate;
+        long scheduled = 0;
+        for (long n = 0; ; n++) {
+            final long due = start + (long) (n * interval);
+            if (due >= measureTo) {
+                break;
+            }
+            sleepUntil(due);
+            final String command = commands.get((int) (n % commands.size()));
+            final boolean toConsole = console && (!http || n % 2 == 0);
+            final boolean measured = due >= measureFrom;
+            scheduled += measured ? 1 : 0;
+            (toConsole ? consoleThreads : httpThreads).execute(() -> {
+                // each pool thread keeps its own connection
+                threadClient.set(send(threadClient.get(), toConsole, command, due));
+                if (measured) {
+                    completed.incrementAndGet();
+                }
+            });
+        }
+        consoleThreads.shutdown();
+        httpThreads.shutdown();
+        // commands still waiting after as long again as the run are abandoned, and reported
+        final long grace = measureTo - start;
+        consoleThreads.awaitTermination(grace, TimeUnit.NANOSECONDS);
+        httpThreads.awaitTermination(grace, TimeUnit.NANOSECONDS);
+        consoleThreads.shutdownNow();
+        httpThreads.shutdownNow();
+        closeAll();
+        return scheduled - completed.get();
+    }
+
+    private void closeAll() {
+        for (Client client : clients) {
+            closeQuietly(client);
+        }
+        clients.clear();
+    }
+
+    /**
+     * Sends definitions one at a time, before the run
+     * @param definitions the definitions
+     * @throws IOException if the server couldn't be reached or refused a definition
+     */
+    private void setup(List<String> definitions) throws IOException {
+        try (Client client = connect(console)) {
+            for (String definition : definitions) {
+                if (!client.send(definition)) {
+                    throw new IOException("server refused a definition");
+                }
+            }
+        }
+    }
+
+    //
+    // REPORT
+    //
+
+    private void report(double seconds, long unfinished) {
+        long count = 0;
+        for (Samples thread : samples) {
+            count += thread.size;
+        }
+        System.out.printf("completed=%d errors=%d refused=%d unfinished=%d throughput=%.1f/s%n",
+                count, errors.get(), refused.get(), unfinished, count / seconds);
+        System.out.printf("%-17s %9s %9s %9s %9s %9s %9s  (ms)%n", "", "count", "p50", "p90", "p99", "p99.9", "max");
+        for (boolean responseTime : new boolean[] { true, false }) {
+            for (String kind : new String[] { "all", "reads", "writes" }) {
+                final long[] sorted = select(responseTime, kind);
+                System.out.printf("%-17s %9d", (responseTime ? "response " : "service ") + kind, sorted.length);
+                for (double fraction : PERCENTILES) {
+                    System.out.printf(" %9.3f", percentile(sorted, fraction));
+                }
+                System.out.println();
+            }
+        }
+    }
+
+    // the sorted response or service times of the commands of a kind: all, reads or writes
+    private long[] select(boolean responseTime, String kind) {
+        long[] selected = new long[0];
+        int size = 0;
+        for (Samples thread : samples) {
+            selected = Arrays.copyOf(selected, size + thread.size);
+            for (int i = 0; i < thread.size; i++) {
+                if (kind.equals("all") || thread.write[i] == kind.equals("writes")) {
+                    selected[size++] = responseTime ? thread.response[i] : thread.service[i];
+                }
+            }
+        }
+        selected = Arrays.copyOf(selected, size);
+        Arrays.sort(selected);
+        return selected;
+    }
+
+    // the value at fraction of the way through sorted, in milliseconds
+    private static double percentile(long[] sorted, double fraction) {
+        if (sorted.length == 0) {
+            return 0;
+        }
+        final int index = (int) Math.ceil(fraction * sorted.length) - 1;
+        return sorted[Math.max(0, index)] / 1e6;
+    }
+
+    /**
+     * Runs the load described by the arguments and prints the results.
+     * @param args arguments as described above
+     * @throws Exception if the server can't be reached for setup, or a file can't be read
+     */
+    public static void main(String[] args) throws Exception {
+        int httpPort = NornServer.HTTP_PORT;
+        int consolePort = NornServer.CONSOLE_PORT;
+        String transport = "both";
+        String mode = "closed";
+        int connections = 16;
+        double rate = 0;
+        double duration = 30;
+        double warmup = 5;
+        double writes = 0.1;
+        int lists = 1000;
+        long seed = 0;
+        String commandsFile = null;
+        boolean setup = true;
+
+        final Queue<String> arguments = new LinkedList<>(Arrays.asList(args));
+        while (!arguments.isEmpty()) {
+            final String flag = arguments.remove();
+            if (flag.equals("--httpport")) {
+                httpPort = Integer.parseInt(arguments.remove());
+            } else if (flag.equals("--consoleport")) {
+                consolePort = Integer.parseInt(arguments.remove());
+            } else if (flag.equals("--transport")) {
+                transport = arguments.remove();
+            } else if (flag.equals("--mode")) {
+                mode = arguments.remove();
+            } else if (flag.equals("--connections")) {
+                connections = Integer.parseInt(arguments.remove());
+            } else if (flag.equals("--rate")) {
+                rate = Double.parseDouble(arguments.remove());
+            } else if (flag.equals("--duration")) {
+                duration = Double.parseDouble(arguments.remove());
+            } else if (flag.equals("--warmup")) {
+                warmup = Double.parseDouble(arguments.remove());
+            } else if (flag.equals("--writes")) {
+                writes = Double.parseDouble(arguments.remove());
+            } else if (flag.equals("--lists")) {
+                lists = Integer.parseInt(arguments.remove());
+            } else if (flag.equals("--seed")) {
+                seed = Long.parseLong(arguments.remove());
+            } else if (flag.equals("--commands")) {
+                commandsFile = arguments.remove();
+            } else if (flag.equals("--nosetup")) {
+                setup = false;
+            } else {
+                throw new IllegalArgumentException("unknown option: \"" + flag + "\"");
+            }
+        }
+
+        final EnvironmentGenerator generator = new EnvironmentGenerator(seed).lists(lists).definitionRatio(writes);
+        final List<String> commands = commandsFile != null
+                ? Files.readAllLines(Paths.get(commandsFile))
+                : generator.commands(COMMANDS);
+        final LoadGenerator load = new LoadGenerator(httpPort, consolePort, transport, mode, connections, rate, commands);
+        if (setup && commandsFile == null) {
+            load.setup(generator.definitions());
+        }
+        System.out.printf("transport=%s mode=%s connections=%d rate=%s duration=%.0f s warmup=%.0f s %s%n",
+                transport, mode, connections, rate > 0 ? String.format("%.0f/s", rate) : "unlimited", duration, warmup,
+                commandsFile == null ? String.format("lists=%d writes=%.2f", lists, writes) : "commands=" + commandsFile);
+        final long unfinished = load.run((long) (warmup * 1e9), (long) (duration * 1e9));
+        load.report(duration, unfinished);
+    }
+}
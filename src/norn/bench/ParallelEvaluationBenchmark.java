@@ -0,0 +1,95 @@
+package norn.bench;
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+
+import lib6005.parser.UnableToParseException;
+import norn.Environment;
+import norn.MailingList.MailingList;
+import norn.MailingList.MailingParser;
+import norn.MailingList.ParallelEvaluator;
+
+/**
+ * Measures the speedup of ParallelEvaluator over sequential evaluation, for pools of
+ * 1, 2, 4, ... up to the number of available cores.
+ *
+ * <br> Usage:
+ * <pre>
+ *      norn.bench.ParallelEvaluationBenchmark [LISTS [ADDRESSES [THRESHOLD]]]
+ * </pre>
+ * LISTS department lists of ADDRESSES addresses each are defined, and the query is the
+ * union of all of them intersected with the union of every other one. Defaults: 40 lists,
+ * 50000 addresses, threshold 4.
+ */
+public class ParallelEvaluationBenchmark {
+
+    private static final int WARMUP_RUNS = 5;
+    private static final int MEASURED_RUNS = 15;
+
+    /**
+     * Runs the benchmark and prints one line per pool size.
+     * @param args optional LISTS, ADDRESSES and THRESHOLD, as described above
+     * @throws UnableToParseException if the generated environment cannot be evaluated
+     */
+    public static void main(String[] args) throws UnableToParseException {
+        final int lists = args.length > 0 ? Integer.parseInt(args[0]) : 40;
+        final int addresses = args.length > 1 ? Integer.parseInt(args[1]) : 50000;
+        final int threshold = args.length > 2 ? Integer.parseInt(args[2]) : 4;
+
+        final Environment environment = new Environment();
+        final StringBuilder all = new StringBuilder();
+        final StringBuilder everyOther = new StringBuilder();
+        for (int list = 0; list < lists; list++) {
+            final StringBuilder definition = new StringBuilder();
+            for (int address = 0; address < addresses; address++) {
+                if (address > 0) {
+                    definition.append(',');
+                }
+                // departments overlap by half
+                definition.append("user").append(list * addresses / 2 + address).append("@dept").append(list).append(".example.com");
+            }
+            environment.assign("dept" + list, MailingParser.parse(definition.toString()));
+            environment.evaluate("dept" + list);
+            all.append(list > 0 ? "," : "").append("dept").append(list);
+            if (list % 2 == 0) {
+                everyOther.append(list > 0 ? "," : "").append("dept").append(list);
+            }
+        }
+        final MailingList query = MailingParser.parse("(" + all + ") * (" + everyOther + ")");
+        final Environment snapshot = environment.snapshot();
+
+        final double sequential = medianMillis(() -> query.evaluate(snapshot));
+        System.out.printf("lists=%d addresses=%d threshold=%d%n", lists, addresses, threshold);
+        System.out.printf("sequential: %.2f ms%n", sequential);
+        final int cores = Runtime.getRuntime().availableProcessors();
+        for (int parallelism = 1; ; parallelism = Math.min(parallelism * 2, cores)) {
+            final ForkJoinPool pool = new ForkJoinPool(parallelism);
+            final ParallelEvaluator evaluator = new ParallelEvaluator(pool, threshold);
+            final double parallel = medianMillis(() -> evaluator.evaluate(query, snapshot));
+            System.out.printf("parallelism=%d: %.2f ms, speedup %.2fx%n", parallelism, parallel, sequential / parallel);
+            pool.shutdown();
+            if (parallelism == cores) {
+                break;
+            }
+        }
+    }
+
+    // an evaluation to time
+    private interface Run {
+        void run() throws UnableToParseException;
+    }
+
+    private static double medianMillis(Run run) throws UnableToParseException {
+        for (int i = 0; i < WARMUP_RUNS; i++) {
+            run.run();
+        }
+        final long[] times = new long[MEASURED_RUNS];
+        for (int i = 0; i < MEASURED_RUNS; i++) {
+            final long start = System.nanoTime();
+            run.run();
+            times[i] = System.nanoTime() - start;
+        }
+        Arrays.sort(times);
+        return times[MEASURED_RUNS / 2] / 1e6;
+    }
+}
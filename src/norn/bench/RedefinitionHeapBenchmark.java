@@ -0,0 +1,87 @@
+package norn.bench;
+
+import java.util.Random;
+
+import lib6005.parser.UnableToParseException;
+import norn.Environment;
+import norn.MailingList.MailingList;
+import norn.MailingList.MailingParser;
+
+/**
+ * Measures the heap retained by an Environment over a long run of redefinitions, in which
+ * the same subexpressions recur across the definitions of many lists.
+ *
+ * <br> Usage:
+ * <pre>
+ *      norn.bench.RedefinitionHeapBenchmark [LISTS [ROUNDS [POOL [GROUP]]]]
+ * </pre>
+ * LISTS lists are each defined, then ROUNDS redefinitions of randomly chosen lists follow,
+ * each of the form list_i = (list_j, a) * (list_k, b) ! c with j, k &lt; i and a, b, c
+ * drawn from a pool of POOL groups of GROUP addresses each. The heap in use after a full collection is
+ * printed after the lists are first defined and every tenth of the run, with the number of
+ * lists shared by the MailingList constructors and the time taken (not counting the
+ * collections). Defaults: 2000 lists, 200000 rounds, a pool of 64 groups of 8 addresses,
+ * seed 1.
+ */
+public class RedefinitionHeapBenchmark {
+
+    private static final long SEED = 1;
+    private static final int REPORTS = 10;
+
+    /**
+     * Runs the benchmark and prints one line per report.
+     * @param args optional LISTS, ROUNDS, POOL and GROUP, as described above
+     * @throws UnableToParseException if a generated definition cannot be assigned
+     */
+    public static void main(String[] args) throws UnableToParseException {
+        final int lists = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+        final int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 200000;
+        final int pool = args.length > 2 ? Integer.parseInt(args[2]) : 64;
+        final int group = args.length > 3 ? Integer.parseInt(args[3]) : 8;
+
+        final Random random = new Random(SEED);
+        final Environment environment = new Environment();
+        System.out.printf("lists=%d rounds=%d pool=%d group=%d%n", lists, rounds, pool, group);
+        final long start = System.nanoTime();
+        for (int list = 0; list < lists; list++) {
+            define(environment, random, list, pool, group);
+        }
+        report(environment, 0, start);
+        for (int round = 1; round <= rounds; round++) {
+            define(environment, random, random.nextInt(lists), pool, group);
+            if (round % Math.max(1, rounds / REPORTS) == 0) {
+                report(environment, round, start);
+            }
+        }
+    }
+
+    // redefines list_i as described above, from the next values of random
+    private static void define(Environment environment, Random random, int list, int pool, int group) throws UnableToParseException {
+        final String left = list == 0 ? group(random, pool, group) : "list" + random.nextInt(list);
+        final String right = list == 0 ? group(random, pool, group) : "list" + random.nextInt(list);
+        final String definition = "(" + left + ", " + group(random, pool, group) + ") * ("
+                + right + ", " + group(random, pool, group) + ") ! (" + group(random, pool, group) + ")";
+        environment.assign("list" + list, MailingParser.parse(definition));
+    }
+
+    // one of pool groups of group addresses, chosen by random
+    private static String group(Random random, int pool, int group) {
+        final int first = random.nextInt(pool) * group;
+        final StringBuilder addresses = new StringBuilder();
+        for (int address = first; address < first + group; address++) {
+            addresses.append(address > first ? ", " : "").append("user").append(address).append("@example.com");
+        }
+        return addresses.toString();
+    }
+
+    private static void report(Environment environment, int round, long start) {
+        final Runtime runtime = Runtime.getRuntime();
+        final long elapsed = System.nanoTime() - start;
+        System.gc();
+        final int shared = MailingList.sharedCount(); // also drops the table entries of lists just collected
+        System.gc();
+        final long used = runtime.totalMemory() - runtime.freeMemory();
+        System.out.printf("round=%d: %.1f MB retained, %d shared lists, %.0f ms, %d lists%n",
+                round, used / 1e6, shared, elapsed / 1e6, environment.size());
+    }
+}
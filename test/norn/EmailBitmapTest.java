@@ -0,0 +1,196 @@
+package norn;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashSet;
+
+import org.junit.Test;
+
+import norn.MailingList.EmailBitmap;
+import norn.MailingList.EmailDictionary;
+
+/**
+ * Tests for the EmailBitmap and EmailDictionary data types.
+ */
+public class EmailBitmapTest {
+    /*
+     * Testing strategy
+     *
+     * of, or, and, andNot, or(List):
+     *      ids: 0, 1, >1, duplicates
+     *      containers: array (sparse), bitmap (dense), more than one high key
+     *      result: empty, array, bitmap
+     *      sizes: similar, one array container far larger than the other (either side),
+     *          one bitmap with far more containers than the other
+     * equals/hashCode:
+     *      same ids built in different orders and by different operations
+     * EmailDictionary:
+     *      new address, repeated address
+     *      domain: new, shared with another address; find of a username or domain alone
+     *      length, copy: offset 0, >0
+     *      invalid address: no '@', uppercase, non-ASCII, empty username or domain
+     */
+
+    @Test(expected=AssertionError.class)
+    public void testAssertionsEnabled() {
+        assert false; // make sure assertions are enabled with VM argument: -ea
+    }
+
+    // covers ids 0, 1, duplicates
+    @Test
+    public void testOfSmall() {
+        assertEquals(0, EmailBitmap.of(new int[0], 0).cardinality());
+        EmailBitmap one = EmailBitmap.of(new int[] { 5, 5, 7 }, 2);
+        assertArrayEquals(new int[] { 5 }, one.toArray());
+        assertTrue(one.contains(5));
+        assertFalse(one.contains(7));
+        assertFalse(one.contains(-1));
+    }
+
+    // covers array and bitmap containers, multiple high keys, all operations
+    @Test
+    public void testOperationsMatchBitSet() {
+        final BitSet dense = new BitSet();
+        final BitSet sparse = new BitSet();
+        for (int id = 0; id < 200000; id += 3) {
+            dense.set(id);
+        }
+        for (int id = 1; id < 200000; id += 101) {
+            sparse.set(id);
+        }
+        EmailBitmap denseBitmap = fromBitSet(dense);
+        EmailBitmap sparseBitmap = fromBitSet(sparse);
+
+        BitSet union = (BitSet) dense.clone();
+        union.or(sparse);
+        assertArrayEquals(union.stream().toArray(), denseBitmap.or(sparseBitmap).toArray());
+        assertEquals(denseBitmap.or(sparseBitmap), EmailBitmap.or(Arrays.asList(sparseBitmap, denseBitmap)));
+
+        BitSet intersection = (BitSet) dense.clone();
+        intersection.and(sparse);
+        assertArrayEquals(intersection.stream().toArray(), denseBitmap.and(sparseBitmap).toArray());
+
+        BitSet difference = (BitSet) dense.clone();
+        difference.andNot(sparse);
+        assertArrayEquals(difference.stream().toArray(), denseBitmap.andNot(sparseBitmap).toArray());
+        assertTrue(sparseBitmap.andNot(sparseBitmap).isEmpty());
+    }
+
+    // covers equals/hashCode across representations
+    @Test
+    public void testEqualsHashCode() {
+        EmailBitmap built = EmailBitmap.of(new int[] { 70000, 3, 1, 3 }, 4);
+        EmailBitmap combined = EmailBitmap.of(new int[] { 1 }, 1).or(EmailBitmap.of(new int[] { 70000, 3 }, 2));
+        assertEquals(built, combined);
+        assertEquals(built.hashCode(), combined.hashCode());
+
+        EmailBitmap dense = fromBitSet(denseRange(0, 10000));
+        EmailBitmap shrunk = dense.andNot(fromBitSet(denseRange(10, 10000)));
+        assertEquals(fromBitSet(denseRange(0, 10)), shrunk);
+    }
+
+    // covers EmailDictionary invalid addresses: rejected without -ea, leaving the
+    // addresses stored before and after them intact
+    @Test
+    public void testDictionaryRejectsInvalid() {
+        int alice = EmailDictionary.intern("reject-test-alice@mit.edu");
+        int size = EmailDictionary.size();
+        for (String invalid : new String[] { "nodomain", "Reject-Test@mit.edu", "r\u00e9ject@mit.edu",
+                "reject\u0100@mit.edu", "@mit.edu", "reject-test@", "a@b@mit.edu", "" }) {
+            try {
+                EmailDictionary.intern(invalid);
+                fail("expected IllegalArgumentException for " + invalid);
+            } catch (IllegalArgumentException e) {
+                // expected
+            }
+        }
+        assertEquals(size, EmailDictionary.size());
+        int bob = EmailDictionary.intern("reject-test-bob@mit.edu");
+        assertEquals("reject-test-alice@mit.edu", EmailDictionary.get(alice));
+        assertEquals("reject-test-bob@mit.edu", EmailDictionary.get(bob));
+        assertEquals(alice, EmailDictionary.find("reject-test-alice@mit.edu"));
+    }
+
+    // covers array containers of very different sizes, on either side, and bitmaps with
+    // very different numbers of containers
+    @Test
+    public void testUnequalSizes() {
+        BitSet largeBits = new BitSet();
+        for (int id = 0; id < 65536; id += 16) { // 4096 ids, one array container
+            largeBits.set(id);
+        }
+        for (int key = 2; key < 300; key++) { // and one id in each of many more containers
+            largeBits.set(key << 16);
+        }
+        BitSet smallBits = new BitSet();
+        for (int id : new int[] { 0, 15, 16, 17, 4000 * 16, 65520, 65535, 50 << 16, (50 << 16) + 1, 200 << 16 }) {
+            smallBits.set(id);
+        }
+        EmailBitmap large = fromBitSet(largeBits);
+        EmailBitmap small = fromBitSet(smallBits);
+
+        BitSet and = (BitSet) largeBits.clone();
+        and.and(smallBits);
+        assertEquals(fromBitSet(and), small.and(large));
+        assertEquals(fromBitSet(and), large.and(small));
+        BitSet or = (BitSet) largeBits.clone();
+        or.or(smallBits);
+        assertEquals(fromBitSet(or), small.or(large));
+        assertEquals(fromBitSet(or), large.or(small));
+        BitSet smallNotLarge = (BitSet) smallBits.clone();
+        smallNotLarge.andNot(largeBits);
+        assertEquals(fromBitSet(smallNotLarge), small.andNot(large));
+        BitSet largeNotSmall = (BitSet) largeBits.clone();
+        largeNotSmall.andNot(smallBits);
+        assertEquals(fromBitSet(largeNotSmall), large.andNot(small));
+        assertArrayEquals(largeNotSmall.stream().toArray(), large.andNot(small).toArray());
+    }
+
+    // covers EmailDictionary new and repeated addresses
+    @Test
+    public void testDictionaryIntern() {
+        int id = EmailDictionary.intern("dictionary-test@mit.edu");
+        assertEquals(id, EmailDictionary.intern("dictionary-test@mit.edu"));
+        assertEquals(id, EmailDictionary.find("dictionary-test@mit.edu"));
+        assertEquals("dictionary-test@mit.edu", EmailDictionary.get(id));
+        assertEquals(-1, EmailDictionary.find("never-interned@mit.edu"));
+    }
+
+    // covers EmailDictionary domains new and shared, find of parts, length and copy
+    @Test
+    public void testDictionaryCopy() {
+        int first = EmailDictionary.intern("copy-test.1@copy-test.example.com");
+        int second = EmailDictionary.intern("copy-test+2@copy-test.example.com");
+        int third = EmailDictionary.intern("copy-test.1@mit.edu");
+        assertEquals(3, new HashSet<>(Arrays.asList(first, second, third)).size());
+        assertEquals("copy-test+2@copy-test.example.com", EmailDictionary.get(second));
+        assertEquals("copy-test.1@mit.edu", EmailDictionary.get(third));
+        assertEquals(-1, EmailDictionary.find("copy-test.1"));
+        assertEquals(-1, EmailDictionary.find("copy-test.1@copy-test"));
+        assertEquals(-1, EmailDictionary.find("copy-test.1@copy-test.example.com.au"));
+
+        byte[] destination = new byte[40];
+        assertEquals(33, EmailDictionary.length(first));
+        assertEquals(33, EmailDictionary.copy(first, destination, 0));
+        assertEquals(19, EmailDictionary.copy(third, destination, 5));
+        assertEquals("copy-copy-test.1@mit.edu", new String(destination, 0, 24, StandardCharsets.US_ASCII));
+    }
+
+    private static BitSet denseRange(int from, int to) {
+        BitSet bits = new BitSet();
+        bits.set(from, to);
+        return bits;
+    }
+
+    private static EmailBitmap fromBitSet(BitSet bits) {
+        int[] ids = bits.stream().toArray();
+        return EmailBitmap.of(ids, ids.length);
+    }
+}
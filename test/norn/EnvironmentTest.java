@@ -4,13 +4,38 @@
 package norn;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
 
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
 
 import org.junit.Test;
 
 import lib6005.parser.UnableToParseException;
+import norn.MailingList.BinarySnapshot;
+import norn.MailingList.Difference;
+import norn.MailingList.EmailDictionary;
+import norn.MailingList.EmailList;
+import norn.MailingList.EvaluationContext;
+import norn.MailingList.Intersection;
+import norn.MailingList.MailingList;
 import norn.MailingList.MailingParser;
+import norn.MailingList.ParallelEvaluator;
+import norn.MailingList.Union;
 
 /**
  * Tests for the static methods of Commands.
@@ -26,17 +51,48 @@ public class EnvironmentTest {
     //          Reassigning list
     //          Assign list to other lists
     //          Editing list definitions
+    //          Reassigning a list that others depend on
+    //          Cyclical definitions: direct, transitive
     //      evaluations:
     //          Number of emails in evaluation: 0, 1, >1
     //          Number of email lists in evaluation: 0, 1, >1
     //          Test Non-existent email lists
     //          Test empty emails within lists
     //          Fully closed list expressions
+    //          Expressions of 20000 operands
+    //          Repeated evaluation of a named list (cache hits, misses)
+    //          Parallel evaluation: unions, intersections, differences, named lists
+    //          Shared subexpressions: repeated named lists, structurally equal subexpressions,
+    //              a DAG of 100 levels; subexpressions with definitions; after a definition
+    //  snapshot:
+    //          unaffected by later assignments; read-only
+    //  concurrent queries:
+    //          during commands with several definitions
+    //  topologicalOrder:
+    //          Lists with 0, 1, >1 dependencies
     //  save:
     //          File can/can't be created/written to
+    //          Text, binary snapshot
+    //  checkpoint:
+    //          To a file: text, binary snapshot; file can't be written; environment not cleared
+    //          Written on the calling thread, by a checkpointer
+    //          Of the write-ahead log: without a log
     //  load:
     //          File does/doesn't exist
     //          File empty, non-empty
+    //          Text, binary snapshot, corrupt binary snapshot
+    //          Binary snapshot with an invalid email, nested deeper than the thread's stack
+    //          File can't be parsed: in its first chunk, in a later one
+    //  readFile/writeFile:
+    //          Text to binary to text
+    //  respond:
+    //          Recipients: 0, 1, >1, longer than the serializer's buffer; messages
+    //  readFile/readFiles:
+    //          Statements per line: 0, 1, >1; parentheses across lines; \n, \r\n line ends
+    //          Redefinitions; definitions containing definitions
+    //          Files: 1, >1, text and binary, depending on earlier files
+    //          Parsed on the calling thread, by an executor; chunks: 1, >1
+    //          Statement that can't be parsed
 
         
     @Test(expected=AssertionError.class)
@@ -118,6 +174,90 @@ public class EnvironmentTest {
 
     
     
+    @Test(expected=UnableToParseException.class)
+    public void testAssignDirectCycle() throws UnableToParseException, IOException {
+        Environment env = new Environment();
+        env.execute("list1 = list2");
+        env.execute("list2 = list1");
+    }
+    
+    @Test(expected=UnableToParseException.class)
+    public void testAssignTransitiveCycle() throws UnableToParseException, IOException {
+        Environment env = new Environment();
+        env.execute("list1 = list2");
+        env.execute("list2 = list3, a@a.com");
+        env.execute("list3 = list1 ! b@b.com");
+    }
+    
+    //Test parallel evaluation and snapshot()
+    
+    @Test
+    public void testParallelEvaluationMatchesSequential() throws UnableToParseException, IOException {
+        Environment sequential = new Environment();
+        Environment parallel = new Environment();
+        parallel.setParallelEvaluator(new ParallelEvaluator(new ForkJoinPool(4), 2));
+        String[] commands = {
+            "a = a@a.com, b@b.com, c@c.com", "b = b@b.com, d@d.com", "c = a ! b",
+            "a, b, c, e@e.com", "a * b * (a, b)", "a ! b ! c ! d@d.com", "(a, b) * (b, c) ! b@b.com"
+        };
+        for (String command : commands) {
+            assertEquals(MailingParser.parse(sequential.execute(command)), MailingParser.parse(parallel.execute(command)));
+        }
+    }
+    
+    @Test
+    public void testSnapshotUnaffectedByAssign() throws UnableToParseException, IOException {
+        Environment env = new Environment();
+        env.execute("list1 = a@a.com");
+        Environment snapshot = env.snapshot();
+        env.execute("list1 = b@b.com");
+        assertEquals(MailingParser.parse("a@a.com"), snapshot.evaluate("list1"));
+        assertEquals(MailingParser.parse("b@b.com"), env.evaluate("list1"));
+    }
+    
+    @Test(expected=UnsupportedOperationException.class)
+    public void testSnapshotReadOnly() throws UnableToParseException, IOException {
+        Environment env = new Environment();
+        env.snapshot().execute("list1 = a@a.com");
+    }
+    
+    @Test
+    public void testQueriesSeeWholeCommands() throws Exception {
+        Environment env = new Environment();
+        env.execute("a = x@mit.edu; b = x@mit.edu");
+        Thread writer = new Thread(() -> {
+            try {
+                for (int i = 0; i < 500; i++) {
+                    env.execute("a = x" + i + "@mit.edu; b = x" + i + "@mit.edu");
+                }
+            } catch (UnableToParseException e) {
+                throw new AssertionError(e);
+            }
+        });
+        writer.start();
+        while (writer.isAlive()) {
+            assertEquals("Expected a and b from the same command", "", env.execute("a ! b"));
+        }
+        writer.join();
+        assertEquals("x499@mit.edu", env.execute("a * b"));
+    }
+    
+    //Test topologicalOrder()
+    
+    @Test
+    public void testTopologicalOrder() throws UnableToParseException, IOException {
+        Environment env = new Environment();
+        env.execute("list3 = list2, list1");
+        env.execute("list2 = list1 * a@a.com");
+        env.execute("list1 = a@a.com");
+        env.execute("other = b@b.com");
+        List<String> order = env.topologicalOrder();
+        assertEquals(4, order.size());
+        assertTrue(order.indexOf("list1") < order.indexOf("list2"));
+        assertTrue(order.indexOf("list2") < order.indexOf("list3"));
+        assertTrue(order.contains("other"));
+    }
+    
     //Test evaluate()
     
     @Test
@@ -158,6 +298,90 @@ public class EnvironmentTest {
         assertEquals(MailingParser.parse(expected), MailingParser.parse(returned));
     }
     
+    @Test
+    public void testEvaluateNamedListCached() throws UnableToParseException, IOException {
+        Environment env = new Environment();
+        env.execute("list1 = a@a.com");
+        env.execute("list2 = list1, b@b.com");
+        assertEquals(0, env.getCacheHits());
+        assertEquals(1, env.getCacheMisses()); // list1 evaluated while defining list2
+        
+        env.execute("list2");
+        assertEquals(1, env.getCacheHits()); // list1 reused while evaluating list2
+        assertEquals(2, env.getCacheMisses());
+        
+        String returned = env.execute("list2");
+        assertEquals(2, env.getCacheHits());
+        assertEquals(2, env.getCacheMisses());
+        assertEquals(MailingParser.parse("a@a.com, b@b.com"), MailingParser.parse(returned));
+    }
+    
+    @Test
+    public void testEvaluateSharedSubexpressionsOnce() throws UnableToParseException, IOException {
+        Environment env = new Environment();
+        env.execute("staff = a@a.com, b@b.com; eng = staff * a@a.com; sales = staff ! a@a.com");
+        long lookups = env.getCacheHits() + env.getCacheMisses();
+        EvaluationContext context = new EvaluationContext();
+        MailingList query = MailingParser.parse("(eng, sales) * (eng, sales), staff, staff");
+        assertEquals(MailingParser.parse("a@a.com, b@b.com"), query.evaluate(env, context));
+        // the environment is asked for eng, staff while evaluating eng, and sales, once each
+        assertEquals(lookups + 3, env.getCacheHits() + env.getCacheMisses());
+        assertEquals(5, context.size()); // eng, sales, staff, (eng, sales), the intersection
+        
+        // each level refers to the one below twice: 2^100 paths, 100 distinct subexpressions
+        MailingList level = new EmailList(new HashSet<>(Arrays.asList("u0@mit.edu")));
+        for (int i = 1; i <= 100; i++) {
+            level = new Union(new Intersection(level, level), new EmailList(new HashSet<>(Arrays.asList("u" + i + "@mit.edu"))));
+        }
+        assertEquals(101, level.evaluate(env).size());
+    }
+    
+    @Test
+    public void testEvaluateSharedSubexpressionsWithDefinitions() throws UnableToParseException, IOException {
+        Environment env = new Environment();
+        env.execute("x = y@mit.edu");
+        env.execute("(x = x, z@mit.edu), (x = x, z@mit.edu)"); // both definitions performed
+        assertEquals(3, ((Union) env.get("x")).getLists().size()); // y@mit.edu, z@mit.edu, z@mit.edu
+        
+        // a subexpression evaluated before a definition is evaluated again after it
+        String returned = env.execute("a = b@mit.edu; c = a, d@mit.edu; a = e@mit.edu; a, d@mit.edu");
+        assertEquals(MailingParser.parse("e@mit.edu, d@mit.edu"), MailingParser.parse(returned));
+        assertEquals(MailingParser.parse("e@mit.edu, d@mit.edu"), MailingParser.parse(env.execute("c")));
+    }
+    
+    @Test
+    public void testReassignInvalidatesDependents() throws UnableToParseException, IOException {
+        Environment env = new Environment();
+        env.execute("list1 = a@a.com");
+        env.execute("list2 = list1, b@b.com");
+        env.execute("list3 = list2 ! b@b.com");
+        env.execute("other = c@c.com");
+        env.execute("list3, other");
+        
+        env.execute("list1 = d@d.com");
+        String returned = env.execute("list3");
+        assertEquals(MailingParser.parse("d@d.com"), MailingParser.parse(returned));
+        
+        long misses = env.getCacheMisses();
+        env.execute("other");
+        assertEquals("Expected unrelated list to stay cached", misses, env.getCacheMisses());
+    }
+
+    @Test
+    public void testEvaluateLongExpressions() throws UnableToParseException, IOException {
+        Environment env = new Environment();
+        StringBuilder names = new StringBuilder("list0");
+        StringBuilder intersection = new StringBuilder("everyone");
+        for (int i = 1; i < 20000; i++) {
+            names.append(", list").append(i);
+            intersection.append(" * everyone");
+        }
+        env.execute("list7 = a@a.com; list19999 = b@b.com, c@c.com");
+        env.execute("everyone = " + names);
+        String returned = env.execute("(" + intersection + ") ! list7, (" + names + ")");
+        assertEquals(MailingParser.parse("a@a.com, b@b.com, c@c.com"), MailingParser.parse(returned));
+    }
+
     //Test save()
     
     @Test
@@ -185,6 +409,64 @@ public class EnvironmentTest {
         assertEquals(list2, "b@b.com");
     }
     
+    //Test checkpoint
+    
+    @Test
+    public void testCheckpointKeepsEnvironment() throws UnableToParseException, IOException{
+        Environment env = new Environment();
+        env.execute("list1 = a@a.com, b@b.com");
+        env.execute("list2 = list1 ! b@b.com");
+        Path file = Paths.get("test/ThisIsACheckpoint.snapshot");
+        try {
+            assertEquals("", env.execute("!checkpointThisIsACheckpoint.snapshot"));
+            assertTrue(BinarySnapshot.isSnapshot(file));
+            assertEquals("a@a.com", env.execute("list2"));
+            Environment loaded = new Environment();
+            assertEquals("", loaded.execute("!loadThisIsACheckpoint.snapshot"));
+            assertEquals("a@a.com", loaded.execute("list2"));
+            assertEquals(1, env.getCheckpointCount());
+            assertFalse(Files.exists(Paths.get("test/ThisIsACheckpoint.snapshot.tmp")));
+        } finally {
+            Files.deleteIfExists(file);
+        }
+    }
+    
+    @Test
+    public void testCheckpointUnwritableName() throws UnableToParseException{
+        Environment env = new Environment();
+        env.execute("list1 = a@a.com");
+        assertEquals("File could not be created or written to", env.execute("!checkpointnorn")); //norn is a pre-existing folder
+        assertEquals(1, env.getCheckpointFailures());
+        assertEquals("a@a.com", env.execute("list1"));
+    }
+    
+    @Test
+    public void testCheckpointInBackground() throws UnableToParseException, IOException, InterruptedException{
+        Environment env = new Environment();
+        ExecutorService checkpointer = Executors.newSingleThreadExecutor();
+        env.setCheckpointer(checkpointer);
+        Path file = Paths.get("test/ThisIsABackgroundCheckpoint");
+        try {
+            env.execute("list1 = a@a.com");
+            assertEquals("", env.execute("!checkpointThisIsABackgroundCheckpoint"));
+            env.execute("list1 = b@b.com"); // after the snapshot was taken
+            checkpointer.shutdown();
+            assertTrue(checkpointer.awaitTermination(10, TimeUnit.SECONDS));
+            Environment loaded = new Environment();
+            assertEquals("", loaded.execute("!loadThisIsABackgroundCheckpoint"));
+            assertEquals("a@a.com", loaded.execute("list1"));
+            assertEquals("b@b.com", env.execute("list1"));
+        } finally {
+            Files.deleteIfExists(file);
+        }
+    }
+    
+    @Test
+    public void testCheckpointWithoutLog() throws UnableToParseException{
+        Environment env = new Environment();
+        assertEquals(Environment.NO_WRITE_AHEAD_LOG, env.execute("!checkpoint"));
+    }
+    
     //Test load()
     
     @Test
@@ -219,5 +501,226 @@ public class EnvironmentTest {
         assert (expected1.equals(returned) || expected2.equals(returned));
     }
     
-}
+    @Test
+    public void testLoadBinarySnapshot() throws UnableToParseException, IOException{
+        Environment env = new Environment();
+        env.execute("list1 = a@a.com, b@b.com, c@c.com");
+        env.execute("list2 = list1 ! (b@b.com * list1), d@d.com");
+        env.execute("list3 = ()");
+        String expected = env.execute("list2, list3");
+        assertEquals("", env.execute("!saveThisIsABinarySnapshot.snapshot"));
+        assertTrue(BinarySnapshot.isSnapshot(Paths.get("test/ThisIsABinarySnapshot.snapshot")));
+        assertEquals("", env.execute("list1"));
+        assertEquals("", env.execute("!loadThisIsABinarySnapshot.snapshot"));
+        Files.delete(Paths.get("test/ThisIsABinarySnapshot.snapshot"));
+        assertEquals(MailingParser.parse(expected), MailingParser.parse(env.execute("list2, list3")));
+        List<String> order = env.topologicalOrder();
+        assertTrue("Expected list1 before list2", order.indexOf("list1") < order.indexOf("list2"));
+    }
+    
+    @Test
+    public void testLoadCorruptBinarySnapshot() throws UnableToParseException, IOException{
+        Environment env = new Environment();
+        env.execute("list1 = a@a.com, b@b.com");
+        env.execute("!saveThisIsACorruptSnapshot.snapshot");
+        Path file = Paths.get("test/ThisIsACorruptSnapshot.snapshot");
+        byte[] bytes = Files.readAllBytes(file);
+        Files.write(file, Arrays.copyOf(bytes, bytes.length - 3));
+        String returned = env.execute("!loadThisIsACorruptSnapshot.snapshot");
+        Files.delete(file);
+        assertEquals(Environment.FILE_CANNOT_BE_PARSED, returned);
+    }
+    
+    @Test
+    public void testLoadBinarySnapshotInvalidEmail() throws UnableToParseException, IOException{
+        Environment env = new Environment();
+        env.execute("list1 = snapshot-alice@mit.edu, snapshot-bob@mit.edu");
+        env.execute("!saveThisIsAnInvalidEmailSnapshot.snapshot");
+        Path file = Paths.get("test/ThisIsAnInvalidEmailSnapshot.snapshot");
+        String bytes = new String(Files.readAllBytes(file), StandardCharsets.ISO_8859_1);
+        Files.write(file, bytes.replace("snapshot-alice@mit.edu", "snapshot-alicexmit.edu").getBytes(StandardCharsets.ISO_8859_1));
+        String returned = env.execute("!loadThisIsAnInvalidEmailSnapshot.snapshot");
+        Files.delete(file);
+        assertEquals(Environment.FILE_CANNOT_BE_PARSED, returned);
+        assertEquals(-1, EmailDictionary.find("snapshot-alicexmit.edu"));
+        assertEquals("snapshot-carol@mit.edu", env.execute("snapshot-carol@mit.edu"));
+        assertEquals("snapshot-alice@mit.edu", EmailDictionary.get(EmailDictionary.find("snapshot-alice@mit.edu")));
+        assertEquals("snapshot-bob@mit.edu", EmailDictionary.get(EmailDictionary.find("snapshot-bob@mit.edu")));
+    }
+    
+    @Test
+    public void testReadDeepBinarySnapshot() throws UnableToParseException, IOException{
+        final int depth = 100000;
+        Path file = Paths.get("test/ThisIsADeepSnapshot.snapshot");
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(0x4E4F524E); // MAGIC
+        out.writeInt(1); // VERSION
+        out.writeInt(1); // emails
+        out.writeInt("a@a.com".length());
+        out.writeBytes("a@a.com");
+        out.writeInt(1); // names
+        out.writeInt("deep".length());
+        out.writeBytes("deep");
+        out.writeInt(1); // definitions
+        out.writeInt(0);
+        for (int i = 0; i < depth; i++) { // a@a.com ! (a@a.com ! ( ... deep))
+            out.writeByte(5); // DIFFERENCE
+            out.writeInt(2);
+            out.writeByte(1); // EMAILS
+            out.writeInt(1);
+            out.writeInt(0);
+        }
+        out.writeByte(2); // NAME
+        out.writeInt(0);
+        out.close();
+        try {
+            Files.write(file, bytes.toByteArray());
+            MailingList deep = BinarySnapshot.read(file).get("deep");
+            for (int i = 0; i < depth; i++) {
+                assertTrue("expected difference at depth " + i, deep instanceof Difference);
+                deep = ((Difference) deep).getLists().get(1);
+            }
+            assertEquals(MailingParser.parse("deep"), deep);
+            
+            Files.write(file, Arrays.copyOf(bytes.toByteArray(), bytes.size() - 1));
+            try {
+                BinarySnapshot.read(file);
+                assertTrue("expected corrupt snapshot", false);
+            } catch (UnableToParseException e) {
+                // expected
+            }
+        } finally {
+            Files.delete(file);
+        }
+    }
+    
+    @Test
+    public void testConvertTextToBinaryToText() throws UnableToParseException, IOException{
+        Path text = Files.createTempFile("norn", ".txt");
+        Path binary = Files.createTempFile("norn", Environment.SNAPSHOT_EXTENSION);
+        Path converted = Files.createTempFile("norn", ".txt");
+        try {
+            Files.write(text, Arrays.asList("a = x@mit.edu, y@mit.edu", "b = a * (y@mit.edu, z@mit.edu)", "c = b, (a ! b)"));
+            SnapshotConverter.main(new String[] { text.toString(), binary.toString() });
+            assertTrue(BinarySnapshot.isSnapshot(binary));
+            SnapshotConverter.main(new String[] { binary.toString(), converted.toString() });
+            assertFalse(BinarySnapshot.isSnapshot(converted));
+
+            Environment fromText = new Environment();
+            fromText.readFile(text);
+            Environment roundTrip = new Environment();
+            roundTrip.readFile(converted);
+            for (String name : Arrays.asList("a", "b", "c")) {
+                assertEquals(fromText.get(name), roundTrip.get(name));
+                assertEquals(fromText.evaluate(name), roundTrip.evaluate(name));
+            }
+        } finally {
+            Files.delete(text);
+            Files.delete(binary);
+            Files.delete(converted);
+        }
+    }
+    
+    @Test
+    public void testLoadFileUnparseable() throws UnableToParseException, IOException{
+        Path file = Paths.get("test/ThisIsAnUnparseableFile");
+        Files.write(file, Arrays.asList("a = x@mit.edu", "b = (y@mit.edu"));
+        Environment env = new Environment();
+        String returned = env.execute("!loadThisIsAnUnparseableFile");
+        Files.delete(file);
+        assertEquals(Environment.FILE_CANNOT_BE_PARSED, returned);
+    }
+    
+    @Test
+    public void testLoadFileUnparseableLate() throws UnableToParseException, IOException{
+        Path file = Paths.get("test/ThisIsALateUnparseableFile");
+        List<String> lines = new ArrayList<>();
+        for (int i = 0; i < 10000; i++) { // many chunks, all before the bad line
+            lines.add("late" + i + " = user" + i + "@mit.edu");
+        }
+        lines.add("bad = (y@mit.edu");
+        Files.write(file, lines);
+        Environment env = new Environment();
+        env.execute("late0 = old@mit.edu");
+        String returned = env.execute("!loadThisIsALateUnparseableFile");
+        Files.delete(file);
+        assertEquals(Environment.FILE_CANNOT_BE_PARSED, returned);
+        assertEquals("old@mit.edu", env.execute("late0"));
+        assertEquals(1, env.size());
+    }
+    
+    @Test
+    public void testReadFileStatements() throws UnableToParseException, IOException{
+        Path file = Files.createTempFile("norn", ".txt");
+        try {
+            Files.write(file, ("a = x@mit.edu;b = a, y@mit.edu;\r\n"
+                    + "\n"
+                    + "c = (b,\r\n"
+                    + "  z@mit.edu); a = w@mit.edu\n"
+                    + "d = (e = v@mit.edu), a\n").getBytes(StandardCharsets.UTF_8));
+            Environment env = new Environment();
+            env.readFile(file);
+            assertEquals(5, env.size());
+            assertEquals("w@mit.edu", env.execute("a"));
+            assertEquals(MailingParser.parse("w@mit.edu, y@mit.edu"), MailingParser.parse(env.execute("b")));
+            assertEquals("z@mit.edu", env.execute("c")); // the line end ends the sequence's first element
+            assertEquals(MailingParser.parse("v@mit.edu, w@mit.edu"), MailingParser.parse(env.execute("d")));
+            assertEquals("v@mit.edu", env.execute("e"));
+        } finally {
+            Files.delete(file);
+        }
+    }
+    
+    @Test
+    public void testReadFilesInParallel() throws UnableToParseException, IOException{
+        Path text = Files.createTempFile("norn", ".txt");
+        Path binary = Files.createTempFile("norn", Environment.SNAPSHOT_EXTENSION);
+        Path dependent = Files.createTempFile("norn", ".txt");
+        try {
+            StringBuilder lists = new StringBuilder();
+            for (int i = 0; i < 20000; i++) { // several chunks
+                lists.append("list" + i + " = user" + i + "@mit.edu" + (i % 100 > 0 ? ", list" + (i - 1) : "") + ";\n");
+            }
+            Files.write(text, lists.toString().getBytes(StandardCharsets.UTF_8));
+            Environment saved = new Environment();
+            saved.execute("s = a@mit.edu, b@mit.edu; t = s * b@mit.edu");
+            saved.writeFile(binary, true);
+            Files.write(dependent, Arrays.asList("u = list19999 * (t, user19999@mit.edu), t", "s = c@mit.edu"));
 
+            Environment env = new Environment();
+            env.readFiles(Arrays.asList(text, binary, dependent), ForkJoinPool.commonPool());
+            Environment sequential = new Environment();
+            for (Path file : Arrays.asList(text, binary, dependent)) {
+                sequential.readFile(file);
+            }
+            assertEquals(20003, env.size());
+            assertEquals("user19999@mit.edu", env.execute("u"));
+            assertEquals("", env.execute("t")); // s was redefined by the last file
+            assertEquals("c@mit.edu", env.execute("s"));
+            assertEquals(env.execute("list19999"), sequential.execute("list19999"));
+            List<String> order = env.topologicalOrder();
+            assertTrue("Expected list19900 before list19999", order.indexOf("list19900") < order.indexOf("list19999"));
+        } finally {
+            Files.delete(text);
+            Files.delete(binary);
+            Files.delete(dependent);
+        }
+    }
+    
+    @Test
+    public void testRespondSerialized() throws UnableToParseException, IOException{
+        Environment env = new Environment();
+        ResponseSerializer serializer = new ResponseSerializer(7); // smaller than an address
+        for (String command : Arrays.asList("a = ()", "a", "b = x@mit.edu", "c = b, y@mit.edu, z@mit.edu", "!checkpoint")) {
+            Response response = env.respond(command, null);
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            serializer.write(response, out);
+            serializer.flush(out);
+            assertEquals(env.execute(command), new String(out.toByteArray(), StandardCharsets.UTF_8));
+            assertEquals(env.execute(command), response.toString());
+        }
+        assertEquals(MailingParser.parse("x@mit.edu, y@mit.edu, z@mit.edu"), MailingParser.parse(env.execute("c")));
+        assertEquals(Environment.NO_WRITE_AHEAD_LOG, env.respond("!checkpoint", null).getMessage());
+    }
+}
@@ -0,0 +1,99 @@
+package norn;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.Test;
+
+import com.sun.net.httpserver.HttpServer;
+
+public class HttpAdmissionTest {
+
+    /*
+     * Testing strategy
+     *
+     * requests: below capacity, at capacity (one handled and one waiting), beyond capacity
+     * after saturation: slots freed, requests admitted again
+     */
+
+    private static final int PORT = 5030;
+
+    @Test(expected=AssertionError.class)
+    public void testAssertionsEnabled() {
+        assert false; // make sure assertions are enabled with VM argument: -ea
+    }
+
+    private static int get(String path) throws IOException {
+        final HttpURLConnection connection = (HttpURLConnection) new URL("http://localhost:" + PORT + path).openConnection();
+        connection.setReadTimeout(5000);
+        final int status = connection.getResponseCode();
+        if (status == 503) {
+            assertEquals("1", connection.getHeaderField("Retry-After"));
+        }
+        connection.disconnect();
+        return status;
+    }
+
+    @Test(timeout = 20000)
+    public void testRefusesBeyondCapacity() throws Exception {
+        final CountDownLatch release = new CountDownLatch(1);
+        final CountDownLatch started = new CountDownLatch(1);
+        final ExecutorService workers = Executors.newFixedThreadPool(1);
+        // one worker and one waiting request
+        final HttpAdmission admission = new HttpAdmission(exchange -> {
+            started.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            exchange.getRequestBody().close();
+            exchange.sendResponseHeaders(200, 2);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write("ok".getBytes());
+            }
+            exchange.close();
+        }, workers, 2, 1);
+        final HttpServer server = HttpServer.create(new InetSocketAddress(PORT), 0);
+        server.createContext("/", admission);
+        server.setExecutor(null);
+        server.start();
+        final ExecutorService clients = Executors.newFixedThreadPool(2);
+        try {
+            final Future<Integer> first = clients.submit(() -> get("/first"));
+            started.await();
+            final Future<Integer> second = clients.submit(() -> get("/second"));
+            while (admission.getQueueDepth() < 1) {
+                Thread.sleep(10);
+            }
+            assertEquals(1, admission.getActiveCount());
+            assertEquals(1, admission.getQueueDepth());
+
+            assertEquals(503, get("/third"));
+            assertEquals(1, admission.getRejectedCount());
+            assertEquals(2, admission.getAdmittedCount());
+
+            release.countDown();
+            assertEquals(200, (int) first.get());
+            assertEquals(200, (int) second.get());
+            assertEquals(200, get("/fourth"));
+            assertEquals(3, admission.getAdmittedCount());
+            assertEquals(1, admission.getRejectedCount());
+            assertEquals(0, admission.getQueueDepth());
+        } finally {
+            release.countDown();
+            server.stop(0);
+            clients.shutdownNow();
+            workers.shutdownNow();
+        }
+    }
+}
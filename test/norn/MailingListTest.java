@@ -1,14 +1,22 @@
 package norn;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
+import java.util.Arrays;
 import java.util.HashSet;
+import java.util.List;
 
 import org.junit.Test;
 
 import lib6005.parser.UnableToParseException;
+import norn.MailingList.Difference;
+import norn.MailingList.EmailDictionary;
 import norn.MailingList.EmailList;
+import norn.MailingList.Intersection;
 import norn.MailingList.MailingList;
 import norn.MailingList.MailingParser;
 
@@ -34,6 +42,11 @@ public class MailingListTest {
      * evaluate:
      *      recipients: 0, 1, >1
      *      environment size: 0, 1, >1
+     * EmailList construction:
+     *      recipients: blank, lowercase, mixed case; invalid address (without relying on -ea)
+     * sharing (static constructors, shared, Environment.assign):
+     *      EmailList, NamedList, Union, Intersection, Difference
+     *      equal expressions built separately, parsed separately, in different definitions
      * All tests cover each area at least once
      *
      */
@@ -106,4 +119,56 @@ public class MailingListTest {
         environment.assign("c", MailingParser.parse("a@mit.edu, b@mit.edu"));
         assertEquals(three.evaluate(environment), four.evaluate(environment));
     }
+    
+    // covers sharing of EmailList, NamedList, Union, Intersection, Difference built separately
+    @Test
+    public void testConstructorsShareEqualLists() {
+        final MailingList emails = MailingList.emailList(new HashSet<>(Arrays.asList("j@mit.edu", "b@mit.edu")));
+        assertSame(emails, MailingList.emailList(new HashSet<>(Arrays.asList("B@MIT.EDU", "j@mit.edu"))));
+        assertSame(MailingList.emailList("a"), MailingList.emailList("a"));
+        final MailingList union = MailingList.union(MailingList.emailList("a"), emails);
+        assertSame(union, MailingList.union(MailingParser.parse("a"), MailingParser.parse("j@mit.edu, b@mit.edu")));
+        assertSame(MailingList.intersection(union, emails), MailingList.intersection(union, emails));
+        assertSame(MailingList.difference(union, emails), MailingList.difference(union, emails));
+        assertNotSame(MailingList.difference(union, emails), MailingList.difference(emails, union));
+    }
+    
+    // covers sharing of expressions parsed separately, in different definitions
+    @Test
+    public void testDefinitionsShareEqualSubexpressions() throws UnableToParseException {
+        final Environment environment = new Environment();
+        final MailingList parsed = MailingParser.parse("(x, j@mit.edu) * y ! b@mit.edu");
+        environment.assign("a", MailingParser.parse("(x, j@mit.edu) * y ! b@mit.edu"));
+        environment.assign("b", MailingParser.parse("(x, j@mit.edu) * y ! b@mit.edu"));
+        environment.assign("c", MailingParser.parse("(x, j@mit.edu) * z"));
+        assertSame(environment.get("a"), environment.get("b"));
+        final List<MailingList> difference = ((Difference) environment.get("a")).getLists();
+        final List<MailingList> intersection = ((Intersection) environment.get("c")).getLists();
+        assertSame(((Intersection) difference.get(0)).getLists().get(0), intersection.get(0));
+        assertEquals(environment.get("a"), parsed);
+        assertTrue(MailingList.sharedCount() > 0);
+    }
+    
+    // covers EmailList construction from blank, lowercase and mixed case recipients
+    @Test
+    public void testEmailListCanonicalRecipients() {
+        final EmailList list = new EmailList(new HashSet<>(Arrays.asList("", " \t", "b@mit.edu", "J.Doe+x@MIT.edu")));
+        assertEquals(new HashSet<>(Arrays.asList("b@mit.edu", "j.doe+x@mit.edu")), list.getEmails());
+        assertEquals(list, MailingParser.parse("j.doe+x@mit.edu, B@Mit.Edu"));
+    }
+    
+    // covers EmailList construction from an invalid address, rejected without -ea and
+    // before any recipient is added to EmailDictionary
+    @Test
+    public void testEmailListInvalidRecipient() {
+        for (String invalid : Arrays.asList("not an address", "nodomain", "a@b@mit.edu", "\u00e9@mit.edu")) {
+            try {
+                MailingList.emailList(new HashSet<>(Arrays.asList("invalid-recipient-test@mit.edu", invalid)));
+                fail("expected IllegalArgumentException for " + invalid);
+            } catch (IllegalArgumentException e) {
+                // expected
+            }
+        }
+        assertEquals(-1, EmailDictionary.find("invalid-recipient-test@mit.edu"));
+    }
 }
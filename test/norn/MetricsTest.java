@@ -0,0 +1,103 @@
+package norn;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import lib6005.parser.UnableToParseException;
+
+public class MetricsTest {
+
+    /*
+     * Testing strategy
+     *
+     * LatencyHistogram.bucket: 0, at and around bucket bounds, beyond the last bound
+     * LatencyHistogram.upperBound: within 12.5% of every duration in its bucket
+     * toPrometheusText: no durations, durations in several buckets, sampled gauges and counters
+     * Command.of: query, definition, !save, !load, !checkpoint, !explain of a definition
+     * Environment.execute: query, definition, with and without a transport
+     */
+
+    @Test(expected=AssertionError.class)
+    public void testAssertionsEnabled() {
+        assert false; // make sure assertions are enabled with VM argument: -ea
+    }
+
+    // asserts nanos is counted in the bucket whose bounds contain it
+    private static void assertBucket(long nanos) {
+        final int bucket = LatencyHistogram.bucket(nanos);
+        assertTrue("above upper bound: " + nanos, nanos <= LatencyHistogram.upperBound(bucket));
+        assertTrue("below lower bound: " + nanos, bucket == 0 || nanos > LatencyHistogram.upperBound(bucket - 1));
+    }
+
+    @Test
+    public void testBuckets() {
+        assertEquals(0, LatencyHistogram.bucket(0));
+        assertEquals(0, LatencyHistogram.bucket(1024));
+        assertEquals(1, LatencyHistogram.bucket(1025));
+        assertEquals(Long.MAX_VALUE, LatencyHistogram.upperBound(LatencyHistogram.bucket(Long.MAX_VALUE)));
+        for (long bound = 1024; bound < 1L << 40; bound = bound * 3 / 2) {
+            assertBucket(bound - 1);
+            assertBucket(bound);
+            assertBucket(bound + 1);
+        }
+        for (int bucket = 0; LatencyHistogram.upperBound(bucket) < Long.MAX_VALUE; bucket++) {
+            final long bound = LatencyHistogram.upperBound(bucket);
+            assertEquals(bucket, LatencyHistogram.bucket(bound));
+            assertEquals(bucket + 1, LatencyHistogram.bucket(bound + 1));
+            assertTrue("bucket too wide: " + bucket, bucket == 0 || bound <= (LatencyHistogram.upperBound(bucket - 1) + 1) * 9 / 8);
+        }
+        assertTrue(LatencyHistogram.bucket(1000000) != LatencyHistogram.bucket(1490000)); // 1.0 and 1.49 ms
+    }
+
+    @Test
+    public void testPrometheusText() {
+        final Metrics metrics = new Metrics();
+        assertTrue(!metrics.toPrometheusText().contains("norn_parse_duration_seconds_count"));
+        metrics.record(Metrics.Stage.PARSE, Metrics.Transport.HTTP, Metrics.Command.QUERY, 500);
+        metrics.record(Metrics.Stage.PARSE, Metrics.Transport.HTTP, Metrics.Command.QUERY, 3000000);
+        metrics.record(Metrics.Stage.PARSE, Metrics.Transport.HTTP, Metrics.Command.QUERY, 1L << 40);
+        metrics.consoleConnectionOpened();
+        metrics.addGauge("norn_test_gauge", "A test gauge", () -> 7);
+        final String text = metrics.toPrometheusText();
+        final String labels = "transport=\"http\",command=\"query\"";
+        assertTrue(text, text.contains("# TYPE norn_parse_duration_seconds histogram\n"));
+        assertTrue(text, text.contains("norn_parse_duration_seconds_bucket{" + labels + ",le=\"1.024E-6\"} 1\n"));
+        assertTrue(text, text.contains("norn_parse_duration_seconds_bucket{" + labels + ",le=\"0.003145728\"} 2\n"));
+        assertTrue(text, text.contains("norn_parse_duration_seconds_bucket{" + labels + ",le=\"+Inf\"} 3\n"));
+        assertTrue(text, text.contains("norn_parse_duration_seconds_count{" + labels + "} 3\n"));
+        assertTrue(text, !text.contains("command=\"definition\""));
+        assertTrue(text, text.contains("norn_console_connections 1\n"));
+        assertTrue(text, text.contains("# TYPE norn_test_gauge gauge\nnorn_test_gauge 7\n"));
+    }
+
+    @Test
+    public void testCommandOf() {
+        assertEquals(Metrics.Command.QUERY, Metrics.Command.of("a, b@c.com"));
+        assertEquals(Metrics.Command.QUERY, Metrics.Command.of("!explain a"));
+        assertEquals(Metrics.Command.QUERY, Metrics.Command.of("!explain a = b@c.com"));
+        assertEquals(Metrics.Command.CHECKPOINT, Metrics.Command.of("!checkpointfile=1.txt"));
+        assertEquals(Metrics.Command.DEFINITION, Metrics.Command.of("x = a; x"));
+        assertEquals(Metrics.Command.SAVE, Metrics.Command.of("!save file.txt"));
+        assertEquals(Metrics.Command.LOAD, Metrics.Command.of("!load file.txt"));
+    }
+
+    @Test
+    public void testEnvironmentRecordsStages() throws UnableToParseException {
+        final Environment environment = new Environment();
+        final Metrics metrics = new Metrics();
+        environment.setMetrics(metrics);
+        environment.execute("a = b@c.com", Metrics.Transport.CONSOLE);
+        environment.execute("a, d@e.com", Metrics.Transport.HTTP);
+        environment.execute("a");
+        for (Metrics.Stage stage : new Metrics.Stage[] { Metrics.Stage.PARSE, Metrics.Stage.EVALUATE, Metrics.Stage.SERIALIZE }) {
+            assertEquals(1, metrics.getCount(stage, Metrics.Transport.CONSOLE, Metrics.Command.DEFINITION));
+            assertEquals(1, metrics.getCount(stage, Metrics.Transport.HTTP, Metrics.Command.QUERY));
+            assertEquals(0, metrics.getCount(stage, Metrics.Transport.CONSOLE, Metrics.Command.QUERY));
+        }
+        assertEquals(1, metrics.getCount(Metrics.Stage.LOCK_WAIT, Metrics.Transport.CONSOLE, Metrics.Command.DEFINITION));
+        assertEquals(0, metrics.getCount(Metrics.Stage.LOCK_WAIT, Metrics.Transport.HTTP, Metrics.Command.QUERY));
+        assertEquals(0, metrics.getCount(Metrics.Stage.TOTAL, Metrics.Transport.HTTP, Metrics.Command.QUERY));
+    }
+}
@@ -8,10 +8,23 @@ import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.OutputStream;
 import java.io.PrintWriter;
 import java.net.HttpURLConnection;
 import java.net.Socket;
 import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicReference;
+
+import lib6005.parser.UnableToParseException;
 
 import org.junit.Test;
 
@@ -45,6 +58,22 @@ public class NornServerTest {
      * 
      * Http and console requests
      * 
+     * Selector console
+     *  line endings \n, \r, \r\n, unterminated last line
+     *  several commands in one write, invalid command followed by more commands
+     *  many idle connections
+ *  client reset while its command waits for a worker
+     * 
+     * Handler threads
+     *  bounded pool for http and console, virtual supported or not
+ *  bounded pool with every thread held by an idle console connection
+     * 
+     * Metrics
+     *  console and http requests, gauges
+     * 
+     * Large responses
+     *  many buffers long: http (chunked), selector console, thread-per-connection console
+     * 
      * 
      */
     
@@ -405,4 +434,272 @@ public class NornServerTest {
         
         
     }
+    
+    @Test(timeout = 20000) // test line framing, pipelining and many idle connections on the selector console
+    public void testSelectorConsole() throws IOException, InterruptedException {
+        final SelectorConsoleServer server = new SelectorConsoleServer(5105, new Environment(), 2);
+        final Thread serverThread = new Thread(() -> {
+            try {
+                server.start();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        });
+        serverThread.start();
+        Thread.sleep(100); //allow time for server thread to start up
+        
+        final List<Socket> idle = new ArrayList<>();
+        try {
+            for (int i = 0; i < 200; i++) {
+                final Socket socket = new Socket(LOCALHOST, 5105);
+                socket.setSoTimeout(3000);
+                idle.add(socket);
+                BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+                assertTrue("expected hello message", in.readLine().startsWith("Welcome"));
+            }
+            
+            // several commands in one write, each line ending, and an unterminated last line
+            Socket socket = new Socket(LOCALHOST, 5105);
+            socket.setSoTimeout(3000);
+            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+            OutputStream out = socket.getOutputStream();
+            out.write("a = b@b\r\nc = d@d\rc\na".getBytes());
+            out.flush();
+            socket.shutdownOutput();
+            assertTrue("expected hello message", in.readLine().startsWith("Welcome"));
+            assertEquals("b@b", in.readLine());
+            assertEquals("d@d", in.readLine());
+            assertEquals("d@d", in.readLine());
+            assertEquals("b@b", in.readLine());
+            assertEquals("expected connection closed", null, in.readLine());
+            socket.close();
+            
+            // commands after an invalid one are not executed
+            socket = new Socket(LOCALHOST, 5105);
+            socket.setSoTimeout(3000);
+            in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+            PrintWriter printer = new PrintWriter(socket.getOutputStream(), true);
+            assertTrue("expected hello message", in.readLine().startsWith("Welcome"));
+            printer.println("a = (b@b");
+            printer.println("a = e@e");
+            assertEquals("Must enter valid command", in.readLine());
+            assertEquals("expected connection closed", null, in.readLine());
+            socket.close();
+            
+            // idle connections still work
+            in = new BufferedReader(new InputStreamReader(idle.get(0).getInputStream()));
+            printer = new PrintWriter(idle.get(0).getOutputStream(), true);
+            printer.println("a");
+            assertEquals("b@b", in.readLine());
+        } finally {
+            for (Socket socket : idle) {
+                socket.close();
+            }
+            server.close();
+            serverThread.join();
+        }
+    }
+    
+    @Test(timeout = 20000) // test a client that resets its connection while its command waits for the worker
+    public void testSelectorConsoleResetInFlight() throws Exception {
+        final CountDownLatch release = new CountDownLatch(1);
+        final Environment environment = new Environment() {
+            @Override public Response respond(String command, Metrics.Transport transport) throws UnableToParseException {
+                if (command.equals("block")) {
+                    try {
+                        release.await();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+                return super.respond(command, transport);
+            }
+        };
+        final AtomicReference<Throwable> uncaught = new AtomicReference<>();
+        final Thread.UncaughtExceptionHandler handler = Thread.getDefaultUncaughtExceptionHandler();
+        Thread.setDefaultUncaughtExceptionHandler((thread, e) -> uncaught.set(e));
+        final SelectorConsoleServer server = new SelectorConsoleServer(5112, environment, 1);
+        final Thread serverThread = new Thread(() -> {
+            try {
+                server.start();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        });
+        serverThread.start();
+        Thread.sleep(100); //allow time for server thread to start up
+        try {
+            // the only worker is busy with block, so the command of the other connection waits
+            final Socket blocking = new Socket(LOCALHOST, 5112);
+            blocking.setSoTimeout(3000);
+            BufferedReader in = new BufferedReader(new InputStreamReader(blocking.getInputStream()));
+            PrintWriter printer = new PrintWriter(blocking.getOutputStream(), true);
+            assertTrue("expected hello message", in.readLine().startsWith("Welcome"));
+            printer.println("block");
+            
+            final Socket reset = new Socket(LOCALHOST, 5112);
+            reset.setSoTimeout(3000);
+            assertTrue("expected hello message", new BufferedReader(new InputStreamReader(reset.getInputStream())).readLine().startsWith("Welcome"));
+            new PrintWriter(reset.getOutputStream(), true).println("a = b@b");
+            Thread.sleep(200); //allow time for the server to receive the command
+            reset.setSoLinger(true, 0);
+            reset.close();
+            Thread.sleep(200); //allow time for the server to drop the connection
+            
+            release.countDown();
+            assertEquals("", in.readLine());
+            printer.println("c@c");
+            assertEquals("c@c", in.readLine());
+            blocking.close();
+            assertEquals("expected no exception on a worker", null, uncaught.get());
+        } finally {
+            release.countDown();
+            server.close();
+            serverThread.join();
+            Thread.setDefaultUncaughtExceptionHandler(handler);
+        }
+    }
+    
+    @Test(timeout = 20000) // test handlers run by a bounded pool, and virtual threads where supported
+    public void testHandlerThreads() throws Exception {
+        final ExecutorService pool = HandlerThreads.pool(2);
+        final NornServer server = new NornServer(5026, 5106, new ArrayList<>(), 0, pool);
+        final Thread serverThread = new Thread(server::serve);
+        serverThread.start();
+        Thread.sleep(100); //allow time for server thread to start up
+        try {
+            assertEquals("b@b", executeGet(5026, "a=b@b"));
+            final Socket socket = new Socket(LOCALHOST, 5106);
+            socket.setSoTimeout(3000);
+            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+            PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
+            assertTrue("expected hello message", in.readLine().startsWith("Welcome"));
+            out.println("a, c@c");
+            final String response = in.readLine();
+            assertTrue("Expected b@b, c@c", response.contains("b@b") && response.contains("c@c"));
+            socket.close();
+        } finally {
+            server.stop();
+            serverThread.join();
+            pool.shutdownNow();
+        }
+        
+        try {
+            final ExecutorService virtual = HandlerThreads.virtual();
+            assertTrue(HandlerThreads.isVirtualSupported());
+            assertEquals("ran", virtual.submit(() -> "ran").get());
+            virtual.shutdown();
+        } catch (UnsupportedOperationException e) {
+            assertTrue(!HandlerThreads.isVirtualSupported());
+        }
+    }
+    
+    @Test(timeout = 20000) // test http requests answered while idle console connections hold every pooled thread
+    public void testHandlerPoolHeldByConsoles() throws Exception {
+        final ExecutorService pool = HandlerThreads.pool(2);
+        final NornServer server = new NornServer(5031, 5111, new ArrayList<>(), 0, pool);
+        final Thread serverThread = new Thread(server::serve);
+        serverThread.start();
+        Thread.sleep(100); //allow time for server thread to start up
+        final List<Socket> consoles = new ArrayList<>();
+        try {
+            for (int i = 0; i < 2; i++) {
+                final Socket socket = new Socket(LOCALHOST, 5111);
+                socket.setSoTimeout(3000);
+                consoles.add(socket);
+                BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+                assertTrue("expected hello message", in.readLine().startsWith("Welcome"));
+            }
+            assertEquals("b@b", executeGet(5031, "a=b@b"));
+            assertEquals("b@b", executeGet(5031, "a"));
+        } finally {
+            for (Socket socket : consoles) {
+                socket.close();
+            }
+            server.stop();
+            serverThread.join();
+            pool.shutdownNow();
+        }
+    }
+    
+    @Test(timeout = 20000) // test metrics of console and http requests
+    public void testMetrics() throws Exception {
+        final NornServer server = new NornServer(5027, 5107, new ArrayList<>());
+        final Thread serverThread = new Thread(server::serve);
+        serverThread.start();
+        Thread.sleep(100); //allow time for server thread to start up
+        try {
+            assertEquals("b@b", executeGet(5027, "a=b@b"));
+            final Socket socket = new Socket(LOCALHOST, 5107);
+            socket.setSoTimeout(3000);
+            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+            PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
+            assertTrue("expected hello message", in.readLine().startsWith("Welcome"));
+            out.println("a");
+            assertEquals("b@b", in.readLine());
+            
+            final HttpURLConnection connection = (HttpURLConnection) new URL(URL_PREFIX + 5027 + "/metrics").openConnection();
+            final BufferedReader metrics = new BufferedReader(new InputStreamReader(connection.getInputStream()));
+            final List<String> lines = new ArrayList<>();
+            for (String line = metrics.readLine(); line != null; line = metrics.readLine()) {
+                lines.add(line);
+            }
+            metrics.close();
+            assertTrue(lines.toString(), lines.contains("norn_request_duration_seconds_count{transport=\"http\",command=\"definition\"} 1"));
+            assertTrue(lines.toString(), lines.contains("norn_request_duration_seconds_count{transport=\"console\",command=\"query\"} 1"));
+            assertTrue(lines.toString(), lines.contains("norn_lock_wait_duration_seconds_count{transport=\"http\",command=\"definition\"} 1"));
+            assertTrue(lines.toString(), lines.contains("norn_console_connections 1"));
+            assertTrue(lines.toString(), lines.contains("norn_environment_lists 1"));
+            assertTrue(lines.toString(), lines.contains("norn_http_requests_admitted_total 1"));
+            socket.close();
+        } finally {
+            server.stop();
+            serverThread.join();
+        }
+    }
+    
+    @Test(timeout = 20000) // test responses many serializer buffers long over http and both consoles
+    public void testLargeResponses() throws Exception {
+        final Path file = Paths.get("test/ThisIsALargeListFile");
+        final StringBuilder list = new StringBuilder("big = ");
+        final List<String> addresses = new ArrayList<>();
+        for (int i = 0; i < 20000; i++) {
+            addresses.add("user" + i + "@mit.edu");
+        }
+        list.append(String.join(", ", addresses));
+        Files.write(file, list.toString().getBytes(StandardCharsets.UTF_8));
+        try {
+            final int[] consoleThreads = { NornServer.CONSOLE_THREADS, 0 };
+            for (int i = 0; i < consoleThreads.length; i++) {
+                final NornServer server = new NornServer(5028 + i, 5108 + i,
+                        new ArrayList<>(Arrays.asList("ThisIsALargeListFile")), consoleThreads[i]);
+                final Thread serverThread = new Thread(server::serve);
+                serverThread.start();
+                Thread.sleep(100); //allow time for server thread to start up
+                try {
+                    final String expected = new Environment().execute(list.toString());
+                    assertEquals(expected, executeGet(5028 + i, "big"));
+                    final HttpURLConnection connection = (HttpURLConnection) new URL(URL_PREFIX + (5028 + i) + URL_COMMAND + "big").openConnection();
+                    assertEquals("chunked", connection.getHeaderField("Transfer-Encoding"));
+                    connection.getInputStream().close();
+                    
+                    final Socket socket = new Socket(LOCALHOST, 5108 + i);
+                    socket.setSoTimeout(3000);
+                    BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+                    PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
+                    assertTrue("expected hello message", in.readLine().startsWith("Welcome"));
+                    out.println("big");
+                    out.println("big * user7@mit.edu");
+                    assertEquals(expected, in.readLine());
+                    assertEquals("user7@mit.edu", in.readLine());
+                    socket.close();
+                } finally {
+                    server.stop();
+                    serverThread.join();
+                }
+            }
+        } finally {
+            Files.delete(file);
+        }
+    }
 }
@@ -1,15 +1,19 @@
 package norn;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
 
 import java.util.Arrays;
 import java.util.HashSet;
 
 import org.junit.Test;
 
+import lib6005.parser.UnableToParseException;
 import norn.MailingList.EmailList;
 import norn.MailingList.MailingList;
 import norn.MailingList.MailingParser;
+import norn.MailingList.Union;
 
 public class ParserTest {
     // parse(input):
@@ -18,6 +22,7 @@ public class ParserTest {
     //    ~ Allowed special characters
     //    ~ Union, Difference, Intersection, EmailList
     //    ~ Chained operations, Nested operations
+    //    ~ Chains regrouped with (), chains of 20000 operands, nesting 20000 deep
     //    ~ Non-default groupings using ()
     //    ~ Whitespace
     //    ~ alphanumeric
@@ -25,6 +30,9 @@ public class ParserTest {
     //    ~ illegal characters (includes illegal operators)
     //    ~ incomplete expressions
     //    ~ incomplete emails
+    //  - parser implementations (parseWithDescentParser vs parseWithParserLib):
+    //    ~ structurally equal ASTs for legal inputs
+    //    ~ both reject illegal inputs
     
     @Test(expected=AssertionError.class)
     public void testAssertionsEnabled() {
@@ -95,6 +103,52 @@ public class ParserTest {
         assertEquals("Expected proper parse", expected, result);
     }
 
+
+    // covers chains regrouped with ()
+    @Test
+    public void testRegroupedChainsEqual() {
+        assertEquals(MailingParser.parse("a, b, c"), MailingParser.parse("(a, b), c"));
+        assertEquals(MailingParser.parse("a, b, c"), MailingParser.parse("a, (b, c)"));
+        assertEquals(MailingParser.parse("a * b * c"), MailingParser.parse("a * (b * c)"));
+        assertEquals(MailingParser.parse("a ! b ! c"), MailingParser.parse("(a ! b) ! c"));
+        assertNotEquals(MailingParser.parse("a ! b ! c"), MailingParser.parse("a ! (b ! c)"));
+        assertEquals(MailingParser.parse("a; b; c"), MailingParser.parse("(a; b); c"));
+    }
+
+    // covers chains of 20000 operands
+    @Test
+    public void testLongChain() {
+        final StringBuilder input = new StringBuilder("a@a.com");
+        final StringBuilder nested = new StringBuilder();
+        for (int i = 0; i < 20000; i++) {
+            nested.append("(");
+        }
+        nested.append("a@a.com");
+        for (int i = 0; i < 20000; i++) {
+            input.append(", list").append(i);
+            nested.append(", list").append(i).append(")");
+        }
+        MailingList result = MailingParser.parse(input.toString());
+        assertTrue("Expected a single union", result instanceof Union);
+        assertEquals(20001, ((Union) result).getLists().size());
+        assertEquals(result, MailingParser.parse(nested.toString()));
+        assertEquals(result, MailingParser.parse(result.toString()));
+    }
+
+    // covers nesting 20000 deep
+    @Test
+    public void testDeepNesting() throws UnableToParseException {
+        final StringBuilder input = new StringBuilder();
+        for (int i = 0; i < 20000; i++) {
+            input.append("(");
+        }
+        input.append("a@a.com");
+        for (int i = 0; i < 20000; i++) {
+            input.append(i % 2 == 0 ? ", b@b.com, c@c.com)" : " ! c@c.com)");
+        }
+        MailingList result = MailingParser.parse(input.toString());
+        assertEquals(MailingParser.parse("a@a.com, b@b.com"), result.evaluate(new Environment()));
+    }
     
     // covers incomplete expression
     @Test(expected=IllegalArgumentException.class)
@@ -113,4 +167,43 @@ public class ParserTest {
     public void testIllegalCharacters() {
        MailingParser.parse("a@a@a.com");
     }
+    
+    // covers parser implementations, legal inputs
+    @Test
+    public void testDescentParserMatchesParserLib() {
+        final String[] inputs = {
+            "", " ", "a@b", "A@B.com", "a@b, , b@c , ", "a@b.com!b@a.com!c@c.com",
+            "a@a.com , b@b.com! c@c.com* d@d.com ", "a@a.com , (b@b.com! a@a.com)",
+            "list1", "list1, list2, a@b", "a@b, list1, c@d", "x = a@b, y; y = (z = c@d) * x",
+            "(suite=room1,room2);(room1=elliott@mit.edu;room2=(a@a.com;cameron@mit.edu));suite",
+            "* * *", "a;", ";;", "(())", "a\t=\r\nb"
+        };
+        for (String input : inputs) {
+            assertEquals("Expected equal ASTs for \"" + input + "\"",
+                    MailingParser.parseWithParserLib(input), MailingParser.parseWithDescentParser(input));
+        }
+    }
+    
+    // covers parser implementations, illegal inputs
+    @Test
+    public void testDescentParserRejectsLikeParserLib() {
+        final String[] inputs = { "(a@a.com", "a@ , b@b.com", "a@a@a.com", "a = b = c", "a.b", "@b", "a@b c" };
+        for (String input : inputs) {
+            assertTrue("Expected descent parser to reject \"" + input + "\"", rejects(input, true));
+            assertTrue("Expected parserlib to reject \"" + input + "\"", rejects(input, false));
+        }
+    }
+    
+    private static boolean rejects(String input, boolean descent) {
+        try {
+            if (descent) {
+                MailingParser.parseWithDescentParser(input);
+            } else {
+                MailingParser.parseWithParserLib(input);
+            }
+            return false;
+        } catch (IllegalArgumentException e) {
+            return true;
+        }
+    }
 }
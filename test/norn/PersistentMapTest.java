@@ -0,0 +1,92 @@
+package norn;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Tests for the PersistentMap data type.
+ */
+public class PersistentMapTest {
+    /*
+     * Testing strategy
+     *
+     * put, remove, get, size, forEach:
+     *      keys: 0, 1, many (several levels of the trie), with colliding hash codes
+     *      put: new key, existing key with same value, existing key with new value
+     *      remove: present key, absent key, last key
+     *      earlier versions unchanged after put and remove
+     */
+
+    @Test(expected=AssertionError.class)
+    public void testAssertionsEnabled() {
+        assert false; // make sure assertions are enabled with VM argument: -ea
+    }
+
+    // covers 0 and 1 keys, same value, remove last key, earlier versions unchanged
+    @Test
+    public void testSmall() {
+        PersistentMap<String, String> empty = PersistentMap.empty();
+        PersistentMap<String, String> one = empty.put("a", "1");
+        assertEquals(0, empty.size());
+        assertNull(empty.get("a"));
+        assertEquals(1, one.size());
+        assertEquals("1", one.get("a"));
+        assertTrue(one == one.put("a", "1"));
+        assertTrue(one == one.remove("b"));
+        assertEquals(0, one.remove("a").size());
+        assertFalse(one.remove("a").containsKey("a"));
+        assertEquals("2", one.put("a", "2").get("a"));
+        assertEquals("1", one.get("a"));
+    }
+
+    // covers many keys, colliding hash codes, all operations against a HashMap
+    @Test
+    public void testMatchesHashMap() {
+        final Random random = new Random(6031);
+        final Map<Object, Integer> expected = new HashMap<>();
+        PersistentMap<Object, Integer> map = PersistentMap.empty();
+        for (int i = 0; i < 20000; i++) {
+            final Object key = random.nextBoolean() ? Integer.valueOf(random.nextInt(5000)) : new Colliding(random.nextInt(50));
+            if (random.nextInt(3) == 0) {
+                expected.remove(key);
+                map = map.remove(key);
+            } else {
+                expected.put(key, i);
+                map = map.put(key, i);
+            }
+            assertEquals(expected.size(), map.size());
+            assertEquals(expected.get(key), map.get(key));
+        }
+        final Map<Object, Integer> contents = new HashMap<>();
+        map.forEach(contents::put);
+        assertEquals(expected, contents);
+        assertEquals(expected.keySet(), map.keySet());
+    }
+
+    // keys whose hash codes collide in groups of ten
+    private static final class Colliding {
+        private final int id;
+
+        Colliding(int id) {
+            this.id = id;
+        }
+
+        @Override
+        public boolean equals(Object that) {
+            return that instanceof Colliding && ((Colliding) that).id == id;
+        }
+
+        @Override
+        public int hashCode() {
+            return id / 10;
+        }
+    }
+}
@@ -0,0 +1,136 @@
+package norn;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+
+import org.junit.Test;
+
+import lib6005.parser.UnableToParseException;
+import norn.MailingList.MailingList;
+import norn.MailingList.MailingParser;
+import norn.MailingList.QueryOptimizer;
+
+/**
+ * Tests for the QueryOptimizer rewrite pass and the !explain command.
+ */
+public class QueryOptimizerTest {
+    /*
+     * Testing strategy
+     *
+     * optimize:
+     *      Union, Intersection, Difference chains: grouped left, grouped right
+     *      empty operands: left, right, of union, intersection, difference
+     *      duplicate operands: 0, >0, with a definition between them
+     *      intersection operands: already ordered, not ordered by cardinality
+     *      definitions inside the expression
+     *      nesting: at most MAX_DEPTH, deeper
+     * explain:
+     *      optimized cost <= unoptimized cost
+     *      nesting deeper than MAX_DEPTH
+     */
+
+    @Test(expected=AssertionError.class)
+    public void testAssertionsEnabled() {
+        assert false; // make sure assertions are enabled with VM argument: -ea
+    }
+
+    // covers union chains, grouping, literal folding, duplicates
+    @Test
+    public void testFlattenUnion() {
+        Environment env = new Environment();
+        MailingList optimized = QueryOptimizer.optimize(MailingParser.parse("(a, (b, a@a.com)), (b, b@b.com)"), env);
+        assertEquals(MailingParser.parse("a, b, (a@a.com, b@b.com)"), optimized);
+    }
+
+    // covers empty operands of intersection and difference
+    @Test
+    public void testEmptyOperands() {
+        Environment env = new Environment();
+        MailingList empty = MailingParser.parse("()");
+        assertEquals(empty, QueryOptimizer.optimize(MailingParser.parse("a * b * ()"), env));
+        assertEquals(empty, QueryOptimizer.optimize(MailingParser.parse("() ! a"), env));
+        assertEquals(empty, QueryOptimizer.optimize(MailingParser.parse("(a, b) ! (a, b)"), env));
+        assertEquals(MailingParser.parse("a"), QueryOptimizer.optimize(MailingParser.parse("a ! () , ()"), env));
+    }
+
+    // covers duplicate operands with a definition between them, in a union, intersection and difference
+    @Test
+    public void testDuplicatesAcrossDefinitions() throws UnableToParseException, IOException {
+        Environment env = new Environment();
+        env.execute("a = x@e, z@e; b = x@e, y@e, z@e");
+        assertEquals("", env.execute("b ! a ! (a = y@e; w@e) ! a"));
+        
+        env.execute("a = x@e, y@e");
+        assertEquals("y@e", env.execute("a * (a = y@e; x@e, y@e) * a"));
+        
+        env.execute("a = x@e, y@e");
+        assertEquals(MailingParser.parse("q@e, x@e, y@e"), MailingParser.parse(env.execute("a, ((a = q@e) * ()), a")));
+    }
+    
+    // covers intersection operands not ordered by cardinality
+    @Test
+    public void testIntersectionOrderedBySize() throws UnableToParseException, IOException {
+        Environment env = new Environment();
+        env.execute("big = a@a.com, b@b.com, c@c.com, d@d.com");
+        env.execute("small = a@a.com");
+        env.execute("medium = a@a.com, b@b.com");
+        MailingList optimized = QueryOptimizer.optimize(MailingParser.parse("big * medium * small"), env);
+        assertEquals(MailingParser.parse("small * medium * big"), optimized);
+        assertEquals(MailingParser.parse("a@a.com"), optimized.evaluate(env));
+    }
+
+    // covers definitions inside the expression
+    @Test
+    public void testDefinitionsKept() throws UnableToParseException, IOException {
+        Environment env = new Environment();
+        String returned = env.execute("(x = a@a.com) * (); x");
+        assertEquals(MailingParser.parse("a@a.com"), MailingParser.parse(returned));
+    }
+
+    // covers explain
+    @Test
+    public void testExplain() throws UnableToParseException, IOException {
+        Environment env = new Environment();
+        env.execute("big = a@a.com, b@b.com, c@c.com, d@d.com");
+        env.execute("small = a@a.com");
+        String plan = env.execute("!explain big * small * big");
+        assertTrue("Expected plan with estimates, was " + plan, plan.startsWith("(small{1} * big{4}){1} cost="));
+        long cost = Long.parseLong(plan.replaceAll(".* cost=(\\d+) .*", "$1"));
+        long unoptimized = Long.parseLong(plan.replaceAll(".*unoptimized_cost=(\\d+)", "$1"));
+        assertTrue("Expected optimized plan to be cheaper", cost < unoptimized);
+    }
+    
+    // covers nesting at most and deeper than MAX_DEPTH, through execute
+    @Test
+    public void testDeeplyNested() throws UnableToParseException, IOException {
+        Environment env = new Environment();
+        String deep = nested(20000);
+        assertEquals("", env.execute(deep)); // a ! (a ! x) = a ! a = ()
+        assertEquals("a@b.c", env.execute("a@b.c ! (" + deep + ")"));
+        assertEquals("", env.execute("d = " + nested(2 * QueryOptimizer.MAX_DEPTH) + "; d"));
+        assertEquals("not optimized: nested more than " + QueryOptimizer.MAX_DEPTH + " deep",
+                env.execute("!explain " + deep));
+        
+        // () ! y = () only if not too deep to optimize
+        String shallow = "() ! (" + nested(QueryOptimizer.MAX_DEPTH - 2) + ")";
+        assertEquals(MailingParser.parse("()"), QueryOptimizer.optimize(MailingParser.parse(shallow), env));
+        assertTrue("Expected plan", env.execute("!explain " + shallow).startsWith("(){0} cost="));
+        MailingList tooDeep = MailingParser.parse("() ! (" + deep + ")");
+        assertTrue("Expected not optimized", QueryOptimizer.optimize(tooDeep, env) == tooDeep);
+    }
+    
+    // a@b.c ! (a@b.c ! ( ... x@y.z)), with depth differences
+    private static String nested(int depth) {
+        StringBuilder expression = new StringBuilder();
+        for (int i = 0; i < depth; i++) {
+            expression.append("a@b.c ! (");
+        }
+        expression.append("x@y.z");
+        for (int i = 0; i < depth; i++) {
+            expression.append(")");
+        }
+        return expression.toString();
+    }
+}
@@ -0,0 +1,312 @@
+package norn;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import lib6005.parser.UnableToParseException;
+
+public class WriteAheadLogTest {
+
+    /*
+     * Testing strategy
+     *
+     * recovery: empty directory, checkpoint only, checkpoint and log tail
+     * changes logged: assignments, redefinitions, clear (by !save), !load
+     * log tail: complete, torn last record, corrupt last record
+     * sync: COMMIT with concurrent definitions, PERIODIC, NONE; command failing after a change
+     * checkpoint: with no changes since the last, during concurrent definitions
+     * after close: changes fail
+     */
+
+    private Path directory;
+
+    @Test(expected=AssertionError.class)
+    public void testAssertionsEnabled() {
+        assert false; // make sure assertions are enabled with VM argument: -ea
+    }
+
+    @Before
+    public void createDirectory() throws IOException {
+        directory = Files.createTempDirectory("norn-wal");
+    }
+
+    @After
+    public void deleteDirectory() throws IOException {
+        try (Stream<Path> files = Files.walk(directory)) {
+            files.sorted(Comparator.reverseOrder()).forEach(file -> file.toFile().delete());
+        }
+    }
+
+    // recovers environment from the log in directory, and logs its changes
+    private WriteAheadLog open(Environment environment) throws IOException, UnableToParseException {
+        return WriteAheadLog.open(directory, environment, WriteAheadLog.Sync.COMMIT, 0);
+    }
+
+    private List<String> files() throws IOException {
+        final List<String> names = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+            for (Path file : files) {
+                names.add(file.getFileName().toString());
+            }
+        }
+        names.sort(null);
+        return names;
+    }
+
+    private Path segment() throws IOException {
+        for (String name : files()) {
+            if (name.endsWith(".log")) {
+                return directory.resolve(name);
+            }
+        }
+        throw new AssertionError("no segment in " + files());
+    }
+
+    @Test
+    public void testRecoverEmpty() throws Exception {
+        final Environment environment = new Environment();
+        final WriteAheadLog log = open(environment);
+        assertEquals(0, environment.size());
+        assertEquals("[checkpoint-0.snapshot, wal-0.log]", files().toString());
+        log.close();
+    }
+
+    @Test
+    public void testRecoverLogTail() throws Exception {
+        final Environment environment = new Environment();
+        open(environment); // never closed, as if the server crashed
+        environment.execute("a=x@mit.edu,y@mit.edu");
+        environment.execute("b=a*y@mit.edu; a=a,z@mit.edu");
+        environment.execute("b=b,a");
+
+        final Environment recovered = new Environment();
+        final WriteAheadLog log = open(recovered);
+        assertEquals(2, recovered.size());
+        assertEquals(environment.execute("a"), recovered.execute("a"));
+        assertEquals(environment.execute("b"), recovered.execute("b"));
+        assertEquals(0, log.getRecordCount());
+        log.close();
+    }
+
+    @Test
+    public void testRecoverCheckpointAndLogTail() throws Exception {
+        final Environment first = new Environment();
+        open(first);
+        first.execute("a=x@mit.edu");
+        final Environment second = new Environment();
+        open(second); // checkpoint 1 holds a
+        second.execute("b=a,y@mit.edu");
+        assertEquals("[checkpoint-1.snapshot, wal-1.log]", files().toString());
+
+        final Environment recovered = new Environment();
+        open(recovered).close();
+        assertEquals(2, recovered.size());
+        assertEquals("x@mit.edu,y@mit.edu", sorted(recovered.execute("b")));
+        assertEquals("[checkpoint-2.snapshot, wal-2.log]", files().toString());
+    }
+
+    private static String sorted(String emails) {
+        final String[] split = emails.trim().split(",\\s*");
+        Arrays.sort(split);
+        return String.join(",", split);
+    }
+
+    @Test
+    public void testRecoverClearAndLoad() throws Exception {
+        final String name = "ThisIsAWriteAheadLogTest";
+        final Environment environment = new Environment();
+        open(environment);
+        try {
+            environment.execute("a=x@mit.edu; b=y@mit.edu");
+            environment.execute("!save" + name); // clears
+            environment.execute("c=z@mit.edu");
+            final Environment recovered = new Environment();
+            open(recovered);
+            assertEquals(1, recovered.size());
+            assertTrue(recovered.contains("c"));
+
+            recovered.execute("!load" + name);
+            final Environment loaded = new Environment();
+            open(loaded);
+            assertEquals(3, loaded.size());
+        } finally {
+            Files.deleteIfExists(Paths.get("test", name));
+        }
+    }
+
+    @Test
+    public void testTornTail() throws Exception {
+        final Environment environment = new Environment();
+        open(environment);
+        environment.execute("a=x@mit.edu");
+        environment.execute("b=y@mit.edu");
+        final Path segment = segment();
+        // half of a third record
+        final byte[] bytes = Files.readAllBytes(segment);
+        Files.write(segment, Arrays.copyOfRange(bytes, 0, bytes.length / 2 + 2), StandardOpenOption.APPEND);
+
+        final Environment recovered = new Environment();
+        open(recovered);
+        assertEquals(2, recovered.size());
+    }
+
+    @Test
+    public void testCorruptTail() throws Exception {
+        final Environment environment = new Environment();
+        open(environment);
+        environment.execute("a=x@mit.edu");
+        environment.execute("b=y@mit.edu");
+        final Path segment = segment();
+        final byte[] bytes = Files.readAllBytes(segment);
+        bytes[bytes.length - 1] ^= 1; // the last record's checksum no longer matches
+        Files.write(segment, bytes);
+
+        final Environment recovered = new Environment();
+        open(recovered);
+        assertTrue(recovered.contains("a"));
+        assertFalse(recovered.contains("b"));
+    }
+
+    @Test
+    public void testGroupCommit() throws Exception {
+        final Environment environment = new Environment();
+        final WriteAheadLog log = open(environment);
+        final int threads = 8;
+        final int definitions = 50;
+        final List<Thread> writers = new ArrayList<>();
+        final AtomicInteger failures = new AtomicInteger();
+        for (int t = 0; t < threads; t++) {
+            final int id = t;
+            final Thread writer = new Thread(() -> {
+                try {
+                    for (int i = 0; i < definitions; i++) {
+                        environment.execute("list" + id + "x" + i + "=user" + i + "@mit.edu");
+                    }
+                } catch (UnableToParseException e) {
+                    failures.incrementAndGet();
+                }
+            });
+            writer.start();
+            writers.add(writer);
+        }
+        for (Thread writer : writers) {
+            writer.join();
+        }
+        assertEquals(0, failures.get());
+        assertEquals(threads * definitions, log.getRecordCount());
+        assertTrue(log.getSyncCount() >= 1 && log.getSyncCount() <= threads * definitions);
+
+        final Environment recovered = new Environment();
+        open(recovered);
+        assertEquals(threads * definitions, recovered.size());
+    }
+
+    @Test
+    public void testCommitAfterFailedCommand() throws Exception {
+        final Environment environment = new Environment();
+        open(environment); // never closed, as if the server crashed
+        try {
+            environment.execute("a=x@mit.edu; b=c; c=b");
+            assertTrue("expected cyclical definition to fail", false);
+        } catch (UnableToParseException e) {
+            // expected, after a and b are defined
+        }
+        assertEquals("x@mit.edu", environment.execute("a"));
+
+        final Environment recovered = new Environment();
+        final WriteAheadLog log = open(recovered);
+        assertEquals(2, recovered.size());
+        assertEquals("x@mit.edu", recovered.execute("a"));
+        log.close();
+    }
+
+    @Test
+    public void testPeriodicAndNone() throws Exception {
+        for (WriteAheadLog.Sync sync : new WriteAheadLog.Sync[] { WriteAheadLog.Sync.PERIODIC, WriteAheadLog.Sync.NONE }) {
+            final Environment environment = new Environment();
+            final WriteAheadLog log = WriteAheadLog.open(directory, environment, sync, 10);
+            environment.execute("a" + sync.ordinal() + "=x@mit.edu");
+            if (sync == WriteAheadLog.Sync.PERIODIC) {
+                final long deadline = System.currentTimeMillis() + 5000;
+                while (log.getSyncCount() == 0 && System.currentTimeMillis() < deadline) {
+                    Thread.sleep(10);
+                }
+                assertTrue(log.getSyncCount() > 0);
+            }
+            else {
+                assertEquals(0, log.getSyncCount());
+            }
+            log.close();
+        }
+        final Environment recovered = new Environment();
+        open(recovered);
+        assertEquals(2, recovered.size());
+    }
+
+    @Test
+    public void testCheckpoint() throws Exception {
+        final Environment environment = new Environment();
+        final WriteAheadLog log = open(environment);
+        log.checkpoint();
+        assertEquals("[checkpoint-1.snapshot, wal-1.log]", files().toString());
+
+        final AtomicInteger failures = new AtomicInteger();
+        final Thread writer = new Thread(() -> {
+            try {
+                for (int i = 0; i < 200; i++) {
+                    environment.execute("list" + i + "=user" + i + "@mit.edu");
+                }
+            } catch (UnableToParseException e) {
+                failures.incrementAndGet();
+            }
+        });
+        writer.start();
+        for (int i = 0; i < 5; i++) {
+            log.checkpoint();
+        }
+        writer.join();
+        assertEquals(0, failures.get());
+        assertEquals("[checkpoint-6.snapshot, wal-6.log]", files().toString());
+
+        final Environment recovered = new Environment();
+        open(recovered);
+        assertEquals(200, recovered.size());
+    }
+
+    @Test
+    public void testCheckpointCommand() throws Exception {
+        final Environment environment = new Environment();
+        open(environment);
+        environment.execute("a=x@mit.edu");
+        assertEquals("", environment.execute("!checkpoint"));
+        assertEquals(1, environment.getCheckpointCount());
+        assertEquals("[checkpoint-1.snapshot, wal-1.log]", files().toString());
+        assertEquals("x@mit.edu", environment.execute("a"));
+    }
+
+    @Test(expected=UncheckedIOException.class)
+    public void testChangeAfterClose() throws Exception {
+        final Environment environment = new Environment();
+        open(environment).close();
+        environment.execute("a=x@mit.edu");
+    }
+}
@@ -0,0 +1,113 @@
+package norn.bench;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
+
+import org.junit.Test;
+
+import norn.Environment;
+
+public class EnvironmentGeneratorTest {
+
+    /*
+     * Testing strategy
+     *
+     * seed: same, different
+     * depth: 1, >1; lists: == depth, > depth
+     * operator mix: one operator, all operators
+     * output: loaded by readFile and by !load; commands executed on the loaded environment
+     * invalid settings: fewer lists than layers, empty operator mix, ratio out of range
+     */
+
+    @Test(expected=AssertionError.class)
+    public void testAssertionsEnabled() {
+        assert false; // make sure assertions are enabled with VM argument: -ea
+    }
+
+    private static EnvironmentGenerator generator(long seed) {
+        return new EnvironmentGenerator(seed).lists(40).addresses(5).domains(4, 1.5).overlap(0.5).depth(4).fanOut(3);
+    }
+
+    @Test
+    public void testDeterministic() {
+        assertEquals(generator(7).definitions(), generator(7).definitions());
+        assertEquals(generator(7).commands(50), generator(7).commands(50));
+        assertFalse(generator(7).definitions().equals(generator(8).definitions()));
+    }
+
+    @Test
+    public void testDefinitionsInDependencyOrder() throws Exception {
+        final List<String> definitions = generator(1).definitions();
+        assertEquals(40, definitions.size());
+        final Environment environment = new Environment();
+        for (String definition : definitions) {
+            environment.execute(definition); // fails on a list used before it is defined
+        }
+        assertEquals(40, environment.size());
+    }
+
+    @Test
+    public void testDepth() {
+        // one list per layer, each using the one before
+        final List<String> definitions = new EnvironmentGenerator(0).lists(4).depth(4).fanOut(1).definitions();
+        assertFalse(definitions.get(0).substring("list0=".length()).contains("list"));
+        assertEquals("list1=list0;", definitions.get(1));
+        assertEquals("list2=list1;", definitions.get(2));
+        assertEquals("list3=list2;", definitions.get(3));
+        assertEquals(1, new EnvironmentGenerator(0).lists(1).depth(1).definitions().size());
+    }
+
+    @Test
+    public void testLoadsAndRunsCommands() throws Exception {
+        final EnvironmentGenerator generator = generator(3).operatorMix(1, 1, 1).definitionRatio(0.5);
+        final Path file = Files.createTempFile("generated", ".txt");
+        try {
+            generator.writeEnvironment(file);
+            final Environment environment = new Environment();
+            environment.readFile(file);
+            assertEquals(40, environment.size());
+            for (String command : generator.commands(100)) {
+                environment.execute(command);
+            }
+            assertEquals(40, environment.size());
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    @Test
+    public void testLoadCommand() throws Exception {
+        final String name = "ThisIsAGeneratedEnvironment";
+        final Path file = Paths.get("test", name);
+        try {
+            new EnvironmentGenerator(0).lists(3).depth(3).fanOut(1).writeEnvironment(file);
+            final Environment environment = new Environment();
+            environment.execute("!load" + name);
+            assertEquals(3, environment.size());
+            assertTrue(environment.contains("list2"));
+        } finally {
+            Files.deleteIfExists(file);
+        }
+    }
+
+    @Test(expected=IllegalArgumentException.class)
+    public void testFewerListsThanLayers() {
+        new EnvironmentGenerator(0).lists(2).depth(3).definitions();
+    }
+
+    @Test(expected=IllegalArgumentException.class)
+    public void testEmptyOperatorMix() {
+        new EnvironmentGenerator(0).operatorMix(0, 0, 0);
+    }
+
+    @Test(expected=IllegalArgumentException.class)
+    public void testOverlapOutOfRange() {
+        new EnvironmentGenerator(0).overlap(1.5);
+    }
+}